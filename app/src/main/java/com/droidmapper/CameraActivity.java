@@ -6,20 +6,13 @@ import android.app.DialogFragment;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.content.Context;
 import android.hardware.Camera;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
 import android.location.Location;
-import android.media.ExifInterface;
-import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
-import android.os.SystemClock;
-import android.provider.MediaStore;
 import android.text.Html;
 import android.util.Log;
 import android.view.OrientationEventListener;
@@ -37,26 +30,25 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
+import com.droidmapper.util.CapturePipeline;
+import com.droidmapper.util.CaptureScheduler;
 import com.droidmapper.util.Constants;
+import com.droidmapper.util.DistanceTrigger;
 import com.droidmapper.util.DropboxUploaderThread;
-import com.droidmapper.util.GpsUtil;
-import com.droidmapper.util.PhotoProcessorThread;
-import com.droidmapper.util.Util;
+import com.droidmapper.util.HttpUploadSink;
+import com.droidmapper.util.LocalDirectoryUploadSink;
+import com.droidmapper.util.LocationRingBuffer;
+import com.droidmapper.util.MotionGate;
+import com.droidmapper.util.NearDuplicateFilter;
+import com.droidmapper.util.TokenBucket;
 import com.droidmapper.view.CameraView;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 /**
  * This activity creates the camera screen GUI on the device's screen and handles user input. Its
  * purpose is to take photos with back camera in the specified interval and to send taken photos
- * to the PhotoProcessorThread for further processing.
+ * to the CapturePipeline for further processing.
  */
 public class CameraActivity extends Activity implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
 
@@ -66,17 +58,47 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
     public static final String EXTRA_INTERVAL = CameraActivity.class.getName() + "EXTRA_INTERVAL";
     public static final String EXTRA_DELAY = CameraActivity.class.getName() + "EXTRA_DELAY";
     public static final String EXTRA_SIZE = CameraActivity.class.getName() + "EXTRA_SIZE";
+    public static final String EXTRA_CAPTURE_MODE = CameraActivity.class.getName() + "EXTRA_CAPTURE_MODE";
+    public static final String EXTRA_BUDGET = CameraActivity.class.getName() + "EXTRA_BUDGET";
+    public static final String EXTRA_BANDWIDTH = CameraActivity.class.getName() + "EXTRA_BANDWIDTH";
+    public static final String EXTRA_BANDWIDTH_BURST = CameraActivity.class.getName() + "EXTRA_BANDWIDTH_BURST";
+    public static final String EXTRA_UPLOAD_URL = CameraActivity.class.getName() + "EXTRA_UPLOAD_URL";
 
     // Interval type constants:
     public static final int INTERVAL_TYPE_DISTANCE = 1;
     public static final int INTERVAL_TYPE_TIME = 2;
 
+    // Capture mode constants:
+    // - take full resolution photos, the camera preview stops for every photo:
+    public static final int CAPTURE_MODE_STILL = 1;
+    // - grab frames from the camera preview stream, allows sub-second intervals:
+    public static final int CAPTURE_MODE_PREVIEW = 2;
+
     // Request code to use when launching the Google Play Services API resolution activity:
     private static final int REQUEST_RESOLVE_ERROR = 1001;
     // Unique tag for the Google Play Services API error dialog fragment:
     private static final String DIALOG_ERROR = "dialog_error";
     // Key used to preserve the state of the resolvingError field between activity restarts:
     private static final String STATE_RESOLVING_ERROR = "resolving_error";
+    // Number of recent location fixes kept to interpolate the position of each shot from:
+    private static final int LOCATION_BUFFER_CAPACITY = 64;
+    // Photos scaled to this size or smaller are uploaded in batches:
+    private static final float BATCH_MAX_SIZE = 0.25F;
+    // In time mode a photo is dropped if its perceptual hash differs in at most this many bits
+    // from the last photo kept, unless the last photo kept is older than the given interval:
+    private static final int NEAR_DUPLICATE_MAX_DISTANCE = 5;
+    private static final long NEAR_DUPLICATE_KEEP_INTERVAL_MS = 30000L;
+    // In time mode, while the device stands still, a photo is taken only this often, in
+    // milliseconds:
+    private static final long STATIONARY_PHOTO_INTERVAL_MS = 60000L;
+    // How often, in milliseconds, the upload rate, the backlog and the time to upload it are
+    // logged:
+    private static final long UPLOAD_METRICS_INTERVAL_MS = 10000L;
+    // Shortest time interval, in milliseconds, the still capture mode keeps up with, takePicture()
+    // stops the preview for every photo, shorter intervals are captured from the preview frames:
+    private static final int MIN_STILL_INTERVAL_MS = 1000;
+    // Prefix of an upload URL that names a directory on local storage:
+    private static final String FILE_URL_PREFIX = "file://";
 
     private static final String TAG = CameraActivity.class.getName();
 
@@ -87,24 +109,27 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
 
     // Dropbox API:
     private DropboxAPI<AndroidAuthSession> dropboxApi;
-    private String dbOauth2AccessToken;
+    private String dbOauth2AccessToken, uploadUrl;
 
     // Util threads:
-    //private PhotoProcessorThread photoProcsThread;
     private DropboxUploaderThread dbUpldrThread;
+    private CapturePipeline capturePipeline;
 
     // Location:
     private GoogleApiClient googleApiClient;
     private boolean resolvingError;
     private Location lastLocation;
+    private LocationRingBuffer locationRingBuffer;
 
     // Other:
-    private SimpleDateFormat dateFormat, exifGpsDateFormat, exifDateFormat;
     private OrientationEventListener orientationListener;
-    private volatile long takePicInvocTimestamp;
-    private int interval, intervalType, delay;
+    private CaptureScheduler captureScheduler;
+    private DistanceTrigger distanceTrigger;
+    private MotionGate motionGate;
+    private SensorManager sensorManager;
+    private int interval, intervalType, delay, captureMode, budget, bandwidth, bandwidthBurst;
     private int devOrien, devOrienAtCapture;
-    private File mediaStorageDir;
+    private long shutterTimestamp;
     private Handler handler;
     private float size;
 
@@ -136,12 +161,29 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
             throw new IllegalArgumentException("EXTRA_DELAY was not found in the intent that started this activity!");
         } else if (!intent.hasExtra(EXTRA_SIZE)) {
             throw new IllegalArgumentException("EXTRA_SIZE was not found in the intent that started this activity!");
+        } else if (!intent.hasExtra(EXTRA_CAPTURE_MODE)) {
+            throw new IllegalArgumentException("EXTRA_CAPTURE_MODE was not found in the intent that started this activity!");
         } else {
             dbOauth2AccessToken = intent.getStringExtra(EXTRA_DB_OAUTH2_ACCESS_TOKEN);
             intervalType = intent.getIntExtra(EXTRA_INTERVAL_TYPE, -1);
             interval = intent.getIntExtra(EXTRA_INTERVAL, -1);
             delay = intent.getIntExtra(EXTRA_DELAY, -1);
             size = intent.getFloatExtra(EXTRA_SIZE, 0F);
+            captureMode = intent.getIntExtra(EXTRA_CAPTURE_MODE, CAPTURE_MODE_STILL);
+            // Optional, no budget unless asked for:
+            budget = intent.getIntExtra(EXTRA_BUDGET, 0);
+            // Optional, no bandwidth limit unless asked for, one second's worth of burst unless
+            // told otherwise:
+            bandwidth = intent.getIntExtra(EXTRA_BANDWIDTH, 0);
+            bandwidthBurst = intent.getIntExtra(EXTRA_BANDWIDTH_BURST, 0);
+            // Optional, the photos go to Dropbox unless another destination is given:
+            uploadUrl = intent.getStringExtra(EXTRA_UPLOAD_URL);
+        }
+
+        // Sub-second intervals are only possible with frames from the preview stream:
+        if (intervalType == INTERVAL_TYPE_TIME && interval < MIN_STILL_INTERVAL_MS && captureMode != CAPTURE_MODE_PREVIEW) {
+            Log.d(TAG, "onCreate() :: Interval " + interval + "ms is too short for still capture, using preview frames");
+            captureMode = CAPTURE_MODE_PREVIEW;
         }
 
         // Inflates the GUI defined in the XML file:
@@ -159,6 +201,9 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         cameraView = (CameraView) findViewById(R.id.activityCamera_cameraView);
         buttonStop = (Button) findViewById(R.id.activityCamera_buttonStop);
 
+        // The camera has to know the capture mode before its preview starts:
+        cameraView.setPreviewFrameCapture(captureMode == CAPTURE_MODE_PREVIEW, size);
+
         // Listen for clicks on the stop button:
         buttonStop.setOnClickListener(onClickListener);
 
@@ -173,6 +218,22 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         // some point in future.
         handler = new Handler();
 
+        // Recent location fixes, from which the position of the device at the moment of each
+        // shot is interpolated. It is filled on the GUI thread, by the location listener:
+        locationRingBuffer = new LocationRingBuffer(LOCATION_BUFFER_CAPACITY);
+
+        // In time interval mode the photos are taken on a fixed rate timeline. When the camera
+        // can't keep up the missed shots are skipped, so that the rest stay on schedule:
+        if (intervalType == INTERVAL_TYPE_TIME) {
+            captureScheduler = new CaptureScheduler(handler, interval, CaptureScheduler.OVERRUN_POLICY_SKIP, captureSchedulerCallback);
+            // The timeline keeps running while the device stands still, the gate only thins out
+            // the shots, so full rate resumes at the first deadline after it moves again:
+            motionGate = new MotionGate(Math.max(interval, STATIONARY_PHOTO_INTERVAL_MS));
+            sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        } else {
+            distanceTrigger = new DistanceTrigger(handler, interval, distanceTriggerCallback);
+        }
+
         // Connect to Google Play Service in order to use Fused Location Provider to geo-tag taken photos:
         googleApiClient = new GoogleApiClient.Builder(this)
                 .addConnectionCallbacks(this)
@@ -191,20 +252,6 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         AndroidAuthSession session = new AndroidAuthSession(appKeys, dbOauth2AccessToken);
         dropboxApi = new DropboxAPI<AndroidAuthSession>(session);
 
-        // Create(if it does not exist) and initialize the directory in which the images will be saved:
-        File picsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        mediaStorageDir = new File(picsDir, getString(R.string.app_name));
-        if (!mediaStorageDir.exists()) {
-            mediaStorageDir.mkdirs();
-        }
-
-        // Create a date format using which we will format photos timestamps and create their file
-        // names:
-        dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss_SSS");
-        // And date formats for exif tags:
-        exifGpsDateFormat = new SimpleDateFormat("yyyy:MM:dd", Locale.ENGLISH);
-        exifDateFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-
         // We need to listen for device orientation changes in order to know when it is held in
         // portrait and when in landscape so that we could properly rotate the captured photos:
         orientationListener = new OrientationEventListener(this) {
@@ -242,21 +289,60 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
             googleApiClient.connect();
         }
 
-        // Start the thread that will upload the saved photos to Dropbox:
-        dbUpldrThread = new DropboxUploaderThread(size, dropboxApi);
+        // Start the thread that will upload the saved photos to Dropbox. Preview frames are
+        // already grabbed in the requested size, so they don't need to be scaled again, but they are
+        // still kept within the budget of bytes per photo. The uploads keep to the bandwidth limit,
+        // if any, so they leave room for the other traffic of a shared link:
+        float uploadScale = captureMode == CAPTURE_MODE_PREVIEW ? 1F : size;
+        TokenBucket bandwidthLimiter = new TokenBucket(bandwidth, bandwidthBurst);
+        if (uploadUrl == null) {
+            dbUpldrThread = new DropboxUploaderThread(uploadScale, budget, bandwidthLimiter, dropboxApi);
+        } else if (uploadUrl.startsWith(FILE_URL_PREFIX)) {
+            // A directory on local storage, to run without a network:
+            File uploadDir = new File(uploadUrl.substring(FILE_URL_PREFIX.length()));
+            dbUpldrThread = new DropboxUploaderThread(uploadScale, budget, new LocalDirectoryUploadSink(uploadDir), null);
+        } else {
+            // An HTTP server, such as one that emulates a slow link, to measure the uploads:
+            dbUpldrThread = new DropboxUploaderThread(uploadScale, budget, new HttpUploadSink(uploadUrl, bandwidthLimiter),
+                    bandwidthLimiter);
+        }
+        Log.d(TAG, "onStart() :: Uploading to " + (uploadUrl != null ? uploadUrl : "Dropbox"));
+        if (captureMode == CAPTURE_MODE_PREVIEW || size <= BATCH_MAX_SIZE) {
+            // The photos are small enough for the request overhead to dominate, upload them in
+            // batches:
+            dbUpldrThread.setBatching(DropboxUploaderThread.DEFAULT_BATCH_MAX_PHOTOS,
+                    DropboxUploaderThread.DEFAULT_BATCH_MAX_DELAY_MS);
+        }
         dbUpldrThread.start();
+        handler.postDelayed(uploadMetricsRunnable, UPLOAD_METRICS_INTERVAL_MS);
 
-        // Start the thread that will save the photo data to external storage:
-        //photoProcsThread = new PhotoProcessorThread(this, dbUpldrThread);
-        //photoProcsThread.start();
-
+        // Start the pipeline that will save the photo data to external storage, processing several
+        // photos in parallel on multi-core devices:
+        capturePipeline = new CapturePipeline(this, dbUpldrThread, CapturePipeline.ORIENTATION_MODE_LOSSLESS,
+                CapturePipeline.WORKER_COUNT_AUTO, locationRingBuffer);
         if (intervalType == INTERVAL_TYPE_TIME) {
+            // Standing still, for example at a traffic light, the photos taken in time mode show
+            // the same scene over and over:
+            capturePipeline.setNearDuplicateFilter(new NearDuplicateFilter(NEAR_DUPLICATE_MAX_DISTANCE,
+                    NEAR_DUPLICATE_KEEP_INTERVAL_MS));
+        }
+        capturePipeline.start();
+
+        if (captureScheduler != null) {
             // Delay the start of photo taking:
-            handler.postDelayed(delayPhotoTakingRunnable, delay);
+            captureScheduler.start(delay);
         }
 
         // Start listening for rotation changes:
         orientationListener.enable();
+
+        // And for the accelerometer, which tells the motion gate when the device starts moving:
+        if (motionGate != null && sensorManager != null) {
+            Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            if (accelerometer != null) {
+                sensorManager.registerListener(motionGate, accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
+            }
+        }
     }
 
     /**
@@ -266,15 +352,17 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
     @Override
     public void onStop() {
         // User is leaving the screen, cancel the photo taking:
-        handler.removeCallbacks(delayPhotoTakingRunnable);
+        stopCaptureSchedulerHelper();
 
-        // Stop the photo processor thread:
-        /*if (photoProcsThread != null) {
-            photoProcsThread.halt();
-            photoProcsThread = null;
-        }*/
+        // Stop the capture pipeline, it first queues the photos left in it for upload, so it has
+        // to be stopped before the uploader:
+        if (capturePipeline != null) {
+            capturePipeline.halt();
+            capturePipeline = null;
+        }
 
         // Stop the Dropbox uploader thread:
+        handler.removeCallbacks(uploadMetricsRunnable);
         if (dbUpldrThread != null) {
             dbUpldrThread.halt();
             dbUpldrThread = null;
@@ -282,6 +370,9 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
 
         // Stop listening for rotation changes:
         orientationListener.disable();
+        if (motionGate != null && sensorManager != null) {
+            sensorManager.unregisterListener(motionGate);
+        }
 
         if (googleApiClient.isConnected()) {
             LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, locationListener);
@@ -339,24 +430,18 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         lastLocation = LocationServices.FusedLocationApi.getLastLocation(googleApiClient);
         if (lastLocation != null) {
             cameraView.setGeoTaggingLocation(lastLocation);
+            locationRingBuffer.add(lastLocation);
         }
         updateShownLocationDataHelper();
 
-        // Request location updates from Google Play Services Fused Provider:
-        if (intervalType == INTERVAL_TYPE_DISTANCE) {
-            LocationRequest locationRequest = new LocationRequest();
-            locationRequest.setInterval(1000L);
-            locationRequest.setFastestInterval(1000L);
-            locationRequest.setSmallestDisplacement(interval);
-            locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-            LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, locationListener);
-        } else {
-            LocationRequest locationRequest = new LocationRequest();
-            locationRequest.setInterval(1000L);
-            locationRequest.setFastestInterval(1000L);
-            locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-            LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, locationListener);
-        }
+        // Request location updates from Google Play Services Fused Provider. In distance interval
+        // mode there is no smallest displacement, the distance trigger needs every fix to correct
+        // its predictions:
+        LocationRequest locationRequest = new LocationRequest();
+        locationRequest.setInterval(1000L);
+        locationRequest.setFastestInterval(1000L);
+        locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        LocationServices.FusedLocationApi.requestLocationUpdates(googleApiClient, locationRequest, locationListener);
     }
 
     /**
@@ -415,6 +500,71 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         });
     }
 
+    /**
+     * A helper method that takes a picture, or grabs a preview frame, depending on the capture
+     * mode.
+     */
+    private void takePictureHelper() {
+        if (captureMode == CAPTURE_MODE_PREVIEW) {
+            cameraView.grabPreviewFrame(previewFrameCallback);
+        } else {
+            cameraView.takePicture(shutterCallback, pictureCallback);
+        }
+        devOrienAtCapture = devOrien;
+    }
+
+    /**
+     * A helper method that tells the capture scheduler or the distance trigger, whichever there
+     * is, that the camera is ready for the next photo.
+     */
+    private void captureCompleteHelper() {
+        if (captureScheduler != null) {
+            captureScheduler.onCaptureComplete();
+        }
+        if (distanceTrigger != null) {
+            distanceTrigger.onCaptureComplete();
+        }
+    }
+
+    /**
+     * An instance of the Runnable interface that logs, every few seconds, how fast the photos are
+     * uploaded, how many bytes are waiting to be uploaded, and how long uploading them would take,
+     * so it can be told whether the uploads keep up with the capture.
+     */
+    private Runnable uploadMetricsRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            if (dbUpldrThread == null) {
+                return;
+            }
+            long drainMillis = dbUpldrThread.getDrainMillis();
+            Log.i(TAG, "uploadMetricsRunnable.run() :: Uploading at " + Math.round(dbUpldrThread.getUploadRate() / 1024D)
+                    + " KiB/s, " + dbUpldrThread.getBacklogBytes() / 1024L + " KiB waiting, "
+                    + (drainMillis < 0L ? "no estimate" : drainMillis / 1000L + " s") + " to upload them");
+            handler.postDelayed(this, UPLOAD_METRICS_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * A helper method that stops the capture scheduler or the distance trigger, whichever there
+     * is, and logs its statistics.
+     */
+    private void stopCaptureSchedulerHelper() {
+        if (captureScheduler != null) {
+            captureScheduler.stop();
+            Log.i(TAG, "stopCaptureSchedulerHelper() :: " + captureScheduler.getStats());
+        }
+        if (motionGate != null) {
+            // The photos this session didn't take because the device stood still:
+            Log.i(TAG, "stopCaptureSchedulerHelper() :: " + motionGate.getStats());
+        }
+        if (distanceTrigger != null) {
+            distanceTrigger.stop();
+            Log.i(TAG, "stopCaptureSchedulerHelper() :: " + distanceTrigger.getStats());
+        }
+    }
+
     /**
      * A helper method that updates the on-screen texts with new location data.
      */
@@ -448,7 +598,7 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         public void onClick(View view) {
             if (view == buttonStop) {
                 // User is leaving the screen, cancel the photo taking:
-                handler.removeCallbacks(delayPhotoTakingRunnable);
+                stopCaptureSchedulerHelper();
 
                 // Close the activity:
                 finish();
@@ -457,25 +607,66 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
     };
 
     /**
-     * A runnable instance used to schedule photo capturing.
+     * An instance of the CaptureScheduler.Callback interface used to schedule photo capturing.
      */
-    private Runnable delayPhotoTakingRunnable = new Runnable() {
+    private CaptureScheduler.Callback captureSchedulerCallback = new CaptureScheduler.Callback() {
 
         /**
          * A callback method which invokes photo capture.
          */
         @Override
-        public void run() {
-            // If the activity is not being closed, record the current system time and take a
-            // picture:
+        public void onCaptureDue() {
+            // If the activity is not being closed, take a picture, unless the device stands
+            // still:
+            if (!isFinishing()) {
+                if (motionGate != null && !motionGate.shouldCapture()) {
+                    captureCompleteHelper();
+                    return;
+                }
+                takePictureHelper();
+            } else {
+                stopCaptureSchedulerHelper();
+            }
+        }
+    };
+
+    /**
+     * An instance of the DistanceTrigger.Callback interface used to take photos in distance
+     * interval mode.
+     */
+    private DistanceTrigger.Callback distanceTriggerCallback = new DistanceTrigger.Callback() {
+
+        /**
+         * A callback method which invokes photo capture.
+         */
+        @Override
+        public void onDistanceReached() {
+            // If the activity is not being closed, take a picture:
             if (!isFinishing()) {
-                takePicInvocTimestamp = SystemClock.elapsedRealtime();
-                cameraView.takePicture(pictureCallback);
-                devOrienAtCapture = devOrien;
+                takePictureHelper();
+            } else {
+                stopCaptureSchedulerHelper();
             }
         }
     };
 
+    /**
+     * An instance of the ShutterCallback interface which callback method is invoked by the underling
+     * API at the moment the photo is captured.
+     */
+    private Camera.ShutterCallback shutterCallback = new Camera.ShutterCallback() {
+
+        /**
+         * Called as near as possible to the moment when a photo is captured from the sensor.
+         */
+        @Override
+        public void onShutter() {
+            // Remember when the photo was really taken, the JPEG data arrives much later. It is
+            // wall clock time, the same time base as the location fixes:
+            shutterTimestamp = System.currentTimeMillis();
+        }
+    };
+
     /**
      * An instance of the PictureCallback interface which callback method is invoked by the underling
      * API to send us the image data of the captured photo.
@@ -490,155 +681,48 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
          */
         @Override
         public void onPictureTaken(byte[] data, Camera camera) {
-            // Log.d(TAG, "pictureCallback.onPictureTaken() :: devOrienAtCapture = " + devOrienAtCapture);
-            /*
-             * A choice was made here between two options:<br>
-             * 1) Write the taken photo to the local storage in the GUI thread, and avoid possible
-             * OutOfMemoryErrors but also possibly delay the capture of the next image by a second,<br>
-             * 2) Make a copy of the captured image data and send it to a background thread which
-             * is supposed to write it to the local storage. But by doing that risk an OutOfMemoryError.<br>
-             * <br>
-             * The second approach is better if the captured image isn't in "high resolution".
-             * Theoretically it would also work for "high resolution" images too but only if the
-             * android:largeHeap="true" attribute is set in the <application></application> tag of
-             * the AndroidManifest.xml file.<br>
-             * Otherwise,the first method is much better because its simpler, less error prone and
-             * doesn't use as much memory as the second one.
-             */
-
-            // 1) Write the taken photo in the current thread:
-            // Create its file:
-            String tsText = dateFormat.format(new Date(System.currentTimeMillis()));
-            String filename = tsText + ".jpg";
-            String filePath = mediaStorageDir.getPath() + File.separator + filename;
-            File photoFile = new File(filePath);
-            // If needed, fix the photo rotation:
-            BitmapFactory.Options bfOptions = new BitmapFactory.Options();
-            bfOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(data, 0, data.length, bfOptions);
-            // Log.d(TAG, "pictureCallback.onPictureTaken() :: img wxh = " + bfOptions.outWidth + "x" + bfOptions.outHeight);
-            if ((devOrienAtCapture == 0 || devOrienAtCapture == 180) && bfOptions.outWidth > bfOptions.outHeight) {
-                Bitmap src = BitmapFactory.decodeByteArray(data, 0, data.length);
-                Matrix matrix = new Matrix();
-                matrix.postRotate(90);
-                Bitmap out = Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), matrix, true);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                out.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-                data = baos.toByteArray();
-                try {
-                    baos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // Hand the captured photo over to the capture pipeline which saves, tags and uploads
+            // it in background threads. The camera hands us a new array for every photo, so there
+            // is no need to copy it. The photo is stamped with the shutter time so that its
+            // position can be interpolated from the location fixes around it:
+            if (capturePipeline != null) {
+                long timestamp = shutterTimestamp != 0L ? shutterTimestamp : System.currentTimeMillis();
+                shutterTimestamp = 0L;
+                capturePipeline.queuePhoto(data, timestamp, devOrienAtCapture, lastLocation, cameraView.getCameraSettings());
             }
-            // Write photo data to the created file:
-            FileOutputStream fos = null;
-            try {
-                fos = new FileOutputStream(photoFile);
-                fos.write(data);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (fos != null) {
-                    try {
-                        fos.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            // Add EXIF data to the captured photo:
-            Date date = new Date();
-            try {
-                ExifInterface exif = new ExifInterface(filePath);
-                if (lastLocation != null) {
-                    exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, GpsUtil.convert(lastLocation.getLatitude()));
-                    exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, GpsUtil.latitudeRef(lastLocation.getLatitude()));
-                    exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, GpsUtil.convert(lastLocation.getLongitude()));
-                    exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, GpsUtil.longitudeRef(lastLocation.getLongitude()));
-                    double alt = lastLocation.getAltitude();
-                    if (alt >= 0) {
-                        exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE_REF, String.valueOf(0));
-                    } else {
-                        exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE_REF, String.valueOf(1));
-                    }
-                    exif.setAttribute(ExifInterface.TAG_GPS_ALTITUDE, String.valueOf(Math.round(alt)));
-                    exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP, exifGpsDateFormat.format(date));
-                    exif.setAttribute(ExifInterface.TAG_GPS_PROCESSING_METHOD, lastLocation.getProvider());
-                }
-                exif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, String.valueOf(bfOptions.outWidth));
-                exif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, String.valueOf(bfOptions.outHeight));
-                exif.setAttribute(ExifInterface.TAG_DATETIME, exifDateFormat.format(date));
-                exif.setAttribute(ExifInterface.TAG_MAKE, Build.MANUFACTURER);
-                exif.setAttribute(ExifInterface.TAG_MODEL, Build.MODEL);
-
-                Camera.Parameters camParams = cameraView.getCameraParams();
-                String fm = camParams.getFlashMode();
-                if (fm == null || fm.equals(Camera.Parameters.FLASH_MODE_OFF)) {
-                    exif.setAttribute(ExifInterface.TAG_FLASH, String.valueOf(0));
-                } else {
-                    exif.setAttribute(ExifInterface.TAG_FLASH, String.valueOf(0));
-                }
-
-                float fl = camParams.getFocalLength();
-                exif.setAttribute(ExifInterface.TAG_FOCAL_LENGTH, String.valueOf(fl));
 
-                String wb = camParams.getWhiteBalance();
-                if (wb != null) {
-                    if (wb.equals(Camera.Parameters.WHITE_BALANCE_AUTO)) {
-                        exif.setAttribute(ExifInterface.TAG_WHITE_BALANCE, String.valueOf(ExifInterface.WHITEBALANCE_AUTO));
-                    } else {
-                        exif.setAttribute(ExifInterface.TAG_WHITE_BALANCE, String.valueOf(ExifInterface.WHITEBALANCE_MANUAL));
-                    }
-                }
+            // Restart camera preview:
+            cameraView.restartPreview();
 
-                String ap = camParams.get("aperture");
-                if (ap != null) {
-                    exif.setAttribute(ExifInterface.TAG_APERTURE, ap);
-                }
+            captureCompleteHelper();
+        }
+    };
 
-                // TAG_EXPOSURE_TIME TAG_ISO
+    /**
+     * An instance of the PreviewFrameCallback interface whose callback method is invoked by the
+     * CameraView to send us the grabbed preview frames, in the preview frame capture mode.
+     */
+    private CameraView.PreviewFrameCallback previewFrameCallback = new CameraView.PreviewFrameCallback() {
 
-                exif.saveAttributes();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            // Add the saved photo to the device gallery:
-            try {
-                String urlToAddedImage = MediaStore.Images.Media.insertImage(getContentResolver(), filePath, filename, getString(R.string.ppThread_photo_description));
-                Log.d(TAG, "pictureCallback.onPictureTaken() :: urlToAddedImage = " + urlToAddedImage);
-                String pathToAddedImage = Util.getFilePathFromUri(CameraActivity.this, Uri.parse(urlToAddedImage));
-                Log.d(TAG, "pictureCallback.onPictureTaken() :: pathToAddedImage = " + pathToAddedImage);
-                Util.copyExifTags(filePath, pathToAddedImage, bfOptions.outWidth, bfOptions.outHeight);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+        /**
+         * Called when a preview frame is grabbed.
+         *
+         * @param data Byte array of the preview frame encoded as NV21.
+         * @param width Width of the preview frame.
+         * @param height Height of the preview frame.
+         */
+        @Override
+        public void onPreviewFrame(byte[] data, int width, int height) {
+            // Hand the grabbed frame over to the capture pipeline which encodes, saves, tags and
+            // uploads it in background threads. The frame's buffer is given back to the camera
+            // once it is encoded:
+            if (capturePipeline != null) {
+                capturePipeline.queuePreviewFrame(data, width, height, cameraView, System.currentTimeMillis(), devOrienAtCapture, lastLocation, cameraView.getCameraSettings());
+            } else {
+                cameraView.recyclePreviewBuffer(data);
             }
-            // Upload the saved photo to Dropbox:
-            dbUpldrThread.queuePhoto(filePath);
-
-            postLastCapturedPhotoFilenameUpdate(filename);
-
-            // 2) Send the captured photo data to another thread to save it on external storage:
-//            photoProcsThread.setCamParams(cameraView.getCameraParams());
-//            byte[] dataCopy = new byte[data.length];
-//            System.arraycopy(data, 0, dataCopy, 0, data.length);
-//            photoProcsThread.queuePhoto(dataCopy, System.currentTimeMillis(), devOrienAtCapture, lastLocation);
-
-            // Restart camera preview:
-            cameraView.restartPreview();
 
-            // If the activity is not being closed and selected interval type is time,
-            // schedule another photo capture:
-            if (!isFinishing() && intervalType == INTERVAL_TYPE_TIME) {
-                long schdlNextPicIn = (takePicInvocTimestamp + interval) - SystemClock.elapsedRealtime();
-                Log.d(TAG, "pictureCallback.onPictureTaken() :: Current time is " + SystemClock.elapsedRealtime() + " schedule pic in " + schdlNextPicIn);
-                if (schdlNextPicIn < 1L) {
-                    schdlNextPicIn = 1L;
-                }
-                handler.postDelayed(delayPhotoTakingRunnable, schdlNextPicIn);
-            }
+            captureCompleteHelper();
         }
     };
 
@@ -658,32 +742,19 @@ public class CameraActivity extends Activity implements GoogleApiClient.Connecti
         public void onLocationChanged(Location location) {
             // Update the location the camera uses to geo tag images:
             Log.d(TAG, "locationListener.onLocationChanged() :: location = " + location);
+            lastLocation = location;
+            locationRingBuffer.add(location);
+            cameraView.setGeoTaggingLocation(location);
             updateShownLocationDataHelper();
-            if (intervalType == INTERVAL_TYPE_DISTANCE && location != null) {
-                if (lastLocation == null) {
-                    lastLocation = location;
-                    cameraView.setGeoTaggingLocation(location);
-
-                    takePicInvocTimestamp = SystemClock.elapsedRealtime();
-                    cameraView.takePicture(pictureCallback);
-                    devOrienAtCapture = devOrien;
-                } else {
-                    float distance = lastLocation.distanceTo(location);
-                    Log.d(TAG, "locationListener.onLocationChanged() :: distance = " + distance);
-
-                    if (distance >= interval) {
-                        lastLocation = location;
-                        cameraView.setGeoTaggingLocation(location);
-
-                        takePicInvocTimestamp = SystemClock.elapsedRealtime();
-                        cameraView.takePicture(pictureCallback);
-                        devOrienAtCapture = devOrien;
-                    }
-                }
-            } else {
-                lastLocation = location;
-                // Update the location the camera uses to geo tag images:
-                cameraView.setGeoTaggingLocation(location);
+
+            // In distance interval mode let the trigger decide when to take the next photo, it
+            // predicts the moment the distance is crossed from the speed and bearing of the fix:
+            if (distanceTrigger != null) {
+                distanceTrigger.onLocationChanged(location);
+            }
+            // In time interval mode let the motion gate know how fast the device moves:
+            if (motionGate != null) {
+                motionGate.onLocationChanged(location);
             }
         }
     };
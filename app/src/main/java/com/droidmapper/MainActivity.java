@@ -31,9 +31,13 @@ public class MainActivity extends ActionBarActivity {
     private static final String PREF_KEY_INTERVAL_TIME = "PREF_KEY_INTERVAL_TIME";
     private static final String PREF_KEY_DELAY = "PREF_KEY_DELAY";
     private static final String PREF_KEY_SIZE = "PREF_KEY_SIZE";
+    private static final String PREF_KEY_CAPTURE_MODE = "PREF_KEY_CAPTURE_MODE";
+    private static final String PREF_KEY_BUDGET = "PREF_KEY_BUDGET";
+    private static final String PREF_KEY_BANDWIDTH = "PREF_KEY_BANDWIDTH";
 
     // Views:
-    private Spinner spinnerIntervalTime, spinnerIntervalDistance, spinnerDelay, spinnerSize;
+    private Spinner spinnerIntervalTime, spinnerIntervalDistance, spinnerDelay, spinnerSize, spinnerCaptureMode, spinnerBudget,
+            spinnerBandwidth;
     private RadioButton radioButtonTime, radioButtonDistance;
     private Button buttonStart;
 
@@ -61,6 +65,9 @@ public class MainActivity extends ActionBarActivity {
         spinnerIntervalTime = (Spinner) findViewById(R.id.activityMain_spinnerIntervalTime);
         spinnerDelay = (Spinner) findViewById(R.id.activityMain_spinnerDelay);
         spinnerSize = (Spinner) findViewById(R.id.activityMain_spinnerSize);
+        spinnerCaptureMode = (Spinner) findViewById(R.id.activityMain_spinnerCaptureMode);
+        spinnerBudget = (Spinner) findViewById(R.id.activityMain_spinnerBudget);
+        spinnerBandwidth = (Spinner) findViewById(R.id.activityMain_spinnerBandwidth);
         buttonStart = (Button) findViewById(R.id.activityMain_buttonStart);
         radioButtonDistance = (RadioButton) findViewById(R.id.activityMain_radioButtonDistance);
         radioButtonTime = (RadioButton) findViewById(R.id.activityMain_radioButtonTime);
@@ -70,6 +77,9 @@ public class MainActivity extends ActionBarActivity {
         spinnerIntervalTime.setOnItemSelectedListener(onItemSelectedListener);
         spinnerDelay.setOnItemSelectedListener(onItemSelectedListener);
         spinnerSize.setOnItemSelectedListener(onItemSelectedListener);
+        spinnerCaptureMode.setOnItemSelectedListener(onItemSelectedListener);
+        spinnerBudget.setOnItemSelectedListener(onItemSelectedListener);
+        spinnerBandwidth.setOnItemSelectedListener(onItemSelectedListener);
 
         // Disable the distance spinner:
         spinnerIntervalDistance.setEnabled(false);
@@ -87,10 +97,16 @@ public class MainActivity extends ActionBarActivity {
         int prefIntervalTimePos = sharedPrefs.getInt(PREF_KEY_INTERVAL_TIME, 0);
         int prefDelayPos = sharedPrefs.getInt(PREF_KEY_DELAY, 0);
         int prefSizePos = sharedPrefs.getInt(PREF_KEY_SIZE, 0);
+        int prefCaptureModePos = sharedPrefs.getInt(PREF_KEY_CAPTURE_MODE, 0);
+        int prefBudgetPos = sharedPrefs.getInt(PREF_KEY_BUDGET, 0);
+        int prefBandwidthPos = sharedPrefs.getInt(PREF_KEY_BANDWIDTH, 0);
         spinnerIntervalDistance.setSelection(prefIntervalDistancePos);
         spinnerIntervalTime.setSelection(prefIntervalTimePos);
         spinnerDelay.setSelection(prefDelayPos);
         spinnerSize.setSelection(prefSizePos);
+        spinnerCaptureMode.setSelection(prefCaptureModePos);
+        spinnerBudget.setSelection(prefBudgetPos);
+        spinnerBandwidth.setSelection(prefBandwidthPos);
 
         // Initialize the Dropbox API:
         if (!sharedPrefs.contains(PREF_KEY_DB_OAUTH2_ACCESS_TOKEN)) {
@@ -151,6 +167,12 @@ public class MainActivity extends ActionBarActivity {
                 sharedPrefs.edit().putInt(PREF_KEY_DELAY, position).commit();
             } else if (parent == spinnerSize) {
                 sharedPrefs.edit().putInt(PREF_KEY_SIZE, position).commit();
+            } else if (parent == spinnerCaptureMode) {
+                sharedPrefs.edit().putInt(PREF_KEY_CAPTURE_MODE, position).commit();
+            } else if (parent == spinnerBudget) {
+                sharedPrefs.edit().putInt(PREF_KEY_BUDGET, position).commit();
+            } else if (parent == spinnerBandwidth) {
+                sharedPrefs.edit().putInt(PREF_KEY_BANDWIDTH, position).commit();
             }
         }
 
@@ -192,6 +214,9 @@ public class MainActivity extends ActionBarActivity {
                     int intervalTime = res.getIntArray(R.array.photo_interval_time_values)[spinnerIntervalTime.getSelectedItemPosition()];
                     int delay = res.getIntArray(R.array.photo_delay_values)[spinnerDelay.getSelectedItemPosition()];
                     float size = Float.parseFloat(res.getStringArray(R.array.photo_size_values)[spinnerSize.getSelectedItemPosition()]);
+                    int captureMode = res.getIntArray(R.array.capture_mode_values)[spinnerCaptureMode.getSelectedItemPosition()];
+                    int budget = res.getIntArray(R.array.photo_budget_values)[spinnerBudget.getSelectedItemPosition()];
+                    int bandwidth = res.getIntArray(R.array.upload_bandwidth_values)[spinnerBandwidth.getSelectedItemPosition()];
 
                     // Launch the CameraActivity:
                     Intent intent = new Intent(MainActivity.this, CameraActivity.class);
@@ -205,6 +230,9 @@ public class MainActivity extends ActionBarActivity {
                     }
                     intent.putExtra(CameraActivity.EXTRA_DELAY, delay);
                     intent.putExtra(CameraActivity.EXTRA_SIZE, size);
+                    intent.putExtra(CameraActivity.EXTRA_CAPTURE_MODE, captureMode);
+                    intent.putExtra(CameraActivity.EXTRA_BUDGET, budget);
+                    intent.putExtra(CameraActivity.EXTRA_BANDWIDTH, bandwidth);
                     startActivity(intent);
                 }
             }
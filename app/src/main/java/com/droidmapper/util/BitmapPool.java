@@ -0,0 +1,106 @@
+package com.droidmapper.util;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of mutable bitmaps, used as BitmapFactory.Options.inBitmap so that decoding a
+ * photo reuses the pixel memory of a bitmap decoded earlier instead of allocating, and later
+ * garbage collecting, several megabytes for every photo.<br>
+ * The platform only lets a bitmap be reused if it is large enough: from Android 4.4 on any bitmap
+ * with enough bytes can be reused, before that only a bitmap of exactly the same size, and only
+ * when the photo is decoded without sub-sampling.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class BitmapPool {
+
+    // Bytes per pixel of the ARGB_8888 config the photos are decoded to:
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ArrayList<Bitmap> bitmaps;
+    private final int maxSize;
+
+    // Statistics:
+    private long hitCount, missCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the pool size supplied as
+     * parameter.
+     *
+     * @param maxSize Maximal number of bitmaps kept.
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Param maxSize can't be less than 1(one).");
+        }
+        this.maxSize = maxSize;
+        bitmaps = new ArrayList<Bitmap>(maxSize);
+    }
+
+    /**
+     * Takes from the pool a bitmap into which a photo can be decoded.
+     *
+     * @param width      Width of the decoded photo.
+     * @param height     Height of the decoded photo.
+     * @param sampleSize The inSampleSize the photo is decoded with.
+     * @return A bitmap to use as inBitmap, or <b>null</b> if there is no suitable one.
+     */
+    public synchronized Bitmap get(int width, int height, int sampleSize) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return null;
+        }
+        boolean anySize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        if (!anySize && sampleSize != 1) {
+            missCount++;
+            return null;
+        }
+        long bytes = (long) width * height * BYTES_PER_PIXEL;
+        for (int i = 0; i < bitmaps.size(); i++) {
+            Bitmap bitmap = bitmaps.get(i);
+            boolean fits = anySize ? bitmap.getAllocationByteCount() >= bytes
+                    : bitmap.getWidth() == width && bitmap.getHeight() == height;
+            if (fits) {
+                bitmaps.remove(i);
+                hitCount++;
+                return bitmap;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. If the pool is full the bitmap is recycled.
+     *
+     * @param bitmap The bitmap, it must not be used by the caller any more.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmaps.size() >= maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        bitmaps.add(bitmap);
+    }
+
+    /**
+     * Recycles all the bitmaps in the pool.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+    }
+
+    /**
+     * @return A short, human readable summary of the pool's statistics.
+     */
+    public synchronized String getStats() {
+        return "bitmaps " + bitmaps.size() + ", hits " + hitCount + ", misses " + missCount;
+    }
+}
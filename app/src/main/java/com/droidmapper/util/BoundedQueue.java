@@ -0,0 +1,473 @@
+package com.droidmapper.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded FIFO queue used to hand work over from one thread to another. The elements are kept
+ * in a fixed-size ring, every slot of which carries a sequence number that tells whether the slot
+ * is ready to be written or read. Adding and removing elements is done with a single
+ * compare-and-set on the tail or the head of the ring, no lock is taken as long as the queue is
+ * neither empty nor full.<br>
+ * Only a thread that has to wait, the consumer on an empty queue or the producer on a full one
+ * under the {@link #POLICY_BLOCK} policy, parks on a lock. It announces itself first and checks
+ * the queue once more before it parks, while the other side checks for parked threads after it
+ * has changed the queue, so a wake up can't get lost in between.<br>
+ * What happens when an element is offered to a full queue is decided by the full queue policy:
+ * <br>
+ * - {@link #POLICY_BLOCK}: the producer waits for room in the queue,<br>
+ * - {@link #POLICY_DROP_OLDEST}: the oldest element in the queue is removed to make room,<br>
+ * - {@link #POLICY_DROP_NEWEST}: the offered element is rejected,<br>
+ * - {@link #POLICY_SPILL}: the offered element is handed over to a {@link Spill}, the overflow
+ * storage, from which the consumer takes it back once the queue has drained.<br>
+ * Dropped elements are handed over to the {@link DropListener}, if any, so that they can release
+ * their resources. The queue counts the offered, dropped and spilled elements and the time the
+ * producers and the consumers spent waiting.
+ *
+ * @param <E> Type of the queued elements.
+ */
+public class BoundedQueue<E> {
+
+    // Full queue policies:
+    public static final int POLICY_BLOCK = 1;
+    public static final int POLICY_DROP_OLDEST = 2;
+    public static final int POLICY_DROP_NEWEST = 3;
+    public static final int POLICY_SPILL = 4;
+
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head, tail;
+    private final int capacity, fullPolicy;
+    private final Spill<E> spill;
+    private final DropListener<E> dropListener;
+
+    // Parking:
+    private final ReentrantLock lock;
+    private final Condition notEmpty, notFull;
+    private final AtomicInteger waitingConsumers, waitingProducers;
+    private volatile boolean closed;
+
+    // Number of elements currently in the spill, while it is not 0(zero) new elements go to the
+    // spill too, so that the order is kept:
+    private final AtomicInteger spilledCount;
+
+    // Statistics:
+    private final AtomicLong offeredCount, droppedCount, totalSpilledCount;
+    private final AtomicLong producerWaitNanos, consumerWaitNanos;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param capacity     Maximal number of elements in the queue, at least 2(two).
+     * @param fullPolicy   What to do when an element is offered to a full queue, one of the
+     *                     POLICY_* constants.
+     * @param spill        The overflow storage, required by the {@link #POLICY_SPILL} policy and
+     *                     ignored by the others.
+     * @param dropListener The listener that is handed the dropped elements, can be <b>null</b>.
+     */
+    public BoundedQueue(int capacity, int fullPolicy, Spill<E> spill, DropListener<E> dropListener) {
+        if (capacity < 2) {
+            // With a single slot a published element and a free slot have the same sequence
+            // number, the ring needs at least two:
+            throw new IllegalArgumentException("Param capacity can't be less than 2(two).");
+        }
+        if (fullPolicy != POLICY_BLOCK && fullPolicy != POLICY_DROP_OLDEST && fullPolicy != POLICY_DROP_NEWEST
+                && fullPolicy != POLICY_SPILL) {
+            throw new IllegalArgumentException("Unknown full queue policy " + fullPolicy);
+        }
+        if (fullPolicy == POLICY_SPILL && spill == null) {
+            throw new NullPointerException("Spill param can't be null with the spill policy.");
+        }
+        this.capacity = capacity;
+        this.fullPolicy = fullPolicy;
+        this.spill = spill;
+        this.dropListener = dropListener;
+
+        // Slot i is ready to be written at position i:
+        items = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        head = new AtomicLong();
+        tail = new AtomicLong();
+
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+        waitingConsumers = new AtomicInteger();
+        waitingProducers = new AtomicInteger();
+        spilledCount = new AtomicInteger();
+
+        offeredCount = new AtomicLong();
+        droppedCount = new AtomicLong();
+        totalSpilledCount = new AtomicLong();
+        producerWaitNanos = new AtomicLong();
+        consumerWaitNanos = new AtomicLong();
+    }
+
+    /**
+     * Adds an element to the queue, applying the full queue policy if there is no room for it.
+     * Under the {@link #POLICY_BLOCK} policy this method waits for room in the queue, the others
+     * never wait.
+     *
+     * @param item The element to add.
+     * @return <b>true</b> if the element was added(or spilled), <b>false</b> if it was rejected
+     * because the queue is full or closed, or because the waiting thread was interrupted, in
+     * which case its interrupt status is set again.
+     */
+    public boolean offer(E item) {
+        if (item == null) {
+            throw new NullPointerException("Item param can't be null.");
+        }
+        if (closed) {
+            return false;
+        }
+        offeredCount.incrementAndGet();
+        if (fullPolicy == POLICY_SPILL && spilledCount.get() > 0) {
+            // Older elements are still in the spill, this one has to go after them:
+            return spillHelper(item);
+        }
+        while (!tryEnqueueHelper(item)) {
+            switch (fullPolicy) {
+                case POLICY_DROP_OLDEST:
+                    E oldest = poll();
+                    if (oldest != null) {
+                        dropHelper(oldest);
+                    }
+                    break;
+                case POLICY_DROP_NEWEST:
+                    dropHelper(item);
+                    return false;
+                case POLICY_SPILL:
+                    return spillHelper(item);
+                default:
+                    if (!awaitNotFullHelper()) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest element from the queue, without waiting.
+     *
+     * @return The removed element or <b>null</b> if the queue is empty.
+     */
+    public E poll() {
+        E item = tryDequeueHelper();
+        if (item == null && spill != null) {
+            // The queue has drained, continue with the elements that didn't fit in it. Claim one
+            // of them first, so that two consumers never go for the same one:
+            int spilled;
+            while ((spilled = spilledCount.get()) > 0) {
+                if (spilledCount.compareAndSet(spilled, spilled - 1)) {
+                    item = spill.unspill();
+                    if (item == null) {
+                        // The spill lost the element:
+                        droppedCount.incrementAndGet();
+                    }
+                    break;
+                }
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Removes the oldest element from the queue, waiting for one if the queue is empty.
+     *
+     * @return The removed element or <b>null</b> if the queue has been closed and is empty.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public E take() throws InterruptedException {
+        while (true) {
+            E item = poll();
+            if (item != null) {
+                return item;
+            }
+            if (closed) {
+                return null;
+            }
+
+            // Announce ourselves before the final check, so that a producer that adds an element
+            // after it will see us and wake us up:
+            long start = System.nanoTime();
+            lock.lockInterruptibly();
+            try {
+                waitingConsumers.incrementAndGet();
+                try {
+                    while (isEmpty() && !closed) {
+                        notEmpty.await();
+                    }
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+                consumerWaitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Closes the queue. No more elements are accepted and all waiting threads are woken up, the
+     * consumers can still take the elements that are left in the queue.
+     */
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <b>true</b> if the queue has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return <b>true</b> if there are no elements in the queue, nor in its spill.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head.get() && spilledCount.get() == 0;
+    }
+
+    /**
+     * @return Number of elements currently in the queue, not counting the spilled ones.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0L, Math.min(size, capacity));
+    }
+
+    /**
+     * @return Number of elements currently in the spill.
+     */
+    public int getSpilledSize() {
+        return spilledCount.get();
+    }
+
+    /**
+     * @return Maximal number of elements in the queue.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of elements offered to the queue so far.
+     */
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+
+    /**
+     * @return Number of elements dropped so far, by either of the drop policies.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of elements spilled so far.
+     */
+    public long getSpilledCount() {
+        return totalSpilledCount.get();
+    }
+
+    /**
+     * @return Total time, in milliseconds, the producers spent waiting for room in the queue.
+     */
+    public long getProducerWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos.get());
+    }
+
+    /**
+     * @return Total time, in milliseconds, the consumers spent waiting for elements.
+     */
+    public long getConsumerWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos.get());
+    }
+
+    /**
+     * @return A short, human readable summary of the queue's statistics.
+     */
+    public String getStats() {
+        return "queue " + size() + "/" + capacity + ", offered " + offeredCount.get() + ", dropped " + droppedCount.get()
+                + ", spilled " + totalSpilledCount.get() + ", producer wait " + getProducerWaitMs() + " ms, consumer wait "
+                + getConsumerWaitMs() + " ms";
+    }
+
+    /**
+     * Helper method that adds an element to the ring if there is room for it.
+     *
+     * @return <b>true</b> if the element was added, <b>false</b> if the ring is full.
+     */
+    private boolean tryEnqueueHelper(E item) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) (pos % capacity);
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                // The slot is free, claim it:
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[slot] = item;
+                    // Publish the element, the volatile write makes it visible to the consumer:
+                    sequences.set(slot, pos + 1);
+                    if (waitingConsumers.get() > 0) {
+                        signalHelper(notEmpty);
+                    }
+                    return true;
+                }
+            } else if (seq < pos) {
+                // The slot still holds the element from the previous round, the ring is full:
+                return false;
+            }
+            // Another producer claimed the slot first, try again with the new tail.
+        }
+    }
+
+    /**
+     * Helper method that removes the oldest element from the ring.
+     *
+     * @return The removed element or <b>null</b> if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private E tryDequeueHelper() {
+        while (true) {
+            long pos = head.get();
+            int slot = (int) (pos % capacity);
+            long seq = sequences.get(slot);
+            if (seq == pos + 1) {
+                // The slot holds a published element, claim it:
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E item = (E) items[slot];
+                    items[slot] = null;
+                    // Free the slot for the next round:
+                    sequences.set(slot, pos + capacity);
+                    if (waitingProducers.get() > 0) {
+                        signalHelper(notFull);
+                    }
+                    return item;
+                }
+            } else if (seq < pos + 1) {
+                // Nothing was published into the slot yet, the ring is empty:
+                return null;
+            }
+            // Another consumer took the element first, try again with the new head.
+        }
+    }
+
+    /**
+     * Helper method that waits until there is room in the ring.
+     *
+     * @return <b>false</b> if the queue has been closed or the thread interrupted while waiting.
+     */
+    private boolean awaitNotFullHelper() {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            waitingProducers.incrementAndGet();
+            try {
+                while (size() >= capacity && !closed) {
+                    notFull.await();
+                }
+            } finally {
+                waitingProducers.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+            producerWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+        return !closed;
+    }
+
+    private void signalHelper(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spillHelper(E item) {
+        if (!spill.spill(item)) {
+            dropHelper(item);
+            return false;
+        }
+        spilledCount.incrementAndGet();
+        totalSpilledCount.incrementAndGet();
+        if (waitingConsumers.get() > 0) {
+            signalHelper(notEmpty);
+        }
+        return true;
+    }
+
+    private void dropHelper(E item) {
+        droppedCount.incrementAndGet();
+        if (dropListener != null) {
+            dropListener.onDropped(item);
+        }
+    }
+
+    /**
+     * Overflow storage for the elements that don't fit into the queue under the
+     * {@link #POLICY_SPILL} policy, for example a file. It is written by the producers and read by
+     * the consumers, so its implementations have to be thread safe.
+     *
+     * @param <E> Type of the stored elements.
+     */
+    public interface Spill<E> {
+
+        /**
+         * Stores an element that didn't fit into the queue.
+         *
+         * @param item The element to store.
+         * @return <b>true</b> if the element was stored, <b>false</b> if it couldn't be, in which
+         * case the queue drops it.
+         */
+        boolean spill(E item);
+
+        /**
+         * Removes the oldest stored element. It is only called when the queue knows there is a
+         * stored element.
+         *
+         * @return The removed element or <b>null</b> if it couldn't be read back, in which case the
+         * queue counts it as dropped.
+         */
+        E unspill();
+    }
+
+    /**
+     * Listener interface used to hand over the elements dropped by the queue.
+     *
+     * @param <E> Type of the dropped elements.
+     */
+    public interface DropListener<E> {
+
+        /**
+         * Called when an element is dropped, either the oldest one in the queue or the offered
+         * one, depending on the policy.
+         *
+         * @param item The dropped element.
+         */
+        void onDropped(E item);
+    }
+}
@@ -0,0 +1,119 @@
+package com.droidmapper.util;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of byte arrays, used to reuse the large buffers the photos are held in instead of
+ * allocating new ones for every photo and leaving the old ones to the garbage collector. An
+ * acquired array is at least as long as requested, but it may be longer, so its users have to keep
+ * track of the length of the data in it.<br>
+ * The pool keeps at most the given number of bytes, arrays released to a full pool are left to the
+ * garbage collector.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class ByteArrayPool {
+
+    // Arrays are allocated in multiples of this size, so that they fit photos of similar sizes:
+    private static final int ALLOCATION_GRANULARITY = 64 * 1024;
+    // An array is not handed out for a request it exceeds by more than this fraction, so that small
+    // requests don't take the large arrays:
+    private static final float MAX_WASTE = 0.25F;
+
+    private final ArrayList<byte[]> arrays;
+    private final int maxPooledBytes;
+    private int pooledBytes;
+
+    // Statistics:
+    private long hitCount, missCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the pool size supplied as
+     * parameter.
+     *
+     * @param maxPooledBytes Maximal number of bytes the pool keeps.
+     */
+    public ByteArrayPool(int maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Param maxPooledBytes can't be less than 0(zero).");
+        }
+        this.maxPooledBytes = maxPooledBytes;
+
+        // The arrays, sorted by their length:
+        arrays = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Takes an array from the pool or, if there is no suitable one, allocates a new one.
+     *
+     * @param minLength Minimal length of the array.
+     * @return An array at least as long as requested.
+     */
+    public synchronized byte[] acquire(int minLength) {
+        if (minLength < 0) {
+            throw new IllegalArgumentException("Param minLength can't be less than 0(zero).");
+        }
+        // The shortest array that is long enough:
+        int maxLength = minLength + (int) (minLength * MAX_WASTE);
+        for (int i = 0; i < arrays.size(); i++) {
+            byte[] array = arrays.get(i);
+            if (array.length >= minLength) {
+                if (array.length > maxLength) {
+                    break;
+                }
+                arrays.remove(i);
+                pooledBytes -= array.length;
+                hitCount++;
+                return array;
+            }
+        }
+        missCount++;
+        int length = (minLength + ALLOCATION_GRANULARITY - 1) / ALLOCATION_GRANULARITY * ALLOCATION_GRANULARITY;
+        return new byte[Math.max(length, minLength)];
+    }
+
+    /**
+     * Gives an array back to the pool.
+     *
+     * @param array The array, it must not be used by the caller any more.
+     */
+    public synchronized void release(byte[] array) {
+        if (array == null || array.length == 0) {
+            return;
+        }
+        // Make room for it by evicting the shortest arrays, they are the least useful ones:
+        while (pooledBytes + array.length > maxPooledBytes && !arrays.isEmpty()) {
+            pooledBytes -= arrays.remove(0).length;
+        }
+        if (pooledBytes + array.length > maxPooledBytes) {
+            return;
+        }
+        int i = 0;
+        while (i < arrays.size() && arrays.get(i).length < array.length) {
+            i++;
+        }
+        arrays.add(i, array);
+        pooledBytes += array.length;
+    }
+
+    /**
+     * Empties the pool.
+     */
+    public synchronized void clear() {
+        arrays.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * @return Number of bytes currently kept by the pool.
+     */
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return A short, human readable summary of the pool's statistics.
+     */
+    public synchronized String getStats() {
+        return "pool " + arrays.size() + " arrays/" + pooledBytes / 1024 + " KiB, hits " + hitCount + ", misses " + missCount;
+    }
+}
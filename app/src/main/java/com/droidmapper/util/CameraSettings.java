@@ -0,0 +1,60 @@
+package com.droidmapper.util;
+
+/**
+ * An immutable snapshot of the camera settings the EXIF data of the photos is built from. The
+ * CameraView takes it once, when it configures the camera, so that the settings don't have to be
+ * read from the camera service, which means flattening and parsing its whole parameter string,
+ * for every photo.<br>
+ * <b>Note:</b> This class doesn't use any Android APIs so it can be tested on a plain JVM.
+ */
+public class CameraSettings {
+
+    private final String flashMode, whiteBalance, aperture;
+    private final float focalLength;
+
+    /**
+     * Default constructor. Creates a new instance of this class using the given parameters.
+     *
+     * @param flashMode    The camera's flash mode, one of the Camera.Parameters.FLASH_MODE_*
+     *                     constants, can be <b>null</b>.
+     * @param focalLength  Focal length of the lens in millimeters.
+     * @param whiteBalance The camera's white balance, one of the
+     *                     Camera.Parameters.WHITE_BALANCE_* constants, can be <b>null</b>.
+     * @param aperture     The vendor specific "aperture" parameter, can be <b>null</b>.
+     */
+    public CameraSettings(String flashMode, float focalLength, String whiteBalance, String aperture) {
+        this.flashMode = flashMode;
+        this.focalLength = focalLength;
+        this.whiteBalance = whiteBalance;
+        this.aperture = aperture;
+    }
+
+    /**
+     * @return The camera's flash mode, or <b>null</b> if unknown.
+     */
+    public String getFlashMode() {
+        return flashMode;
+    }
+
+    /**
+     * @return Focal length of the lens in millimeters.
+     */
+    public float getFocalLength() {
+        return focalLength;
+    }
+
+    /**
+     * @return The camera's white balance, or <b>null</b> if unknown.
+     */
+    public String getWhiteBalance() {
+        return whiteBalance;
+    }
+
+    /**
+     * @return The vendor specific "aperture" parameter, or <b>null</b> if the camera doesn't
+     * report it.
+     */
+    public String getAperture() {
+        return aperture;
+    }
+}
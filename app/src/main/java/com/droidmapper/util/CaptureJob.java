@@ -0,0 +1,134 @@
+package com.droidmapper.util;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.droidmapper.view.CameraView;
+
+import java.io.File;
+
+/**
+ * A helper class that holds a single captured photo and everything the capture pipeline learns
+ * about it while it travels from one stage to the next.<br>
+ * <b>Note:</b> A job is owned by exactly one stage at a time, the hand-off queues between the
+ * stages take care of the memory visibility of its fields.
+ */
+public class CaptureJob {
+
+    private static final String TAG = CaptureJob.class.getName();
+
+    // Set when the photo is taken:
+    final CameraSettings camSettings;
+    final Location deviceLocation;
+    final int devOrienAtCapture;
+    final long timestamp;
+    // The data may be held in a longer pooled buffer, dataLength is the length of the photo:
+    byte[] data;
+    int dataLength;
+
+    // The store that keeps track of the data, and the position of the data in its spool while it
+    // is spilled:
+    FrameStore frameStore;
+    long spoolOffset = -1L;
+    // Set while the data waits to be written to the spool, guarded by the store's lock:
+    boolean spillPending;
+
+    // Set instead of the data when the photo is a preview frame:
+    byte[] previewFrame;
+    int previewWidth, previewHeight;
+    CameraView previewFrameSource;
+
+    // Set when the photo enters the pipeline, in the order the photos were taken:
+    long sequence;
+
+    // Hash the near duplicate photos are recognised by, valid only if hasNearDuplicateHash is
+    // set, computed by the first stage and checked, in order, by the second:
+    long nearDuplicateHash;
+    boolean hasNearDuplicateHash;
+
+    // Filled in by the pipeline stages:
+    String filename, filePath;
+    int width, height;
+    int exifOrientation;
+    // Position written to the EXIF data, NaN if unknown:
+    double latitude = Double.NaN, longitude = Double.NaN;
+    byte[] exifSegment;
+    // The renditions made from the photo, null if not made:
+    String uploadPath;
+    String thumbnailPath, microThumbnailPath;
+    int thumbnailWidth, thumbnailHeight;
+    // Content hash and size of the file queued for upload, computed while it was written, null
+    // and 0(zero) if unknown:
+    byte[] uploadDigest;
+    long uploadSize;
+    // Hash of the same file without its EXIF segment, which is different for every photo, so
+    // that identical frames can be recognised, null if unknown:
+    byte[] uploadImageKey;
+    // Set once the thumbnails have been handed to the gallery, and the upload rendition to the
+    // uploader, until then they belong to the job:
+    boolean thumbnailsIndexed, uploadQueued;
+
+    /**
+     * Default constructor. Creates a new instance of this class using the given parameters.
+     *
+     * @param data              Byte array containing the JPEG encoded image data, <b>null</b> if
+     *                          the photo is a preview frame.
+     * @param timestamp         System time at which the image was taken.
+     * @param devOrienAtCapture Device orientation at the time the photo is taken.
+     * @param deviceLocation    Location at which the photo was captured, can be <b>null</b>.
+     * @param camSettings       Camera settings the photo was taken with, can be <b>null</b>.
+     */
+    CaptureJob(byte[] data, long timestamp, int devOrienAtCapture, Location deviceLocation, CameraSettings camSettings) {
+        this.data = data;
+        this.dataLength = data != null ? data.length : 0;
+        this.timestamp = timestamp;
+        this.devOrienAtCapture = devOrienAtCapture;
+        this.deviceLocation = deviceLocation;
+        this.camSettings = camSettings;
+    }
+
+    /**
+     * Releases everything the job holds: gives its preview frame buffer, if any, back to the
+     * camera and its photo data back to the FrameStore. Used when the pipeline is done with the
+     * job, or drops it. The rendition files of a job dropped before they were handed over are
+     * deleted, nobody else knows about them.
+     */
+    void release() {
+        recyclePreviewFrame();
+        if (frameStore != null) {
+            frameStore.release(this);
+        }
+        data = null;
+        if (!uploadQueued) {
+            deleteHelper(uploadPath);
+            uploadPath = null;
+        }
+        if (!thumbnailsIndexed) {
+            deleteHelper(thumbnailPath);
+            deleteHelper(microThumbnailPath);
+            thumbnailPath = null;
+            microThumbnailPath = null;
+        }
+    }
+
+    /**
+     * A helper method that deletes a rendition file.
+     *
+     * @param path Path of the file, can be <b>null</b>.
+     */
+    private static void deleteHelper(String path) {
+        if (path != null && !new File(path).delete()) {
+            Log.w(TAG, "deleteHelper() :: Failed to delete " + path);
+        }
+    }
+
+    /**
+     * Gives the preview frame buffer, if any, back to the camera it came from.
+     */
+    void recyclePreviewFrame() {
+        if (previewFrame != null) {
+            previewFrameSource.recyclePreviewBuffer(previewFrame);
+            previewFrame = null;
+        }
+    }
+}
@@ -0,0 +1,962 @@
+package com.droidmapper.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.Camera;
+import android.location.Location;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.droidmapper.CameraActivity;
+import com.droidmapper.R;
+import com.droidmapper.view.CameraView;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a utility class that takes the photos captured by the camera and, in background threads,
+ * saves them on local storage, tags them, adds them to the device gallery and queues them for
+ * upload to Dropbox. The work is split into stages, each running in its own thread and connected
+ * to the next one by a bounded queue:<br>
+ * decode/rotate &rarr; dedupe &rarr; EXIF &rarr; renditions &rarr; persist &rarr; gallery &rarr; upload<br>
+ * so that the camera callback only has to queue the photo data and can immediately restart the
+ * preview. The EXIF data is built in memory and spliced into the photo while it is being written,
+ * so each photo is written to local storage only once.<br>
+ * While the photo is still in memory it is also decoded once, at the lowest resolution that is
+ * enough, and every smaller version of it the app needs is made from that single decode: the
+ * scaled down copy that is uploaded to Dropbox and the thumbnails shown by the gallery. So neither
+ * the uploader nor the gallery have to read and decode the saved photo again.<br>
+ * The decode, EXIF, rendition and persist stages can have several workers each, so on a multi-core
+ * device several photos are processed in parallel. Every photo gets a sequence number when it enters the
+ * pipeline, and the photos are put back in that order before they are checked for near
+ * duplicates, and again before they are added to the gallery and queued for upload.<br>
+ * <b>Note:</b> When the pipeline is halted, the photos already in it, spilled ones included, are
+ * still saved, added to the gallery and queued for upload, so the upload journal knows about
+ * every photo on local storage. To get done quickly, they are only tagged with their orientation
+ * instead of rotated, and no renditions are made of them.
+ */
+public class CapturePipeline {
+
+    // Orientation modes, they define how the photos taken while the device is held in portrait
+    // are turned upright:
+    // - decode the photo to pixels, rotate them and encode them again:
+    public static final int ORIENTATION_MODE_REENCODE = 1;
+    // - leave the photo as it is and only set its EXIF Orientation tag:
+    public static final int ORIENTATION_MODE_EXIF = 2;
+    // - rotate the photo losslessly, without decoding it to pixels:
+    public static final int ORIENTATION_MODE_LOSSLESS = 3;
+
+    // Pass as the worker count to let the pipeline pick it from the number of available cores:
+    public static final int WORKER_COUNT_AUTO = 0;
+
+    private static final String TAG = CapturePipeline.class.getName();
+
+    // Capacities of the queues in front of each stage. The photos waiting in the first queue are
+    // kept in memory only up to the FrameStore's budget, the rest wait in its spool on local
+    // storage, so that queue can be long enough to absorb a burst without dropping photos:
+    private static final int DECODE_QUEUE_CAPACITY = 64;
+    private static final int DEDUPE_QUEUE_CAPACITY = 2;
+    private static final int EXIF_QUEUE_CAPACITY = 2;
+    private static final int RENDITION_QUEUE_CAPACITY = 2;
+    private static final int PERSIST_QUEUE_CAPACITY = 2;
+    private static final int GALLERY_QUEUE_CAPACITY = 4;
+    private static final int UPLOAD_QUEUE_CAPACITY = 8;
+
+    // Maximal number of photos added to the gallery in a single batch:
+    private static final int GALLERY_BATCH_SIZE = 8;
+
+    // The most workers a stage gets when the worker count is picked automatically:
+    private static final int MAX_AUTO_WORKER_COUNT = 4;
+
+    // JPEG quality used to encode the preview frames:
+    private static final int PREVIEW_FRAME_JPEG_QUALITY = 95;
+
+    // Sizes and JPEG qualities of the thumbnails, the uploaded copy is encoded as the uploader's
+    // PhotoScaler decides. The thumbnail sizes are the ones the gallery
+    // uses for its MINI_KIND and MICRO_KIND thumbnails:
+    private static final int THUMBNAIL_LONG_SIDE = 512;
+    private static final int THUMBNAIL_SHORT_SIDE = 384;
+    private static final int THUMBNAIL_JPEG_QUALITY = 85;
+    private static final int MICRO_THUMBNAIL_SIZE = 96;
+    private static final int MICRO_THUMBNAIL_JPEG_QUALITY = 75;
+    // Number of decoded bitmaps kept for reuse:
+    private static final int BITMAP_POOL_SIZE = 2;
+    // Sub-sampling of the decode the near duplicate photos are recognised from, the largest one
+    // the JPEG decoder does without decoding the full size first:
+    private static final int NEAR_DUPLICATE_SAMPLE_SIZE = 8;
+
+    // The photos in the pipeline can take this fraction of the maximal heap size, the rest are
+    // spilled to local storage:
+    private static final int FRAME_BUDGET_DIVISOR = 4;
+    // Number of bytes of photo buffers kept for reuse:
+    private static final int FRAME_POOL_BYTES = 8 * 1024 * 1024;
+
+    private final SimpleDateFormat dateFormat;
+    private final DropboxUploaderThread dbUpldrThread;
+    private final GalleryIndexer galleryIndexer;
+    private final BitmapPool bitmapPool;
+    private final PipelineStage[] stages;
+    private final FrameStore frameStore;
+    private final CameraActivity activity;
+    private final File mediaStorageDir, thumbnailDir;
+    private final int orientationMode, workerCount;
+    private final AtomicLong nextSequence;
+    private final LocationRingBuffer locationBuffer;
+    private volatile NearDuplicateFilter nearDuplicateFilter;
+    // Set once the pipeline is halted, the photos left in it are then saved with as little work
+    // as possible:
+    private volatile boolean draining;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param activity        The CameraActivity this class is running in, through which it can
+     *                        access the current theme, resources, etc.
+     * @param dbUpldrThread   The Dropbox uploader thread that should upload to Dropbox all the
+     *                        photos saved by this pipeline.
+     * @param orientationMode How to turn upright the photos taken in portrait, one of the
+     *                        ORIENTATION_MODE_* constants.
+     * @param workerCount     Number of photos the decode, EXIF, rendition and persist stages process in
+     *                        parallel, or {@link #WORKER_COUNT_AUTO} to use all the cores but one.
+     *                        The photos are still added to the gallery and queued for upload in
+     *                        the order they were taken.
+     * @param locationBuffer  The buffer of recent location fixes from which the position of the
+     *                        device at the moment each photo was taken is looked up, can be
+     *                        <b>null</b>, in which case the location supplied with the photo is
+     *                        used as it is.
+     */
+    public CapturePipeline(CameraActivity activity, DropboxUploaderThread dbUpldrThread, int orientationMode,
+                           int workerCount, LocationRingBuffer locationBuffer) {
+        if (activity == null) {
+            throw new NullPointerException("Activity param can't be null.");
+        }
+        if (dbUpldrThread == null) {
+            throw new NullPointerException("DropboxUploaderThread param can't be null.");
+        }
+        if (orientationMode != ORIENTATION_MODE_REENCODE && orientationMode != ORIENTATION_MODE_EXIF
+                && orientationMode != ORIENTATION_MODE_LOSSLESS) {
+            throw new IllegalArgumentException("Unknown orientation mode " + orientationMode);
+        }
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("Param workerCount can't be less than 0(zero).");
+        }
+        if (workerCount == WORKER_COUNT_AUTO) {
+            // Leave a core to the camera and the GUI:
+            int cores = Runtime.getRuntime().availableProcessors();
+            workerCount = Math.max(1, Math.min(cores - 1, MAX_AUTO_WORKER_COUNT));
+        }
+        this.workerCount = workerCount;
+        nextSequence = new AtomicLong();
+        this.activity = activity;
+        this.dbUpldrThread = dbUpldrThread;
+        this.orientationMode = orientationMode;
+        this.locationBuffer = locationBuffer;
+
+        // Indexer used to add the captured photos to the device gallery, with the description for
+        // photos taken by this app, used in device's gallery app:
+        galleryIndexer = new GalleryIndexer(activity, activity.getString(R.string.ppThread_photo_description), GALLERY_BATCH_SIZE);
+
+        // Create(if it does not exist) and initialize the directory in which the images will be saved:
+        File picsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        mediaStorageDir = new File(picsDir, activity.getString(R.string.app_name));
+        if (!mediaStorageDir.exists()) {
+            mediaStorageDir.mkdirs();
+        }
+
+        // And the directory of the thumbnails, hidden from the media scanner so they don't show
+        // up in the gallery as photos of their own:
+        thumbnailDir = new File(mediaStorageDir, ".thumbnails");
+        if (!thumbnailDir.exists()) {
+            thumbnailDir.mkdirs();
+        }
+        try {
+            new File(thumbnailDir, ".nomedia").createNewFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+
+        // Create a date format using which we will format photos timestamps and create their file
+        // names:
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss_SSS");
+
+        // Create the store that keeps the photo data in memory up to a budget, and spills the rest
+        // into a file in the app's cache directory:
+        frameStore = new FrameStore(Runtime.getRuntime().maxMemory() / FRAME_BUDGET_DIVISOR, FRAME_POOL_BYTES,
+                new File(activity.getCacheDir(), "frames.spool"));
+
+        // Create the stages and chain them together. The dedupe and gallery stages are ordered,
+        // so the photos processed in parallel by the stages before them are put back in the order
+        // they were taken before they are compared with the last photo kept, and before they are
+        // added to the gallery and queued for upload:
+        stages = new PipelineStage[]{
+                new DecodeStage(),
+                new DedupeStage(),
+                new ExifStage(),
+                new RenditionStage(),
+                new PersistStage(),
+                new GalleryStage(),
+                new UploadStage()
+        };
+        for (int i = 0; i < stages.length - 1; i++) {
+            stages[i].setNextStage(stages[i + 1]);
+        }
+    }
+
+    /**
+     * Sets the filter that drops the photos that are near duplicates of the last photo kept. The
+     * preview frames are filtered as they come, before they are encoded, the photos are hashed by
+     * the first stage, before they are rotated, and filtered, in order, by the second one.
+     *
+     * @param filter The filter, or <b>null</b> to keep all the photos.
+     */
+    public void setNearDuplicateFilter(NearDuplicateFilter filter) {
+        nearDuplicateFilter = filter;
+    }
+
+    /**
+     * Start the threads of all stages.
+     */
+    public void start() {
+        for (PipelineStage stage : stages) {
+            stage.start();
+        }
+    }
+
+    /**
+     * Stop the threads of all stages. The photos already in the pipeline are first saved and
+     * queued for upload, the ones added from now on are dropped. This method waits until it is
+     * done, so the uploader should be halted only after it.
+     */
+    public void halt() {
+        Log.d(TAG, "halt()");
+        draining = true;
+        // Stage by stage, so each one gets all the photos of the one before it:
+        for (PipelineStage stage : stages) {
+            stage.drain();
+        }
+        Log.i(TAG, "halt() :: " + frameStore.getStats() + ", " + bitmapPool.getStats());
+        frameStore.close();
+        bitmapPool.clear();
+    }
+
+    /**
+     * Add a new photo to the pipeline. If the photos already in the pipeline take up the whole
+     * memory budget, the photo is spilled to local storage, so it is never dropped. The spill is
+     * written in the background, this method doesn't touch local storage, and waits only if the
+     * first stage's queue, or the FrameStore's spill queue, is completely full.
+     *
+     * @param data              Byte array containing the JPEG encoded image data.
+     * @param timestamp         System time at which the image was taken.
+     * @param devOrienAtCapture Device orientation at the time the photo is taken.
+     * @param deviceLocation    Location at which the photo was captured.
+     * @param camSettings       Camera settings the photo was taken with.
+     */
+    public void queuePhoto(byte[] data, long timestamp, int devOrienAtCapture, Location deviceLocation, CameraSettings camSettings) {
+        CaptureJob job = new CaptureJob(data, timestamp, devOrienAtCapture, deviceLocation, camSettings);
+        job.frameStore = frameStore;
+        frameStore.admit(job, true);
+        queueJobHelper(job);
+    }
+
+    /**
+     * Add a new preview frame to the pipeline, it will be JPEG encoded by the first stage. This
+     * method never blocks, so it is safe to call it from the camera callback.
+     *
+     * @param frame             Byte array containing the NV21 encoded preview frame. It is given
+     *                          back to the frame source as soon as it is encoded, or dropped.
+     * @param width             Width of the preview frame.
+     * @param height            Height of the preview frame.
+     * @param frameSource       The CameraView the preview frame was grabbed from.
+     * @param timestamp         System time at which the frame was grabbed.
+     * @param devOrienAtCapture Device orientation at the time the frame is grabbed.
+     * @param deviceLocation    Location at which the frame was grabbed.
+     * @param camSettings       Camera settings the frame was grabbed with.
+     */
+    public void queuePreviewFrame(byte[] frame, int width, int height, CameraView frameSource, long timestamp,
+                                  int devOrienAtCapture, Location deviceLocation, CameraSettings camSettings) {
+        if (frameSource == null) {
+            throw new NullPointerException("Frame source param can't be null.");
+        }
+        NearDuplicateFilter filter = nearDuplicateFilter;
+        if (filter != null && !filter.accept(NearDuplicateFilter.hashLuma(frame, 0, width, height, width), timestamp)) {
+            // Nearly the same as the last frame kept, it isn't worth encoding. The Y plane comes
+            // first in an NV21 frame:
+            frameSource.recyclePreviewBuffer(frame);
+            return;
+        }
+        CaptureJob job = new CaptureJob(null, timestamp, devOrienAtCapture, deviceLocation, camSettings);
+        job.frameStore = frameStore;
+        job.previewFrame = frame;
+        job.previewWidth = width;
+        job.previewHeight = height;
+        job.previewFrameSource = frameSource;
+        queueJobHelper(job);
+    }
+
+    /**
+     * A helper method that adds a job to the first stage.
+     *
+     * @param job The job to add.
+     */
+    private void queueJobHelper(CaptureJob job) {
+        job.sequence = nextSequence.getAndIncrement();
+        if (!stages[0].put(job)) {
+            // The pipeline has been halted:
+            job.release();
+        }
+        Log.d(TAG, "queuePhoto() :: " + getStats());
+    }
+
+    /**
+     * A helper method that gives a job its file name and path, unless it already has them.
+     *
+     * @param job The job.
+     */
+    private void nameJobHelper(CaptureJob job) {
+        if (job.filename != null) {
+            return;
+        }
+        String tsText;
+        synchronized (dateFormat) {
+            tsText = dateFormat.format(new Date(job.timestamp));
+        }
+        job.filename = tsText + ".jpg";
+        job.filePath = mediaStorageDir.getPath() + File.separator + job.filename;
+    }
+
+    /**
+     * A helper method that writes a JPEG encoded image to a file, with the EXIF segment, if any,
+     * spliced in. If hashers are given, the file's content hash and size, and the hash of the
+     * image without the EXIF segment, are computed from the bytes on their way to the file.
+     *
+     * @param file        The file, it is overwritten.
+     * @param data        Array containing the JPEG encoded image.
+     * @param length      Length of the image.
+     * @param exifSegment The EXIF APP1 segment, can be <b>null</b>.
+     * @param hasher      The hasher the written bytes are fed to, can be <b>null</b>.
+     * @param imageHasher The hasher the written bytes after the EXIF segment are fed to, can be
+     *                    <b>null</b>.
+     * @return <b>true</b> if the file was written.
+     */
+    private static boolean writeJpegHelper(File file, byte[] data, int length, byte[] exifSegment, ContentHasher hasher,
+                                           ContentHasher imageHasher) {
+        boolean written = false;
+        OutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            if (hasher != null) {
+                fos = new ContentHasher.HashingOutputStream(fos, hasher, 0L);
+            }
+            if (imageHasher != null) {
+                // The segment is written right after the start of image marker:
+                fos = new ContentHasher.HashingOutputStream(fos, imageHasher,
+                        exifSegment != null ? 2 + exifSegment.length : 0L);
+            }
+            if (exifSegment != null) {
+                JpegSegments.writeWithExif(data, length, exifSegment, fos);
+            } else {
+                fos.write(data, 0, length);
+            }
+            written = true;
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return The stages of this pipeline, in the order in which they process the photos.
+     */
+    public PipelineStage[] getStages() {
+        return stages.clone();
+    }
+
+    /**
+     * @return A short, human readable summary of the statistics of all stages.
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (PipelineStage stage : stages) {
+            sb.append(stage.getStats()).append(' ');
+        }
+        sb.append(frameStore.getStats());
+        NearDuplicateFilter filter = nearDuplicateFilter;
+        if (filter != null) {
+            sb.append(' ').append(filter.getStats());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The first stage, it JPEG encodes the preview frames, decodes the photo bounds and, if
+     * needed, fixes the photo rotation.
+     */
+    private class DecodeStage extends PipelineStage {
+
+        // Reused for every preview frame so that its buffer doesn't have to grow each time, one
+        // per worker:
+        private final ThreadLocal<FrameOutputStream> frameStreams = new ThreadLocal<FrameOutputStream>() {
+            @Override
+            protected FrameOutputStream initialValue() {
+                return new FrameOutputStream();
+            }
+        };
+
+        // Reused for every photo, the pixels the near duplicate hash is computed from, one per
+        // worker:
+        private final ThreadLocal<int[]> nearDuplicateSamples = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[NearDuplicateFilter.SAMPLE_COLUMNS * NearDuplicateFilter.SAMPLE_ROWS];
+            }
+        };
+
+        DecodeStage() {
+            super("decode", DECODE_QUEUE_CAPACITY, BoundedQueue.POLICY_BLOCK, workerCount, false);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            if (job.previewFrame != null) {
+                if (!encodePreviewFrame(job)) {
+                    Log.w(TAG, "DecodeStage.process() :: Failed to encode a preview frame");
+                    return false;
+                }
+            } else if (!frameStore.load(job)) {
+                Log.w(TAG, "DecodeStage.process() :: Failed to read a spilled photo back");
+                return false;
+            } else {
+                hashPhotoHelper(job);
+            }
+
+            BitmapFactory.Options bfOptions = new BitmapFactory.Options();
+            bfOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(job.data, 0, job.dataLength, bfOptions);
+            job.width = bfOptions.outWidth;
+            job.height = bfOptions.outHeight;
+
+            // Photos taken while the device is held in portrait need to be turned by 90 degrees,
+            // while the pipeline is draining they are only tagged:
+            if ((job.devOrienAtCapture == 0 || job.devOrienAtCapture == 180) && job.width > job.height) {
+                if (draining) {
+                    job.exifOrientation = ExifInterface.ORIENTATION_ROTATE_90;
+                } else if (orientationMode == ORIENTATION_MODE_LOSSLESS) {
+                    try {
+                        // The rotator wants the photo alone in its array:
+                        byte[] src = job.dataLength == job.data.length ? job.data : Arrays.copyOf(job.data, job.dataLength);
+                        byte[] rotated = JpegLosslessRotator.rotate(src, 90);
+                        frameStore.replace(job, rotated, rotated.length);
+                        BitmapFactory.decodeByteArray(job.data, 0, job.dataLength, bfOptions);
+                        job.width = bfOptions.outWidth;
+                        job.height = bfOptions.outHeight;
+                        job.exifOrientation = ExifInterface.ORIENTATION_NORMAL;
+                    } catch (IOException e) {
+                        // The camera produced a JPEG we can't rotate, at least tag it:
+                        Log.w(TAG, "DecodeStage.process() :: Lossless rotation failed, using EXIF orientation", e);
+                        job.exifOrientation = ExifInterface.ORIENTATION_ROTATE_90;
+                    }
+                } else if (orientationMode == ORIENTATION_MODE_EXIF) {
+                    job.exifOrientation = ExifInterface.ORIENTATION_ROTATE_90;
+                } else {
+                    rotateByReencoding(job);
+                    job.exifOrientation = ExifInterface.ORIENTATION_NORMAL;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Computes the photo's near duplicate hash, if there is a filter, from a small
+         * sub-sampled decode of it. Only the pixels the hash is computed from are read out of the
+         * decoded bitmap.
+         */
+        private void hashPhotoHelper(CaptureJob job) {
+            if (nearDuplicateFilter == null) {
+                return;
+            }
+            BitmapFactory.Options bfOptions = new BitmapFactory.Options();
+            bfOptions.inSampleSize = NEAR_DUPLICATE_SAMPLE_SIZE;
+            Bitmap small = BitmapFactory.decodeByteArray(job.data, 0, job.dataLength, bfOptions);
+            if (small == null) {
+                // Let the rest of the stage deal with it:
+                return;
+            }
+            int width = small.getWidth(), height = small.getHeight();
+            int[] samples = nearDuplicateSamples.get();
+            for (int sy = 0; sy < NearDuplicateFilter.SAMPLE_ROWS; sy++) {
+                int y = NearDuplicateFilter.sampleCoordinate(sy, NearDuplicateFilter.SAMPLE_ROWS, height);
+                for (int sx = 0; sx < NearDuplicateFilter.SAMPLE_COLUMNS; sx++) {
+                    int x = NearDuplicateFilter.sampleCoordinate(sx, NearDuplicateFilter.SAMPLE_COLUMNS, width);
+                    samples[sy * NearDuplicateFilter.SAMPLE_COLUMNS + sx] = small.getPixel(x, y);
+                }
+            }
+            small.recycle();
+            job.nearDuplicateHash = NearDuplicateFilter.hashArgbSamples(samples);
+            job.hasNearDuplicateHash = true;
+        }
+
+        /**
+         * Encodes the preview frame to JPEG, into a pooled buffer, and gives the frame's buffer
+         * back to the camera.
+         *
+         * @return <b>true</b> if the frame was encoded.
+         */
+        private boolean encodePreviewFrame(CaptureJob job) {
+            FrameOutputStream frameStream = frameStreams.get();
+            try {
+                YuvImage yuvImage = new YuvImage(job.previewFrame, ImageFormat.NV21, job.previewWidth, job.previewHeight, null);
+                frameStream.reset();
+                if (!yuvImage.compressToJpeg(new Rect(0, 0, job.previewWidth, job.previewHeight), PREVIEW_FRAME_JPEG_QUALITY, frameStream)) {
+                    return false;
+                }
+                job.data = frameStream.copyTo(frameStore.acquire(frameStream.size()));
+                job.dataLength = frameStream.size();
+                frameStore.admit(job, false);
+                return true;
+            } finally {
+                job.recyclePreviewFrame();
+            }
+        }
+
+        /**
+         * Rotates the photo by decoding it to pixels, rotating them and encoding them again.
+         */
+        private void rotateByReencoding(CaptureJob job) {
+            Bitmap src = BitmapFactory.decodeByteArray(job.data, 0, job.dataLength);
+            Matrix matrix = new Matrix();
+            matrix.postRotate(90);
+            Bitmap out = Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), matrix, true);
+            src.recycle();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            out.compress(Bitmap.CompressFormat.JPEG, 100, baos);
+            job.width = out.getWidth();
+            job.height = out.getHeight();
+            out.recycle();
+            byte[] reencoded = baos.toByteArray();
+            frameStore.replace(job, reencoded, reencoded.length);
+            try {
+                baos.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The second stage, it drops the photos that are near duplicates of the last photo kept. It is
+     * ordered, so the photos are compared in the order they were taken, however the first stage's
+     * workers finish them.
+     */
+    private class DedupeStage extends PipelineStage {
+
+        DedupeStage() {
+            super("dedupe", DEDUPE_QUEUE_CAPACITY, BoundedQueue.POLICY_BLOCK, 1, true);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            NearDuplicateFilter filter = nearDuplicateFilter;
+            if (filter != null && job.hasNearDuplicateHash && !filter.accept(job.nearDuplicateHash, job.timestamp)) {
+                Log.d(TAG, "DedupeStage.process() :: Dropping a near duplicate photo");
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The third stage, it builds the EXIF data of the photo in memory.
+     */
+    private class ExifStage extends PipelineStage {
+
+        // Reused for every photo, one per worker:
+        private final ThreadLocal<ExifWriter> exifWriters = new ThreadLocal<ExifWriter>() {
+            @Override
+            protected ExifWriter initialValue() {
+                return new ExifWriter();
+            }
+        };
+        // Reused for every photo so that the position lookups don't allocate, one per worker:
+        private final ThreadLocal<double[]> positions = new ThreadLocal<double[]>() {
+            @Override
+            protected double[] initialValue() {
+                return new double[LocationRingBuffer.OUT_SIZE];
+            }
+        };
+
+        ExifStage() {
+            super("exif", Math.max(EXIF_QUEUE_CAPACITY, workerCount), BoundedQueue.POLICY_BLOCK, workerCount, false);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            ExifWriter exifWriter = exifWriters.get();
+            double[] position = positions.get();
+            exifWriter.reset();
+
+            // Keep the tags the camera wrote itself(exposure time, ISO, etc.):
+            try {
+                exifWriter.importTags(job.data, job.dataLength);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (locationBuffer != null && locationBuffer.lookup(job.timestamp, position)) {
+                // Where the device was at the moment the shutter fired:
+                job.latitude = position[LocationRingBuffer.OUT_LATITUDE];
+                job.longitude = position[LocationRingBuffer.OUT_LONGITUDE];
+                exifWriter.setGps(job.latitude, job.longitude, position[LocationRingBuffer.OUT_ALTITUDE], job.timestamp,
+                        job.deviceLocation != null ? job.deviceLocation.getProvider() : null);
+            } else if (job.deviceLocation != null) {
+                Location loc = job.deviceLocation;
+                job.latitude = loc.getLatitude();
+                job.longitude = loc.getLongitude();
+                exifWriter.setGps(job.latitude, job.longitude, loc.hasAltitude() ? loc.getAltitude() : Double.NaN,
+                        loc.getTime(), loc.getProvider());
+            }
+            exifWriter.setPixelDimensions(job.width, job.height);
+            exifWriter.setDateTime(job.timestamp);
+            exifWriter.setMakeAndModel(Build.MANUFACTURER, Build.MODEL);
+            if (job.exifOrientation != 0) {
+                exifWriter.setOrientation(job.exifOrientation);
+            }
+
+            CameraSettings camSettings = job.camSettings;
+            if (camSettings != null) {
+                String flashMode = camSettings.getFlashMode();
+                if (flashMode == null || flashMode.equals(Camera.Parameters.FLASH_MODE_OFF)) {
+                    exifWriter.setFlash(0);
+                }
+                exifWriter.setFocalLength(camSettings.getFocalLength());
+
+                String wb = camSettings.getWhiteBalance();
+                if (wb != null) {
+                    if (wb.equals(Camera.Parameters.WHITE_BALANCE_AUTO)) {
+                        exifWriter.setWhiteBalance(ExifWriter.WHITE_BALANCE_AUTO);
+                    } else {
+                        exifWriter.setWhiteBalance(ExifWriter.WHITE_BALANCE_MANUAL);
+                    }
+                }
+
+                // Vendor specific parameter, usually a plain number, sometimes prefixed with "f/":
+                String ap = camSettings.getAperture();
+                if (ap != null) {
+                    try {
+                        exifWriter.setFNumber(Float.parseFloat(ap.replace("f/", "").trim()));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "ExifStage.process() :: Unknown aperture format: " + ap);
+                    }
+                }
+            }
+
+            job.exifSegment = exifWriter.buildApp1Segment();
+            return true;
+        }
+    }
+
+    /**
+     * The fourth stage, it decodes the photo, while it is still in memory, once and at the lowest
+     * resolution that is enough for all its renditions, and makes from it the scaled down copy
+     * uploaded to Dropbox and the gallery thumbnails. The decoded bitmaps are reused from one
+     * photo to the next. A rendition that fails is simply left out, the uploader and the gallery
+     * then fall back to the photo itself.
+     */
+    private class RenditionStage extends PipelineStage {
+
+        // Reused for every rendition so that its buffer doesn't have to grow each time, one per
+        // worker:
+        private final ThreadLocal<FrameOutputStream> renditionStreams = new ThreadLocal<FrameOutputStream>() {
+            @Override
+            protected FrameOutputStream initialValue() {
+                return new FrameOutputStream();
+            }
+        };
+
+        RenditionStage() {
+            super("rendition", Math.max(RENDITION_QUEUE_CAPACITY, workerCount), BoundedQueue.POLICY_BLOCK, workerCount,
+                    false);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            if (job.width <= 0 || job.height <= 0 || draining) {
+                // The uploader and the gallery make do with the photo itself:
+                return true;
+            }
+            nameJobHelper(job);
+
+            // Sizes of the renditions. The photo is only scaled for upload if the uploader wants
+            // it smaller, or encoded again if it doesn't fit in the uploader's budget:
+            PhotoScaler photoScaler = dbUpldrThread.getPhotoScaler();
+            float uploadScale = dbUpldrThread.getPhotoScale();
+            boolean makeUpload = uploadScale < 1F || photoScaler.isOverBudget(job.dataLength);
+            int uploadWidth = 0, uploadHeight = 0;
+            if (makeUpload) {
+                uploadWidth = PhotoScaler.scaledSize(job.width, uploadScale);
+                uploadHeight = PhotoScaler.scaledSize(job.height, uploadScale);
+            }
+            boolean landscape = job.width >= job.height;
+            float thumbScale = Math.min(1F, Math.min(
+                    (float) THUMBNAIL_LONG_SIDE / (landscape ? job.width : job.height),
+                    (float) THUMBNAIL_SHORT_SIDE / (landscape ? job.height : job.width)));
+            int thumbWidth = Math.max(1, Math.round(job.width * thumbScale));
+            int thumbHeight = Math.max(1, Math.round(job.height * thumbScale));
+
+            // Decode the photo once, sub-sampled as much as the largest rendition allows:
+            int minWidth = Math.max(uploadWidth, thumbWidth);
+            int minHeight = Math.max(uploadHeight, thumbHeight);
+            int sampleSize = PhotoScaler.sampleSizeFor(job.width, job.height, minWidth, minHeight);
+            Bitmap decoded = decodeHelper(job, sampleSize);
+            if (decoded == null) {
+                Log.w(TAG, "RenditionStage.process() :: Failed to decode " + job.filename);
+                return true;
+            }
+
+            FrameOutputStream stream = renditionStreams.get();
+            try {
+                if (makeUpload) {
+                    // The scaled down copy, with the photo's EXIF data:
+                    Bitmap upload = PhotoScaler.resample(decoded, uploadWidth, uploadHeight);
+                    stream.reset();
+                    boolean encoded = true;
+                    try {
+                        photoScaler.encode(upload, stream, job.exifSegment != null ? job.exifSegment.length : 0);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        encoded = false;
+                    }
+                    if (upload != decoded) {
+                        upload.recycle();
+                    }
+                    byte[] exifSegment = null;
+                    if (job.exifSegment != null) {
+                        exifSegment = job.exifSegment.clone();
+                        try {
+                            ExifTransplant.patchPixelDimensions(exifSegment, uploadWidth, uploadHeight);
+                        } catch (IOException e) {
+                            // Only the dimension tags are off then, the rest is still right:
+                            e.printStackTrace();
+                        }
+                    }
+                    File uploadFile = new File(dbUpldrThread.getTempDir(), job.filename);
+                    ContentHasher hasher = new ContentHasher();
+                    ContentHasher imageHasher = new ContentHasher();
+                    if (encoded && writeJpegHelper(uploadFile, stream.buffer(), stream.size(), exifSegment, hasher,
+                            imageHasher)) {
+                        job.uploadPath = uploadFile.getPath();
+                        job.uploadDigest = hasher.digest();
+                        job.uploadSize = hasher.getLength();
+                        job.uploadImageKey = imageHasher.digest();
+                    }
+                }
+
+                // The gallery thumbnail, and the micro thumbnail cropped from its center:
+                Bitmap thumb = PhotoScaler.resample(decoded, thumbWidth, thumbHeight);
+                String baseName = job.filename.substring(0, job.filename.length() - ".jpg".length());
+                stream.reset();
+                thumb.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_JPEG_QUALITY, stream);
+                File thumbFile = new File(thumbnailDir, baseName + ".jpg");
+                if (writeJpegHelper(thumbFile, stream.buffer(), stream.size(), null, null, null)) {
+                    job.thumbnailPath = thumbFile.getPath();
+                    job.thumbnailWidth = thumbWidth;
+                    job.thumbnailHeight = thumbHeight;
+                }
+
+                int side = Math.min(thumbWidth, thumbHeight);
+                Matrix matrix = new Matrix();
+                float microScale = (float) MICRO_THUMBNAIL_SIZE / side;
+                matrix.setScale(microScale, microScale);
+                Bitmap micro = Bitmap.createBitmap(thumb, (thumbWidth - side) / 2, (thumbHeight - side) / 2, side, side,
+                        matrix, true);
+                if (thumb != decoded) {
+                    thumb.recycle();
+                }
+                stream.reset();
+                micro.compress(Bitmap.CompressFormat.JPEG, MICRO_THUMBNAIL_JPEG_QUALITY, stream);
+                micro.recycle();
+                File microFile = new File(thumbnailDir, baseName + "_micro.jpg");
+                if (writeJpegHelper(microFile, stream.buffer(), stream.size(), null, null, null)) {
+                    job.microThumbnailPath = microFile.getPath();
+                }
+            } catch (OutOfMemoryError e) {
+                // Better without renditions than without the photo:
+                Log.w(TAG, "RenditionStage.process() :: Out of memory while making renditions of " + job.filename);
+            } finally {
+                bitmapPool.release(decoded);
+            }
+            return true;
+        }
+
+        /**
+         * Decodes the photo, into a pooled bitmap if there is a suitable one.
+         *
+         * @return The decoded photo, or <b>null</b> if it couldn't be decoded.
+         */
+        private Bitmap decodeHelper(CaptureJob job, int sampleSize) {
+            BitmapFactory.Options bfOptions = new BitmapFactory.Options();
+            bfOptions.inSampleSize = sampleSize;
+            bfOptions.inMutable = true;
+            bfOptions.inBitmap = bitmapPool.get((job.width + sampleSize - 1) / sampleSize,
+                    (job.height + sampleSize - 1) / sampleSize, sampleSize);
+            try {
+                return BitmapFactory.decodeByteArray(job.data, 0, job.dataLength, bfOptions);
+            } catch (IllegalArgumentException e) {
+                if (bfOptions.inBitmap == null) {
+                    throw e;
+                }
+                // The pooled bitmap didn't fit after all, decode into a new one:
+                bfOptions.inBitmap.recycle();
+                bfOptions.inBitmap = null;
+                return BitmapFactory.decodeByteArray(job.data, 0, job.dataLength, bfOptions);
+            }
+        }
+    }
+
+    /**
+     * The fifth stage, it writes the photo, together with its EXIF data, to a file on local
+     * storage in a single pass.
+     */
+    private class PersistStage extends PipelineStage {
+
+        PersistStage() {
+            super("persist", Math.max(PERSIST_QUEUE_CAPACITY, workerCount), BoundedQueue.POLICY_BLOCK, workerCount, false);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            // Write photo data, with the EXIF segment spliced in, to its file:
+            nameJobHelper(job);
+            // The image is only hashed on its own if the photo itself is uploaded:
+            ContentHasher hasher = new ContentHasher();
+            ContentHasher imageHasher = job.uploadPath == null ? new ContentHasher() : null;
+            boolean written = writeJpegHelper(new File(job.filePath), job.data, job.dataLength, job.exifSegment, hasher,
+                    imageHasher);
+            if (written && job.uploadPath == null) {
+                job.uploadDigest = hasher.digest();
+                job.uploadSize = hasher.getLength();
+                job.uploadImageKey = imageHasher.digest();
+            }
+
+            // The photo data is no longer needed, its buffer can be reused:
+            frameStore.release(job);
+            job.exifSegment = null;
+            return written;
+        }
+    }
+
+    /**
+     * The sixth stage, it adds the saved photo to the device gallery. The photos are added in
+     * batches: while more photos are waiting in the queue they are collected, and the batch is
+     * inserted once the queue is empty or the batch is full.
+     */
+    private class GalleryStage extends PipelineStage {
+
+        GalleryStage() {
+            super("gallery", GALLERY_QUEUE_CAPACITY, BoundedQueue.POLICY_BLOCK, 1, true);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            // Register the file we have written, no copy of it is made:
+            int orientation = job.exifOrientation == ExifInterface.ORIENTATION_ROTATE_90 ? 90 : 0;
+            galleryIndexer.add(job.filePath, job.filename, job.timestamp, job.width, job.height, orientation,
+                    job.latitude, job.longitude);
+            // Together with the thumbnails made from the photo, so the gallery doesn't make its own:
+            if (job.thumbnailPath != null) {
+                galleryIndexer.addThumbnail(job.thumbnailPath, MediaStore.Images.Thumbnails.MINI_KIND,
+                        job.thumbnailWidth, job.thumbnailHeight);
+            }
+            if (job.microThumbnailPath != null) {
+                galleryIndexer.addThumbnail(job.microThumbnailPath, MediaStore.Images.Thumbnails.MICRO_KIND,
+                        MICRO_THUMBNAIL_SIZE, MICRO_THUMBNAIL_SIZE);
+            }
+            job.thumbnailsIndexed = true;
+            if (getQueueDepth() == 0) {
+                galleryIndexer.flush();
+            }
+
+            // A failure to add the photo to the gallery shouldn't prevent its upload:
+            return true;
+        }
+    }
+
+    /**
+     * The last stage, it queues the saved photo for upload to Dropbox and shows its name on the
+     * screen.
+     */
+    private class UploadStage extends PipelineStage {
+
+        UploadStage() {
+            super("upload", UPLOAD_QUEUE_CAPACITY);
+        }
+
+        @Override
+        protected boolean process(CaptureJob job) {
+            // The scaled down rendition, if one was made, otherwise the photo itself:
+            dbUpldrThread.queuePhoto(job.uploadPath != null ? job.uploadPath : job.filePath, job.uploadSize,
+                    job.uploadDigest, job.uploadImageKey);
+            job.uploadQueued = true;
+            // Flush the queue to storage once the burst of photos is over:
+            if (getQueueDepth() == 0) {
+                dbUpldrThread.flushQueue();
+            }
+            activity.postLastCapturedPhotoFilenameUpdate(job.filename);
+            Log.d(TAG, "UploadStage.process() :: " + getStats());
+            return true;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that can copy its contents into a given array, or lend its buffer, so
+     * that the encoded preview frames and renditions can be put into pooled buffers, or written to
+     * files, without an intermediate copy.
+     */
+    private static class FrameOutputStream extends ByteArrayOutputStream {
+
+        /**
+         * Copies the contents of this stream into the given array.
+         *
+         * @param dest The array, at least {@link #size()} bytes long.
+         * @return The array.
+         */
+        byte[] copyTo(byte[] dest) {
+            System.arraycopy(buf, 0, dest, 0, count);
+            return dest;
+        }
+
+        /**
+         * @return The internal buffer of this stream, its first {@link #size()} bytes are the
+         * contents.
+         */
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
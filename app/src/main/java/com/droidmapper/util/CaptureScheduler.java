@@ -0,0 +1,256 @@
+package com.droidmapper.util;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A utility class that triggers photo captures at a fixed rate. The capture deadlines lie on a
+ * timeline anchored to the start of the session, shot N is due at start + N * interval, so a slow
+ * photo doesn't shift the following ones. When a deadline comes while the previous capture is
+ * still in progress, the overrun policy decides what happens:<br>
+ * - {@link #OVERRUN_POLICY_SKIP}: the deadline is dropped, the next shot is taken at the next
+ * deadline that comes after the capture completes,<br>
+ * - {@link #OVERRUN_POLICY_CATCH_UP}: the missed shots are taken one after the other as soon as
+ * the camera is ready, until the schedule is caught up,<br>
+ * - {@link #OVERRUN_POLICY_STRETCH}: the shot is taken as soon as the camera is ready and the
+ * timeline is re-anchored to it.<br>
+ * Every missed deadline is counted and the jitter(the delay between the deadline and the moment
+ * the capture was actually triggered) of every shot is recorded.<br>
+ * <b>Note:</b> All methods of this class have to be called from the thread of the Handler
+ * supplied to its constructor.
+ */
+public class CaptureScheduler {
+
+    // Overrun policies:
+    public static final int OVERRUN_POLICY_SKIP = 1;
+    public static final int OVERRUN_POLICY_CATCH_UP = 2;
+    public static final int OVERRUN_POLICY_STRETCH = 3;
+
+    private static final String TAG = CaptureScheduler.class.getName();
+
+    private final Handler handler;
+    private final Callback callback;
+    private final int overrunPolicy;
+    private final long interval;
+
+    // State of the timeline, in SystemClock.uptimeMillis() time base:
+    private long nextDeadline;
+    private boolean captureInProgress, waitingForCamera, running;
+    private int owedShots;
+
+    // Statistics:
+    private long shotCount, missedDeadlineCount, lateShotCount;
+    private long lastJitter, maxJitter, totalJitter;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param handler       The Handler on whose thread the captures are triggered.
+     * @param interval      Time, in milliseconds, between two consecutive shots.
+     * @param overrunPolicy What to do when a deadline comes while the previous capture is still in
+     *                      progress, one of the OVERRUN_POLICY_* constants.
+     * @param callback      The callback that triggers the captures.
+     */
+    public CaptureScheduler(Handler handler, long interval, int overrunPolicy, Callback callback) {
+        if (handler == null) {
+            throw new NullPointerException("Handler param can't be null.");
+        }
+        if (callback == null) {
+            throw new NullPointerException("Callback param can't be null.");
+        }
+        if (interval < 1L) {
+            throw new IllegalArgumentException("Param interval can't be less than 1(one).");
+        }
+        if (overrunPolicy != OVERRUN_POLICY_SKIP && overrunPolicy != OVERRUN_POLICY_CATCH_UP
+                && overrunPolicy != OVERRUN_POLICY_STRETCH) {
+            throw new IllegalArgumentException("Unknown overrun policy " + overrunPolicy);
+        }
+        this.handler = handler;
+        this.interval = interval;
+        this.overrunPolicy = overrunPolicy;
+        this.callback = callback;
+    }
+
+    /**
+     * Starts the session, the first shot is due after the given delay.
+     *
+     * @param delay Time, in milliseconds, until the first shot.
+     */
+    public void start(long delay) {
+        Log.d(TAG, "start() :: interval = " + interval + ", policy = " + overrunPolicy);
+        stop();
+        running = true;
+        captureInProgress = false;
+        waitingForCamera = false;
+        owedShots = 0;
+        nextDeadline = SystemClock.uptimeMillis() + Math.max(0L, delay);
+        handler.postAtTime(deadlineRunnable, nextDeadline);
+    }
+
+    /**
+     * Stops the session, no more shots will be triggered.
+     */
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(deadlineRunnable);
+    }
+
+    /**
+     * Tells the scheduler that the capture it triggered has completed, so the camera is ready for
+     * the next one.
+     */
+    public void onCaptureComplete() {
+        captureInProgress = false;
+        if (!running) {
+            return;
+        }
+        if (waitingForCamera) {
+            // Stretch policy, take the overdue shot now and re-anchor the timeline to it:
+            waitingForCamera = false;
+            long now = SystemClock.uptimeMillis();
+            long deadline = nextDeadline;
+            handler.removeCallbacks(deadlineRunnable);
+            nextDeadline = now + interval;
+            triggerHelper(deadline, now);
+            handler.postAtTime(deadlineRunnable, nextDeadline);
+        } else if (owedShots > 0) {
+            // Catch up policy, take one of the missed shots now. Its jitter is measured from the
+            // oldest deadline still owed:
+            owedShots--;
+            long now = SystemClock.uptimeMillis();
+            triggerHelper(nextDeadline - interval * (owedShots + 1), now);
+        }
+    }
+
+    /**
+     * @return Number of shots triggered so far.
+     */
+    public long getShotCount() {
+        return shotCount;
+    }
+
+    /**
+     * @return Number of deadlines that came while the previous capture was still in progress.
+     */
+    public long getMissedDeadlineCount() {
+        return missedDeadlineCount;
+    }
+
+    /**
+     * @return Number of shots triggered more than one interval after their deadline.
+     */
+    public long getLateShotCount() {
+        return lateShotCount;
+    }
+
+    /**
+     * @return Jitter, in milliseconds, of the last shot.
+     */
+    public long getLastJitterMs() {
+        return lastJitter;
+    }
+
+    /**
+     * @return The largest jitter, in milliseconds, of all shots so far.
+     */
+    public long getMaxJitterMs() {
+        return maxJitter;
+    }
+
+    /**
+     * @return Average jitter, in milliseconds, of all shots so far.
+     */
+    public float getAverageJitterMs() {
+        if (shotCount == 0) {
+            return 0F;
+        }
+        return (float) totalJitter / shotCount;
+    }
+
+    /**
+     * @return A short, human readable summary of the scheduler's statistics.
+     */
+    public String getStats() {
+        return "shots " + shotCount + ", missed " + missedDeadlineCount + ", late " + lateShotCount + ", jitter last "
+                + lastJitter + " ms, avg " + Math.round(getAverageJitterMs()) + " ms, max " + maxJitter + " ms";
+    }
+
+    /**
+     * Helper method that triggers a capture and records its jitter.
+     *
+     * @param deadline The deadline of the shot.
+     * @param now      The current time.
+     */
+    private void triggerHelper(long deadline, long now) {
+        long jitter = now - deadline;
+        lastJitter = jitter;
+        totalJitter += jitter;
+        if (jitter > maxJitter) {
+            maxJitter = jitter;
+        }
+        if (jitter > interval) {
+            lateShotCount++;
+        }
+        shotCount++;
+        captureInProgress = true;
+        callback.onCaptureDue();
+    }
+
+    /**
+     * A runnable instance that is run at every deadline of the timeline.
+     */
+    private Runnable deadlineRunnable = new Runnable() {
+
+        /**
+         * Triggers the capture that is due or, if the previous one is still in progress, applies
+         * the overrun policy.
+         */
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long deadline = nextDeadline;
+            if (captureInProgress) {
+                missedDeadlineCount++;
+                Log.w(TAG, "deadlineRunnable.run() :: Missed deadline, " + getStats());
+                if (overrunPolicy == OVERRUN_POLICY_STRETCH) {
+                    // Wait for the camera, the timeline continues from the moment it is ready:
+                    waitingForCamera = true;
+                    return;
+                }
+                if (overrunPolicy == OVERRUN_POLICY_CATCH_UP) {
+                    owedShots++;
+                }
+            } else {
+                triggerHelper(deadline, now);
+            }
+
+            // Move on to the next deadline that is still ahead, counting the ones that passed
+            // while this thread was busy as missed:
+            nextDeadline += interval;
+            while (nextDeadline <= now) {
+                missedDeadlineCount++;
+                if (overrunPolicy == OVERRUN_POLICY_CATCH_UP) {
+                    owedShots++;
+                }
+                nextDeadline += interval;
+            }
+            handler.postAtTime(deadlineRunnable, nextDeadline);
+        }
+    };
+
+    /**
+     * Callback interface used to trigger the captures.
+     */
+    public interface Callback {
+
+        /**
+         * Called when a shot is due. Once the capture has completed the scheduler has to be told
+         * about it with onCaptureComplete().
+         */
+        void onCaptureDue();
+    }
+}
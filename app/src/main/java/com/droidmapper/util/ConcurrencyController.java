@@ -0,0 +1,281 @@
+package com.droidmapper.util;
+
+/**
+ * Decides how many uploads may run at the same time. On a link with a long round trip a single
+ * upload spends most of its time waiting, so several uploads in parallel fill the link better, but
+ * too many only share the same bandwidth, and a server that is overloaded answers them with errors.
+ * The number is adjusted with an AIMD(additive increase, multiplicative decrease) rule:<br>
+ * - every successful upload raises the limit by 1/limit, so about by one per round of uploads,
+ * but only as long as the last raise also raised the throughput measured at the new limit,<br>
+ * - an upload that takes much longer, per byte, than the best ones of about the same size seen so
+ * far means the link is saturated, the limit is cut to three quarters of it. The uploads are
+ * compared by size class because every request has a fixed overhead, a round trip or two, that
+ * makes a small upload slower per byte than a large one on the same link,<br>
+ * - an upload refused because of rate limiting or a server error, or that failed because of the
+ * network, cuts the limit in half.<br>
+ * After a cut the limit is not cut again before the uploads running at the time of the cut have
+ * finished, so a single burst of errors counts only once. To tell them from the uploads started
+ * after the cut, {@link #acquire()} hands out a permit that carries the number of cuts so far,
+ * and it is given back with the outcome. A cut also forgets the throughput measured at the new
+ * limit and above it, it was measured on a link that has changed since, so that the limit starts
+ * rising again as soon as the uploads succeed.<br>
+ * The controller only sees the outcome, size and duration of each upload, so it works with any
+ * upload target. The duration must not include the time spent waiting for a bandwidth limit,
+ * only the time the upload spent on the network.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class ConcurrencyController {
+
+    // Upload outcomes:
+    public static final int OUTCOME_SUCCESS = 1;
+    // - refused by the server, rate limiting or a server error:
+    public static final int OUTCOME_THROTTLED = 2;
+    // - failed for any other reason, usually the network:
+    public static final int OUTCOME_FAILED = 3;
+
+    // Factors the limit is multiplied with when it is cut:
+    private static final double THROTTLED_DECREASE = 0.5;
+    private static final double LATENCY_DECREASE = 0.75;
+    // An upload slower per byte than this many times the best ones means the link is saturated:
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // How fast the best time per byte follows slower uploads, so an old best doesn't stick:
+    private static final double BASELINE_DRIFT = 0.02;
+    // The uploads are compared with the ones of the same size class, the classes are a factor of
+    // 4(four) apart, starting from uploads below 64 KiB:
+    static final int SIZE_CLASS_COUNT = 5;
+    private static final int SIZE_CLASS_SHIFT = 16;
+    // A raise is kept only if it raised the throughput by at least this fraction:
+    private static final double MIN_THROUGHPUT_GAIN = 0.05;
+    // Throughput is measured over windows of this many nanoseconds:
+    private static final long WINDOW_NANOS = 3000000000L;
+    // Weight of the newest window in the throughput averages:
+    private static final double THROUGHPUT_ALPHA = 0.5;
+
+    private final int minLimit, maxLimit;
+    private double limit;
+    private int inFlight;
+
+    // Time per byte, in nanoseconds, of the fastest uploads of each size class, 0(zero) until
+    // known:
+    private final double[] baselineNanosPerByte = new double[SIZE_CLASS_COUNT];
+    // Number of cuts so far, the permits of the uploads carry the number at their start:
+    private int generation;
+    // Number of uploads still running that were started before the last cut:
+    private int cutBarrier;
+
+    // Throughput, in bytes per second, on average and at each integer limit, 0(zero) until
+    // measured:
+    private double throughput;
+    private final double[] throughputAtLimit;
+    private long windowStart, windowBytes;
+
+    // Statistics:
+    private long successCount, throttledCount, failedCount, increaseCount, decreaseCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the limits supplied as
+     * parameters. It starts with the minimal limit.
+     *
+     * @param minLimit Minimal number of uploads at the same time.
+     * @param maxLimit Maximal number of uploads at the same time.
+     */
+    public ConcurrencyController(int minLimit, int maxLimit) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("Param minLimit can't be less than 1(one).");
+        }
+        if (maxLimit < minLimit) {
+            throw new IllegalArgumentException("Param maxLimit can't be less than minLimit.");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = minLimit;
+        throughputAtLimit = new double[maxLimit + 1];
+        windowStart = System.nanoTime();
+    }
+
+    /**
+     * Waits until one more upload may start, and counts it as started.
+     *
+     * @return The upload's permit, it has to be given back to {@link #release(int, int, long, long)}
+     * or {@link #cancel(int)} when the upload finishes.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public synchronized int acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return generation;
+    }
+
+    /**
+     * Counts a started upload as finished, without any outcome, for example when it turned out
+     * there was nothing to upload.
+     *
+     * @param permit The permit {@link #acquire()} returned for the upload.
+     */
+    public synchronized void cancel(int permit) {
+        inFlight--;
+        finishHelper(permit);
+        notifyAll();
+    }
+
+    /**
+     * Counts a started upload as finished, and adjusts the limit according to its outcome.
+     *
+     * @param permit  The permit {@link #acquire()} returned for the upload.
+     * @param outcome One of the OUTCOME_* constants.
+     * @param bytes   Number of bytes uploaded.
+     * @param nanos   How long the upload took on the network, in nanoseconds, without the time it
+     *                waited for a bandwidth limit.
+     */
+    public synchronized void release(int permit, int outcome, long bytes, long nanos) {
+        inFlight--;
+        finishHelper(permit);
+        // The uploads started before the last cut have already been counted by it:
+        boolean cutAllowed = permit == generation && cutBarrier == 0;
+
+        if (outcome == OUTCOME_SUCCESS) {
+            successCount++;
+            measureThroughputHelper(bytes);
+            double nanosPerByte = (double) nanos / Math.max(bytes, 1L);
+            int sizeClass = sizeClass(bytes);
+            double baseline = baselineNanosPerByte[sizeClass];
+            if (baseline == 0D || nanosPerByte < baseline) {
+                baseline = nanosPerByte;
+            } else {
+                baseline += (nanosPerByte - baseline) * BASELINE_DRIFT;
+            }
+            baselineNanosPerByte[sizeClass] = baseline;
+
+            if (nanosPerByte > baseline * LATENCY_TOLERANCE) {
+                if (cutAllowed) {
+                    cutHelper(LATENCY_DECREASE);
+                }
+            } else {
+                increaseHelper();
+            }
+        } else {
+            if (outcome == OUTCOME_THROTTLED) {
+                throttledCount++;
+            } else {
+                failedCount++;
+            }
+            if (cutAllowed) {
+                cutHelper(THROTTLED_DECREASE);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return Current number of uploads allowed at the same time.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return Number of uploads currently running.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Average aggregate throughput of the uploads, in bytes per second.
+     */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return A short, human readable summary of the controller's statistics.
+     */
+    public synchronized String getStats() {
+        return "concurrency[limit " + String.format("%.2f", limit) + ", in flight " + inFlight + ", "
+                + Math.round(throughput / 1024D) + " KiB/s, ok " + successCount + ", throttled " + throttledCount
+                + ", failed " + failedCount + ", +" + increaseCount + "/-" + decreaseCount + "]";
+    }
+
+    /**
+     * Helper method that raises the limit by 1/limit, unless the raise would reach an integer
+     * limit that is not worth it: the throughput at the current limit was measured and wasn't
+     * better than at the one below it.
+     */
+    private void increaseHelper() {
+        if (limit >= maxLimit) {
+            return;
+        }
+        double next = Math.min(maxLimit, limit + 1D / limit);
+        int current = (int) limit;
+        if ((int) next > current && current > minLimit) {
+            double here = throughputAtLimit[current];
+            double below = throughputAtLimit[current - 1];
+            if (here > 0D && below > 0D && here < below * (1D + MIN_THROUGHPUT_GAIN)) {
+                // The last raise didn't pay off, stay here:
+                return;
+            }
+        }
+        if ((int) next > current) {
+            increaseCount++;
+        }
+        limit = next;
+    }
+
+    /**
+     * @param bytes Size of an upload.
+     * @return The upload's size class, from 0(zero) for uploads below 64 KiB to
+     * {@link #SIZE_CLASS_COUNT} - 1 for uploads of 4 MiB and more.
+     */
+    static int sizeClass(long bytes) {
+        long units = bytes >> SIZE_CLASS_SHIFT;
+        if (units == 0L) {
+            return 0;
+        }
+        return Math.min(SIZE_CLASS_COUNT - 1, 1 + (63 - Long.numberOfLeadingZeros(units)) / 2);
+    }
+
+    /**
+     * Helper method that counts a finished upload out of the cut barrier, if it was started
+     * before the last cut.
+     *
+     * @param permit The upload's permit.
+     */
+    private void finishHelper(int permit) {
+        if (permit != generation && cutBarrier > 0) {
+            cutBarrier--;
+        }
+    }
+
+    private void cutHelper(double factor) {
+        limit = Math.max(minLimit, limit * factor);
+        // Every upload still running was started before this cut:
+        generation++;
+        cutBarrier = inFlight;
+        decreaseCount++;
+
+        // Measure the throughput at the new limit from scratch:
+        for (int i = (int) limit; i < throughputAtLimit.length; i++) {
+            throughputAtLimit[i] = 0D;
+        }
+        windowStart = System.nanoTime();
+        windowBytes = 0L;
+    }
+
+    private void measureThroughputHelper(long bytes) {
+        windowBytes += bytes;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        double rate = windowBytes * 1000000000D / elapsed;
+        throughput = throughput == 0D ? rate : throughput + (rate - throughput) * THROUGHPUT_ALPHA;
+        int current = (int) limit;
+        double atLimit = throughputAtLimit[current];
+        throughputAtLimit[current] = atLimit == 0D ? rate : atLimit + (rate - atLimit) * THROUGHPUT_ALPHA;
+        windowStart = now;
+        windowBytes = 0L;
+    }
+}
@@ -0,0 +1,252 @@
+package com.droidmapper.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the content hash of a file incrementally, from the bytes as they are written or read,
+ * so the file doesn't have to be read again just to hash it. The hash is the one Dropbox computes
+ * for the files it stores: the data is split into blocks of 4 MiB, each block is hashed with
+ * SHA-256, and the hash of the file is the SHA-256 of the concatenated block hashes. A hash taken
+ * while a photo is written can thus be compared with the one taken while it is uploaded, and with
+ * the one the server reports for it.<br>
+ * <b>Note:</b> This class is not thread safe.
+ */
+public class ContentHasher {
+
+    // Size of the blocks that are hashed on their own:
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    // Size of the buffer a file is read with by hashFile():
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final MessageDigest blockDigest, overallDigest;
+    private int blockPos;
+    private long length;
+    private boolean finished;
+
+    /**
+     * Default constructor. It creates an instance of this class, ready to hash a file from its
+     * start.
+     */
+    public ContentHasher() {
+        try {
+            blockDigest = MessageDigest.getInstance("SHA-256");
+            overallDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform has to support SHA-256:
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes the next bytes of the file.
+     *
+     * @param data   Array containing the bytes.
+     * @param offset Offset of the bytes in the array.
+     * @param length Number of bytes.
+     */
+    public void update(byte[] data, int offset, int length) {
+        if (finished) {
+            throw new IllegalStateException("The hash has already been computed.");
+        }
+        this.length += length;
+        while (length > 0) {
+            int n = Math.min(length, BLOCK_SIZE - blockPos);
+            blockDigest.update(data, offset, n);
+            blockPos += n;
+            offset += n;
+            length -= n;
+            if (blockPos == BLOCK_SIZE) {
+                overallDigest.update(blockDigest.digest());
+                blockPos = 0;
+            }
+        }
+    }
+
+    /**
+     * Completes the hash, no more bytes can be hashed afterwards.
+     *
+     * @return The 32(thirty two) bytes of the content hash.
+     */
+    public byte[] digest() {
+        if (!finished) {
+            if (blockPos > 0) {
+                overallDigest.update(blockDigest.digest());
+            }
+            finished = true;
+        }
+        return overallDigest.digest();
+    }
+
+    /**
+     * @return Number of bytes hashed so far, the size of the file once it is all hashed.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Computes the content hash of a whole file, for the files that are uploaded without being
+     * read through a {@link HashingInputStream}.
+     *
+     * @param file The file.
+     * @return The 32(thirty two) bytes of the content hash.
+     * @throws IOException If the file doesn't exist or can't be read.
+     */
+    public static byte[] hashFile(File file) throws IOException {
+        ContentHasher hasher = new ContentHasher();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[FILE_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                hasher.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * @param hash A content hash.
+     * @return The hash as lower case hexadecimal digits, the way Dropbox shows it.
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An output stream that hashes the bytes written through it, optionally all but the first
+     * few, such as the EXIF segment at the start of a photo.
+     */
+    public static class HashingOutputStream extends FilterOutputStream {
+
+        private final ContentHasher hasher;
+        // Number of the bytes still to be written before the hashing starts:
+        private long skipBytes;
+
+        public HashingOutputStream(OutputStream out) {
+            this(out, new ContentHasher(), 0L);
+        }
+
+        /**
+         * @param out       The stream the bytes are written to.
+         * @param hasher    The hasher the bytes are fed to, its hash and length are read from it
+         *                  once the stream is written.
+         * @param skipBytes Number of the first bytes written that are not hashed.
+         */
+        public HashingOutputStream(OutputStream out, ContentHasher hasher, long skipBytes) {
+            super(out);
+            if (hasher == null) {
+                throw new NullPointerException("Hasher param can't be null.");
+            }
+            if (skipBytes < 0L) {
+                throw new IllegalArgumentException("Param skipBytes can't be less than 0(zero).");
+            }
+            this.hasher = hasher;
+            this.skipBytes = skipBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write the bytes one at a time:
+            out.write(b, off, len);
+            if (skipBytes > 0L) {
+                int skipped = (int) Math.min(skipBytes, len);
+                skipBytes -= skipped;
+                off += skipped;
+                len -= skipped;
+            }
+            hasher.update(b, off, len);
+        }
+
+        /**
+         * @return The content hash of the bytes written so far, no more bytes can be written
+         * afterwards.
+         */
+        public byte[] digest() {
+            return hasher.digest();
+        }
+    }
+
+    /**
+     * An input stream that hashes the bytes read through it. Skipped bytes are not hashed. The
+     * number of bytes read is known as well, see {@link #getLength()}.
+     */
+    public static class HashingInputStream extends FilterInputStream {
+
+        private final ContentHasher hasher;
+
+        public HashingInputStream(InputStream in) {
+            this(in, new ContentHasher());
+        }
+
+        /**
+         * @param in     The stream the bytes are read from.
+         * @param hasher The hasher the bytes are fed to, its hash and length are read from it
+         *               once the stream is read.
+         */
+        public HashingInputStream(InputStream in, ContentHasher hasher) {
+            super(in);
+            if (hasher == null) {
+                throw new NullPointerException("Hasher param can't be null.");
+            }
+            this.hasher = hasher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                hasher.update(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                hasher.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // A reset would hash the same bytes twice:
+            return false;
+        }
+
+        /**
+         * @return The content hash of the bytes read so far.
+         */
+        public byte[] digest() {
+            return hasher.digest();
+        }
+
+        /**
+         * @return Number of bytes read so far.
+         */
+        public long getLength() {
+            return hasher.getLength();
+        }
+    }
+}
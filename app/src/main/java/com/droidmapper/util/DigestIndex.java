@@ -0,0 +1,144 @@
+package com.droidmapper.util;
+
+/**
+ * A compact set of the content hashes of the most recent files, used to recognise a file whose
+ * exact contents have already been seen. Only the first 8(eight) bytes of each hash are kept, as
+ * a long, in an open addressing table, so the index takes some 24 bytes per file and no objects;
+ * with hashes this long a false match is practically impossible. Once the index is full the oldest
+ * hash is dropped for each new one, duplicates come close together, such as the frames taken
+ * while the vehicle waits at a traffic light.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class DigestIndex {
+
+    // The table is kept at most half full, so the probe sequences stay short:
+    private static final int LOAD_FACTOR_INVERSE = 2;
+    // Marks a free slot of the table, a key that happens to be 0(zero) is stored as 1(one):
+    private static final long FREE = 0L;
+
+    private final long[] table;
+    private final long[] order;
+    private int size, oldest;
+
+    // Statistics:
+    private long lookupCount, hitCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the capacity supplied as
+     * parameter.
+     *
+     * @param capacity Number of the most recent hashes kept.
+     */
+    public DigestIndex(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Param capacity can't be less than 1(one).");
+        }
+        int tableSize = Integer.highestOneBit(capacity * LOAD_FACTOR_INVERSE - 1) << 1;
+        table = new long[tableSize];
+        order = new long[capacity];
+    }
+
+    /**
+     * Adds a hash to the index, unless it is already in it.
+     *
+     * @param hash A content hash, at least 8(eight) bytes long.
+     * @return <b>true</b> if the hash was added, <b>false</b> if it was already in the index.
+     */
+    public synchronized boolean add(byte[] hash) {
+        long key = keyHelper(hash);
+        int slot = findHelper(key);
+        if (table[slot] == key) {
+            return false;
+        }
+        if (size == order.length) {
+            // Make room by dropping the oldest hash, the free slot may have moved:
+            removeHelper(order[oldest]);
+            oldest = (oldest + 1) % order.length;
+            size--;
+            slot = findHelper(key);
+        }
+        table[slot] = key;
+        order[(oldest + size) % order.length] = key;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param hash A content hash, at least 8(eight) bytes long.
+     * @return <b>true</b> if the hash is in the index.
+     */
+    public synchronized boolean contains(byte[] hash) {
+        long key = keyHelper(hash);
+        lookupCount++;
+        if (table[findHelper(key)] == key) {
+            hitCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a hash from the index, for example the one of a photo that turned out not to be
+     * uploaded after all. It still counts towards the capacity until it would have been dropped
+     * as the oldest.
+     *
+     * @param hash A content hash, at least 8(eight) bytes long.
+     */
+    public synchronized void remove(byte[] hash) {
+        removeHelper(keyHelper(hash));
+    }
+
+    /**
+     * @return A short, human readable summary of the index' statistics.
+     */
+    public synchronized String getStats() {
+        return "digests[" + size + "/" + order.length + ", duplicates " + hitCount + " of " + lookupCount + "]";
+    }
+
+    private static long keyHelper(byte[] hash) {
+        long key = 0L;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (hash[i] & 0xFFL);
+        }
+        return key == FREE ? 1L : key;
+    }
+
+    /**
+     * @return The slot holding the key, or the free slot where it would go.
+     */
+    private int findHelper(long key) {
+        int mask = table.length - 1;
+        // The key is already a cryptographic hash, its low bits are as good as any:
+        int slot = (int) key & mask;
+        while (table[slot] != FREE && table[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes a key from the table, moving back the keys after it that would otherwise become
+     * unreachable.
+     */
+    private void removeHelper(long key) {
+        int mask = table.length - 1;
+        int slot = findHelper(key);
+        if (table[slot] != key) {
+            return;
+        }
+        table[slot] = FREE;
+        int next = (slot + 1) & mask;
+        while (table[next] != FREE) {
+            long moved = table[next];
+            int home = (int) moved & mask;
+            // Move the key into the hole if its home isn't cyclically between the hole and it:
+            boolean between = slot <= next ? (home > slot && home <= next) : (home > slot || home <= next);
+            if (!between) {
+                table[slot] = moved;
+                table[next] = FREE;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+}
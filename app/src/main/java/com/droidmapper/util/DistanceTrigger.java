@@ -0,0 +1,228 @@
+package com.droidmapper.util;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A utility class that triggers photo captures every time the device travels the given distance.
+ * Instead of waiting for a location fix that is already past the distance, it extrapolates the
+ * device position from the latest fix's speed and bearing and arms a timer that fires at the
+ * predicted moment the distance is crossed. Every new fix cancels the timer and arms it again from
+ * the fresh position and velocity, so the prediction corrects itself. That way the photos are
+ * evenly spaced on the ground even when the device travels several interval distances between
+ * two fixes.<br>
+ * Positions are computed on a local flat-earth approximation, which is accurate enough for the
+ * distances between two photos.<br>
+ * <b>Note:</b> All methods of this class have to be called from the thread of the Handler
+ * supplied to its constructor.
+ */
+public class DistanceTrigger {
+
+    private static final String TAG = DistanceTrigger.class.getName();
+
+    // Below this speed, in meters per second, the device is considered to be standing still and
+    // nothing is predicted:
+    private static final float MIN_SPEED = 0.5F;
+    // Predictions further away than this, in milliseconds, are not armed, the next fix will come
+    // first anyway:
+    private static final long MAX_PREDICTION = 10000L;
+    // Meters per degree of latitude:
+    private static final double METERS_PER_DEGREE = 6371000.0d * Math.PI / 180.0d;
+
+    private final Handler handler;
+    private final Callback callback;
+    private final float interval;
+
+    // Position of the last shot, the anchor the distance is measured from:
+    private double anchorLat, anchorLon;
+    private boolean hasAnchor;
+
+    // Latest fix and the uptime at which it arrived:
+    private double fixLat, fixLon;
+    private float fixSpeed, fixBearing;
+    private boolean fixHasVelocity;
+    private long fixUptime;
+
+    private boolean captureInProgress, shotPending;
+
+    // Statistics:
+    private long predictedShotCount, fixShotCount, skippedShotCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param handler  The Handler on whose thread the captures are triggered.
+     * @param interval Distance, in meters, between two consecutive shots.
+     * @param callback The callback that triggers the captures.
+     */
+    public DistanceTrigger(Handler handler, float interval, Callback callback) {
+        if (handler == null) {
+            throw new NullPointerException("Handler param can't be null.");
+        }
+        if (callback == null) {
+            throw new NullPointerException("Callback param can't be null.");
+        }
+        if (interval <= 0F) {
+            throw new IllegalArgumentException("Param interval can't be equal or less than 0(zero).");
+        }
+        this.handler = handler;
+        this.interval = interval;
+        this.callback = callback;
+    }
+
+    /**
+     * Feeds a new location fix to the trigger. The first fix triggers a shot right away.
+     *
+     * @param location The new location fix.
+     */
+    public void onLocationChanged(Location location) {
+        if (location == null) {
+            return;
+        }
+        handler.removeCallbacks(predictionRunnable);
+        fixLat = location.getLatitude();
+        fixLon = location.getLongitude();
+        fixSpeed = location.getSpeed();
+        fixBearing = location.getBearing();
+        fixHasVelocity = location.hasSpeed() && location.hasBearing() && fixSpeed >= MIN_SPEED;
+        fixUptime = SystemClock.uptimeMillis();
+
+        if (!hasAnchor) {
+            // The very first fix, take the first photo here:
+            fixShotCount++;
+            triggerHelper(fixLat, fixLon);
+        } else if (distanceHelper(anchorLat, anchorLon, fixLat, fixLon) >= interval) {
+            // The prediction didn't fire in time(or there was no velocity to predict from), take
+            // the photo now:
+            Log.d(TAG, "onLocationChanged() :: Distance crossed before the prediction fired");
+            fixShotCount++;
+            triggerHelper(fixLat, fixLon);
+        }
+        armHelper();
+    }
+
+    /**
+     * Tells the trigger that the capture it triggered has completed, so the camera is ready for
+     * the next one.
+     */
+    public void onCaptureComplete() {
+        captureInProgress = false;
+        if (shotPending) {
+            // The distance was crossed while the camera was busy, take the photo now:
+            shotPending = false;
+            captureInProgress = true;
+            callback.onDistanceReached();
+        }
+    }
+
+    /**
+     * Stops the trigger, no more shots will be triggered.
+     */
+    public void stop() {
+        handler.removeCallbacks(predictionRunnable);
+        shotPending = false;
+    }
+
+    /**
+     * @return A short, human readable summary of the trigger's statistics.
+     */
+    public String getStats() {
+        return "predicted shots " + predictedShotCount + ", fix shots " + fixShotCount + ", skipped " + skippedShotCount;
+    }
+
+    /**
+     * Helper method that arms the timer at the predicted moment the distance from the anchor
+     * reaches the interval, moving from the latest fix along its bearing at its speed.
+     */
+    private void armHelper() {
+        if (!fixHasVelocity || !hasAnchor) {
+            return;
+        }
+
+        // Fix relative to the anchor, in meters east and north:
+        double cosLat = Math.cos(Math.toRadians(fixLat));
+        double rx = (fixLon - anchorLon) * METERS_PER_DEGREE * cosLat;
+        double ry = (fixLat - anchorLat) * METERS_PER_DEGREE;
+        // Direction of travel:
+        double bearing = Math.toRadians(fixBearing);
+        double ux = Math.sin(bearing);
+        double uy = Math.cos(bearing);
+
+        // Solve |r + s * u| = interval for the distance s still to travel:
+        double ru = rx * ux + ry * uy;
+        double discriminant = ru * ru - (rx * rx + ry * ry) + (double) interval * interval;
+        if (discriminant < 0) {
+            return;
+        }
+        double s = -ru + Math.sqrt(discriminant);
+        long delay = Math.round(s / fixSpeed * 1000.0d);
+        if (s < 0 || delay > MAX_PREDICTION) {
+            return;
+        }
+        handler.postAtTime(predictionRunnable, fixUptime + delay);
+    }
+
+    /**
+     * Helper method that triggers a shot and moves the anchor to the position it is taken at.
+     */
+    private void triggerHelper(double lat, double lon) {
+        anchorLat = lat;
+        anchorLon = lon;
+        hasAnchor = true;
+        if (captureInProgress) {
+            if (shotPending) {
+                // Two shots due while the camera is busy, one of them has to go:
+                skippedShotCount++;
+            }
+            shotPending = true;
+        } else {
+            captureInProgress = true;
+            callback.onDistanceReached();
+        }
+    }
+
+    /**
+     * @return Distance in meters between the two points.
+     */
+    private static double distanceHelper(double lat1, double lon1, double lat2, double lon2) {
+        double cosLat = Math.cos(Math.toRadians((lat1 + lat2) / 2.0d));
+        double dx = (lon2 - lon1) * METERS_PER_DEGREE * cosLat;
+        double dy = (lat2 - lat1) * METERS_PER_DEGREE;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * A runnable instance that is run at the predicted moment the distance is crossed.
+     */
+    private Runnable predictionRunnable = new Runnable() {
+
+        /**
+         * Triggers a shot at the predicted position and arms the timer for the next one.
+         */
+        @Override
+        public void run() {
+            // Extrapolate the position of the device from the latest fix:
+            double travelled = fixSpeed * (SystemClock.uptimeMillis() - fixUptime) / 1000.0d;
+            double bearing = Math.toRadians(fixBearing);
+            double lat = fixLat + travelled * Math.cos(bearing) / METERS_PER_DEGREE;
+            double lon = fixLon + travelled * Math.sin(bearing) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(fixLat)));
+            predictedShotCount++;
+            triggerHelper(lat, lon);
+            armHelper();
+        }
+    };
+
+    /**
+     * Callback interface used to trigger the captures.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the device has travelled the interval distance since the last shot. Once
+         * the capture has completed the trigger has to be told about it with onCaptureComplete().
+         */
+        void onDistanceReached();
+    }
+}
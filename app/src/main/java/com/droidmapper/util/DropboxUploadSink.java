@@ -0,0 +1,101 @@
+package com.droidmapper.util;
+
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxServerException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+/**
+ * An {@link UploadSink} that uploads to Dropbox. Small uploads are a single putFile() request,
+ * files and streams go through a {@link ResumableUploader}, in chunks, so an interrupted upload
+ * resumes where it stopped. If a {@link TokenBucket} is given, all of them keep to its bandwidth
+ * limit.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class DropboxUploadSink implements UploadSink {
+
+    private static final String TAG = DropboxUploadSink.class.getName();
+
+    private final DropboxAPI<?> dropboxApi;
+    private final ResumableUploader resumableUploader;
+    private final TokenBucket bandwidthLimiter;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param dropboxApi        A pointer to the DropboxAPI instance that should be used to upload
+     *                          to Dropbox.
+     * @param stateDir          Directory in which the state of the resumable uploads is kept.
+     * @param minChunkSize      Smallest chunk of a resumable upload, in bytes.
+     * @param maxChunkSize      Largest chunk of a resumable upload, in bytes.
+     * @param targetChunkMillis Time, in milliseconds, a chunk should take to upload.
+     * @param bandwidthLimiter  The token bucket the uploads take their tokens from, or <b>null</b>
+     *                          for no limit.
+     */
+    public DropboxUploadSink(DropboxAPI<?> dropboxApi, File stateDir, int minChunkSize, int maxChunkSize,
+                             long targetChunkMillis, TokenBucket bandwidthLimiter) {
+        if (dropboxApi == null) {
+            throw new NullPointerException("DropboxAPI param can't be null.");
+        }
+        this.dropboxApi = dropboxApi;
+        this.bandwidthLimiter = bandwidthLimiter;
+        resumableUploader = new ResumableUploader(dropboxApi, stateDir, minChunkSize, maxChunkSize, targetChunkMillis,
+                bandwidthLimiter);
+    }
+
+    @Override
+    public long upload(String remotePath, InputStream in, long length) throws UploadException {
+        try {
+            if (bandwidthLimiter != null) {
+                in = new TokenBucket.ThrottledInputStream(in, bandwidthLimiter);
+            }
+            DropboxAPI.Entry response = dropboxApi.putFile(remotePath, in, length, null, null);
+            Log.i(TAG, "upload() :: The uploaded file's rev is: " + response.rev);
+            return response.bytes;
+        } catch (DropboxException e) {
+            throw wrapHelper(remotePath, e);
+        }
+    }
+
+    @Override
+    public long upload(String remotePath, File file, ContentHasher hasher) throws FileNotFoundException,
+            UploadException {
+        try {
+            DropboxAPI.Entry response = resumableUploader.upload(file, remotePath, hasher);
+            Log.i(TAG, "upload() :: The uploaded file's rev is: " + response.rev);
+            return response.bytes;
+        } catch (DropboxException e) {
+            throw wrapHelper(remotePath, e);
+        }
+    }
+
+    @Override
+    public long uploadStream(String remotePath, InputStream in, File source) throws UploadException {
+        try {
+            DropboxAPI.Entry response = resumableUploader.upload(in, source, remotePath);
+            Log.i(TAG, "uploadStream() :: The uploaded file's rev is: " + response.rev);
+            return response.bytes;
+        } catch (DropboxException e) {
+            throw wrapHelper(remotePath, e);
+        }
+    }
+
+    @Override
+    public String getStats() {
+        return resumableUploader.getStats();
+    }
+
+    /**
+     * A helper method that turns a Dropbox exception into an UploadException, with the HTTP
+     * status code the server answered with, if any.
+     */
+    private static UploadException wrapHelper(String remotePath, DropboxException e) {
+        int status = e instanceof DropboxServerException ? ((DropboxServerException) e).error : UploadException.STATUS_NONE;
+        return new UploadException("Failed to upload " + remotePath, status, e);
+    }
+}
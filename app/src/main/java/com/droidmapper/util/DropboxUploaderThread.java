@@ -1,7 +1,6 @@
 package com.droidmapper.util;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.media.ExifInterface;
 import android.os.Environment;
@@ -10,36 +9,112 @@ import android.util.Log;
 
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.android.AndroidAuthSession;
-import com.dropbox.client2.exception.DropboxException;
 import com.droidmapper.R;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Date;
-import java.util.Vector;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is a utility class that provides a way to its clients to buffer taken photos in a queue, and
  * to upload them to Dropbox one by one.<br>
- * <b>Note:</b> Currently this thread, after receiving stop command, stops immediately dropping all
- * remaining queued tasks. If this is unwanted, because the app might/will lose a few photos, this
- * class should be modified to first finish queued tasks and then exit.
+ * The queue is an {@link UploadJournal} on local storage, so the photos not uploaded when this
+ * thread is stopped, or when the app is killed, are uploaded the next time it is started. A failed
+ * upload goes back to the end of the queue and the thread waits before trying again, longer after
+ * every failure in a row, so a lost connection isn't hammered with requests.<br>
+ * Several photos are uploaded at the same time, each by its own worker thread, so that on a link
+ * with a long round trip the uploads don't spend most of their time waiting. How many of them run
+ * at once is decided by a {@link ConcurrencyController}, from the throughput, the duration and the
+ * errors of the uploads so far.<br>
+ * The photos go to an {@link UploadSink}, Dropbox unless another sink is given. The uploads can be
+ * held to a bandwidth limit by a {@link TokenBucket}, and the upload rate, the bytes waiting to be
+ * uploaded and the time left to upload them can be read while the thread runs. The Dropbox sink
+ * sends large files, such as photos uploaded in full resolution, in chunks by a
+ * {@link ResumableUploader}, so an interrupted upload resumes where it stopped instead of starting
+ * over.<br>
+ * A photo that still has to be scaled is encoded, in a thread of its own, into a bounded pipe from
+ * which it is uploaded as it comes out, without a temp file. The photos are scaled to the exact
+ * scale asked for, and, if a budget of bytes per photo is set, encoded within it, by a
+ * {@link PhotoScaler}.<br>
+ * If batching is on, the small photos that are uploaded as they are, such as preview frames or
+ * photos scaled down to a fraction of their size, are collected by a {@link PhotoBatcher} and
+ * uploaded several at a time, in a single archive, which saves the overhead of a request per
+ * photo. When the thread is stopped, the photos still waiting for their batch are uploaded
+ * without waiting for it to fill.<br>
+ * A photo queued with the hash of its image, without the EXIF segment that is different for every
+ * photo, is skipped if a photo with the same image is waiting in the queue or has been uploaded
+ * recently, a vehicle waiting at a traffic light takes many identical photos. A photo queued with
+ * its content hash has the hash checked against the bytes actually read for the upload, and the
+ * size the server reports is checked against the size of the file, so neither a photo changed on
+ * local storage nor a truncated upload goes unnoticed, the upload fails and is retried.<br>
+ * <b>Note:</b> This thread, after receiving stop command, stops immediately, the upload in progress,
+ * if any, is retried the next time.
  */
 public class DropboxUploaderThread extends Thread {
 
+    // Batch limits that suit a stream of small photos, see setBatching(): the most photos in a
+    // batch and the longest time, in milliseconds, its first photo waits for the batch to fill:
+    public static final int DEFAULT_BATCH_MAX_PHOTOS = 16;
+    public static final long DEFAULT_BATCH_MAX_DELAY_MS = 5000L;
+
     private static final String TAG = DropboxUploaderThread.class.getName();
 
+    // Delays, in milliseconds, before retrying after a failed upload, the first one and the
+    // longest one:
+    private static final long RETRY_BASE_DELAY_MS = 2000L;
+    private static final long RETRY_MAX_DELAY_MS = 5L * 60L * 1000L;
+
+    // Most uploads at the same time, this thread included:
+    private static final int MAX_CONCURRENT_UPLOADS = 4;
+
+    // Files at least this large are uploaded in chunks, with chunk sizes between the given bounds,
+    // picked so that a chunk takes about the given time to send:
+    private static final long CHUNKED_UPLOAD_THRESHOLD = 1024L * 1024L;
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final long TARGET_CHUNK_MILLIS = 4000L;
+
+    // Number of the image hashes of the most recently uploaded photos remembered to recognise
+    // duplicate photos:
+    private static final int DIGEST_INDEX_CAPACITY = 4096;
+
+    // Size of the pipe through which the scaled photos are encoded into the uploads:
+    private static final int ENCODING_PIPE_SIZE = 64 * 1024;
+
+    // HTTP status codes with which the server asks us to slow down:
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
+
     private volatile boolean halt;
+    // Threads of the workers this thread starts, the first one is this thread itself, null until
+    // it runs:
+    private volatile Thread[] workerThreads;
 
-    private final DropboxAPI<AndroidAuthSession> dropboxApi;
-    private final Vector<String> queue;
+    private final UploadSink sink;
+    private final TokenBucket bandwidthLimiter;
+    private final UploadJournal journal;
+    private final RetryBackoff backoff;
+    private final ConcurrencyController controller;
+    private final UploadWorker[] workers;
+    private volatile PhotoBatcher batcher;
+    // Image hashes of the photos queued or uploaded recently, the other hashes of a queued photo
+    // are kept in its journal record, not in memory:
+    private final DigestIndex digestIndex;
+    private final AtomicLong integrityFailureCount = new AtomicLong(), duplicateCount = new AtomicLong();
+    private final PhotoScaler photoScaler;
     private final float photoScale;
     private final File tempDir;
-    private final Object lock;
 
     /**
      * Default constructor. It creates an instance of this class using the photo scale supplied as
@@ -51,115 +126,279 @@ public class DropboxUploaderThread extends Thread {
      *                   to Dropbox.
      */
     public DropboxUploaderThread(float photoScale, DropboxAPI<AndroidAuthSession> dropboxApi) {
-        if (dropboxApi == null) {
-            throw new NullPointerException("DropboxAPI param can't be null.");
+        this(photoScale, 0L, dropboxApi);
+    }
+
+    /**
+     * A constructor that creates an instance of this class using the photo scale and the budget
+     * of bytes per photo supplied as parameters.
+     *
+     * @param photoScale  A float value between 0 and 1, that represents to how much of the original
+     *                    size the photo should be scaled.
+     * @param targetBytes Most bytes an uploaded photo should take, the photos larger than that are
+     *                    encoded again at a lower JPEG quality, or 0(zero) for no budget.
+     * @param dropboxApi  A pointer to the DropboxAPI instance that should be used to upload photos
+     *                    to Dropbox.
+     */
+    public DropboxUploaderThread(float photoScale, long targetBytes, DropboxAPI<AndroidAuthSession> dropboxApi) {
+        this(photoScale, targetBytes, new TokenBucket(), dropboxApi);
+    }
+
+    /**
+     * A constructor that creates an instance of this class whose uploads keep to the bandwidth
+     * limit of the token bucket supplied as parameter, the limit can be changed later with
+     * {@link #setBandwidthLimit(long, long)}.
+     *
+     * @param photoScale       A float value between 0 and 1, that represents to how much of the
+     *                         original size the photo should be scaled.
+     * @param targetBytes      Most bytes an uploaded photo should take, or 0(zero) for no budget.
+     * @param bandwidthLimiter The token bucket the uploads take their tokens from.
+     * @param dropboxApi       A pointer to the DropboxAPI instance that should be used to upload
+     *                         photos to Dropbox.
+     */
+    public DropboxUploaderThread(float photoScale, long targetBytes, TokenBucket bandwidthLimiter,
+                                 DropboxAPI<AndroidAuthSession> dropboxApi) {
+        this(photoScale, targetBytes, new DropboxUploadSink(dropboxApi, tempDirHelper(), MIN_CHUNK_SIZE, MAX_CHUNK_SIZE,
+                TARGET_CHUNK_MILLIS, bandwidthLimiter), bandwidthLimiter);
+    }
+
+    /**
+     * A constructor that creates an instance of this class which uploads the photos to the sink
+     * supplied as parameter instead of Dropbox, such as a directory on local storage or an HTTP
+     * server.
+     *
+     * @param photoScale       A float value between 0 and 1, that represents to how much of the
+     *                         original size the photo should be scaled.
+     * @param targetBytes      Most bytes an uploaded photo should take, or 0(zero) for no budget.
+     * @param sink             The sink the photos should be uploaded to.
+     * @param bandwidthLimiter The token bucket the sink's uploads take their tokens from, or
+     *                         <b>null</b> if the sink has no bandwidth limit.
+     */
+    public DropboxUploaderThread(float photoScale, long targetBytes, UploadSink sink, TokenBucket bandwidthLimiter) {
+        this(photoScale, targetBytes, sink, bandwidthLimiter, tempDirHelper());
+    }
+
+    /**
+     * A constructor that creates an instance of this class which uploads the photos to the sink
+     * supplied as parameter, and keeps its journal and the scaled photos in the directory
+     * supplied as parameter instead of the one on external storage.
+     *
+     * @param photoScale       A float value between 0 and 1, that represents to how much of the
+     *                         original size the photo should be scaled.
+     * @param targetBytes      Most bytes an uploaded photo should take, or 0(zero) for no budget.
+     * @param sink             The sink the photos should be uploaded to.
+     * @param bandwidthLimiter The token bucket the sink's uploads take their tokens from, or
+     *                         <b>null</b> if the sink has no bandwidth limit.
+     * @param tempDir          The directory in which the scaled photos and the journal are kept,
+     *                         it is created if needed.
+     */
+    DropboxUploaderThread(float photoScale, long targetBytes, UploadSink sink, TokenBucket bandwidthLimiter,
+                          File tempDir) {
+        if (sink == null) {
+            throw new NullPointerException("UploadSink param can't be null.");
         }
         if (photoScale <= 0F || photoScale > 1F) {
             throw new IllegalArgumentException("Param photoScale can't be equal or less than 0(zero).");
         }
         this.photoScale = photoScale;
-        this.dropboxApi = dropboxApi;
-
-        // Create queue that will buffer taken photos:
-        queue = new Vector<String>();
-
-        // Create this thread's lock(used for synchronization):
-        lock = new Object();
+        this.sink = sink;
+        this.bandwidthLimiter = bandwidthLimiter;
+        photoScaler = new PhotoScaler(targetBytes);
+        digestIndex = new DigestIndex(DIGEST_INDEX_CAPACITY);
 
         // A flag that we use to signal this thread to stop itself:
         halt = false;
 
-        // Construct path to a temp file:
+        if (tempDir == null) {
+            throw new NullPointerException("Temp dir param can't be null.");
+        }
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+        this.tempDir = tempDir;
+
+        // Open the journal that queues the photos, with the photos left over from the last run
+        // already in it:
+        journal = new UploadJournal(new File(tempDir, "upload.journal"));
+        backoff = new RetryBackoff(RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS);
+
+        // Start with a single upload at a time, the controller adds more as long as they pay off:
+        controller = new ConcurrencyController(1, MAX_CONCURRENT_UPLOADS);
+        workers = new UploadWorker[MAX_CONCURRENT_UPLOADS];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new UploadWorker(i);
+        }
+    }
+
+    /**
+     * A helper method that constructs the path to the temp directory, and creates the directory
+     * if needed.
+     *
+     * @return The directory in which the scaled photos, the journal and the state of the
+     * resumable uploads are kept.
+     */
+    private static File tempDirHelper() {
         File picsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        tempDir = new File(picsDir, "temp");
+        File tempDir = new File(picsDir, "temp");
         if (!tempDir.exists()) {
             tempDir.mkdirs();
         }
+        return tempDir;
+    }
+
+    /**
+     * Turns batching on: the small photos that don't have to be scaled are uploaded several at a
+     * time, each batch as a single zip archive named after its first and last photo. It has to be
+     * called before the thread is started.
+     *
+     * @param maxPhotos  Most photos in a batch, 1(one) or less turns batching off.
+     * @param maxDelayMs Longest time, in milliseconds, the first photo of a batch waits for the
+     *                   batch to fill up.
+     */
+    public void setBatching(int maxPhotos, long maxDelayMs) {
+        if (isAlive()) {
+            throw new IllegalStateException("Batching can't be changed once the thread is started.");
+        }
+        batcher = maxPhotos > 1 ? new PhotoBatcher(maxPhotos, maxDelayMs) : null;
     }
 
     /**
-     * In a background thread scale the queued photos and upload them to the Dropbox.
+     * In a background thread scale the queued photos and upload them to the Dropbox. This thread
+     * is the first upload worker, it starts the others and waits for them when it is halted.
      */
     @Override
     public void run() {
-        Log.d(TAG, "run() :: Start");
-        while (!halt) {
-            if (queue.isEmpty()) {
-                // If there are no images in the queue, sleep:
-                synchronized (lock) {
-                    if (!halt) {
-                        try {
-                            lock.wait();
-                        } catch (InterruptedException e) {
-                        }
-                    }
-                }
-            } else {
-                // Get new photo to upload:
-                String job = queue.remove(0);
-                Log.d(TAG, "run() :: Scaling to " + photoScale + " and uploading " + job);
+        Log.d(TAG, "run() :: Start, " + journal.getStats());
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 1; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i], getName() + "-" + i);
+        }
+        workerThreads = threads;
+        for (int i = 1; i < threads.length; i++) {
+            threads[i].start();
+        }
+        if (halt) {
+            // Halted before the workers were known, they may have missed the interrupt:
+            interruptWorkersHelper();
+        }
+        workers[0].run();
 
+        // halt() interrupted this thread as well, clear the flag so that the joins really wait
+        // for the workers to finish their uploads:
+        Thread.interrupted();
+        for (int i = 1; i < threads.length; i++) {
+            boolean joined = false;
+            while (!joined) {
                 try {
-                    if (photoScale == 1F) {
-                        // The photo shouldn't be scaled, we will upload it in full resolution:
-                        uploadFile(job);
-                    } else {
-                        // Scale the photo first:
-                        BitmapFactory.Options bfOptions = new BitmapFactory.Options();
-                        bfOptions.inSampleSize = (int) (1F / photoScale); // Note that  decoder uses a final value based on powers of 2, any other value will be rounded down to the nearest power of 2.
-                        Bitmap scaled = BitmapFactory.decodeFile(job, bfOptions);
-
-                        // Save the scaled photo to a temp file:
-                        File jobFile = new File(job);
-                        File tempFile = new File(tempDir, jobFile.getName());
-                        if (!tempFile.exists()) {
-                            try {
-                                tempFile.createNewFile();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        FileOutputStream fos = null;
-                        try {
-                            fos = new FileOutputStream(tempFile);
-                            scaled.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        } finally {
-                            if (fos != null) {
-                                try {
-                                    fos.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
+                    threads[i].join();
+                    joined = true;
+                } catch (InterruptedException e) {
+                    // halt() was called again, keep waiting:
+                }
+            }
+        }
+        // The photos still waiting for their batch would otherwise wait for the next start, the
+        // last of a burst of photos always makes a partial batch, upload them now:
+        PhotoBatcher batcher = this.batcher;
+        PhotoBatcher.Batch batch = batcher != null ? batcher.flush() : null;
+        if (batch != null) {
+            workers[0].uploadLastBatch(batch);
+        }
+        journal.close();
+        Log.d(TAG, "run() :: Stop, " + getStats());
+    }
 
-                        // Copy-paste exif tags:
-                        Util.copyExifTags(job, tempFile.getPath(), scaled.getWidth(), scaled.getHeight());
+    /**
+     * A helper method that tells what an upload failure says about the link.
+     *
+     * @param e The exception the upload failed with.
+     * @return One of the ConcurrencyController.OUTCOME_* constants.
+     */
+    private static int classifyFailureHelper(UploadException e) {
+        int status = e.getStatus();
+        if (status == HTTP_TOO_MANY_REQUESTS || status >= HTTP_SERVER_ERROR) {
+            return ConcurrencyController.OUTCOME_THROTTLED;
+        }
+        return ConcurrencyController.OUTCOME_FAILED;
+    }
 
-                        // Then upload it:
-                        uploadFile(tempFile.getPath());
+    /**
+     * A helper method that tells whether a photo should go into a batch: batching has to be on,
+     * the photo has to be small, and it has to be uploaded as it is.
+     *
+     * @param jobFile The photo on local storage.
+     * @return <b>true</b> if the photo should be batched.
+     */
+    private boolean isBatchableHelper(File jobFile) {
+        if (batcher == null || !batcher.accepts(jobFile)) {
+            return false;
+        }
+        return tempDir.equals(jobFile.getParentFile())
+                || (photoScale == 1F && !photoScaler.isOverBudget(jobFile.length()));
+    }
 
-                        // And delete the temp file:
-                        tempFile.delete();
-                    }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (DropboxException e) {
+    /**
+     * A helper method that scales, if needed, and uploads a photo.
+     *
+     * @param entry The photo's journal entry.
+     * @return Number of bytes uploaded.
+     * @throws FileNotFoundException If the photo does not exist.
+     * @throws UploadException       If the upload fails.
+     */
+    private long uploadPhotoHelper(UploadJournal.Entry entry) throws FileNotFoundException, UploadException {
+        String job = entry.getPath();
+        File jobFile = new File(job);
+        if (!jobFile.exists()) {
+            throw new FileNotFoundException(job);
+        }
+        if (photoScale == 1F && !photoScaler.isOverBudget(jobFile.length())) {
+            // The photo shouldn't be scaled, we will upload it in full resolution:
+            return uploadFile(job, entry.getDigest());
+        } else if (tempDir.equals(jobFile.getParentFile())) {
+            // The photo has already been scaled by the capture pipeline, upload it and delete it:
+            long bytes = uploadFile(job, entry.getDigest());
+            jobFile.delete();
+            return bytes;
+        } else {
+            // The upload is a new encoding of the photo. Scale the photo first, to the exact
+            // size, the photo is hashed while it is decoded, so it is checked without being read
+            // once more:
+            Bitmap scaled = decodeCheckedHelper(job, jobFile, entry.getDigest());
+
+            // Then encode it, with the original photo's exif tags, straight into the upload,
+            // through a pipe, so it is never written to local storage:
+            byte[] exifSegment = null;
+            try {
+                exifSegment = readExifSegment(job);
+                if (exifSegment != null) {
+                    ExifTransplant.patchPixelDimensions(exifSegment, scaled.getWidth(), scaled.getHeight());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                exifSegment = null;
+            }
+            EncodingStream in;
+            try {
+                in = new EncodingStream(scaled, exifSegment);
+            } catch (IOException e) {
+                scaled.recycle();
+                throw new UploadException("Can't encode " + job, e);
+            }
+            try {
+                // Counts the bytes sent, the server has to store as many:
+                ContentHasher.HashingInputStream counted = new ContentHasher.HashingInputStream(in);
+                long stored = sink.uploadStream('/' + jobFile.getName(), counted, jobFile);
+                verifyUploadHelper(job, stored, counted.getLength(), null, null);
+                return stored;
+            } finally {
+                // Stops the encoder if the upload failed before the end of the photo:
+                try {
+                    in.close();
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
-
-                /*
-                 * Note that currently the application doesn't care if upload succeeds of fails.
-                 * I reckon that one frame more or less is not a problem. In case that it is an
-                 * imperative for all captured frames to be uploaded to the Dropbox this method
-                 * should be modified to repeat retry failed uploads. In this case it would also be
-                 * a good idea to move this thread into a Service.
-                 */
             }
         }
-        Log.d(TAG, "run() :: Stop");
     }
 
     /**
@@ -168,15 +407,215 @@ public class DropboxUploaderThread extends Thread {
      * @param path Path to the photo on local storage.
      */
     public void queuePhoto(String path) {
-        Log.d(TAG, "queuePhoto() :: Already in queue " + queue.size());
+        queuePhoto(path, new File(path).length(), null, null);
+    }
+
+    /**
+     * Add a new photo to the queue to be uploaded to Dropbox, unless a photo with the same image
+     * is waiting in the queue or has been uploaded recently. A skipped photo that has been scaled
+     * for upload is deleted.
+     *
+     * @param path     Path to the photo on local storage.
+     * @param size     Size of the photo's file, in bytes.
+     * @param digest   The photo's content hash, as computed by a {@link ContentHasher} while the
+     *                 photo was written, can be <b>null</b>.
+     * @param imageKey The content hash of the photo's file without its EXIF segment, can be
+     *                 <b>null</b>.
+     */
+    public void queuePhoto(String path, long size, byte[] digest, byte[] imageKey) {
+        Log.d(TAG, "queuePhoto() :: " + journal.getStats());
+
+        if (imageKey != null && !digestIndex.add(imageKey)) {
+            Log.d(TAG, "queuePhoto() :: Skipping " + path + ", same image as a queued or uploaded photo, "
+                    + ContentHasher.toHex(imageKey));
+            duplicateCount.incrementAndGet();
+            File file = new File(path);
+            if (tempDir.equals(file.getParentFile())) {
+                file.delete();
+            }
+            return;
+        }
+
+        // Add the new photo, with its hashes, to the journal, the journal wakes the thread up if
+        // it is sleeping:
+        if (!journal.append(path, size, digest, imageKey)) {
+            Log.w(TAG, "queuePhoto() :: Failed to queue " + path);
+            if (imageKey != null) {
+                digestIndex.remove(imageKey);
+            }
+        }
+    }
+
+    /**
+     * A helper method that updates the index of the recent images once a photo leaves the queue.
+     *
+     * @param entry    The photo's journal entry.
+     * @param uploaded <b>true</b> if the photo has been uploaded, its duplicates are then skipped
+     *                 for a while yet, <b>false</b> if it was dropped, its duplicates are then
+     *                 uploaded instead.
+     */
+    private void forgetHelper(UploadJournal.Entry entry, boolean uploaded) {
+        byte[] imageKey = entry.getImageKey();
+        if (imageKey == null) {
+            return;
+        }
+        if (uploaded) {
+            // Also if it was queued before a restart, or has dropped out of the index since:
+            digestIndex.add(imageKey);
+        } else {
+            digestIndex.remove(imageKey);
+        }
+    }
+
+    /**
+     * Flushes the queue of photos to storage, so the photos queued so far are uploaded even if
+     * the device loses power. The queue is flushed on its own every few photos, this is meant to
+     * be called when a burst of photos has been queued.
+     */
+    public void flushQueue() {
+        journal.flush();
+    }
+
+    /**
+     * @return A short, human readable summary of the upload statistics: the concurrency, the
+     * aggregate throughput and the throughput of each worker.
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder(controller.getStats());
+        sb.append(" workers[");
+        for (int i = 0; i < workers.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(workers[i].getStats());
+        }
+        sb.append("] ").append(sink.getStats()).append(' ').append(photoScaler.getStats()).append(' ')
+                .append(digestIndex.getStats()).append(" duplicates ").append(duplicateCount).append(" integrity failures ")
+                .append(integrityFailureCount).append(' ')
+                .append(journal.getStats());
+        PhotoBatcher batcher = this.batcher;
+        if (batcher != null) {
+            sb.append(' ').append(batcher.getStats());
+        }
+        if (bandwidthLimiter != null) {
+            sb.append(' ').append(bandwidthLimiter.getStats());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Average aggregate throughput of the uploads, in bytes per second.
+     */
+    public double getThroughput() {
+        return controller.getThroughput();
+    }
+
+    /**
+     * @return Number of upload workers, each uploads over a connection of its own.
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
 
-        // Add the new photo to the queue:
-        queue.add(path);
+    /**
+     * @param index Index of the worker, from 0(zero) to {@link #getWorkerCount()} - 1.
+     * @return Throughput of the worker's uploads while they were on the network, not counting the
+     * time they waited for the bandwidth limit, in bytes per second.
+     */
+    public double getWorkerThroughput(int index) {
+        return workers[index].getThroughput();
+    }
+
+    /**
+     * @param index Index of the worker, from 0(zero) to {@link #getWorkerCount()} - 1.
+     * @return Number of photos the worker has uploaded.
+     */
+    public long getWorkerUploadCount(int index) {
+        return workers[index].getUploadCount();
+    }
+
+    /**
+     * @param index Index of the worker, from 0(zero) to {@link #getWorkerCount()} - 1.
+     * @return Number of bytes the worker has uploaded.
+     */
+    public long getWorkerUploadedBytes(int index) {
+        return workers[index].getUploadedBytes();
+    }
 
-        // Notify the thread about this(it might be sleeping):
-        synchronized (lock) {
-            lock.notifyAll();
+    /**
+     * Changes the bandwidth limit of the uploads, the uploads in progress follow it from their
+     * next read.
+     *
+     * @param bytesPerSecond Rate at which the photos may be uploaded, or 0(zero) for no limit.
+     * @param burstBytes     Most bytes that may be uploaded at full speed after a pause, or
+     *                       0(zero) for one second's worth.
+     */
+    public void setBandwidthLimit(long bytesPerSecond, long burstBytes) {
+        if (bandwidthLimiter == null) {
+            throw new IllegalStateException("The sink has no bandwidth limiter.");
         }
+        bandwidthLimiter.setLimit(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * @return The rate, in bytes per second, at which the photos have been uploaded over the last
+     * few seconds.
+     */
+    public double getUploadRate() {
+        return bandwidthLimiter != null ? bandwidthLimiter.getPassingRate() : controller.getThroughput();
+    }
+
+    /**
+     * @return Number of bytes of the photos waiting to be uploaded, the ones being uploaded
+     * included, as their files were when they were queued. The journal keeps the sum up to date
+     * as the photos are queued, completed and given up on, so a call costs next to nothing.
+     */
+    public long getBacklogBytes() {
+        return journal.getBacklogBytes();
+    }
+
+    /**
+     * Estimates how long uploading the photos waiting to be uploaded would take, at the current
+     * upload rate, or at the bandwidth limit while nothing is being uploaded. The photos that are
+     * still to be scaled will take less.
+     *
+     * @return The estimate in milliseconds, or -1 if there is neither a rate nor a limit to base
+     * it on.
+     */
+    public long getDrainMillis() {
+        long backlog = getBacklogBytes();
+        if (backlog == 0L) {
+            return 0L;
+        }
+        double rate = getUploadRate();
+        if (rate < 1D && bandwidthLimiter != null) {
+            rate = bandwidthLimiter.getLimit();
+        }
+        return rate < 1D ? -1L : (long) (backlog * 1000D / rate);
+    }
+
+    /**
+     * @return The scale to which the photos are scaled before upload, a float value between 0 and
+     * 1.
+     */
+    public float getPhotoScale() {
+        return photoScale;
+    }
+
+    /**
+     * @return The scaler that scales and encodes the photos for upload, it knows the budget of
+     * bytes per photo, if any.
+     */
+    public PhotoScaler getPhotoScaler() {
+        return photoScaler;
+    }
+
+    /**
+     * @return The directory the scaled photos are kept in until they are uploaded. A photo queued
+     * from this directory is considered already scaled, and is deleted once uploaded.
+     */
+    public File getTempDir() {
+        return tempDir;
     }
 
     /**
@@ -188,26 +627,69 @@ public class DropboxUploaderThread extends Thread {
         // Set the stop flag:
         halt = true;
 
-        // Notify the thread about this(it might be sleeping):
-        synchronized (lock) {
-            lock.notifyAll();
+        // Close the journal, this wakes the workers up if they are waiting for a photo, and
+        // interrupt them all, this thread included, in case they are waiting to retry:
+        journal.close();
+        interrupt();
+        interruptWorkersHelper();
+    }
+
+    /**
+     * A helper method that interrupts the workers started by this thread, if they have been
+     * started.
+     */
+    private void interruptWorkersHelper() {
+        Thread[] threads = workerThreads;
+        if (threads == null) {
+            return;
+        }
+        for (int i = 1; i < threads.length; i++) {
+            threads[i].interrupt();
+        }
+    }
+
+    /**
+     * A helper method that reads the EXIF segment of a photo on local storage.
+     *
+     * @param path Path to the photo.
+     * @return The EXIF APP1 segment, or <b>null</b> if the photo has none.
+     * @throws IOException If reading the photo fails.
+     */
+    private static byte[] readExifSegment(String path) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path));
+        try {
+            return ExifTransplant.readExifSegment(in);
+        } finally {
+            in.close();
         }
     }
 
     /**
-     * A helper method that uploads a file whose path is passed as parameter to Dropbox.
+     * A helper method that uploads a file whose path is passed as parameter to the sink.
      *
-     * @param path Path to the file that should be uploaded to Dropbox.
+     * @param path   Path to the file that should be uploaded to the sink.
+     * @param digest Content hash the file was written with, <b>null</b> if unknown.
+     * @return Number of bytes uploaded.
      * @throws FileNotFoundException If {@code file} does not exist.
-     * @throws DropboxException      If a Dropbox related exception occurs.
+     * @throws UploadException       If the upload fails.
      */
-    private void uploadFile(String path) throws FileNotFoundException, DropboxException {
+    private long uploadFile(String path, byte[] digest) throws FileNotFoundException, UploadException {
         File file = new File(path);
-        FileInputStream inputStream = null;
+        long length = file.length();
+        if (length >= CHUNKED_UPLOAD_THRESHOLD) {
+            // Large enough to be worth resuming, the sink reads the file a chunk at a time and
+            // hashes it on the way:
+            ContentHasher hasher = digest != null ? new ContentHasher() : null;
+            long stored = sink.upload('/' + file.getName(), file, hasher);
+            verifyUploadHelper(path, stored, length, hasher != null ? hasher.digest() : null, digest);
+            return length;
+        }
+        ContentHasher.HashingInputStream inputStream = null;
         try {
-            inputStream = new FileInputStream(file);
-            DropboxAPI.Entry response = dropboxApi.putFile('/' + file.getName(), inputStream, file.length(), null, null);
-            Log.i(TAG, "uploadFile() :: The uploaded file's rev is: " + response.rev);
+            inputStream = new ContentHasher.HashingInputStream(new FileInputStream(file));
+            long stored = sink.upload('/' + file.getName(), inputStream, length);
+            verifyUploadHelper(path, stored, length, inputStream.digest(), digest);
+            return length;
         } finally {
             if (inputStream != null) {
                 try {
@@ -218,4 +700,398 @@ public class DropboxUploaderThread extends Thread {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A helper method that checks an upload end to end: the size the server stored has to be the
+     * size of the file, and the bytes read for the upload have to be the ones written to the file.
+     *
+     * @param path          Path to the uploaded file.
+     * @param stored        Number of bytes the server stored.
+     * @param length        Size of the file.
+     * @param sentDigest    Content hash of the bytes read for the upload, <b>null</b> if unknown.
+     * @param writtenDigest Content hash the file was written with, <b>null</b> if unknown.
+     * @throws UploadException If the server stored a different number of bytes, or the bytes read
+     *                         aren't the ones written, the upload is then retried.
+     */
+    private void verifyUploadHelper(String path, long stored, long length, byte[] sentDigest, byte[] writtenDigest)
+            throws UploadException {
+        if (stored != length) {
+            integrityFailureCount.incrementAndGet();
+            throw new UploadException("The server stored " + stored + " bytes of " + path + " instead of " + length,
+                    null);
+        }
+        if (sentDigest != null) {
+            verifyContentHelper(path, sentDigest, writtenDigest);
+        }
+    }
+
+    /**
+     * A helper method that checks that the bytes read from a file are the ones written to it.
+     *
+     * @param path          Path to the file.
+     * @param readDigest    Content hash of the bytes read.
+     * @param writtenDigest Content hash the file was written with, <b>null</b> if unknown.
+     * @throws UploadException If the file was written with a different content hash.
+     */
+    private void verifyContentHelper(String path, byte[] readDigest, byte[] writtenDigest) throws UploadException {
+        if (writtenDigest != null && !Arrays.equals(readDigest, writtenDigest)) {
+            integrityFailureCount.incrementAndGet();
+            throw new UploadException(path + " was read with content hash " + ContentHasher.toHex(readDigest)
+                    + " but written with " + ContentHasher.toHex(writtenDigest), null);
+        }
+    }
+
+    /**
+     * A helper method that decodes a photo scaled for upload, and checks it on the way: the file
+     * is read once, through a {@link ContentHasher.HashingInputStream}, to its end, and its hash
+     * has to be the one it was written with.
+     *
+     * @param path          Path to the photo.
+     * @param file          The photo's file.
+     * @param writtenDigest Content hash the file was written with, <b>null</b> if unknown.
+     * @return The scaled photo.
+     * @throws FileNotFoundException If the photo does not exist, or can't be decoded.
+     * @throws UploadException       If the photo isn't the one written, or can't be read.
+     */
+    private Bitmap decodeCheckedHelper(String path, File file, byte[] writtenDigest) throws FileNotFoundException,
+            UploadException {
+        ContentHasher.HashingInputStream in = new ContentHasher.HashingInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        Bitmap scaled;
+        try {
+            scaled = PhotoScaler.decodeScaled(path, in, photoScale);
+            if (writtenDigest != null) {
+                // The decoder may stop before the end of the file:
+                byte[] buffer = new byte[ENCODING_PIPE_SIZE];
+                while (in.read(buffer) > 0) {
+                    // Only hashed:
+                }
+            }
+        } catch (IOException e) {
+            throw new UploadException("Can't read " + path, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (scaled == null) {
+            throw new FileNotFoundException("Can't decode " + path);
+        }
+        if (writtenDigest != null) {
+            try {
+                verifyContentHelper(path, in.digest(), writtenDigest);
+            } catch (UploadException e) {
+                scaled.recycle();
+                throw e;
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * An upload worker, it takes photos from the journal and uploads them, one at a time, whenever
+     * the controller lets it. The small photos, if batching is on, are collected instead, and the
+     * worker that fills a batch, or finds it due, uploads it. It keeps the statistics of its own
+     * uploads.
+     */
+    private class UploadWorker implements Runnable {
+
+        private final int index;
+        // The controller's permit of the current upload:
+        private int permit;
+
+        // Statistics:
+        private long uploadedBytes, busyNanos, uploadCount;
+
+        UploadWorker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            while (!halt) {
+                // Wait for our turn, then for a photo to upload:
+                try {
+                    permit = controller.acquire();
+                } catch (InterruptedException e) {
+                    // We have probably been halted, the loop condition will tell:
+                    continue;
+                }
+                UploadJournal.Entry entry;
+                try {
+                    // While a batch is being collected, wake up when it is due even if no photo
+                    // comes:
+                    long untilDue = batcher != null ? batcher.getMillisUntilDue() : -1L;
+                    entry = untilDue < 0L ? journal.take() : journal.poll(untilDue);
+                } catch (InterruptedException e) {
+                    controller.cancel(permit);
+                    continue;
+                }
+                if (entry == null) {
+                    if (halt || batcher == null) {
+                        // The journal has been closed:
+                        controller.cancel(permit);
+                        break;
+                    }
+                    PhotoBatcher.Batch batch = batcher.takeDue();
+                    if (batch == null) {
+                        // Another worker took the batch:
+                        controller.cancel(permit);
+                        continue;
+                    }
+                    uploadBatchHelper(batch);
+                } else if (isBatchableHelper(new File(entry.getPath()))) {
+                    PhotoBatcher.Batch batch = batcher.add(entry, new File(entry.getPath()));
+                    if (batch == null) {
+                        // Nothing to upload yet:
+                        controller.cancel(permit);
+                        continue;
+                    }
+                    uploadBatchHelper(batch);
+                } else {
+                    uploadEntryHelper(entry);
+                }
+            }
+        }
+
+        /**
+         * Uploads the last batch, once the other workers have stopped. If it fails, or this thread
+         * is interrupted while it waits for its turn, the photos are queued again the next time.
+         *
+         * @param batch The batch.
+         */
+        void uploadLastBatch(PhotoBatcher.Batch batch) {
+            try {
+                permit = controller.acquire();
+            } catch (InterruptedException e) {
+                for (UploadJournal.Entry entry : batch.getEntries()) {
+                    journal.retry(entry);
+                }
+                return;
+            }
+            uploadBatchHelper(batch);
+        }
+
+        /**
+         * A helper method that uploads a single photo.
+         *
+         * @param entry The photo's journal entry.
+         */
+        private void uploadEntryHelper(UploadJournal.Entry entry) {
+            String job = entry.getPath();
+            Log.d(TAG, "UploadWorker.uploadEntryHelper() :: " + index + " scaling to " + photoScale + " and uploading " + job);
+
+            long start = System.nanoTime();
+            long waitedBefore = throttleWaitHelper();
+            int outcome = ConcurrencyController.OUTCOME_SUCCESS;
+            long bytes = 0L;
+            try {
+                bytes = uploadPhotoHelper(entry);
+            } catch (FileNotFoundException e) {
+                // The photo is gone, there is nothing to retry, and nothing to learn about the
+                // link either:
+                Log.w(TAG, "UploadWorker.uploadEntryHelper() :: Dropping missing photo " + job);
+                controller.cancel(permit);
+                journal.complete(entry);
+                forgetHelper(entry, false);
+                return;
+            } catch (UploadException e) {
+                e.printStackTrace();
+                outcome = classifyFailureHelper(e);
+            } catch (RuntimeException e) {
+                // Don't let a single bad photo kill the worker, or leave it in flight forever:
+                Log.e(TAG, "UploadWorker.uploadEntryHelper() :: Failed to upload " + job, e);
+                outcome = ConcurrencyController.OUTCOME_FAILED;
+            }
+            finishHelper(Collections.singletonList(entry), outcome, bytes,
+                    System.nanoTime() - start - (throttleWaitHelper() - waitedBefore));
+        }
+
+        /**
+         * A helper method that uploads a batch of photos as one archive. The photos already
+         * scaled for upload are deleted once it is uploaded.
+         *
+         * @param batch The batch.
+         */
+        private void uploadBatchHelper(PhotoBatcher.Batch batch) {
+            Log.d(TAG, "UploadWorker.uploadBatchHelper() :: " + index + " uploading " + batch.getEntries().size()
+                    + " photos as " + batch.getName());
+
+            long start = System.nanoTime();
+            long waitedBefore = throttleWaitHelper();
+            int outcome = ConcurrencyController.OUTCOME_SUCCESS;
+            long bytes = 0L;
+            try {
+                byte[] archive;
+                try {
+                    archive = batch.buildArchive();
+                } catch (IOException e) {
+                    throw new UploadException("Can't archive " + batch.getName(), e);
+                }
+                if (archive != null) {
+                    // The photos were read while the archive was built:
+                    List<UploadJournal.Entry> entries = batch.getEntries();
+                    for (int i = 0; i < entries.size(); i++) {
+                        byte[] readDigest = batch.getContentHash(i);
+                        if (readDigest != null) {
+                            verifyContentHelper(entries.get(i).getPath(), readDigest, entries.get(i).getDigest());
+                        }
+                    }
+                    long stored = sink.upload('/' + batch.getName(), new ByteArrayInputStream(archive), archive.length);
+                    verifyUploadHelper(batch.getName(), stored, archive.length, null, null);
+                    bytes = archive.length;
+                }
+            } catch (UploadException e) {
+                e.printStackTrace();
+                outcome = classifyFailureHelper(e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "UploadWorker.uploadBatchHelper() :: Failed to upload " + batch.getName(), e);
+                outcome = ConcurrencyController.OUTCOME_FAILED;
+            }
+            if (outcome == ConcurrencyController.OUTCOME_SUCCESS) {
+                List<File> files = batch.getFiles();
+                for (int i = 0; i < files.size(); i++) {
+                    File file = files.get(i);
+                    if (batch.getContentHash(i) == null) {
+                        // Left out of the archive, it wasn't uploaded:
+                        forgetHelper(batch.getEntries().get(i), false);
+                    }
+                    if (tempDir.equals(file.getParentFile())) {
+                        file.delete();
+                    }
+                }
+            }
+            finishHelper(batch.getEntries(), outcome, bytes,
+                    System.nanoTime() - start - (throttleWaitHelper() - waitedBefore));
+        }
+
+        /**
+         * A helper method that tells how long this worker has waited for the bandwidth limit, so
+         * the wait can be taken out of an upload's duration.
+         *
+         * @return Total time waited, in nanoseconds.
+         */
+        private long throttleWaitHelper() {
+            return bandwidthLimiter != null ? bandwidthLimiter.getThreadWaitNanos() : 0L;
+        }
+
+        /**
+         * A helper method that reports an upload to the controller and, depending on its outcome,
+         * completes the photos or gives them back to the journal and waits before going on.
+         *
+         * @param entries Journal entries of the uploaded photos.
+         * @param outcome One of the ConcurrencyController.OUTCOME_* constants.
+         * @param bytes   Number of bytes uploaded.
+         * @param nanos   How long the upload took on the network, in nanoseconds.
+         */
+        private void finishHelper(List<UploadJournal.Entry> entries, int outcome, long bytes, long nanos) {
+            controller.release(permit, outcome, bytes, nanos);
+
+            if (outcome == ConcurrencyController.OUTCOME_SUCCESS) {
+                for (UploadJournal.Entry entry : entries) {
+                    journal.complete(entry);
+                    forgetHelper(entry, true);
+                }
+                backoff.onSuccess();
+                synchronized (this) {
+                    uploadedBytes += bytes;
+                    busyNanos += nanos;
+                    uploadCount += entries.size();
+                }
+            } else {
+                // Probably a lost connection or an overloaded server, wait before trying again:
+                for (UploadJournal.Entry entry : entries) {
+                    journal.retry(entry);
+                }
+                long delay = backoff.onFailure();
+                Log.w(TAG, "UploadWorker.finishHelper() :: Upload failed " + backoff.getFailureCount()
+                        + " times in a row, retrying in " + delay + " ms, " + controller.getStats());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    // We have probably been halted, the loop condition will tell:
+                }
+            }
+        }
+
+        /**
+         * @return A short, human readable summary of this worker's statistics: its number of
+         * uploaded photos and their throughput while it was uploading.
+         */
+        synchronized String getStats() {
+            return index + ": " + uploadCount + " @ " + Math.round(getThroughput() / 1024D) + " KiB/s";
+        }
+
+        /**
+         * @return Throughput of this worker's uploads while they were on the network, in bytes per
+         * second.
+         */
+        synchronized double getThroughput() {
+            return busyNanos == 0L ? 0D : uploadedBytes * 1000000000D / busyNanos;
+        }
+
+        synchronized long getUploadCount() {
+            return uploadCount;
+        }
+
+        synchronized long getUploadedBytes() {
+            return uploadedBytes;
+        }
+    }
+
+    /**
+     * The reading end of a pipe into which a scaled photo is JPEG encoded, with its EXIF segment
+     * inserted, by a thread of its own. The pipe is bounded, so the encoder waits while the upload
+     * falls behind. An encoding failure is reported by the reads at the end of the stream, so a
+     * truncated photo is never taken for a whole one. Closing the stream stops the encoder.
+     */
+    private class EncodingStream extends PipedInputStream {
+
+        private volatile IOException encoderError;
+
+        EncodingStream(final Bitmap bitmap, final byte[] exifSegment) throws IOException {
+            super(ENCODING_PIPE_SIZE);
+            final PipedOutputStream pipe = new PipedOutputStream(this);
+            Thread encoder = new Thread(getName() + "-encoder") {
+                @Override
+                public void run() {
+                    try {
+                        OutputStream out = exifSegment != null ? new JpegSegments.ExifInsertingStream(pipe, exifSegment) : pipe;
+                        photoScaler.encode(bitmap, out, exifSegment != null ? exifSegment.length : 0);
+                        out.flush();
+                    } catch (IOException e) {
+                        encoderError = e;
+                    } finally {
+                        bitmap.recycle();
+                        try {
+                            pipe.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            encoder.start();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b < 0 && encoderError != null) {
+                throw encoderError;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read < 0 && encoderError != null) {
+                throw encoderError;
+            }
+            return read;
+        }
+    }
+}
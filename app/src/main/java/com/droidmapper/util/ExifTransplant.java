@@ -0,0 +1,196 @@
+package com.droidmapper.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A utility class that carries the EXIF metadata of one photo over to another one at the byte
+ * level. Instead of reading and writing the tags one by one, the whole EXIF APP1 segment of the
+ * source photo is taken as it is and only its pixel dimension tags are patched in place to match
+ * the destination photo. So all the tags are preserved, including the ones this app doesn't know
+ * about.<br>
+ * <b>Note:</b> This class doesn't use any Android APIs so it can be tested and benchmarked on a
+ * plain JVM.
+ */
+public class ExifTransplant {
+
+    // JPEG markers:
+    private static final int SOI = 0xD8, EOI = 0xD9, SOS = 0xDA, APP1 = 0xE1, TEM = 0x01, RST0 = 0xD0, RST7 = 0xD7;
+
+    /**
+     * Private constructor because we want to prevent other classes from making instances of this
+     * class.
+     */
+    private ExifTransplant() {
+
+    }
+
+    /**
+     * Reads the EXIF APP1 segment of a JPEG encoded photo from a stream. The stream is read only
+     * up to the end of the segment.
+     *
+     * @param in Stream positioned at the start of the photo.
+     * @return The whole segment, starting with its 0xFFE1 marker, or <b>null</b> if the photo
+     * has no EXIF segment.
+     * @throws IOException If the data isn't a JPEG, its segments are corrupted or the stream
+     *                     fails.
+     */
+    public static byte[] readExifSegment(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readUnsignedByte() != 0xFF || din.readUnsignedByte() != SOI) {
+            throw new IOException("Not a JPEG.");
+        }
+        while (true) {
+            int marker = readMarker(din);
+            if (marker == SOS || marker == EOI) {
+                return null;
+            }
+            if (hasNoPayload(marker)) {
+                continue;
+            }
+            int length = din.readUnsignedShort();
+            if (length < 2) {
+                throw new IOException("Corrupted JPEG segment length.");
+            }
+            byte[] segment = new byte[2 + length];
+            segment[0] = (byte) 0xFF;
+            segment[1] = (byte) marker;
+            segment[2] = (byte) (length >> 8);
+            segment[3] = (byte) length;
+            if (marker == APP1) {
+                din.readFully(segment, 4, length - 2);
+                if (isExif(segment)) {
+                    return segment;
+                }
+            } else {
+                skipFully(din, length - 2);
+            }
+        }
+    }
+
+    /**
+     * Sets the ImageWidth/ImageLength tags of IFD0 and the PixelXDimension/PixelYDimension tags
+     * of the EXIF IFD of an EXIF APP1 segment, in place. Tags that are missing are not added.
+     *
+     * @param segment The segment, starting with its 0xFFE1 marker.
+     * @param width   New width of the photo.
+     * @param height  New height of the photo.
+     * @throws IOException If the EXIF data is corrupted.
+     */
+    public static void patchPixelDimensions(byte[] segment, int width, int height) throws IOException {
+        int tiff = JpegSegments.tiffOffset(0);
+        try {
+            boolean littleEndian = segment[tiff] == 'I';
+            int exifIfdOffset = patchIfd(segment, tiff, littleEndian, readInt(segment, tiff + 4, littleEndian),
+                    ExifWriter.TAG_IMAGE_WIDTH, ExifWriter.TAG_IMAGE_LENGTH, width, height);
+            if (exifIfdOffset > 0) {
+                patchIfd(segment, tiff, littleEndian, exifIfdOffset,
+                        ExifWriter.TAG_PIXEL_X_DIMENSION, ExifWriter.TAG_PIXEL_Y_DIMENSION, width, height);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted EXIF data.", e);
+        }
+    }
+
+    /**
+     * Patches the given pair of tags in a single IFD.
+     *
+     * @return Offset of the EXIF IFD if the patched IFD points to one, 0(zero) otherwise.
+     */
+    private static int patchIfd(byte[] segment, int tiff, boolean littleEndian, int ifdOffset, int tagX, int tagY, int x, int y) throws IOException {
+        int pos = tiff + ifdOffset;
+        if (ifdOffset < 8 || pos + 2 > segment.length) {
+            throw new IOException("Corrupted EXIF IFD offset " + ifdOffset);
+        }
+        int exifIfdOffset = 0;
+        int count = readShort(segment, pos, littleEndian);
+        pos += 2;
+        for (int i = 0; i < count; i++, pos += 12) {
+            int tag = readShort(segment, pos, littleEndian);
+            if (tag == ExifWriter.TAG_EXIF_IFD) {
+                exifIfdOffset = readInt(segment, pos + 8, littleEndian);
+            } else if (tag == tagX || tag == tagY) {
+                int value = tag == tagX ? x : y;
+                // The value always fits into the entry itself, so it can be turned into a LONG if
+                // it doesn't fit into a SHORT:
+                if (value <= 0xFFFF && readShort(segment, pos + 2, littleEndian) == ExifWriter.TYPE_SHORT) {
+                    writeShort(segment, pos + 8, value, littleEndian);
+                    writeShort(segment, pos + 10, 0, littleEndian);
+                } else {
+                    writeShort(segment, pos + 2, ExifWriter.TYPE_LONG, littleEndian);
+                    writeInt(segment, pos + 8, value, littleEndian);
+                }
+                writeInt(segment, pos + 4, 1, littleEndian);
+            }
+        }
+        return exifIfdOffset;
+    }
+
+    private static int readMarker(DataInputStream din) throws IOException {
+        if (din.readUnsignedByte() != 0xFF) {
+            throw new IOException("Corrupted JPEG segments.");
+        }
+        int marker = din.readUnsignedByte();
+        // Skip the fill bytes:
+        while (marker == 0xFF) {
+            marker = din.readUnsignedByte();
+        }
+        return marker;
+    }
+
+    private static boolean hasNoPayload(int marker) {
+        return marker == TEM || (marker >= RST0 && marker <= RST7);
+    }
+
+    private static boolean isExif(byte[] segment) {
+        byte[] header = ExifWriter.EXIF_HEADER;
+        for (int i = 0; i < header.length; i++) {
+            if (segment[4 + i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream din, int length) throws IOException {
+        if (din.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    private static int readShort(byte[] data, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+        }
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return readShort(data, pos, true) | (readShort(data, pos + 2, true) << 16);
+        }
+        return (readShort(data, pos, false) << 16) | readShort(data, pos + 2, false);
+    }
+
+    private static void writeShort(byte[] data, int pos, int value, boolean littleEndian) {
+        if (littleEndian) {
+            data[pos] = (byte) value;
+            data[pos + 1] = (byte) (value >> 8);
+        } else {
+            data[pos] = (byte) (value >> 8);
+            data[pos + 1] = (byte) value;
+        }
+    }
+
+    private static void writeInt(byte[] data, int pos, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(data, pos, value, true);
+            writeShort(data, pos + 2, value >>> 16, true);
+        } else {
+            writeShort(data, pos, value >>> 16, false);
+            writeShort(data, pos + 2, value, false);
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package com.droidmapper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A utility class that builds a JPEG APP1 segment containing EXIF metadata entirely in memory,
+ * without touching any file. The segment can then be spliced into the JPEG data by
+ * {@link JpegSegments#writeWithExif} as the photo is being written to local storage, so that each
+ * photo is written exactly once.<br>
+ * The segment has three IFDs: IFD0 with the camera make and model, the orientation and the date,
+ * the EXIF IFD with the capture settings and the pixel dimensions and, if a location is set, the
+ * GPS IFD.<br>
+ * <b>Note:</b> This class doesn't use any Android APIs so it can be tested and benchmarked on a
+ * plain JVM. Instances of this class are not thread safe.
+ */
+public class ExifWriter {
+
+    // TIFF field types:
+    static final int TYPE_BYTE = 1, TYPE_ASCII = 2, TYPE_SHORT = 3, TYPE_LONG = 4, TYPE_RATIONAL = 5;
+    static final int TYPE_UNDEFINED = 7, TYPE_SLONG = 9, TYPE_SRATIONAL = 10, TYPE_DOUBLE = 12;
+
+    // IFD0 tags:
+    static final int TAG_IMAGE_WIDTH = 0x0100, TAG_IMAGE_LENGTH = 0x0101, TAG_MAKE = 0x010F;
+    static final int TAG_MODEL = 0x0110, TAG_ORIENTATION = 0x0112, TAG_DATETIME = 0x0132;
+    static final int TAG_EXIF_IFD = 0x8769, TAG_GPS_IFD = 0x8825;
+    // EXIF IFD tags:
+    static final int TAG_F_NUMBER = 0x829D, TAG_EXIF_VERSION = 0x9000, TAG_DATETIME_ORIGINAL = 0x9003;
+    static final int TAG_DATETIME_DIGITIZED = 0x9004, TAG_FLASH = 0x9209, TAG_FOCAL_LENGTH = 0x920A;
+    static final int TAG_MAKER_NOTE = 0x927C, TAG_PIXEL_X_DIMENSION = 0xA002;
+    static final int TAG_PIXEL_Y_DIMENSION = 0xA003, TAG_INTEROP_IFD = 0xA005, TAG_WHITE_BALANCE = 0xA403;
+    // GPS IFD tags:
+    static final int TAG_GPS_VERSION_ID = 0x0000, TAG_GPS_LATITUDE_REF = 0x0001, TAG_GPS_LATITUDE = 0x0002;
+    static final int TAG_GPS_LONGITUDE_REF = 0x0003, TAG_GPS_LONGITUDE = 0x0004, TAG_GPS_ALTITUDE_REF = 0x0005;
+    static final int TAG_GPS_ALTITUDE = 0x0006, TAG_GPS_TIMESTAMP = 0x0007, TAG_GPS_PROCESSING_METHOD = 0x001B;
+    static final int TAG_GPS_DATESTAMP = 0x001D;
+
+    // White balance values:
+    public static final int WHITE_BALANCE_AUTO = 0;
+    public static final int WHITE_BALANCE_MANUAL = 1;
+
+    // Header of the APP1 segment payload:
+    static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private final SimpleDateFormat exifDateFormat, exifGpsDateFormat;
+    private final List<Entry> ifd0, exifIfd, gpsIfd;
+
+    /**
+     * Default constructor. Creates a new, empty instance of this class.
+     */
+    public ExifWriter() {
+        ifd0 = new ArrayList<Entry>();
+        exifIfd = new ArrayList<Entry>();
+        gpsIfd = new ArrayList<Entry>();
+
+        // Date formats for exif tags, the date of the photo is in local time while the GPS date
+        // is in UTC:
+        exifDateFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.ENGLISH);
+        exifGpsDateFormat = new SimpleDateFormat("yyyy:MM:dd", Locale.ENGLISH);
+        exifGpsDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Removes all the tags set so far, so that this instance can be reused for another photo.
+     */
+    public void reset() {
+        ifd0.clear();
+        exifIfd.clear();
+        gpsIfd.clear();
+    }
+
+    /**
+     * Imports the tags the camera itself wrote into the photo, like the exposure time or the ISO
+     * speed, so that they are not lost when the photo's EXIF segment is replaced by the one built
+     * by this class. Only the tags of IFD0 and of the EXIF IFD are imported, the maker note, the
+     * thumbnail and the GPS data are skipped. Call this method before the setters, the tags they
+     * set take precedence over the imported ones.
+     *
+     * @param jpeg   Array containing the JPEG encoded photo.
+     * @param length Number of valid bytes in the array.
+     * @throws IOException If the photo or its EXIF data is corrupted.
+     */
+    public void importTags(byte[] jpeg, int length) throws IOException {
+        int segment = JpegSegments.findExifSegment(jpeg, length);
+        if (segment < 0) {
+            return;
+        }
+        int tiff = JpegSegments.tiffOffset(segment);
+        int end = segment + JpegSegments.segmentSize(jpeg, segment);
+        try {
+            boolean littleEndian = jpeg[tiff] == 'I';
+            int exifIfdOffset = importIfd(jpeg, tiff, end, littleEndian, readInt(jpeg, tiff + 4, littleEndian), ifd0);
+            if (exifIfdOffset > 0) {
+                importIfd(jpeg, tiff, end, littleEndian, exifIfdOffset, exifIfd);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted EXIF data.", e);
+        }
+    }
+
+    /**
+     * Sets the make and model of the device.
+     *
+     * @param make  Manufacturer of the device, can be <b>null</b>.
+     * @param model Model of the device, can be <b>null</b>.
+     */
+    public void setMakeAndModel(String make, String model) {
+        if (make != null) {
+            put(ifd0, TAG_MAKE, TYPE_ASCII, ascii(make));
+        }
+        if (model != null) {
+            put(ifd0, TAG_MODEL, TYPE_ASCII, ascii(model));
+        }
+    }
+
+    /**
+     * Sets the orientation of the photo.
+     *
+     * @param orientation One of the EXIF orientation values, 1(one) for a photo that is upright.
+     */
+    public void setOrientation(int orientation) {
+        put(ifd0, TAG_ORIENTATION, TYPE_SHORT, shorts(orientation));
+    }
+
+    /**
+     * Sets the date and time at which the photo was taken.
+     *
+     * @param timestamp System time at which the photo was taken.
+     */
+    public void setDateTime(long timestamp) {
+        byte[] value = ascii(exifDateFormat.format(new Date(timestamp)));
+        put(ifd0, TAG_DATETIME, TYPE_ASCII, value);
+        put(exifIfd, TAG_DATETIME_ORIGINAL, TYPE_ASCII, value);
+        put(exifIfd, TAG_DATETIME_DIGITIZED, TYPE_ASCII, value);
+    }
+
+    /**
+     * Sets the dimensions of the photo, in pixels.
+     *
+     * @param width  Width of the photo.
+     * @param height Height of the photo.
+     */
+    public void setPixelDimensions(int width, int height) {
+        put(ifd0, TAG_IMAGE_WIDTH, TYPE_LONG, longs(width));
+        put(ifd0, TAG_IMAGE_LENGTH, TYPE_LONG, longs(height));
+        put(exifIfd, TAG_PIXEL_X_DIMENSION, TYPE_LONG, longs(width));
+        put(exifIfd, TAG_PIXEL_Y_DIMENSION, TYPE_LONG, longs(height));
+    }
+
+    /**
+     * Sets the focal length of the lens.
+     *
+     * @param focalLength Focal length in millimeters.
+     */
+    public void setFocalLength(float focalLength) {
+        put(exifIfd, TAG_FOCAL_LENGTH, TYPE_RATIONAL, rationals(focalLength, 1000));
+    }
+
+    /**
+     * Sets the F number of the lens.
+     *
+     * @param fNumber The F number, for example 2.2.
+     */
+    public void setFNumber(float fNumber) {
+        put(exifIfd, TAG_F_NUMBER, TYPE_RATIONAL, rationals(fNumber, 100));
+    }
+
+    /**
+     * Sets the flash status.
+     *
+     * @param flash The EXIF flash value, 0(zero) if the flash didn't fire.
+     */
+    public void setFlash(int flash) {
+        put(exifIfd, TAG_FLASH, TYPE_SHORT, shorts(flash));
+    }
+
+    /**
+     * Sets the white balance mode.
+     *
+     * @param whiteBalance {@link #WHITE_BALANCE_AUTO} or {@link #WHITE_BALANCE_MANUAL}.
+     */
+    public void setWhiteBalance(int whiteBalance) {
+        put(exifIfd, TAG_WHITE_BALANCE, TYPE_SHORT, shorts(whiteBalance));
+    }
+
+    /**
+     * Sets the location at which the photo was taken.
+     *
+     * @param latitude         Latitude in degrees.
+     * @param longitude        Longitude in degrees.
+     * @param altitude         Altitude in meters above the sea level, or {@link Double#NaN} if
+     *                         unknown.
+     * @param fixTime          UTC time of the location fix, or 0(zero) if unknown.
+     * @param processingMethod Name of the location provider, can be <b>null</b>.
+     */
+    public void setGps(double latitude, double longitude, double altitude, long fixTime, String processingMethod) {
+        put(gpsIfd, TAG_GPS_VERSION_ID, TYPE_BYTE, new byte[]{2, 2, 0, 0});
+        put(gpsIfd, TAG_GPS_LATITUDE_REF, TYPE_ASCII, ascii(GpsUtil.latitudeRef(latitude)));
+        put(gpsIfd, TAG_GPS_LATITUDE, TYPE_RATIONAL, degreesMinutesSeconds(latitude));
+        put(gpsIfd, TAG_GPS_LONGITUDE_REF, TYPE_ASCII, ascii(GpsUtil.longitudeRef(longitude)));
+        put(gpsIfd, TAG_GPS_LONGITUDE, TYPE_RATIONAL, degreesMinutesSeconds(longitude));
+        if (!Double.isNaN(altitude)) {
+            put(gpsIfd, TAG_GPS_ALTITUDE_REF, TYPE_BYTE, new byte[]{(byte) (altitude >= 0 ? 0 : 1)});
+            put(gpsIfd, TAG_GPS_ALTITUDE, TYPE_RATIONAL, rationals(Math.abs(altitude), 100));
+        }
+        if (fixTime > 0) {
+            long secondOfDay = (fixTime / 1000L) % (24L * 60L * 60L);
+            put(gpsIfd, TAG_GPS_TIMESTAMP, TYPE_RATIONAL, rationals(new long[]{
+                    secondOfDay / 3600L, 1, (secondOfDay / 60L) % 60L, 1, secondOfDay % 60L, 1}));
+            put(gpsIfd, TAG_GPS_DATESTAMP, TYPE_ASCII, ascii(exifGpsDateFormat.format(new Date(fixTime))));
+        }
+        if (processingMethod != null) {
+            // Undefined type, prefixed with the character code:
+            byte[] method = ascii(processingMethod);
+            byte[] value = new byte[8 + method.length - 1];
+            System.arraycopy(new byte[]{'A', 'S', 'C', 'I', 'I', 0, 0, 0}, 0, value, 0, 8);
+            System.arraycopy(method, 0, value, 8, method.length - 1);
+            put(gpsIfd, TAG_GPS_PROCESSING_METHOD, TYPE_UNDEFINED, value);
+        }
+    }
+
+    /**
+     * Builds the APP1 segment from the tags set so far.
+     *
+     * @return The whole segment, starting with its 0xFFE1 marker.
+     * @throws IllegalStateException If the tags don't fit into a single segment.
+     */
+    public byte[] buildApp1Segment() {
+        // Lay out the TIFF structure: the header, then IFD0, the EXIF IFD and the GPS IFD, each
+        // followed by the values that don't fit into its entries:
+        List<Entry> ifd0Entries = new ArrayList<Entry>(ifd0);
+        put(ifd0Entries, TAG_EXIF_IFD, TYPE_LONG, longs(0));
+        if (!gpsIfd.isEmpty()) {
+            put(ifd0Entries, TAG_GPS_IFD, TYPE_LONG, longs(0));
+        }
+        List<Entry> exifEntries = new ArrayList<Entry>(exifIfd);
+        put(exifEntries, TAG_EXIF_VERSION, TYPE_UNDEFINED, new byte[]{'0', '2', '2', '0'});
+
+        int ifd0Offset = 8;
+        int exifOffset = ifd0Offset + ifdSize(ifd0Entries);
+        int gpsOffset = exifOffset + ifdSize(exifEntries);
+        int tiffSize = gpsOffset + (gpsIfd.isEmpty() ? 0 : ifdSize(gpsIfd));
+        int segmentLength = 2 + EXIF_HEADER.length + tiffSize;
+        if (segmentLength > 0xFFFF) {
+            throw new IllegalStateException("EXIF data too large: " + segmentLength);
+        }
+        put(ifd0Entries, TAG_EXIF_IFD, TYPE_LONG, longs(exifOffset));
+        if (!gpsIfd.isEmpty()) {
+            put(ifd0Entries, TAG_GPS_IFD, TYPE_LONG, longs(gpsOffset));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + segmentLength);
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write(segmentLength >> 8);
+        out.write(segmentLength & 0xFF);
+        out.write(EXIF_HEADER, 0, EXIF_HEADER.length);
+        // Big endian TIFF header:
+        out.write('M');
+        out.write('M');
+        writeShort(out, 42);
+        writeLong(out, ifd0Offset);
+        writeIfd(out, ifd0Entries, ifd0Offset);
+        writeIfd(out, exifEntries, exifOffset);
+        if (!gpsIfd.isEmpty()) {
+            writeIfd(out, gpsIfd, gpsOffset);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Adds or replaces a tag in the given IFD, keeping the IFD sorted by tag as TIFF requires.
+     */
+    static void put(List<Entry> ifd, int tag, int type, byte[] value) {
+        for (int i = 0; i < ifd.size(); i++) {
+            if (ifd.get(i).tag == tag) {
+                ifd.set(i, new Entry(tag, type, value));
+                return;
+            }
+        }
+        ifd.add(new Entry(tag, type, value));
+        Collections.sort(ifd, ENTRY_COMPARATOR);
+    }
+
+    /**
+     * Copies the entries of a single IFD into the given list, converting their values to big
+     * endian order.
+     *
+     * @return Offset of the EXIF IFD if the imported IFD points to one, 0(zero) otherwise.
+     */
+    private static int importIfd(byte[] jpeg, int tiff, int end, boolean littleEndian, int ifdOffset, List<Entry> target) throws IOException {
+        int pos = tiff + ifdOffset;
+        if (ifdOffset < 8 || pos + 2 > end) {
+            throw new IOException("Corrupted EXIF IFD offset " + ifdOffset);
+        }
+        int exifIfdOffset = 0;
+        int count = readShort(jpeg, pos, littleEndian);
+        pos += 2;
+        for (int i = 0; i < count; i++, pos += 12) {
+            if (pos + 12 > end) {
+                throw new IOException("Corrupted EXIF IFD at " + ifdOffset);
+            }
+            int tag = readShort(jpeg, pos, littleEndian);
+            int type = readShort(jpeg, pos + 2, littleEndian);
+            int valueCount = readInt(jpeg, pos + 4, littleEndian);
+            if (tag == TAG_EXIF_IFD) {
+                exifIfdOffset = readInt(jpeg, pos + 8, littleEndian);
+                continue;
+            }
+            if (tag == TAG_GPS_IFD || tag == TAG_INTEROP_IFD || tag == TAG_MAKER_NOTE || type < TYPE_BYTE
+                    || type > TYPE_DOUBLE || valueCount < 0 || contains(target, tag)) {
+                continue;
+            }
+            long size = (long) valueCount * typeSize(type);
+            int valuePos = size <= 4 ? pos + 8 : tiff + readInt(jpeg, pos + 8, littleEndian);
+            if (size > 0xFFFF || valuePos < tiff || valuePos + size > end) {
+                continue;
+            }
+            byte[] value = new byte[(int) size];
+            System.arraycopy(jpeg, valuePos, value, 0, value.length);
+            if (littleEndian) {
+                // Swap the bytes of each number, rationals are pairs of 4 byte numbers:
+                int unit = (type == TYPE_RATIONAL || type == TYPE_SRATIONAL) ? 4 : typeSize(type);
+                for (int j = 0; unit > 1 && j < value.length; j += unit) {
+                    for (int a = j, b = j + unit - 1; a < b; a++, b--) {
+                        byte tmp = value[a];
+                        value[a] = value[b];
+                        value[b] = tmp;
+                    }
+                }
+            }
+            put(target, tag, type, value);
+        }
+        return exifIfdOffset;
+    }
+
+    private static boolean contains(List<Entry> ifd, int tag) {
+        for (Entry entry : ifd) {
+            if (entry.tag == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int readShort(byte[] data, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+        }
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return readShort(data, pos, true) | (readShort(data, pos + 2, true) << 16);
+        }
+        return (readShort(data, pos, false) << 16) | readShort(data, pos + 2, false);
+    }
+
+    private static int ifdSize(List<Entry> entries) {
+        int size = 2 + 12 * entries.size() + 4;
+        for (Entry entry : entries) {
+            if (entry.value.length > 4) {
+                size += (entry.value.length + 1) & ~1;
+            }
+        }
+        return size;
+    }
+
+    private static void writeIfd(ByteArrayOutputStream out, List<Entry> entries, int offset) {
+        writeShort(out, entries.size());
+        int dataOffset = offset + 2 + 12 * entries.size() + 4;
+        for (Entry entry : entries) {
+            writeShort(out, entry.tag);
+            writeShort(out, entry.type);
+            writeLong(out, entry.count());
+            if (entry.value.length <= 4) {
+                out.write(entry.value, 0, entry.value.length);
+                for (int i = entry.value.length; i < 4; i++) {
+                    out.write(0);
+                }
+            } else {
+                writeLong(out, dataOffset);
+                dataOffset += (entry.value.length + 1) & ~1;
+            }
+        }
+        // No next IFD:
+        writeLong(out, 0);
+        for (Entry entry : entries) {
+            if (entry.value.length > 4) {
+                out.write(entry.value, 0, entry.value.length);
+                if ((entry.value.length & 1) != 0) {
+                    out.write(0);
+                }
+            }
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        out.write((int) (value >> 24) & 0xFF);
+        out.write((int) (value >> 16) & 0xFF);
+        out.write((int) (value >> 8) & 0xFF);
+        out.write((int) value & 0xFF);
+    }
+
+    private static byte[] ascii(String text) {
+        try {
+            byte[] bytes = text.getBytes("US-ASCII");
+            byte[] value = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, value, 0, bytes.length);
+            return value;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] shorts(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] longs(long value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] rationals(double value, int denominator) {
+        return rationals(new long[]{Math.round(value * denominator), denominator});
+    }
+
+    private static byte[] rationals(long[] values) {
+        byte[] out = new byte[values.length * 4];
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(longs(values[i]), 0, out, i * 4, 4);
+        }
+        return out;
+    }
+
+    private static byte[] degreesMinutesSeconds(double latOrLong) {
+        // The same conversion GpsUtil.convert() does, only as numbers:
+        latOrLong = Math.abs(latOrLong);
+        int degree = (int) latOrLong;
+        latOrLong *= 60;
+        latOrLong -= (degree * 60.0d);
+        int minute = (int) latOrLong;
+        latOrLong *= 60;
+        latOrLong -= (minute * 60.0d);
+        int second = (int) (latOrLong * 1000.0d);
+        return rationals(new long[]{degree, 1, minute, 1, second, 1000});
+    }
+
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.tag < rhs.tag ? -1 : (lhs.tag == rhs.tag ? 0 : 1);
+        }
+    };
+
+    /**
+     * A helper class that holds a single IFD entry, its value is already in big endian order.
+     */
+    static class Entry {
+
+        final int tag, type;
+        final byte[] value;
+
+        Entry(int tag, int type, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.value = value;
+        }
+
+        int count() {
+            return value.length / typeSize(type);
+        }
+    }
+
+    /**
+     * @param type A TIFF field type.
+     * @return Size in bytes of a single value of the given type.
+     */
+    static int typeSize(int type) {
+        switch (type) {
+            case TYPE_SHORT:
+            case 8:
+                return 2;
+            case TYPE_LONG:
+            case TYPE_SLONG:
+            case 11:
+                return 4;
+            case TYPE_RATIONAL:
+            case TYPE_SRATIONAL:
+            case TYPE_DOUBLE:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+}
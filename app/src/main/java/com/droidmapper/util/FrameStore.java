@@ -0,0 +1,421 @@
+package com.droidmapper.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Keeps track of the memory taken by the JPEG encoded photos travelling through the
+ * {@link CapturePipeline}. The photos are held in memory only up to a budget given in bytes, a
+ * photo that comes in while the budget is used up is written to a spool file on local storage and
+ * its memory is released. When the pipeline gets to it, the photo is read back from the spool. So a
+ * burst of photos the pipeline can't keep up with is not dropped, it only costs disk space.<br>
+ * The spool file is append-only: spilled photos are written one after the other at its end, and
+ * the file is emptied once all of them have been read back. The writes are done by a spill thread
+ * of the store's own, so the thread that admits a photo, usually the camera callback, never waits
+ * for local storage: the photo only gets its place in the spool, and keeps its data until the
+ * spill thread has written it. A photo that is read back or released before that waits for it.<br>
+ * The buffers of the photos the pipeline is done with are kept in a {@link ByteArrayPool}, and the
+ * photos read back from the spool or encoded from preview frames are put into them.<br>
+ * <b>Note:</b> This class is thread safe, the spool is written by the spill thread and read by
+ * the first stage of the pipeline, without the two waiting for each other.
+ */
+public class FrameStore {
+
+    private static final String TAG = FrameStore.class.getName();
+
+    // Number of photos that can wait for the spill thread, beyond it the thread that admits a
+    // photo waits for room:
+    private static final int SPILL_QUEUE_CAPACITY = 8;
+
+    private final ByteArrayPool pool;
+    private final File spoolFile;
+    private final long budget;
+
+    // The spool file, written at writePos and read through a second handle, each handle has its
+    // own lock:
+    private final Object writeLock, readLock;
+    private RandomAccessFile spoolOut, spoolIn;
+    private long writePos;
+    private int spooledFrameCount;
+
+    // The photos waiting to be written to the spool, and the thread writing them, started with
+    // the first spill:
+    private final BoundedQueue<CaptureJob> spillQueue;
+    private Thread spillThread;
+
+    // Statistics:
+    private long residentBytes, spooledBytes, peakResidentBytes;
+    private long totalSpilledBytes, spillCount;
+    private long totalSpillNanos, maxSpillNanos;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param budget    Number of bytes of photo data that can be held in memory.
+     * @param poolBytes Number of bytes the pool of photo buffers can keep.
+     * @param spoolFile The file the photos that don't fit into the budget are spilled into, it is
+     *                  overwritten.
+     */
+    public FrameStore(long budget, int poolBytes, File spoolFile) {
+        if (spoolFile == null) {
+            throw new NullPointerException("Spool file param can't be null.");
+        }
+        if (budget < 1L) {
+            throw new IllegalArgumentException("Param budget can't be less than 1(one).");
+        }
+        this.budget = budget;
+        this.spoolFile = spoolFile;
+        pool = new ByteArrayPool(poolBytes);
+        writeLock = new Object();
+        readLock = new Object();
+        spillQueue = new BoundedQueue<CaptureJob>(SPILL_QUEUE_CAPACITY, BoundedQueue.POLICY_BLOCK, null, null);
+    }
+
+    /**
+     * Takes the photo data of a job into account. If it doesn't fit into the budget, and spilling
+     * is allowed, the data is handed to the spill thread, which writes it to the spool and then
+     * releases it from the job. This method doesn't wait for the write.
+     *
+     * @param job        The job, with its data set.
+     * @param allowSpill Whether the data may be spilled, <b>false</b> if the job is about to be
+     *                   processed anyway.
+     */
+    public void admit(CaptureJob job, boolean allowSpill) {
+        if (job.data == null) {
+            return;
+        }
+        int length = job.dataLength;
+        synchronized (this) {
+            if (!allowSpill || residentBytes + length <= budget) {
+                addResidentHelper(length);
+                return;
+            }
+            // Over the budget, reserve the data's place at the end of the spool:
+            job.spoolOffset = writePos;
+            job.spillPending = true;
+            writePos += length;
+            spooledFrameCount++;
+            spooledBytes += length;
+            if (spillThread == null && !spillQueue.isClosed()) {
+                spillThread = new Thread(spillRunnable, "frame-spill");
+                spillThread.start();
+            }
+        }
+
+        if (!spillQueue.offer(job)) {
+            // The store has been closed:
+            finishSpillHelper(job, false, 0L);
+        }
+    }
+
+    /**
+     * A helper method, run by the spill thread, that writes the data of a job to its place in the
+     * spool.
+     *
+     * @param job The job.
+     */
+    private void spillHelper(CaptureJob job) {
+        long start = System.nanoTime();
+        boolean written = false;
+        try {
+            synchronized (writeLock) {
+                if (spoolOut == null) {
+                    spoolOut = new RandomAccessFile(spoolFile, "rw");
+                    spoolOut.setLength(0);
+                }
+                spoolOut.seek(job.spoolOffset);
+                spoolOut.write(job.data, 0, job.dataLength);
+            }
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        finishSpillHelper(job, written, System.nanoTime() - start);
+    }
+
+    /**
+     * A helper method that ends the spill of a job, releasing its data if it was written, or
+     * keeping it in memory if not, and wakes up the threads waiting for it.
+     *
+     * @param job        The job.
+     * @param written    Whether the data was written to the spool.
+     * @param spillNanos How long the write took, in nanoseconds.
+     */
+    private synchronized void finishSpillHelper(CaptureJob job, boolean written, long spillNanos) {
+        job.spillPending = false;
+        int length = job.dataLength;
+        if (!written) {
+            // Better over the budget than losing the photo:
+            Log.w(TAG, "finishSpillHelper() :: Failed to spill a photo, keeping it in memory");
+            job.spoolOffset = -1L;
+            spooledBytes -= length;
+            if (--spooledFrameCount == 0) {
+                truncateSpoolHelper();
+            }
+            addResidentHelper(length);
+        } else {
+            totalSpilledBytes += length;
+            spillCount++;
+            totalSpillNanos += spillNanos;
+            if (spillNanos > maxSpillNanos) {
+                maxSpillNanos = spillNanos;
+            }
+            job.data = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * A helper method that waits until the spill thread is done with a job.
+     *
+     * @param job The job.
+     */
+    private synchronized void awaitSpillHelper(CaptureJob job) {
+        boolean interrupted = false;
+        while (job.spillPending) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The write takes a short while, finish waiting and keep the interrupt:
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes the photo data of a job resident again, reading it back from the spool if it has been
+     * spilled.
+     *
+     * @param job The job.
+     * @return <b>true</b> if the job's data is in memory, <b>false</b> if it couldn't be read back.
+     */
+    public boolean load(CaptureJob job) {
+        awaitSpillHelper(job);
+        if (job.spoolOffset < 0L) {
+            return job.data != null;
+        }
+        int length = job.dataLength;
+        byte[] data = pool.acquire(length);
+        boolean read = false;
+        try {
+            synchronized (readLock) {
+                if (spoolIn == null) {
+                    spoolIn = new RandomAccessFile(spoolFile, "r");
+                }
+                spoolIn.seek(job.spoolOffset);
+                spoolIn.readFully(data, 0, length);
+            }
+            read = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        job.spoolOffset = -1L;
+
+        synchronized (this) {
+            spooledBytes -= length;
+            if (--spooledFrameCount == 0) {
+                // Everything has been read back, start the spool over:
+                truncateSpoolHelper();
+            }
+            if (!read) {
+                pool.release(data);
+                return false;
+            }
+            addResidentHelper(length);
+        }
+        job.data = data;
+        return true;
+    }
+
+    /**
+     * Replaces the photo data of a job, for example with a rotated version of it. The old data is
+     * released.
+     *
+     * @param job    The job.
+     * @param data   The new data.
+     * @param length Length of the new data.
+     */
+    public void replace(CaptureJob job, byte[] data, int length) {
+        release(job);
+        job.data = data;
+        job.dataLength = length;
+        synchronized (this) {
+            addResidentHelper(length);
+        }
+    }
+
+    /**
+     * Releases the photo data of a job, its buffer goes back to the pool. If the data is still
+     * spilled, it is dropped from the spool.
+     *
+     * @param job The job, whose data is no longer needed.
+     */
+    public void release(CaptureJob job) {
+        awaitSpillHelper(job);
+        if (job.data != null) {
+            synchronized (this) {
+                residentBytes -= job.dataLength;
+            }
+            pool.release(job.data);
+            job.data = null;
+        } else if (job.spoolOffset >= 0L) {
+            job.spoolOffset = -1L;
+            synchronized (this) {
+                spooledBytes -= job.dataLength;
+                if (--spooledFrameCount == 0) {
+                    truncateSpoolHelper();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a buffer for photo data from the pool.
+     *
+     * @param minLength Minimal length of the buffer.
+     * @return A buffer at least as long as requested.
+     */
+    public byte[] acquire(int minLength) {
+        return pool.acquire(minLength);
+    }
+
+    /**
+     * Stops the spill thread, closes and deletes the spool file and empties the pool.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            spillQueue.close();
+            thread = spillThread;
+        }
+        if (thread != null) {
+            // It writes the photos already handed to it first:
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        synchronized (writeLock) {
+            synchronized (readLock) {
+                closeHelper(spoolOut);
+                closeHelper(spoolIn);
+                spoolOut = null;
+                spoolIn = null;
+                spoolFile.delete();
+            }
+        }
+        pool.clear();
+    }
+
+    /**
+     * @return Number of bytes of photo data currently held in memory.
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return Number of bytes of photo data currently waiting in the spool.
+     */
+    public synchronized long getSpooledBytes() {
+        return spooledBytes;
+    }
+
+    /**
+     * @return Number of bytes of photo data spilled so far.
+     */
+    public synchronized long getTotalSpilledBytes() {
+        return totalSpilledBytes;
+    }
+
+    /**
+     * @return Average time, in milliseconds, it takes to spill a photo.
+     */
+    public synchronized float getAverageSpillLatencyMs() {
+        if (spillCount == 0) {
+            return 0F;
+        }
+        return totalSpillNanos / 1000000F / spillCount;
+    }
+
+    /**
+     * @return The longest time, in milliseconds, it took to spill a photo.
+     */
+    public synchronized float getMaxSpillLatencyMs() {
+        return maxSpillNanos / 1000000F;
+    }
+
+    /**
+     * @return A short, human readable summary of the store's statistics.
+     */
+    public synchronized String getStats() {
+        return "frames[resident " + residentBytes / 1024 + "/" + budget / 1024 + " KiB, peak " + peakResidentBytes / 1024
+                + " KiB, spooled " + spooledBytes / 1024 + " KiB, spilled " + spillCount + "/" + totalSpilledBytes / 1024
+                + " KiB, spill avg " + Math.round(getAverageSpillLatencyMs()) + " ms, max "
+                + Math.round(getMaxSpillLatencyMs()) + " ms, " + pool.getStats() + "]";
+    }
+
+    private void addResidentHelper(int length) {
+        residentBytes += length;
+        if (residentBytes > peakResidentBytes) {
+            peakResidentBytes = residentBytes;
+        }
+    }
+
+    /**
+     * Helper method that empties the spool file. Must be called while holding this instance's
+     * lock, with no photos in the spool, so nobody is writing or reading it.
+     */
+    private void truncateSpoolHelper() {
+        writePos = 0L;
+        synchronized (writeLock) {
+            if (spoolOut != null) {
+                try {
+                    spoolOut.setLength(0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * The runnable instance run by the spill thread.
+     */
+    private Runnable spillRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            while (true) {
+                CaptureJob job;
+                try {
+                    job = spillQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (job == null) {
+                    // The store has been closed:
+                    break;
+                }
+                spillHelper(job);
+            }
+        }
+    };
+
+    private static void closeHelper(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.droidmapper.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.media.MediaScannerConnection;
+import android.os.Build;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * A utility class that adds the photos saved by this app to the device gallery. Instead of
+ * MediaStore.Images.Media.insertImage(), which decodes the photo, saves a second, re-encoded copy
+ * of it and generates its thumbnails, this class registers the file that is already on local
+ * storage: it inserts a row pointing to it, with only the columns the gallery needs, into the
+ * media content provider. The rows are inserted in batches, a single applyBatch() call for several
+ * photos, and if the provider refuses them the files are handed over to the media scanner, which
+ * reads them in place.<br>
+ * Thumbnails made by the app itself can be registered together with their photo, so that the
+ * gallery doesn't have to decode the photo again to make its own.<br>
+ * <b>Note:</b> This class is not thread safe, all its methods have to be called from the same
+ * thread.
+ */
+public class GalleryIndexer {
+
+    private static final String TAG = GalleryIndexer.class.getName();
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    private final ArrayList<ContentProviderOperation> pendingOps;
+    private final ArrayList<String> pendingPaths;
+    private final ContentResolver contentResolver;
+    private final String description;
+    private final Context context;
+    private final int maxBatchSize;
+    // Index, in the current batch, of the last photo added, -1 if there is none:
+    private int lastImageOpIndex = -1;
+
+    // Statistics:
+    private long indexedCount, batchCount, scannedCount, totalBatchNanos;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param context      Context through which the media content provider is accessed.
+     * @param description  Description of the photos, shown in the gallery app.
+     * @param maxBatchSize Maximal number of photos inserted in a single batch.
+     */
+    public GalleryIndexer(Context context, String description, int maxBatchSize) {
+        if (context == null) {
+            throw new NullPointerException("Context param can't be null.");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Param maxBatchSize can't be less than 1(one).");
+        }
+        this.context = context.getApplicationContext();
+        this.contentResolver = context.getContentResolver();
+        this.description = description;
+        this.maxBatchSize = maxBatchSize;
+        pendingOps = new ArrayList<ContentProviderOperation>(maxBatchSize);
+        pendingPaths = new ArrayList<String>(maxBatchSize);
+    }
+
+    /**
+     * Adds a photo to the current batch. The batch is inserted when it is full, once the next
+     * photo comes, or when {@link #flush()} is called.
+     *
+     * @param path        Path to the photo on local storage.
+     * @param title       Title of the photo, usually its file name.
+     * @param dateTaken   System time at which the photo was taken.
+     * @param width       Width of the photo.
+     * @param height      Height of the photo.
+     * @param orientation Rotation, in degrees, the photo has to be shown with.
+     * @param latitude    Latitude at which the photo was taken, NaN if unknown.
+     * @param longitude   Longitude at which the photo was taken, NaN if unknown.
+     */
+    public void add(String path, String title, long dateTaken, int width, int height, int orientation,
+                    double latitude, double longitude) {
+        File file = new File(path);
+        long now = System.currentTimeMillis() / 1000L;
+
+        ContentValues values = new ContentValues(14);
+        values.put(MediaStore.Images.Media.DATA, path);
+        values.put(MediaStore.Images.Media.TITLE, title);
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, file.getName());
+        values.put(MediaStore.Images.Media.DESCRIPTION, description);
+        values.put(MediaStore.Images.Media.MIME_TYPE, MIME_TYPE_JPEG);
+        values.put(MediaStore.Images.Media.SIZE, file.length());
+        values.put(MediaStore.Images.Media.DATE_TAKEN, dateTaken);
+        values.put(MediaStore.Images.Media.DATE_ADDED, now);
+        values.put(MediaStore.Images.Media.DATE_MODIFIED, file.lastModified() / 1000L);
+        values.put(MediaStore.Images.Media.ORIENTATION, orientation);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // These columns don't exist on older platforms:
+            values.put(MediaStore.Images.Media.WIDTH, width);
+            values.put(MediaStore.Images.Media.HEIGHT, height);
+        }
+        if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            values.put(MediaStore.Images.Media.LATITUDE, latitude);
+            values.put(MediaStore.Images.Media.LONGITUDE, longitude);
+        }
+        if (pendingPaths.size() >= maxBatchSize) {
+            flush();
+        }
+        lastImageOpIndex = pendingOps.size();
+        pendingOps.add(ContentProviderOperation.newInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI)
+                .withValues(values).build());
+        pendingPaths.add(path);
+    }
+
+    /**
+     * Adds a thumbnail of the photo added last to the current batch. It has to be called right
+     * after {@link #add(String, String, long, int, int, int, double, double)}.
+     *
+     * @param path   Path to the thumbnail on local storage.
+     * @param kind   Kind of the thumbnail, MediaStore.Images.Thumbnails.MINI_KIND or MICRO_KIND.
+     * @param width  Width of the thumbnail.
+     * @param height Height of the thumbnail.
+     */
+    public void addThumbnail(String path, int kind, int width, int height) {
+        if (lastImageOpIndex < 0) {
+            throw new IllegalStateException("No photo to add the thumbnail to.");
+        }
+        ContentValues values = new ContentValues(4);
+        values.put(MediaStore.Images.Thumbnails.DATA, path);
+        values.put(MediaStore.Images.Thumbnails.KIND, kind);
+        values.put(MediaStore.Images.Thumbnails.WIDTH, width);
+        values.put(MediaStore.Images.Thumbnails.HEIGHT, height);
+        // The photo's id is only known once it is inserted, earlier in the same batch:
+        pendingOps.add(ContentProviderOperation.newInsert(MediaStore.Images.Thumbnails.EXTERNAL_CONTENT_URI)
+                .withValues(values).withValueBackReference(MediaStore.Images.Thumbnails.IMAGE_ID, lastImageOpIndex)
+                .build());
+    }
+
+    /**
+     * Inserts the current batch, if any.
+     */
+    public void flush() {
+        if (pendingOps.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean inserted = false;
+        try {
+            contentResolver.applyBatch(MediaStore.AUTHORITY, pendingOps);
+            inserted = true;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // The provider may reject a column, for example on an unusual platform version:
+            Log.w(TAG, "flush() :: The media provider rejected the batch", e);
+        }
+        totalBatchNanos += System.nanoTime() - start;
+        batchCount++;
+
+        if (inserted) {
+            indexedCount += pendingPaths.size();
+        } else {
+            // Let the media scanner index the files in place instead:
+            String[] paths = pendingPaths.toArray(new String[pendingPaths.size()]);
+            String[] mimeTypes = new String[paths.length];
+            for (int i = 0; i < mimeTypes.length; i++) {
+                mimeTypes[i] = MIME_TYPE_JPEG;
+            }
+            MediaScannerConnection.scanFile(context, paths, mimeTypes, null);
+            scannedCount += paths.length;
+        }
+        Log.d(TAG, "flush() :: " + getStats());
+        pendingOps.clear();
+        pendingPaths.clear();
+        lastImageOpIndex = -1;
+    }
+
+    /**
+     * @return Number of photos waiting in the current batch.
+     */
+    public int getPendingCount() {
+        return pendingPaths.size();
+    }
+
+    /**
+     * @return A short, human readable summary of the indexer's statistics.
+     */
+    public String getStats() {
+        long avgBatchMs = batchCount == 0 ? 0 : totalBatchNanos / 1000000L / batchCount;
+        return "indexed " + indexedCount + ", scanned " + scannedCount + ", batches " + batchCount + ", avg batch "
+                + avgBatchMs + " ms";
+    }
+}
@@ -0,0 +1,165 @@
+package com.droidmapper.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link UploadSink} that uploads to an HTTP server. Each upload is a PUT request to the base
+ * URL followed by the remote path, with the data as its body: with a Content-Length header if
+ * its length is known, in chunked transfer encoding otherwise. A 2xx response whose body is a
+ * decimal number of bytes the server stored completes the upload, a response without a body
+ * stands for all the bytes sent. A status of 400 or more fails the upload with an
+ * {@link UploadException} carrying that status, a dropped connection fails it with
+ * {@link UploadException#STATUS_NONE}. If a {@link TokenBucket} is given, the bodies are sent no
+ * faster than its bandwidth limit allows.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class HttpUploadSink implements UploadSink {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 60000;
+
+    private final String baseUrl;
+    private final TokenBucket bandwidthLimiter;
+
+    // Statistics:
+    private final AtomicLong uploadCount = new AtomicLong(), uploadedBytes = new AtomicLong(),
+            failureCount = new AtomicLong();
+
+    /**
+     * Default constructor. It creates an instance of this class using the base URL supplied as
+     * parameter.
+     *
+     * @param baseUrl The URL the remote paths are appended to, such as http://10.0.2.2:8080
+     */
+    public HttpUploadSink(String baseUrl) {
+        this(baseUrl, null);
+    }
+
+    /**
+     * A constructor that creates an instance of this class whose uploads keep to the bandwidth
+     * limit of the token bucket supplied as parameter.
+     *
+     * @param baseUrl          The URL the remote paths are appended to.
+     * @param bandwidthLimiter The token bucket the uploads take their tokens from, or <b>null</b>
+     *                         for no limit.
+     */
+    public HttpUploadSink(String baseUrl, TokenBucket bandwidthLimiter) {
+        if (baseUrl == null) {
+            throw new NullPointerException("BaseUrl param can't be null.");
+        }
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    @Override
+    public long upload(String remotePath, InputStream in, long length) throws UploadException {
+        return putHelper(remotePath, in, length);
+    }
+
+    @Override
+    public long upload(String remotePath, File file, ContentHasher hasher) throws FileNotFoundException,
+            UploadException {
+        InputStream in = new FileInputStream(file);
+        if (hasher != null) {
+            in = new ContentHasher.HashingInputStream(in, hasher);
+        }
+        try {
+            return putHelper(remotePath, in, file.length());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public long uploadStream(String remotePath, InputStream in, File source) throws UploadException {
+        return putHelper(remotePath, in, -1L);
+    }
+
+    @Override
+    public String getStats() {
+        return "http sink[" + baseUrl + ", " + uploadCount.get() + " files, " + uploadedBytes.get() / 1024L
+                + " KiB, " + failureCount.get() + " failures]";
+    }
+
+    /**
+     * A helper method that sends a PUT request with the stream's data as body.
+     *
+     * @param length Number of bytes in the stream, or -1 if it is unknown.
+     * @return Number of bytes the server stored.
+     */
+    private long putHelper(String remotePath, InputStream in, long length) throws UploadException {
+        HttpURLConnection connection = null;
+        int status = UploadException.STATUS_NONE;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + remotePath).openConnection();
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            if (length >= 0L && length <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) length);
+            } else {
+                connection.setChunkedStreamingMode(BUFFER_SIZE);
+            }
+            if (bandwidthLimiter != null) {
+                in = new TokenBucket.ThrottledInputStream(in, bandwidthLimiter);
+            }
+            OutputStream out = connection.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+
+            status = connection.getResponseCode();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new UploadException("Server refused " + remotePath + ": " + status + " "
+                        + connection.getResponseMessage(), status, null);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            String body;
+            try {
+                body = reader.readLine();
+            } finally {
+                reader.close();
+            }
+            if (body == null && length < 0L) {
+                throw new UploadException("No byte count in the answer to " + remotePath, status, null);
+            }
+            long stored = body == null ? length : Long.parseLong(body.trim());
+            uploadCount.incrementAndGet();
+            uploadedBytes.addAndGet(stored);
+            return stored;
+        } catch (UploadException e) {
+            failureCount.incrementAndGet();
+            throw e;
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            throw new UploadException("Failed to upload " + remotePath, status, e);
+        } catch (NumberFormatException e) {
+            failureCount.incrementAndGet();
+            throw new UploadException("Unexpected answer to " + remotePath, status, e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,1048 @@
+package com.droidmapper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A utility class that rotates JPEG encoded photos by 90, 180 or 270 degrees without decoding them
+ * to pixels. It only undoes the Huffman coding of the photo, moves the 8x8 blocks of DCT
+ * coefficients to their new places, transposes and/or flips the signs of the coefficients inside
+ * them and encodes the result again, so no image quality is lost and very little memory is used
+ * compared to decoding the photo into a Bitmap.<br>
+ * Only baseline(and extended sequential) Huffman coded JPEGs with a single scan are supported,
+ * that is what the device cameras produce. Like "jpegtran -trim", partial MCUs on the edges that
+ * would end up on the opposite side of the rotated photo are dropped, which never happens for the
+ * usual camera resolutions since they are multiples of 16.<br>
+ * <b>Note:</b> This class doesn't use any Android APIs so it can be tested and benchmarked on a
+ * plain JVM.
+ */
+public class JpegLosslessRotator {
+
+    // JPEG markers:
+    private static final int SOI = 0xD8, EOI = 0xD9, SOS = 0xDA, DQT = 0xDB, DHT = 0xC4, DRI = 0xDD;
+    private static final int SOF0 = 0xC0, SOF1 = 0xC1, RST0 = 0xD0, RST7 = 0xD7, TEM = 0x01;
+
+    // Maps the zigzag order in which coefficients are stored in the file to the natural(row by
+    // row) order:
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /**
+     * Private constructor because we want to prevent other classes from making instances of this
+     * class.
+     */
+    private JpegLosslessRotator() {
+
+    }
+
+    /**
+     * Rotates a JPEG encoded photo clockwise by the given number of degrees.
+     *
+     * @param jpeg    The JPEG encoded photo.
+     * @param degrees 90, 180 or 270. 0(zero) returns the supplied array.
+     * @return The rotated JPEG encoded photo.
+     * @throws IOException If the photo is not a JPEG this class knows how to rotate, or if it is
+     *                     corrupted.
+     */
+    public static byte[] rotate(byte[] jpeg, int degrees) throws IOException {
+        if (jpeg == null) {
+            throw new NullPointerException("JPEG param can't be null.");
+        }
+        if (degrees == 0) {
+            return jpeg;
+        }
+        if (degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Param degrees must be 0, 90, 180 or 270.");
+        }
+        try {
+            Image image = parse(jpeg);
+            image.decode();
+            return image.encode(degrees);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted JPEG data.", e);
+        }
+    }
+
+    /**
+     * Reads the markers of the JPEG up to and including its start of scan.
+     */
+    private static Image parse(byte[] jpeg) throws IOException {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != SOI) {
+            throw new IOException("Not a JPEG.");
+        }
+        Image image = new Image(jpeg);
+        int pos = 2;
+        while (true) {
+            // Find the next marker, there may be any number of 0xFF fill bytes in front of it:
+            if ((jpeg[pos] & 0xFF) != 0xFF) {
+                throw new IOException("Marker expected at " + pos);
+            }
+            while ((jpeg[pos] & 0xFF) == 0xFF) {
+                pos++;
+            }
+            int marker = jpeg[pos++] & 0xFF;
+            if (marker == EOI) {
+                throw new IOException("No scan found.");
+            }
+            if (marker == TEM || (marker >= RST0 && marker <= RST7)) {
+                continue;
+            }
+            int segStart = pos - 2;
+            int length = ((jpeg[pos] & 0xFF) << 8) | (jpeg[pos + 1] & 0xFF);
+            int dataStart = pos + 2;
+            int segEnd = pos + length;
+            if (segEnd > jpeg.length) {
+                throw new IOException("Truncated segment.");
+            }
+            switch (marker) {
+                case SOF0:
+                case SOF1:
+                    image.readFrame(jpeg, dataStart);
+                    break;
+                case DHT:
+                    image.readHuffmanTables(jpeg, dataStart, segEnd);
+                    break;
+                case DQT:
+                    image.readQuantTables(jpeg, dataStart, segEnd);
+                    break;
+                case DRI:
+                    image.restartInterval = ((jpeg[dataStart] & 0xFF) << 8) | (jpeg[dataStart + 1] & 0xFF);
+                    break;
+                case SOS:
+                    image.readScan(jpeg, dataStart);
+                    image.scanDataStart = segEnd;
+                    return image;
+                default:
+                    if (marker >= 0xC0 && marker <= 0xCF) {
+                        // Progressive, lossless, hierarchical and arithmetic coded frames:
+                        throw new IOException("Unsupported JPEG process 0x" + Integer.toHexString(marker));
+                    }
+                    // APPn and COM segments are copied over to the rotated photo as they are:
+                    image.otherSegments.write(jpeg, segStart, segEnd - segStart);
+                    break;
+            }
+            pos = segEnd;
+        }
+    }
+
+    /**
+     * A helper class that holds a parsed JPEG and its DCT coefficients.
+     */
+    private static class Image {
+
+        final ByteArrayOutputStream otherSegments = new ByteArrayOutputStream();
+        final int[][] quantTables = new int[4][];
+        final HuffmanTable[] dcTables = new HuffmanTable[4];
+        final HuffmanTable[] acTables = new HuffmanTable[4];
+        final byte[] jpeg;
+
+        Component[] components;
+        int width, height, precision, maxH, maxV, mcusX, mcusY;
+        int restartInterval, scanDataStart;
+
+        Image(byte[] jpeg) {
+            this.jpeg = jpeg;
+        }
+
+        void readFrame(byte[] d, int p) throws IOException {
+            precision = d[p] & 0xFF;
+            height = ((d[p + 1] & 0xFF) << 8) | (d[p + 2] & 0xFF);
+            width = ((d[p + 3] & 0xFF) << 8) | (d[p + 4] & 0xFF);
+            int count = d[p + 5] & 0xFF;
+            if (precision != 8) {
+                throw new IOException("Only 8 bit JPEGs are supported.");
+            }
+            if (width == 0 || height == 0 || count == 0 || count > 4) {
+                throw new IOException("Unsupported frame header.");
+            }
+            components = new Component[count];
+            p += 6;
+            for (int i = 0; i < count; i++) {
+                Component c = new Component();
+                c.id = d[p] & 0xFF;
+                c.h = (d[p + 1] & 0xFF) >> 4;
+                c.v = d[p + 1] & 0x0F;
+                c.tq = d[p + 2] & 0xFF;
+                if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4 || c.tq > 3) {
+                    throw new IOException("Unsupported component.");
+                }
+                maxH = Math.max(maxH, c.h);
+                maxV = Math.max(maxV, c.v);
+                components[i] = c;
+                p += 3;
+            }
+            mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+            mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+            for (Component c : components) {
+                if (count == 1) {
+                    // A single component scan is not interleaved, it has no padding MCUs:
+                    c.blocksX = (width * c.h / maxH + 7) / 8;
+                    c.blocksY = (height * c.v / maxV + 7) / 8;
+                } else {
+                    c.blocksX = mcusX * c.h;
+                    c.blocksY = mcusY * c.v;
+                }
+            }
+        }
+
+        void readHuffmanTables(byte[] d, int p, int end) throws IOException {
+            while (p < end) {
+                int tc = (d[p] & 0xFF) >> 4;
+                int th = d[p] & 0x0F;
+                if (tc > 1 || th > 3) {
+                    throw new IOException("Bad Huffman table.");
+                }
+                int[] bits = new int[17];
+                int total = 0;
+                for (int i = 1; i <= 16; i++) {
+                    bits[i] = d[p + i] & 0xFF;
+                    total += bits[i];
+                }
+                int[] values = new int[total];
+                for (int i = 0; i < total; i++) {
+                    values[i] = d[p + 17 + i] & 0xFF;
+                }
+                HuffmanTable table = new HuffmanTable(bits, values);
+                if (tc == 0) {
+                    dcTables[th] = table;
+                } else {
+                    acTables[th] = table;
+                }
+                p += 17 + total;
+            }
+        }
+
+        void readQuantTables(byte[] d, int p, int end) throws IOException {
+            while (p < end) {
+                int pq = (d[p] & 0xFF) >> 4;
+                int tq = d[p] & 0x0F;
+                if (tq > 3) {
+                    throw new IOException("Bad quantization table.");
+                }
+                int[] table = new int[64];
+                p++;
+                for (int i = 0; i < 64; i++) {
+                    // Stored in zigzag order, keep them in natural order:
+                    if (pq == 0) {
+                        table[ZIGZAG[i]] = d[p++] & 0xFF;
+                    } else {
+                        table[ZIGZAG[i]] = ((d[p] & 0xFF) << 8) | (d[p + 1] & 0xFF);
+                        p += 2;
+                    }
+                }
+                quantTables[tq] = table;
+            }
+        }
+
+        void readScan(byte[] d, int p) throws IOException {
+            if (components == null) {
+                throw new IOException("Scan found before the frame header.");
+            }
+            int count = d[p] & 0xFF;
+            if (count != components.length) {
+                throw new IOException("Only single scan JPEGs are supported.");
+            }
+            p++;
+            for (int i = 0; i < count; i++) {
+                int id = d[p] & 0xFF;
+                Component c = null;
+                for (Component candidate : components) {
+                    if (candidate.id == id) {
+                        c = candidate;
+                    }
+                }
+                if (c != components[i]) {
+                    throw new IOException("Unsupported scan component order.");
+                }
+                c.td = (d[p + 1] & 0xFF) >> 4;
+                c.ta = d[p + 1] & 0x0F;
+                if (c.td > 3 || c.ta > 3 || dcTables[c.td] == null || acTables[c.ta] == null) {
+                    throw new IOException("Missing Huffman table.");
+                }
+                p += 2;
+            }
+            int ss = d[p] & 0xFF, se = d[p + 1] & 0xFF, ahal = d[p + 2] & 0xFF;
+            if (ss != 0 || se != 63 || ahal != 0) {
+                throw new IOException("Unsupported scan parameters.");
+            }
+            for (Component c : components) {
+                if (quantTables[c.tq] == null) {
+                    throw new IOException("Missing quantization table.");
+                }
+            }
+        }
+
+        /**
+         * Undoes the Huffman coding of the scan and stores the coefficients of all blocks.
+         */
+        void decode() throws IOException {
+            for (Component c : components) {
+                c.allocate();
+            }
+            BitReader in = new BitReader(jpeg, scanDataStart);
+            int[] pred = new int[components.length];
+            int totalMcus = components.length == 1 ? components[0].blocksX * components[0].blocksY : mcusX * mcusY;
+            for (int mcu = 0; mcu < totalMcus; mcu++) {
+                if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                    in.restart();
+                    for (int i = 0; i < pred.length; i++) {
+                        pred[i] = 0;
+                    }
+                }
+                if (components.length == 1) {
+                    Component c = components[0];
+                    pred[0] = decodeBlock(in, c, mcu, pred[0]);
+                } else {
+                    int mx = mcu % mcusX, my = mcu / mcusX;
+                    for (int ci = 0; ci < components.length; ci++) {
+                        Component c = components[ci];
+                        for (int v = 0; v < c.v; v++) {
+                            for (int h = 0; h < c.h; h++) {
+                                int block = (my * c.v + v) * c.blocksX + mx * c.h + h;
+                                pred[ci] = decodeBlock(in, c, block, pred[ci]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        int decodeBlock(BitReader in, Component c, int block, int pred) throws IOException {
+            HuffmanTable dc = dcTables[c.td], ac = acTables[c.ta];
+            int s = dc.decode(in);
+            if (s > 11) {
+                throw new IOException("Bad DC coefficient.");
+            }
+            pred += in.receiveExtend(s);
+            c.dc[block] = (short) pred;
+            c.beginBlock(block);
+            for (int k = 1; k < 64; k++) {
+                int rs = ac.decode(in);
+                int r = rs >> 4;
+                s = rs & 0x0F;
+                if (s == 0) {
+                    if (r != 15) {
+                        break;
+                    }
+                    k += 15;
+                } else {
+                    k += r;
+                    if (k > 63) {
+                        throw new IOException("Bad AC coefficient.");
+                    }
+                    c.addCoefficient(ZIGZAG[k], in.receiveExtend(s));
+                }
+            }
+            c.endBlock(block);
+            return pred;
+        }
+
+        /**
+         * Writes the rotated JPEG.
+         */
+        byte[] encode(int degrees) throws IOException {
+            boolean transpose = degrees != 180;
+
+            // Figure out where each coefficient of a block goes and whether its sign flips:
+            int[] newIndex = new int[64];
+            boolean[] negate = new boolean[64];
+            for (int n = 0; n < 64; n++) {
+                int row = n >> 3, col = n & 7;
+                if (degrees == 90) {
+                    // Transpose, then mirror horizontally:
+                    newIndex[n] = col * 8 + row;
+                    negate[n] = (row & 1) != 0;
+                } else if (degrees == 270) {
+                    // Transpose, then mirror vertically:
+                    newIndex[n] = col * 8 + row;
+                    negate[n] = (col & 1) != 0;
+                } else {
+                    // Mirror both horizontally and vertically:
+                    newIndex[n] = n;
+                    negate[n] = ((row + col) & 1) != 0;
+                }
+            }
+
+            // Drop the partial MCUs that would end up on the other side of the photo:
+            int mcuWidth = components.length == 1 ? 8 : 8 * maxH;
+            int mcuHeight = components.length == 1 ? 8 : 8 * maxV;
+            boolean trimX = degrees == 180 || degrees == 270;
+            boolean trimY = degrees == 90 || degrees == 180;
+            int trimmedWidth = trimX ? (width / mcuWidth) * mcuWidth : width;
+            int trimmedHeight = trimY ? (height / mcuHeight) * mcuHeight : height;
+            if (trimmedWidth == 0 || trimmedHeight == 0) {
+                throw new IOException("Photo is too small to be rotated.");
+            }
+            int[] colsT = new int[components.length], rowsT = new int[components.length];
+            for (int i = 0; i < components.length; i++) {
+                Component c = components[i];
+                colsT[i] = trimX ? (components.length == 1 ? trimmedWidth / 8 : (trimmedWidth / mcuWidth) * c.h) : c.blocksX;
+                rowsT[i] = trimY ? (components.length == 1 ? trimmedHeight / 8 : (trimmedHeight / mcuHeight) * c.v) : c.blocksY;
+            }
+
+            // The geometry of the rotated photo:
+            int outWidth = transpose ? trimmedHeight : trimmedWidth;
+            int outHeight = transpose ? trimmedWidth : trimmedHeight;
+            int outMaxH = transpose ? maxV : maxH, outMaxV = transpose ? maxH : maxV;
+            int outMcusX = (outWidth + 8 * outMaxH - 1) / (8 * outMaxH);
+            int outMcusY = (outHeight + 8 * outMaxV - 1) / (8 * outMaxV);
+            int[] outH = new int[components.length], outV = new int[components.length];
+            int[] outBlocksX = new int[components.length], outBlocksY = new int[components.length];
+            for (int i = 0; i < components.length; i++) {
+                Component c = components[i];
+                outH[i] = transpose ? c.v : c.h;
+                outV[i] = transpose ? c.h : c.v;
+                if (components.length == 1) {
+                    outBlocksX[i] = (outWidth + 7) / 8;
+                    outBlocksY[i] = (outHeight + 7) / 8;
+                } else {
+                    outBlocksX[i] = outMcusX * outH[i];
+                    outBlocksY[i] = outMcusY * outV[i];
+                }
+            }
+
+            // Gather symbol statistics first, so that we can write optimal Huffman tables, then
+            // encode the blocks for real:
+            BlockEncoder encoder = new BlockEncoder(degrees, newIndex, negate, colsT, rowsT);
+            encoder.encodeScan(null, outMcusX, outMcusY, outH, outV, outBlocksX, outBlocksY);
+            encoder.buildTables();
+            BitWriter out = new BitWriter(jpeg.length);
+            encoder.encodeScan(out, outMcusX, outMcusY, outH, outV, outBlocksX, outBlocksY);
+            out.flush();
+
+            // Assemble the file:
+            ByteArrayOutputStream file = new ByteArrayOutputStream(jpeg.length + 1024);
+            file.write(0xFF);
+            file.write(SOI);
+            otherSegments.writeTo(file);
+            writeQuantTables(file, transpose);
+            writeFrame(file, outWidth, outHeight, outH, outV);
+            encoder.writeTables(file);
+            writeScanHeader(file);
+            out.writeTo(file);
+            file.write(0xFF);
+            file.write(EOI);
+            return file.toByteArray();
+        }
+
+        void writeQuantTables(ByteArrayOutputStream out, boolean transpose) {
+            for (int t = 0; t < 4; t++) {
+                int[] table = quantTables[t];
+                if (table == null) {
+                    continue;
+                }
+                boolean sixteenBit = false;
+                for (int q : table) {
+                    sixteenBit |= q > 255;
+                }
+                writeMarker(out, DQT, 1 + (sixteenBit ? 128 : 64));
+                out.write((sixteenBit ? 0x10 : 0) | t);
+                for (int i = 0; i < 64; i++) {
+                    int n = ZIGZAG[i];
+                    // Coefficients of transposed blocks need a transposed table:
+                    int q = table[transpose ? (n & 7) * 8 + (n >> 3) : n];
+                    if (sixteenBit) {
+                        out.write(q >> 8);
+                    }
+                    out.write(q & 0xFF);
+                }
+            }
+        }
+
+        void writeFrame(ByteArrayOutputStream out, int w, int h, int[] outH, int[] outV) {
+            writeMarker(out, SOF0, 6 + 3 * components.length);
+            out.write(precision);
+            out.write(h >> 8);
+            out.write(h & 0xFF);
+            out.write(w >> 8);
+            out.write(w & 0xFF);
+            out.write(components.length);
+            for (int i = 0; i < components.length; i++) {
+                out.write(components[i].id);
+                out.write((outH[i] << 4) | outV[i]);
+                out.write(components[i].tq);
+            }
+        }
+
+        void writeScanHeader(ByteArrayOutputStream out) {
+            writeMarker(out, SOS, 4 + 2 * components.length);
+            out.write(components.length);
+            for (Component c : components) {
+                out.write(c.id);
+                out.write((c.td << 4) | c.ta);
+            }
+            out.write(0);
+            out.write(63);
+            out.write(0);
+        }
+
+        /**
+         * A helper class that walks the blocks of the rotated photo in file order and encodes them.
+         */
+        private class BlockEncoder {
+
+            final int[][] dcFreq = new int[4][], acFreq = new int[4][];
+            final HuffmanEncoder[] dcEnc = new HuffmanEncoder[4], acEnc = new HuffmanEncoder[4];
+            final int[] coef = new int[64];
+            final int[] newIndex, colsT, rowsT;
+            final boolean[] negate;
+            final int degrees;
+
+            BlockEncoder(int degrees, int[] newIndex, boolean[] negate, int[] colsT, int[] rowsT) {
+                this.degrees = degrees;
+                this.newIndex = newIndex;
+                this.negate = negate;
+                this.colsT = colsT;
+                this.rowsT = rowsT;
+                for (Component c : components) {
+                    if (dcFreq[c.td] == null) {
+                        dcFreq[c.td] = new int[257];
+                    }
+                    if (acFreq[c.ta] == null) {
+                        acFreq[c.ta] = new int[257];
+                    }
+                }
+            }
+
+            void encodeScan(BitWriter out, int outMcusX, int outMcusY, int[] outH, int[] outV,
+                            int[] outBlocksX, int[] outBlocksY) {
+                int[] pred = new int[components.length];
+                if (components.length == 1) {
+                    for (int by = 0; by < outBlocksY[0]; by++) {
+                        for (int bx = 0; bx < outBlocksX[0]; bx++) {
+                            pred[0] = encodeBlock(out, 0, bx, by, pred[0]);
+                        }
+                    }
+                    return;
+                }
+                for (int my = 0; my < outMcusY; my++) {
+                    for (int mx = 0; mx < outMcusX; mx++) {
+                        for (int ci = 0; ci < components.length; ci++) {
+                            for (int v = 0; v < outV[ci]; v++) {
+                                for (int h = 0; h < outH[ci]; h++) {
+                                    pred[ci] = encodeBlock(out, ci, mx * outH[ci] + h, my * outV[ci] + v, pred[ci]);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            int encodeBlock(BitWriter out, int ci, int bx, int by, int pred) {
+                Component c = components[ci];
+
+                // Find the source block of this block of the rotated photo:
+                int sx, sy;
+                if (degrees == 90) {
+                    sx = by;
+                    sy = rowsT[ci] - 1 - bx;
+                } else if (degrees == 270) {
+                    sx = colsT[ci] - 1 - by;
+                    sy = bx;
+                } else {
+                    sx = colsT[ci] - 1 - bx;
+                    sy = rowsT[ci] - 1 - by;
+                }
+
+                // Load and transform its coefficients:
+                for (int i = 1; i < 64; i++) {
+                    coef[i] = 0;
+                }
+                int dcValue = 0;
+                if (sx >= 0 && sy >= 0 && sx < c.blocksX && sy < c.blocksY) {
+                    int block = sy * c.blocksX + sx;
+                    dcValue = c.dc[block];
+                    int start = c.acStart[block], end = start + (c.acCount[block] & 0xFF);
+                    for (int i = start; i < end; i++) {
+                        int n = c.acIndex[i];
+                        int value = c.acValue[i];
+                        coef[newIndex[n]] = negate[n] ? -value : value;
+                    }
+                }
+
+                // DC coefficient, coded as the difference from the previous block's:
+                int diff = dcValue - pred;
+                int size = bitSize(diff);
+                if (out == null) {
+                    dcFreq[c.td][size]++;
+                } else {
+                    dcEnc[c.td].write(out, size);
+                    out.writeBits(extendBits(diff, size), size);
+                }
+
+                // AC coefficients, coded as runs of zeros followed by a value:
+                int run = 0;
+                for (int k = 1; k < 64; k++) {
+                    int value = coef[ZIGZAG[k]];
+                    if (value == 0) {
+                        run++;
+                        continue;
+                    }
+                    while (run > 15) {
+                        if (out == null) {
+                            acFreq[c.ta][0xF0]++;
+                        } else {
+                            acEnc[c.ta].write(out, 0xF0);
+                        }
+                        run -= 16;
+                    }
+                    size = bitSize(value);
+                    int symbol = (run << 4) | size;
+                    if (out == null) {
+                        acFreq[c.ta][symbol]++;
+                    } else {
+                        acEnc[c.ta].write(out, symbol);
+                        out.writeBits(extendBits(value, size), size);
+                    }
+                    run = 0;
+                }
+                if (run > 0) {
+                    if (out == null) {
+                        acFreq[c.ta][0x00]++;
+                    } else {
+                        acEnc[c.ta].write(out, 0x00);
+                    }
+                }
+                return dcValue;
+            }
+
+            void buildTables() {
+                for (int t = 0; t < 4; t++) {
+                    if (dcFreq[t] != null) {
+                        dcEnc[t] = HuffmanEncoder.optimal(dcFreq[t]);
+                    }
+                    if (acFreq[t] != null) {
+                        acEnc[t] = HuffmanEncoder.optimal(acFreq[t]);
+                    }
+                }
+            }
+
+            void writeTables(ByteArrayOutputStream out) {
+                for (int t = 0; t < 4; t++) {
+                    if (dcEnc[t] != null) {
+                        dcEnc[t].writeSegment(out, t);
+                    }
+                    if (acEnc[t] != null) {
+                        acEnc[t].writeSegment(out, 0x10 | t);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A helper class that holds a single colour component and the coefficients of its blocks. The
+     * DC coefficients are stored for every block, the AC ones only when they are not zero, which
+     * for a camera photo takes only a fraction of the memory a decoded Bitmap would.
+     */
+    private static class Component {
+
+        int id, h, v, tq, td, ta, blocksX, blocksY;
+
+        short[] dc;
+        int[] acStart;
+        byte[] acCount;
+        byte[] acIndex;
+        short[] acValue;
+        int acSize;
+
+        void allocate() {
+            int blocks = blocksX * blocksY;
+            dc = new short[blocks];
+            acStart = new int[blocks];
+            acCount = new byte[blocks];
+            acIndex = new byte[blocks * 8];
+            acValue = new short[blocks * 8];
+        }
+
+        void beginBlock(int block) {
+            acStart[block] = acSize;
+        }
+
+        void addCoefficient(int naturalIndex, int value) {
+            if (acSize == acIndex.length) {
+                int grown = acIndex.length + (acIndex.length >> 1) + 64;
+                byte[] index = new byte[grown];
+                short[] values = new short[grown];
+                System.arraycopy(acIndex, 0, index, 0, acSize);
+                System.arraycopy(acValue, 0, values, 0, acSize);
+                acIndex = index;
+                acValue = values;
+            }
+            acIndex[acSize] = (byte) naturalIndex;
+            acValue[acSize] = (short) value;
+            acSize++;
+        }
+
+        void endBlock(int block) {
+            acCount[block] = (byte) (acSize - acStart[block]);
+        }
+    }
+
+    /**
+     * A helper class used to decode Huffman coded symbols.
+     */
+    private static class HuffmanTable {
+
+        // Quick lookup of codes that are up to 8 bits long, (length << 8) | value, 0(zero) if
+        // the code is longer:
+        final int[] lookup = new int[256];
+        final int[] maxCode = new int[18];
+        final int[] valPtr = new int[17];
+        final int[] minCode = new int[17];
+        final int[] values;
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.values = values;
+            int code = 0, k = 0;
+            for (int len = 1; len <= 16; len++) {
+                valPtr[len] = k;
+                minCode[len] = code;
+                for (int i = 0; i < bits[len]; i++) {
+                    if (len <= 8) {
+                        int shift = 8 - len;
+                        int base = code << shift;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            lookup[base + j] = (len << 8) | values[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[len] = bits[len] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(BitReader in) throws IOException {
+            int peek = in.peekBits(8);
+            int entry = lookup[peek];
+            if (entry != 0) {
+                in.skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = in.readBits(8);
+            for (int len = 9; len <= 16; len++) {
+                code = (code << 1) | in.readBits(1);
+                if (maxCode[len] >= 0 && code <= maxCode[len]) {
+                    return values[valPtr[len] + code - minCode[len]];
+                }
+            }
+            throw new IOException("Bad Huffman code.");
+        }
+    }
+
+    /**
+     * A helper class used to write Huffman coded symbols.
+     */
+    private static class HuffmanEncoder {
+
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+        final int[] bits;
+        final int[] values;
+
+        HuffmanEncoder(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+            int code = 0, k = 0;
+            for (int len = 1; len <= 16; len++) {
+                for (int i = 0; i < bits[len]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = len;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        void write(BitWriter out, int symbol) {
+            out.writeBits(codes[symbol], sizes[symbol]);
+        }
+
+        void writeSegment(ByteArrayOutputStream out, int tcTh) {
+            writeMarker(out, DHT, 17 + values.length);
+            out.write(tcTh);
+            for (int len = 1; len <= 16; len++) {
+                out.write(bits[len]);
+            }
+            for (int value : values) {
+                out.write(value);
+            }
+        }
+
+        /**
+         * Builds an optimal table for the given symbol frequencies, as described in section K.2
+         * of the JPEG specification.
+         *
+         * @param freq Symbol frequencies, 257 elements, the last one is reserved.
+         */
+        static HuffmanEncoder optimal(int[] freq) {
+            freq = freq.clone();
+            // Make sure that at least one symbol is coded, a table can't be empty, and reserve
+            // one code point so that no code consists of all 1 bits:
+            boolean any = false;
+            for (int i = 0; i < 256; i++) {
+                any |= freq[i] > 0;
+            }
+            if (!any) {
+                freq[0] = 1;
+            }
+            freq[256] = 1;
+
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            for (int i = 0; i < 257; i++) {
+                others[i] = -1;
+            }
+            while (true) {
+                // Find the two least frequent symbols, preferring the larger index on ties:
+                int c1 = -1, c2 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i < 257; i++) {
+                    if (freq[i] > 0 && freq[i] <= v) {
+                        v = freq[i];
+                        c1 = i;
+                    }
+                }
+                v = Long.MAX_VALUE;
+                for (int i = 0; i < 257; i++) {
+                    if (freq[i] > 0 && freq[i] <= v && i != c1) {
+                        v = freq[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] bits = new int[33];
+            for (int i = 0; i < 257; i++) {
+                if (codeSize[i] > 0) {
+                    bits[codeSize[i]]++;
+                }
+            }
+            // Limit the code lengths to 16 bits:
+            for (int i = 32; i > 16; i--) {
+                while (bits[i] > 0) {
+                    int j = i - 2;
+                    while (bits[j] == 0) {
+                        j--;
+                    }
+                    bits[i] -= 2;
+                    bits[i - 1]++;
+                    bits[j + 1] += 2;
+                    bits[j]--;
+                }
+            }
+            // Remove the reserved code point:
+            int i = 16;
+            while (bits[i] == 0) {
+                i--;
+            }
+            bits[i]--;
+
+            int count = 0;
+            for (i = 1; i <= 16; i++) {
+                count += bits[i];
+            }
+            int[] values = new int[count];
+            int k = 0;
+            for (i = 1; i <= 32; i++) {
+                for (int j = 0; j < 256; j++) {
+                    if (codeSize[j] == i) {
+                        values[k++] = j;
+                    }
+                }
+            }
+            int[] bits16 = new int[17];
+            System.arraycopy(bits, 0, bits16, 0, 17);
+            return new HuffmanEncoder(bits16, values);
+        }
+    }
+
+    /**
+     * A helper class that reads bits from the entropy coded data, skipping stuffed bytes.
+     */
+    private static class BitReader {
+
+        final byte[] data;
+        int pos, bitBuf, bitCnt;
+        boolean markerHit;
+
+        BitReader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        void fill() {
+            while (bitCnt <= 24) {
+                int b = 0;
+                if (!markerHit && pos < data.length) {
+                    b = data[pos] & 0xFF;
+                    if (b == 0xFF) {
+                        int next = pos + 1 < data.length ? data[pos + 1] & 0xFF : 0;
+                        if (next == 0) {
+                            pos += 2;
+                        } else {
+                            // A marker, stop reading, the decoder will get zeros from now on:
+                            markerHit = true;
+                            b = 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+                bitBuf |= b << (24 - bitCnt);
+                bitCnt += 8;
+            }
+        }
+
+        int peekBits(int n) {
+            if (bitCnt < n) {
+                fill();
+            }
+            return bitBuf >>> (32 - n);
+        }
+
+        void skipBits(int n) {
+            bitBuf <<= n;
+            bitCnt -= n;
+        }
+
+        int readBits(int n) {
+            if (n == 0) {
+                return 0;
+            }
+            int value = peekBits(n);
+            skipBits(n);
+            return value;
+        }
+
+        int receiveExtend(int s) {
+            if (s == 0) {
+                return 0;
+            }
+            int value = readBits(s);
+            return value < (1 << (s - 1)) ? value - (1 << s) + 1 : value;
+        }
+
+        void restart() throws IOException {
+            // Forget the buffered bits and step over the restart marker:
+            bitBuf = 0;
+            bitCnt = 0;
+            markerHit = false;
+            while (pos < data.length && (data[pos] & 0xFF) != 0xFF) {
+                pos++;
+            }
+            while (pos < data.length && (data[pos] & 0xFF) == 0xFF) {
+                pos++;
+            }
+            if (pos >= data.length) {
+                throw new IOException("Restart marker expected.");
+            }
+            int marker = data[pos] & 0xFF;
+            if (marker < RST0 || marker > RST7) {
+                throw new IOException("Restart marker expected.");
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * A helper class that writes bits to the entropy coded data, stuffing 0xFF bytes.
+     */
+    private static class BitWriter {
+
+        byte[] buf;
+        int size, bitBuf, bitCnt;
+
+        BitWriter(int capacity) {
+            buf = new byte[Math.max(capacity, 1024)];
+        }
+
+        void writeBits(int value, int n) {
+            if (n == 0) {
+                return;
+            }
+            bitBuf = (bitBuf << n) | (value & ((1 << n) - 1));
+            bitCnt += n;
+            while (bitCnt >= 8) {
+                int b = (bitBuf >> (bitCnt - 8)) & 0xFF;
+                writeByte(b);
+                if (b == 0xFF) {
+                    writeByte(0);
+                }
+                bitCnt -= 8;
+            }
+        }
+
+        void flush() {
+            if (bitCnt > 0) {
+                // Pad the last byte with 1 bits:
+                writeBits(0x7F, 8 - bitCnt);
+            }
+        }
+
+        void writeByte(int b) {
+            if (size == buf.length) {
+                byte[] grown = new byte[buf.length + (buf.length >> 1)];
+                System.arraycopy(buf, 0, grown, 0, size);
+                buf = grown;
+            }
+            buf[size++] = (byte) b;
+        }
+
+        void writeTo(ByteArrayOutputStream out) {
+            out.write(buf, 0, size);
+        }
+    }
+
+    private static void writeMarker(ByteArrayOutputStream out, int marker, int payloadLength) {
+        out.write(0xFF);
+        out.write(marker);
+        int length = payloadLength + 2;
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+    }
+
+    private static int bitSize(int value) {
+        if (value < 0) {
+            value = -value;
+        }
+        int size = 0;
+        while (value != 0) {
+            size++;
+            value >>= 1;
+        }
+        return size;
+    }
+
+    private static int extendBits(int value, int size) {
+        return value < 0 ? value + (1 << size) - 1 : value;
+    }
+}
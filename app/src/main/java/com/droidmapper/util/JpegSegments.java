@@ -0,0 +1,217 @@
+package com.droidmapper.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A utility class that walks the marker segments at the start of a JPEG encoded photo. It is used
+ * to find the EXIF APP1 segment of a photo and to replace it with a new one while the photo is
+ * being written, without decoding or copying the photo data.<br>
+ * <b>Note:</b> This class doesn't use any Android APIs so it can be tested and benchmarked on a
+ * plain JVM.
+ */
+public class JpegSegments {
+
+    // JPEG markers:
+    private static final int SOI = 0xD8, SOS = 0xDA, APP1 = 0xE1, TEM = 0x01, RST0 = 0xD0, RST7 = 0xD7;
+
+    /**
+     * Private constructor because we want to prevent other classes from making instances of this
+     * class.
+     */
+    private JpegSegments() {
+
+    }
+
+    /**
+     * Finds the EXIF APP1 segment of a JPEG encoded photo.
+     *
+     * @param jpeg   Array containing the JPEG encoded photo.
+     * @param length Number of valid bytes in the array.
+     * @return Offset of the segment's 0xFF marker byte, or -1 if the photo has no EXIF segment.
+     * @throws IOException If the data isn't a JPEG or its segments are corrupted.
+     */
+    public static int findExifSegment(byte[] jpeg, int length) throws IOException {
+        int pos = 2;
+        checkSoi(jpeg, length);
+        while (true) {
+            int marker = markerAt(jpeg, length, pos);
+            if (marker == SOS) {
+                return -1;
+            }
+            if (marker == APP1 && isExif(jpeg, length, pos)) {
+                return pos;
+            }
+            pos = nextSegment(jpeg, length, pos, marker);
+        }
+    }
+
+    /**
+     * @param jpeg          Array containing the JPEG encoded photo.
+     * @param segmentOffset Offset of the segment's 0xFF marker byte.
+     * @return Total size of the segment in bytes, including its marker.
+     */
+    public static int segmentSize(byte[] jpeg, int segmentOffset) {
+        return 2 + (((jpeg[segmentOffset + 2] & 0xFF) << 8) | (jpeg[segmentOffset + 3] & 0xFF));
+    }
+
+    /**
+     * @param segmentOffset Offset of an EXIF APP1 segment's 0xFF marker byte.
+     * @return Offset of the TIFF header inside the segment.
+     */
+    public static int tiffOffset(int segmentOffset) {
+        return segmentOffset + 4 + ExifWriter.EXIF_HEADER.length;
+    }
+
+    /**
+     * Writes a JPEG encoded photo to a stream, replacing its EXIF segment with the supplied one.
+     * The new segment is written right after the start of image marker, as the EXIF standard
+     * requires, the existing EXIF segments are dropped and everything else is copied untouched.
+     * The photo data is written with as few calls as possible, so the stream doesn't need to be
+     * buffered.
+     *
+     * @param jpeg   Array containing the JPEG encoded photo.
+     * @param length Number of valid bytes in the array.
+     * @param app1   The new APP1 segment, including its marker, as built by
+     *               {@link ExifWriter#buildApp1Segment()}.
+     * @param out    The stream to write to.
+     * @throws IOException If the data isn't a JPEG, its segments are corrupted or the stream
+     *                     fails.
+     */
+    public static void writeWithExif(byte[] jpeg, int length, byte[] app1, OutputStream out) throws IOException {
+        checkSoi(jpeg, length);
+        out.write(jpeg, 0, 2);
+        out.write(app1);
+
+        // Copy the segments up to the start of scan, skipping the old EXIF data. Consecutive kept
+        // segments are written in a single call:
+        int pos = 2;
+        int runStart = pos;
+        while (true) {
+            int marker = markerAt(jpeg, length, pos);
+            if (marker == SOS) {
+                break;
+            }
+            int next = nextSegment(jpeg, length, pos, marker);
+            if (marker == APP1 && isExif(jpeg, length, pos)) {
+                if (pos > runStart) {
+                    out.write(jpeg, runStart, pos - runStart);
+                }
+                runStart = next;
+            }
+            pos = next;
+        }
+
+        // The rest of the photo, starting with the start of scan, is copied as it is:
+        out.write(jpeg, runStart, length - runStart);
+    }
+
+    private static void checkSoi(byte[] jpeg, int length) throws IOException {
+        if (length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != SOI) {
+            throw new IOException("Not a JPEG.");
+        }
+    }
+
+    private static int markerAt(byte[] jpeg, int length, int pos) throws IOException {
+        if (pos + 1 >= length || (jpeg[pos] & 0xFF) != 0xFF) {
+            throw new IOException("Corrupted JPEG segments at " + pos);
+        }
+        return jpeg[pos + 1] & 0xFF;
+    }
+
+    private static int segmentLength(byte[] jpeg, int length, int pos) throws IOException {
+        if (pos + 3 >= length) {
+            throw new IOException("Corrupted JPEG segments at " + pos);
+        }
+        int segmentLength = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+        if (segmentLength < 2 || pos + 2 + segmentLength > length) {
+            throw new IOException("Corrupted JPEG segment length at " + pos);
+        }
+        return segmentLength;
+    }
+
+    private static int nextSegment(byte[] jpeg, int length, int pos, int marker) throws IOException {
+        if (marker == 0xFF) {
+            // A fill byte:
+            return pos + 1;
+        }
+        if (marker == TEM || (marker >= RST0 && marker <= RST7)) {
+            // A marker without a payload:
+            return pos + 2;
+        }
+        return pos + 2 + segmentLength(jpeg, length, pos);
+    }
+
+    private static boolean isExif(byte[] jpeg, int length, int pos) {
+        byte[] header = ExifWriter.EXIF_HEADER;
+        if (pos + 4 + header.length > length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (jpeg[pos + 4 + i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A stream that inserts an EXIF segment into a JPEG encoded photo while the photo is being
+     * written through it, right after the start of image marker, so a freshly encoded photo can be
+     * tagged without holding it in memory. The photo must not have an EXIF segment of its own, as
+     * is the case with the photos encoded by Bitmap.compress().
+     */
+    public static class ExifInsertingStream extends FilterOutputStream {
+
+        private final byte[] app1;
+        // Number of bytes of the start of image marker seen so far:
+        private int soiCount;
+
+        /**
+         * Default constructor. It creates an instance of this class using the parameters supplied.
+         *
+         * @param out  The stream the tagged photo is written to.
+         * @param app1 The APP1 segment to insert, including its marker, as built by
+         *             {@link ExifWriter#buildApp1Segment()}.
+         */
+        public ExifInsertingStream(OutputStream out, byte[] app1) {
+            super(out);
+            if (app1 == null) {
+                throw new NullPointerException("APP1 param can't be null.");
+            }
+            this.app1 = app1;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (soiCount < 2) {
+                checkSoiByte(b & 0xFF);
+                out.write(b);
+                if (++soiCount == 2) {
+                    out.write(app1);
+                }
+                return;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // Byte by byte only until the segment is in, then in bulk:
+            while (soiCount < 2 && len > 0) {
+                write(b[off++]);
+                len--;
+            }
+            if (len > 0) {
+                out.write(b, off, len);
+            }
+        }
+
+        private void checkSoiByte(int b) throws IOException {
+            if ((soiCount == 0 && b != 0xFF) || (soiCount == 1 && b != SOI)) {
+                throw new IOException("Not a JPEG.");
+            }
+        }
+    }
+}
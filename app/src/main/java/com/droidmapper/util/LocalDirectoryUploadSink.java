@@ -0,0 +1,134 @@
+package com.droidmapper.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link UploadSink} that stores the uploads in a directory on local storage, under their
+ * remote paths. An upload is written to a temp file first and renamed once complete, so the
+ * directory never holds a partial upload. It is useful to run the app without a network, and to
+ * measure the uploader without one.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class LocalDirectoryUploadSink implements UploadSink {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final AtomicLong tempCounter = new AtomicLong();
+
+    // Statistics:
+    private final AtomicLong uploadCount = new AtomicLong(), uploadedBytes = new AtomicLong();
+
+    /**
+     * Default constructor. It creates an instance of this class using the directory supplied as
+     * parameter, the directory is created if needed.
+     *
+     * @param dir The directory the uploads are stored in.
+     */
+    public LocalDirectoryUploadSink(File dir) {
+        if (dir == null) {
+            throw new NullPointerException("Dir param can't be null.");
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        this.dir = dir;
+    }
+
+    @Override
+    public long upload(String remotePath, InputStream in, long length) throws UploadException {
+        return storeHelper(remotePath, in, length);
+    }
+
+    @Override
+    public long upload(String remotePath, File file, ContentHasher hasher) throws FileNotFoundException,
+            UploadException {
+        InputStream in = new FileInputStream(file);
+        if (hasher != null) {
+            in = new ContentHasher.HashingInputStream(in, hasher);
+        }
+        try {
+            return storeHelper(remotePath, in, file.length());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public long uploadStream(String remotePath, InputStream in, File source) throws UploadException {
+        return storeHelper(remotePath, in, -1L);
+    }
+
+    @Override
+    public String getStats() {
+        return "local sink[" + dir.getName() + ", " + uploadCount.get() + " files, " + uploadedBytes.get() / 1024L
+                + " KiB]";
+    }
+
+    /**
+     * A helper method that copies a stream to the file of the given remote path. The file is only
+     * replaced once the whole stream has been stored, a stream that turns out shorter or longer
+     * than expected leaves it as it was.
+     *
+     * @param length Number of bytes the stream should hold, or -1 if it is unknown.
+     * @return Number of bytes stored.
+     */
+    private long storeHelper(String remotePath, InputStream in, long length) throws UploadException {
+        File target = new File(dir, remotePath);
+        File parent = target.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = new File(parent, "." + target.getName() + "." + tempCounter.incrementAndGet() + ".tmp");
+        long stored = 0L;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+                stored += read;
+            }
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (length >= 0L && stored != length) {
+                temp.delete();
+                throw new UploadException("Expected " + length + " bytes of " + remotePath + " but got " + stored, null);
+            }
+            if (!temp.renameTo(target)) {
+                // Some file systems don't replace an existing file:
+                target.delete();
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Can't rename " + temp + " to " + target);
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new UploadException("Failed to store " + remotePath, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                temp.delete();
+            }
+        }
+        uploadCount.incrementAndGet();
+        uploadedBytes.addAndGet(stored);
+        return stored;
+    }
+}
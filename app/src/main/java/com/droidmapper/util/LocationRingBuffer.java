@@ -0,0 +1,171 @@
+package com.droidmapper.util;
+
+import android.location.Location;
+
+/**
+ * A fixed-capacity buffer of the most recent location fixes, used to find out where the device
+ * was at the exact moment a photo was taken. The fixes are kept in primitive arrays, so adding a
+ * fix and looking a position up never allocate memory.<br>
+ * A position is looked up by time, it is interpolated between the two fixes around that time or,
+ * if the time is after the latest fix, extrapolated from the latest fix's speed and bearing.<br>
+ * <b>Note:</b> This class is thread safe. Adding a fix and looking a position up hold the
+ * buffer's lock only for a few array reads and writes, so the location listener and the capture
+ * threads barely wait on each other.
+ */
+public class LocationRingBuffer {
+
+    // Indexes of the values in the array filled by lookup():
+    public static final int OUT_LATITUDE = 0;
+    public static final int OUT_LONGITUDE = 1;
+    public static final int OUT_ALTITUDE = 2;
+    public static final int OUT_SPEED = 3;
+    public static final int OUT_BEARING = 4;
+    public static final int OUT_ACCURACY = 5;
+    public static final int OUT_SIZE = 6;
+
+    // Positions are not extrapolated further than this, in milliseconds, past the latest fix:
+    private static final long MAX_EXTRAPOLATION = 5000L;
+    // Meters per degree of latitude:
+    private static final double METERS_PER_DEGREE = 6371000.0d * Math.PI / 180.0d;
+
+    // The fixes, NaN marks a value the fix doesn't have:
+    private final long[] times;
+    private final double[] latitudes, longitudes, altitudes;
+    private final float[] speeds, bearings, accuracies;
+    private final int capacity;
+
+    // Number of fixes added so far, the latest one is at (count - 1) % capacity:
+    private long count;
+
+    /**
+     * Default constructor. It creates an instance of this class using the capacity supplied as
+     * parameter.
+     *
+     * @param capacity Maximal number of fixes kept, the oldest fixes are overwritten.
+     */
+    public LocationRingBuffer(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Param capacity can't be less than 2(two).");
+        }
+        this.capacity = capacity;
+        times = new long[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        altitudes = new double[capacity];
+        speeds = new float[capacity];
+        bearings = new float[capacity];
+        accuracies = new float[capacity];
+    }
+
+    /**
+     * Adds a new fix to the buffer, overwriting the oldest one if the buffer is full. Fixes older
+     * than the latest one are ignored.
+     *
+     * @param location The new fix.
+     */
+    public synchronized void add(Location location) {
+        if (location == null) {
+            return;
+        }
+        long time = location.getTime();
+        long n = count;
+        if (n > 0 && time <= times[(int) ((n - 1) % capacity)]) {
+            return;
+        }
+
+        int i = (int) (n % capacity);
+        times[i] = time;
+        latitudes[i] = location.getLatitude();
+        longitudes[i] = location.getLongitude();
+        altitudes[i] = location.hasAltitude() ? location.getAltitude() : Double.NaN;
+        speeds[i] = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+        bearings[i] = location.hasBearing() ? location.getBearing() : Float.NaN;
+        accuracies[i] = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+        count = n + 1;
+    }
+
+    /**
+     * Looks up the position of the device at the given time.
+     *
+     * @param time UTC time, in milliseconds since January 1, 1970, the same time base as
+     *             Location.getTime().
+     * @param out  Array of at least {@link #OUT_SIZE} elements that receives the position, indexed
+     *             by the OUT_* constants. Values that are not known are set to NaN.
+     * @return <b>true</b> if the position was found, <b>false</b> if the buffer is empty.
+     */
+    public synchronized boolean lookup(long time, double[] out) {
+        long n = count;
+        if (n == 0) {
+            return false;
+        }
+        long oldest = Math.max(0L, n - capacity);
+
+        // Find the latest fix that is not after the given time:
+        long k = n - 1;
+        while (k > oldest && times[(int) (k % capacity)] > time) {
+            k--;
+        }
+        int a = (int) (k % capacity);
+        long timeA = times[a];
+        double lat, lon, alt, speed, bearing, accuracy;
+        if (k < n - 1 && timeA <= time) {
+            // Interpolate between the two fixes around the time:
+            int b = (int) ((k + 1) % capacity);
+            double f = (double) (time - timeA) / (times[b] - timeA);
+            lat = latitudes[a] + (latitudes[b] - latitudes[a]) * f;
+            lon = longitudes[a] + (longitudes[b] - longitudes[a]) * f;
+            alt = altitudes[a] + (altitudes[b] - altitudes[a]) * f;
+            speed = speeds[a] + (speeds[b] - speeds[a]) * f;
+            bearing = interpolateBearing(bearings[a], bearings[b], f);
+            accuracy = Math.max(accuracies[a], accuracies[b]);
+        } else {
+            lat = latitudes[a];
+            lon = longitudes[a];
+            alt = altitudes[a];
+            speed = speeds[a];
+            bearing = bearings[a];
+            accuracy = accuracies[a];
+            if (timeA < time && !Double.isNaN(speed) && !Double.isNaN(bearing)) {
+                // The time is after the latest fix, extrapolate from its velocity:
+                double travelled = speed * Math.min(time - timeA, MAX_EXTRAPOLATION) / 1000.0d;
+                double rad = Math.toRadians(bearing);
+                lon += travelled * Math.sin(rad) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+                lat += travelled * Math.cos(rad) / METERS_PER_DEGREE;
+            }
+        }
+
+        out[OUT_LATITUDE] = lat;
+        out[OUT_LONGITUDE] = lon;
+        out[OUT_ALTITUDE] = alt;
+        out[OUT_SPEED] = speed;
+        out[OUT_BEARING] = bearing;
+        out[OUT_ACCURACY] = accuracy;
+        return true;
+    }
+
+    /**
+     * @return Number of fixes currently in the buffer.
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /**
+     * Interpolates between two bearings along the shorter arc.
+     */
+    private static double interpolateBearing(float a, float b, double f) {
+        double delta = b - a;
+        if (delta > 180.0d) {
+            delta -= 360.0d;
+        } else if (delta < -180.0d) {
+            delta += 360.0d;
+        }
+        double bearing = a + delta * f;
+        if (bearing < 0.0d) {
+            bearing += 360.0d;
+        } else if (bearing >= 360.0d) {
+            bearing -= 360.0d;
+        }
+        return bearing;
+    }
+}
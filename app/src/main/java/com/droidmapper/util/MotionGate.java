@@ -0,0 +1,206 @@
+package com.droidmapper.util;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A utility class that thins out the photos taken in time interval mode while the device stands
+ * still, so that hours spent parked don't fill the storage and the upload quota with the same
+ * photo. It tells, at every deadline of the capture timeline, whether the shot should be taken.
+ * <br>
+ * The device is considered to be standing still once the speed of the location fixes has stayed
+ * low, and the accelerometer has stayed calm, for a while. While it stands still a shot is taken
+ * only every so often, or never. As soon as either the speed or the accelerometer says the device
+ * is moving again, the next deadline takes its shot, so full rate resumes within one interval;
+ * the accelerometer usually notices the start before the location fixes do.<br>
+ * If there is no recent location fix, the device is considered to be moving, a lost fix must not
+ * cost any photos.<br>
+ * <b>Note:</b> All methods of this class have to be called from the GUI thread, the thread on
+ * which the sensor and location callbacks are delivered.
+ */
+public class MotionGate implements SensorEventListener {
+
+    private static final String TAG = MotionGate.class.getName();
+
+    // Speeds, in meters per second, above which the device is moving and below which it stands
+    // still, the gap keeps the noise of the fixes from flipping the state:
+    private static final float MOVING_SPEED = 1.0F;
+    private static final float STATIONARY_SPEED = 0.5F;
+    // Average acceleration, without gravity, in meters per second squared, above which the device
+    // is moving whatever the speed says, an idling engine stays well below it:
+    private static final float MOTION_THRESHOLD = 0.6F;
+    // Weights of the newest sample in the gravity estimate and in the motion average:
+    private static final float GRAVITY_ALPHA = 0.2F;
+    private static final float MOTION_ALPHA = 0.3F;
+    // A fix older than this, in milliseconds, says nothing about the speed any more:
+    private static final long MAX_FIX_AGE_MS = 10000L;
+    // The device has to stand still this long, in milliseconds, before the photos are thinned out:
+    private static final long SETTLE_MS = 15000L;
+
+    private final long stationaryIntervalMs;
+
+    private boolean stationary;
+    private long stillSince = -1L, stationarySince, lastShotAt = -1L;
+
+    // Latest fix, its speed and the time it arrived:
+    private Location lastFix;
+    private float speed;
+    private long fixAt = -1L;
+
+    // Gravity estimate and average acceleration without it:
+    private final float[] gravity = new float[3];
+    private boolean hasGravity;
+    private float motion;
+
+    // Statistics:
+    private long allowedCount, stationaryShotCount, gatedCount, stationaryPeriodCount, stationaryMs;
+
+    /**
+     * Default constructor. It creates an instance of this class using the interval supplied as
+     * parameter.
+     *
+     * @param stationaryIntervalMs Time, in milliseconds, between two shots while the device stands
+     *                             still, or 0(zero) to take none.
+     */
+    public MotionGate(long stationaryIntervalMs) {
+        if (stationaryIntervalMs < 0L) {
+            throw new IllegalArgumentException("Param stationaryIntervalMs can't be less than 0(zero).");
+        }
+        this.stationaryIntervalMs = stationaryIntervalMs;
+    }
+
+    /**
+     * Feeds a new location fix to the gate. If the fix has no speed it is computed from the
+     * distance to the previous fix.
+     *
+     * @param location The new location fix.
+     */
+    public void onLocationChanged(Location location) {
+        long now = SystemClock.elapsedRealtime();
+        if (location.hasSpeed()) {
+            speed = location.getSpeed();
+        } else if (lastFix != null && now - fixAt <= MAX_FIX_AGE_MS && now > fixAt) {
+            speed = lastFix.distanceTo(location) * 1000F / (now - fixAt);
+        } else {
+            // Can't tell yet, assume the worst:
+            speed = MOVING_SPEED;
+        }
+        lastFix = location;
+        fixAt = now;
+    }
+
+    /**
+     * Feeds an accelerometer sample to the gate. Gravity is separated from the samples by a low
+     * pass filter, what remains is the acceleration of the device itself.
+     *
+     * @param event The accelerometer sample.
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float[] values = event.values;
+        if (!hasGravity) {
+            gravity[0] = values[0];
+            gravity[1] = values[1];
+            gravity[2] = values[2];
+            hasGravity = true;
+            return;
+        }
+        float sum = 0F;
+        for (int i = 0; i < 3; i++) {
+            gravity[i] += (values[i] - gravity[i]) * GRAVITY_ALPHA;
+            float linear = values[i] - gravity[i];
+            sum += linear * linear;
+        }
+        motion += ((float) Math.sqrt(sum) - motion) * MOTION_ALPHA;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // Do nothing
+    }
+
+    /**
+     * Decides whether the shot that is due should be taken. It has to be called at every
+     * deadline, whether the previous shot was taken or not.
+     *
+     * @return <b>true</b> if the shot should be taken, <b>false</b> if it is saved because the
+     * device stands still.
+     */
+    public boolean shouldCapture() {
+        long now = SystemClock.elapsedRealtime();
+        updateStateHelper(now);
+        if (!stationary) {
+            allowedCount++;
+            lastShotAt = now;
+            return true;
+        }
+        if (stationaryIntervalMs > 0L && (lastShotAt < 0L || now - lastShotAt >= stationaryIntervalMs)) {
+            allowedCount++;
+            stationaryShotCount++;
+            lastShotAt = now;
+            return true;
+        }
+        gatedCount++;
+        return false;
+    }
+
+    /**
+     * @return <b>true</b> if the device is currently considered to be standing still.
+     */
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    /**
+     * @return Number of shots saved so far because the device stood still.
+     */
+    public long getGatedCount() {
+        return gatedCount;
+    }
+
+    /**
+     * @return A short, human readable summary of the gate's statistics.
+     */
+    public String getStats() {
+        long stillMs = stationaryMs + (stationary ? SystemClock.elapsedRealtime() - stationarySince : 0L);
+        return "motion gate[" + (stationary ? "stationary" : "moving") + ", taken " + allowedCount + " ("
+                + stationaryShotCount + " while still), saved " + gatedCount + ", still " + stationaryPeriodCount
+                + " times for " + stillMs / 1000L + " s]";
+    }
+
+    /**
+     * A helper method that moves the gate between moving and standing still, from the latest fix
+     * and accelerometer samples.
+     *
+     * @param now The current elapsed real time.
+     */
+    private void updateStateHelper(long now) {
+        boolean speedKnown = fixAt >= 0L && now - fixAt <= MAX_FIX_AGE_MS;
+        boolean moving = !speedKnown || speed >= MOVING_SPEED || motion >= MOTION_THRESHOLD;
+        if (moving) {
+            if (stationary) {
+                stationary = false;
+                stationaryMs += now - stationarySince;
+                Log.d(TAG, "updateStateHelper() :: Moving again, speed " + speed + " m/s, motion " + motion);
+            }
+            stillSince = -1L;
+        } else if (speed < STATIONARY_SPEED) {
+            if (stillSince < 0L) {
+                stillSince = now;
+            }
+            if (!stationary && now - stillSince >= SETTLE_MS) {
+                stationary = true;
+                stationarySince = now;
+                stationaryPeriodCount++;
+                Log.d(TAG, "updateStateHelper() :: Standing still, " + getStats());
+            }
+        } else if (!stationary) {
+            // Slow, but not slow enough, start waiting again:
+            stillSince = -1L;
+        }
+    }
+}
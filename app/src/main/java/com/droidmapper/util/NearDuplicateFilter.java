@@ -0,0 +1,187 @@
+package com.droidmapper.util;
+
+/**
+ * Recognises the photos that show nearly the same thing as the last photo kept, such as the
+ * frames taken while the vehicle waits at a traffic light, which differ only by sensor noise, so
+ * they can be dropped before they are encoded, saved and uploaded.<br>
+ * Each photo is reduced to a 64 bit difference hash(dHash): its brightness is averaged over a grid
+ * of 9x8 cells, and each bit tells whether a cell is brighter than the cell to its right. Only a
+ * difference of a few levels sets a bit, so in the flat parts of a photo, the sky or the road,
+ * where neighbouring cells are about as bright, the sensor noise doesn't flip bits back and forth.
+ * Small changes of exposure barely change the hash either, while anything that moves across the
+ * photo flips many bits. A photo is a near duplicate if its hash differs from the hash of the last
+ * photo kept in at most the given number of bits, its Hamming distance. The hash reads only a few
+ * pixels of each cell, 1152 in all, so it takes a few microseconds, whatever the size of the
+ * photo, and the caller only has to read those pixels, see {@link #hashArgbSamples(int[])}.<br>
+ * However alike the photos are, one is kept every so often, so a long stop still leaves a trace.
+ * The photos have to be checked in the order they were taken, a photo taken before the last photo
+ * kept is always kept.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class NearDuplicateFilter {
+
+    // Size of the grid the photo is reduced to, one column more than there are bits in a row:
+    private static final int GRID_COLUMNS = 9;
+    private static final int GRID_ROWS = 8;
+    // Number of pixels read along each side of a cell:
+    private static final int CELL_SAMPLES = 4;
+    // A cell has to be brighter than the cell to its right by at least this many levels, on
+    // average, for its bit to be set:
+    private static final int MIN_CONTRAST = 4;
+    // The same, for the sums of the cells' samples:
+    private static final int MIN_CELL_CONTRAST = MIN_CONTRAST * CELL_SAMPLES * CELL_SAMPLES;
+
+    // Size of the grid of pixels the hash is computed from:
+    public static final int SAMPLE_COLUMNS = GRID_COLUMNS * CELL_SAMPLES;
+    public static final int SAMPLE_ROWS = GRID_ROWS * CELL_SAMPLES;
+
+    private final int maxDistance;
+    private final long maxKeepIntervalMs;
+
+    private boolean hasLastKept;
+    private long lastKeptHash, lastKeptTimestamp;
+
+    // Statistics:
+    private long keptCount, droppedCount, totalDistance;
+
+    /**
+     * Default constructor. It creates an instance of this class using the limits supplied as
+     * parameters.
+     *
+     * @param maxDistance       Most bits in which a photo's hash may differ from the last kept
+     *                          one's for the photo to be a near duplicate, 0(zero) drops only
+     *                          photos with the very same hash.
+     * @param maxKeepIntervalMs A photo is kept, however alike it is, if the last photo kept was
+     *                          taken at least this many milliseconds before it.
+     */
+    public NearDuplicateFilter(int maxDistance, long maxKeepIntervalMs) {
+        if (maxDistance < 0 || maxDistance > Long.SIZE) {
+            throw new IllegalArgumentException("Param maxDistance has to be between 0(zero) and 64.");
+        }
+        if (maxKeepIntervalMs < 0L) {
+            throw new IllegalArgumentException("Param maxKeepIntervalMs can't be less than 0(zero).");
+        }
+        this.maxDistance = maxDistance;
+        this.maxKeepIntervalMs = maxKeepIntervalMs;
+    }
+
+    /**
+     * Computes the hash of a photo from its brightness, such as the Y plane at the start of an
+     * NV21 preview frame.
+     *
+     * @param luma      Array containing one brightness byte per pixel.
+     * @param offset    Offset of the first pixel in the array.
+     * @param width     Width of the photo.
+     * @param height    Height of the photo.
+     * @param rowStride Number of bytes from the start of a row to the start of the next one.
+     * @return The photo's hash.
+     */
+    public static long hashLuma(byte[] luma, int offset, int width, int height, int rowStride) {
+        int[] cells = new int[GRID_COLUMNS * GRID_ROWS];
+        for (int sy = 0; sy < SAMPLE_ROWS; sy++) {
+            int rowStart = offset + sampleCoordinate(sy, SAMPLE_ROWS, height) * rowStride;
+            int cellRow = sy / CELL_SAMPLES * GRID_COLUMNS;
+            for (int sx = 0; sx < SAMPLE_COLUMNS; sx++) {
+                cells[cellRow + sx / CELL_SAMPLES] += luma[rowStart + sampleCoordinate(sx, SAMPLE_COLUMNS, width)] & 0xFF;
+            }
+        }
+        return bitsHelper(cells);
+    }
+
+    /**
+     * Computes the hash of a photo from the ARGB colors of its pixels at the points of the sample
+     * grid, such as the ones of a small, sub-sampled decode of a JPEG photo. The pixel of sample
+     * column sx and sample row sy is the one at
+     * ({@link #sampleCoordinate(int, int, int) sampleCoordinate}(sx, {@link #SAMPLE_COLUMNS},
+     * width), {@link #sampleCoordinate(int, int, int) sampleCoordinate}(sy, {@link #SAMPLE_ROWS},
+     * height)).
+     *
+     * @param samples Array containing the {@link #SAMPLE_COLUMNS} x {@link #SAMPLE_ROWS} ARGB
+     *                colors, row by row.
+     * @return The photo's hash.
+     */
+    public static long hashArgbSamples(int[] samples) {
+        if (samples.length < SAMPLE_COLUMNS * SAMPLE_ROWS) {
+            throw new IllegalArgumentException("Param samples has to hold " + SAMPLE_COLUMNS * SAMPLE_ROWS + " colors.");
+        }
+        int[] cells = new int[GRID_COLUMNS * GRID_ROWS];
+        for (int sy = 0; sy < SAMPLE_ROWS; sy++) {
+            int rowStart = sy * SAMPLE_COLUMNS;
+            int cellRow = sy / CELL_SAMPLES * GRID_COLUMNS;
+            for (int sx = 0; sx < SAMPLE_COLUMNS; sx++) {
+                int color = samples[rowStart + sx];
+                // The same weights as the Y of YCbCr, in fixed point:
+                cells[cellRow + sx / CELL_SAMPLES] += (((color >> 16) & 0xFF) * 77 + ((color >> 8) & 0xFF) * 150
+                        + (color & 0xFF) * 29) >> 8;
+            }
+        }
+        return bitsHelper(cells);
+    }
+
+    /**
+     * @param index   Index of the sample, a column or a row of the sample grid.
+     * @param samples Number of samples along the side, {@link #SAMPLE_COLUMNS} or
+     *                {@link #SAMPLE_ROWS}.
+     * @param side    Width or height of the photo.
+     * @return Coordinate of the sample in the photo, the samples are spread evenly over the side.
+     */
+    public static int sampleCoordinate(int index, int samples, int side) {
+        return (int) (((long) index * 2 + 1) * side / (samples * 2));
+    }
+
+    /**
+     * @param a A hash.
+     * @param b Another hash.
+     * @return Number of bits in which the hashes differ.
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Decides whether a photo should be kept, and if so remembers it as the last photo kept.
+     *
+     * @param hash      The photo's hash.
+     * @param timestamp System time at which the photo was taken.
+     * @return <b>true</b> if the photo should be kept, <b>false</b> if it is a near duplicate of
+     * the last photo kept.
+     */
+    public synchronized boolean accept(long hash, long timestamp) {
+        if (hasLastKept) {
+            int distance = distance(hash, lastKeptHash);
+            totalDistance += distance;
+            long elapsed = timestamp - lastKeptTimestamp;
+            // A photo taken before the last one kept came out of order, or the clock was set back,
+            // either way it can't be compared:
+            if (distance <= maxDistance && elapsed >= 0L && elapsed < maxKeepIntervalMs) {
+                droppedCount++;
+                return false;
+            }
+        }
+        hasLastKept = true;
+        lastKeptHash = hash;
+        lastKeptTimestamp = timestamp;
+        keptCount++;
+        return true;
+    }
+
+    /**
+     * @return A short, human readable summary of the filter's statistics.
+     */
+    public synchronized String getStats() {
+        long compared = Math.max(1L, keptCount + droppedCount - 1L);
+        return "near duplicates[max distance " + maxDistance + ", kept " + keptCount + ", dropped " + droppedCount
+                + ", avg distance " + String.format("%.1f", (double) totalDistance / compared) + "]";
+    }
+
+    private static long bitsHelper(int[] cells) {
+        long hash = 0L;
+        for (int row = 0; row < GRID_ROWS; row++) {
+            for (int column = 0; column < GRID_COLUMNS - 1; column++) {
+                int i = row * GRID_COLUMNS + column;
+                hash = (hash << 1) | (cells[i] - cells[i + 1] >= MIN_CELL_CONTRAST ? 1L : 0L);
+            }
+        }
+        return hash;
+    }
+}
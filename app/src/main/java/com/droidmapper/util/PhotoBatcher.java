@@ -0,0 +1,277 @@
+package com.droidmapper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Collects small photos into batches that are uploaded as a single archive. When a photo is only
+ * some tens of kilobytes, most of the time its upload takes goes on the request itself, the
+ * handshake, the HTTP round trips and the server's commit, and hardly any on the photo, so
+ * uploading a batch of them in one request moves many more photos per second.<br>
+ * A batch is ready once it holds the maximal number of photos, or the maximal number of bytes, or
+ * once its first photo has waited for the maximal delay, so a slow trickle of photos isn't held
+ * back for long. The archive is a zip file whose entries are STORED, not compressed, since JPEG
+ * data doesn't compress any further and the phone's CPU time is better spent elsewhere.<br>
+ * The journal entry of each photo stays with its batch, so the uploader completes, or retries,
+ * every photo of a batch on its own, and a batch that never got uploaded is queued again, photo
+ * by photo, the next time the journal is opened.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class PhotoBatcher {
+
+    // Photos larger than this are not worth batching, the request overhead is small next to them:
+    private static final long MAX_PHOTO_BYTES = 256L * 1024L;
+    // A batch is held in memory while it is archived, so it is kept below this size:
+    private static final long MAX_BATCH_BYTES = 4L * 1024L * 1024L;
+
+    private final int maxPhotos;
+    private final long maxDelayMs;
+
+    private ArrayList<UploadJournal.Entry> entries;
+    private ArrayList<File> files;
+    private long batchBytes, firstAddedAt;
+
+    // Statistics:
+    private long batchCount, photoCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the limits supplied as
+     * parameters.
+     *
+     * @param maxPhotos  Most photos in a batch.
+     * @param maxDelayMs Longest time, in milliseconds, the first photo of a batch waits for the
+     *                   batch to fill up.
+     */
+    public PhotoBatcher(int maxPhotos, long maxDelayMs) {
+        if (maxPhotos < 1) {
+            throw new IllegalArgumentException("Param maxPhotos can't be less than 1(one).");
+        }
+        if (maxDelayMs < 0L) {
+            throw new IllegalArgumentException("Param maxDelayMs can't be less than 0(zero).");
+        }
+        this.maxPhotos = maxPhotos;
+        this.maxDelayMs = maxDelayMs;
+        entries = new ArrayList<UploadJournal.Entry>(maxPhotos);
+        files = new ArrayList<File>(maxPhotos);
+    }
+
+    /**
+     * @param file A photo on local storage.
+     * @return <b>true</b> if the photo is small enough to be batched.
+     */
+    public boolean accepts(File file) {
+        long length = file.length();
+        return length > 0L && length <= MAX_PHOTO_BYTES;
+    }
+
+    /**
+     * Adds a photo to the current batch.
+     *
+     * @param entry The photo's journal entry.
+     * @param file  The file that is uploaded for the photo.
+     * @return The batch, if it is now full, or <b>null</b> if it can take more photos.
+     */
+    public synchronized Batch add(UploadJournal.Entry entry, File file) {
+        if (entries.isEmpty()) {
+            firstAddedAt = System.currentTimeMillis();
+        }
+        entries.add(entry);
+        files.add(file);
+        batchBytes += file.length();
+        if (entries.size() >= maxPhotos || batchBytes >= MAX_BATCH_BYTES) {
+            return takeHelper();
+        }
+        return null;
+    }
+
+    /**
+     * @return Time, in milliseconds, until the current batch is due even if it isn't full, 0(zero)
+     * if it is already due, or -1 if there is no batch.
+     */
+    public synchronized long getMillisUntilDue() {
+        if (entries.isEmpty()) {
+            return -1L;
+        }
+        return Math.max(0L, firstAddedAt + maxDelayMs - System.currentTimeMillis());
+    }
+
+    /**
+     * Takes the current batch if it is due.
+     *
+     * @return The batch, or <b>null</b> if there is none or it can still wait.
+     */
+    public synchronized Batch takeDue() {
+        if (entries.isEmpty() || getMillisUntilDue() > 0L) {
+            return null;
+        }
+        return takeHelper();
+    }
+
+    /**
+     * Takes the current batch whether or not it is due, such as when the uploader stops and the
+     * batch wouldn't be uploaded otherwise.
+     *
+     * @return The batch, or <b>null</b> if there is none.
+     */
+    public synchronized Batch flush() {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return takeHelper();
+    }
+
+    /**
+     * @return A short, human readable summary of the batcher's statistics.
+     */
+    public synchronized String getStats() {
+        long avg = batchCount == 0L ? 0L : photoCount / batchCount;
+        return "batcher[" + batchCount + " batches, " + photoCount + " photos, avg " + avg + "/batch, waiting "
+                + entries.size() + "]";
+    }
+
+    private Batch takeHelper() {
+        Batch batch = new Batch(entries, files, batchBytes);
+        entries = new ArrayList<UploadJournal.Entry>(maxPhotos);
+        files = new ArrayList<File>(maxPhotos);
+        batchBytes = 0L;
+        batchCount++;
+        photoCount += batch.entries.size();
+        return batch;
+    }
+
+    /**
+     * A batch of photos, uploaded as one archive.
+     */
+    public static class Batch {
+
+        private final List<UploadJournal.Entry> entries;
+        private final List<File> files;
+        private final long bytes;
+        // Content hashes of the photos, taken while the archive was built:
+        private final byte[][] contentHashes;
+
+        private Batch(List<UploadJournal.Entry> entries, List<File> files, long bytes) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.files = Collections.unmodifiableList(files);
+            this.bytes = bytes;
+            contentHashes = new byte[files.size()][];
+        }
+
+        /**
+         * @return Journal entries of the photos, in the order they were added.
+         */
+        public List<UploadJournal.Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return Files of the photos, in the same order as the entries.
+         */
+        public List<File> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return Name of the archive, made from the names of its first and last photos, so the
+         * archives sort in the order the photos were taken.
+         */
+        public String getName() {
+            String first = files.get(0).getName();
+            String last = files.get(files.size() - 1).getName();
+            return stripExtensionHelper(first) + "--" + stripExtensionHelper(last) + ".zip";
+        }
+
+        /**
+         * @param index Index of the photo, in the order they were added.
+         * @return Content hash of the photo, as computed by a {@link ContentHasher}, of the bytes
+         * that went into the last archive built, or <b>null</b> if the photo was left out of it or
+         * no archive has been built yet.
+         */
+        public synchronized byte[] getContentHash(int index) {
+            return contentHashes[index];
+        }
+
+        /**
+         * Writes the archive into memory. The photos that no longer exist are left out of it. The
+         * content hash of each photo is computed on the way, see {@link #getContentHash(int)}.
+         *
+         * @return The archive's bytes, or <b>null</b> if none of the photos exists any more.
+         * @throws IOException If reading a photo or writing the archive fails.
+         */
+        public synchronized byte[] buildArchive() throws IOException {
+            // The local headers and the central directory take some 100 bytes per photo:
+            ByteArrayOutputStream archive = new ByteArrayOutputStream((int) bytes + files.size() * 128);
+            ZipOutputStream zip = new ZipOutputStream(archive);
+            zip.setMethod(ZipOutputStream.STORED);
+            CRC32 crc = new CRC32();
+            int written = 0;
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                byte[] data = readFileHelper(file);
+                contentHashes[i] = null;
+                if (data == null) {
+                    continue;
+                }
+                ContentHasher hasher = new ContentHasher();
+                hasher.update(data, 0, data.length);
+                contentHashes[i] = hasher.digest();
+                // A STORED entry needs its size and checksum before its data:
+                crc.reset();
+                crc.update(data, 0, data.length);
+                ZipEntry zipEntry = new ZipEntry(file.getName());
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(data.length);
+                zipEntry.setCompressedSize(data.length);
+                zipEntry.setCrc(crc.getValue());
+                zipEntry.setTime(file.lastModified());
+                zip.putNextEntry(zipEntry);
+                zip.write(data);
+                zip.closeEntry();
+                written++;
+            }
+            if (written == 0) {
+                return null;
+            }
+            zip.close();
+            return archive.toByteArray();
+        }
+
+        private static String stripExtensionHelper(String name) {
+            int dot = name.lastIndexOf('.');
+            return dot > 0 ? name.substring(0, dot) : name;
+        }
+
+        /**
+         * @return The file's contents, or <b>null</b> if it doesn't exist.
+         */
+        private static byte[] readFileHelper(File file) throws IOException {
+            if (!file.exists()) {
+                return null;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] data = new byte[(int) file.length()];
+                int off = 0;
+                while (off < data.length) {
+                    int read = in.read(data, off, data.length - off);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    off += read;
+                }
+                return data;
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.droidmapper.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A utility class that scales the photos down to the exact size they are uploaded in, and encodes
+ * them within a budget of bytes per photo.<br>
+ * The decoder can only sub-sample by powers of two, so a photo is decoded with the largest power
+ * of two that keeps it at least as large as the target, and the rest of the way, less than a half,
+ * is covered by a filtered resample. A scale of 0.75 thus really gives 0.75, and the resample never
+ * has to skip pixels, which a bilinear filter does when it shrinks by more than a half.<br>
+ * Without a budget the photos are encoded at the highest quality. With one, the JPEG quality is
+ * searched, by bisection, for the highest one whose encoding fits in the budget. The search starts
+ * from the quality the previous photo ended with, since photos taken one after the other compress
+ * alike, so it usually takes only a couple of encodings.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class PhotoScaler {
+
+    // Quality the photos are encoded with when there is no budget:
+    public static final int DEFAULT_QUALITY = 100;
+
+    // Range within which the quality is searched when there is a budget, below it the artifacts
+    // aren't worth the saved bytes, above it the bytes aren't worth the quality:
+    private static final int MIN_QUALITY = 40;
+    private static final int MAX_QUALITY = 95;
+    // Most encodings tried for a single photo:
+    private static final int MAX_SEARCH_STEPS = 5;
+    // An encoding that takes at least this fraction of the budget is close enough:
+    private static final float GOOD_ENOUGH_FILL = 0.9F;
+
+    private final long targetBytes;
+    // Quality the previous photo ended with, where the next search starts:
+    private volatile int lastQuality = (MIN_QUALITY + MAX_QUALITY) / 2;
+
+    // Statistics:
+    private long encodeCount, trialCount, overBudgetCount, totalBytes, totalQuality;
+
+    /**
+     * Default constructor. It creates an instance of this class using the budget supplied as
+     * parameter.
+     *
+     * @param targetBytes Most bytes a photo may take once encoded, or 0(zero) for no budget.
+     */
+    public PhotoScaler(long targetBytes) {
+        if (targetBytes < 0L) {
+            throw new IllegalArgumentException("Param targetBytes can't be less than 0(zero).");
+        }
+        this.targetBytes = targetBytes;
+    }
+
+    /**
+     * Computes the sub-sampling with which a photo should be decoded to be scaled to the given
+     * size: the largest power of two that keeps it at least as large as that size.
+     *
+     * @param srcWidth  Width of the photo.
+     * @param srcHeight Height of the photo.
+     * @param dstWidth  Width the photo is scaled to.
+     * @param dstHeight Height the photo is scaled to.
+     * @return The inSampleSize the photo should be decoded with.
+     */
+    public static int sampleSizeFor(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= dstWidth && srcHeight / (sampleSize * 2) >= dstHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Computes the size of a side of a photo once scaled.
+     *
+     * @param side  Size of the side, in pixels.
+     * @param scale A float value between 0 and 1, the scale of the photo.
+     * @return The scaled size, at least 1(one).
+     */
+    public static int scaledSize(int side, float scale) {
+        return Math.max(1, Math.round(side * scale));
+    }
+
+    /**
+     * Resamples a bitmap to the given size, with filtering.
+     *
+     * @param src    The bitmap to resample.
+     * @param width  Width it should have.
+     * @param height Height it should have.
+     * @return The resampled bitmap, or the bitmap itself if it already has that size.
+     */
+    public static Bitmap resample(Bitmap src, int width, int height) {
+        if (src.getWidth() == width && src.getHeight() == height) {
+            return src;
+        }
+        return Bitmap.createScaledBitmap(src, width, height, true);
+    }
+
+    /**
+     * Decodes a photo on local storage scaled to the exact size, the decoder sub-samples it as much
+     * as it can and the rest is resampled. Only the header of the file is read to learn the
+     * photo's size, the photo itself is decoded from a stream of the file, read once from front to
+     * back, so the stream can hash the file on the way.
+     *
+     * @param path  Path to the photo.
+     * @param in    A stream of the photo's file, it is read as far as the decoder needs, but not
+     *              closed.
+     * @param scale A float value between 0 and 1, to how much of its size the photo is scaled.
+     * @return The scaled photo, or <b>null</b> if it couldn't be decoded.
+     */
+    public static Bitmap decodeScaled(String path, InputStream in, float scale) {
+        BitmapFactory.Options bfOptions = new BitmapFactory.Options();
+        bfOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bfOptions);
+        if (bfOptions.outWidth <= 0 || bfOptions.outHeight <= 0) {
+            return null;
+        }
+        int width = scaledSize(bfOptions.outWidth, scale);
+        int height = scaledSize(bfOptions.outHeight, scale);
+
+        bfOptions.inJustDecodeBounds = false;
+        bfOptions.inSampleSize = sampleSizeFor(bfOptions.outWidth, bfOptions.outHeight, width, height);
+        Bitmap decoded = BitmapFactory.decodeStream(in, null, bfOptions);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap scaled = resample(decoded, width, height);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * @return <b>true</b> if the photos are encoded within a budget.
+     */
+    public boolean hasBudget() {
+        return targetBytes > 0L;
+    }
+
+    /**
+     * @param bytes Size of an encoded photo.
+     * @return <b>true</b> if a photo of that size has to be encoded again to fit in the budget.
+     */
+    public boolean isOverBudget(long bytes) {
+        return targetBytes > 0L && bytes > targetBytes;
+    }
+
+    /**
+     * JPEG encodes a bitmap into a stream. Without a budget it is encoded straight into the
+     * stream at the default quality. With one, the quality is searched in memory and only the
+     * chosen encoding is written to the stream. If not even the lowest quality fits, the photo is
+     * encoded at the lowest quality anyway.
+     *
+     * @param bitmap        The bitmap to encode.
+     * @param out           The stream the encoded photo is written to.
+     * @param reservedBytes Bytes of the budget taken by something else, for example the EXIF
+     *                      segment inserted into the photo.
+     * @return The quality the photo has been encoded with.
+     * @throws IOException If the bitmap can't be encoded or writing to the stream fails.
+     */
+    public int encode(Bitmap bitmap, OutputStream out, int reservedBytes) throws IOException {
+        if (targetBytes <= 0L) {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, DEFAULT_QUALITY, out)) {
+                throw new IOException("Failed to encode the photo");
+            }
+            synchronized (this) {
+                encodeCount++;
+                trialCount++;
+                totalQuality += DEFAULT_QUALITY;
+            }
+            return DEFAULT_QUALITY;
+        }
+
+        long budget = Math.max(1L, targetBytes - reservedBytes);
+        ByteArrayOutputStream best = null, trial = new ByteArrayOutputStream((int) Math.min(budget, Integer.MAX_VALUE / 2));
+        int bestQuality = 0, low = MIN_QUALITY, high = MAX_QUALITY;
+        int quality = Math.max(low, Math.min(high, lastQuality)), steps = 0;
+        while (low <= high && steps < MAX_SEARCH_STEPS) {
+            trial.reset();
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, trial)) {
+                throw new IOException("Failed to encode the photo");
+            }
+            steps++;
+            if (trial.size() <= budget) {
+                // Fits, keep it and look for a higher quality that still does:
+                ByteArrayOutputStream swap = best;
+                best = trial;
+                bestQuality = quality;
+                trial = swap != null ? swap : new ByteArrayOutputStream(best.size());
+                if (best.size() >= budget * GOOD_ENOUGH_FILL) {
+                    break;
+                }
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+            quality = (low + high) >>> 1;
+        }
+
+        boolean overBudget = best == null;
+        if (overBudget) {
+            // Not even the lowest quality tried fits, settle for the lowest quality:
+            bestQuality = MIN_QUALITY;
+            best = trial;
+            if (high >= MIN_QUALITY) {
+                best.reset();
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, MIN_QUALITY, best)) {
+                    throw new IOException("Failed to encode the photo");
+                }
+                steps++;
+            }
+        }
+        best.writeTo(out);
+        lastQuality = bestQuality;
+        synchronized (this) {
+            encodeCount++;
+            trialCount += steps;
+            totalBytes += best.size();
+            totalQuality += bestQuality;
+            if (overBudget) {
+                overBudgetCount++;
+            }
+        }
+        return bestQuality;
+    }
+
+    /**
+     * @return A short, human readable summary of the scaler's statistics.
+     */
+    public synchronized String getStats() {
+        if (targetBytes <= 0L) {
+            return "scaler[no budget, " + encodeCount + " photos]";
+        }
+        long count = Math.max(1L, encodeCount);
+        return "scaler[budget " + targetBytes / 1024L + " KiB, " + encodeCount + " photos, avg quality "
+                + totalQuality / count + ", avg " + totalBytes / count / 1024L + " KiB, "
+                + String.format("%.1f", (double) trialCount / count) + " encodings/photo, over budget "
+                + overBudgetCount + "]";
+    }
+}
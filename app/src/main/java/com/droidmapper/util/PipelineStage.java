@@ -0,0 +1,365 @@
+package com.droidmapper.util;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single stage of the {@link CapturePipeline}. Every stage has its own bounded queue and one or
+ * more worker threads, which take jobs from that queue, process them and hand them over to the
+ * next stage. When the next stage's queue is full the workers wait, so a slow stage slows down the
+ * stages in front of it instead of letting the photos pile up in memory.<br>
+ * A stage with several workers processes several jobs in parallel, so they may leave it out of
+ * order. A stage that has to see the jobs in the order they were captured is made ordered: the
+ * jobs handed over to it go through a {@link ReorderBuffer}, keyed by their sequence numbers,
+ * and an ordered stage has a single worker. A job that is dropped before it reaches an ordered
+ * stage is skipped in its buffer, and in the buffers of the ordered stages after it, so that the
+ * jobs after it don't wait for it.<br>
+ * Each stage keeps track of its queue depth and of the time it spends processing a job, so that
+ * the slowest link of the pipeline can easily be spotted.
+ */
+public abstract class PipelineStage {
+
+    private static final String TAG = PipelineStage.class.getName();
+
+    private volatile PipelineStage nextStage;
+    private volatile long lastServiceNanos;
+    private volatile boolean halt;
+
+    private final BoundedQueue<CaptureJob> queue;
+    private final ReorderBuffer<CaptureJob> reorderBuffer;
+    private final AtomicLong totalServiceNanos;
+    private final AtomicLong processedCount;
+    private final Thread[] workers;
+    private final String stageName;
+    private final int capacity;
+
+    /**
+     * Default constructor. It creates an instance of this class using the name and the queue
+     * capacity supplied as parameters. When its queue is full, the jobs handed over to this stage
+     * wait for room in it.
+     *
+     * @param stageName Short name of this stage, used in logs and statistics.
+     * @param capacity  Maximal number of jobs that can wait in this stage's queue.
+     */
+    public PipelineStage(String stageName, int capacity) {
+        this(stageName, capacity, BoundedQueue.POLICY_BLOCK, 1, false);
+    }
+
+    /**
+     * Constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param stageName   Short name of this stage, used in logs and statistics.
+     * @param capacity    Maximal number of jobs that can wait in this stage's queue.
+     * @param fullPolicy  What to do with a job handed over to this stage when its queue is full,
+     *                    either {@link BoundedQueue#POLICY_BLOCK} or one of the drop policies.
+     * @param workerCount Number of worker threads, that process jobs in parallel.
+     * @param ordered     Whether this stage has to see the jobs in the order of their sequence
+     *                    numbers, an ordered stage can only have a single worker.
+     */
+    public PipelineStage(String stageName, int capacity, int fullPolicy, int workerCount, boolean ordered) {
+        if (stageName == null) {
+            throw new NullPointerException("Stage name param can't be null.");
+        }
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Param capacity can't be less than 2(two).");
+        }
+        if (fullPolicy == BoundedQueue.POLICY_SPILL) {
+            throw new IllegalArgumentException("Jobs can't be spilled.");
+        }
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Param workerCount can't be less than 1(one).");
+        }
+        if (ordered && workerCount > 1) {
+            throw new IllegalArgumentException("An ordered stage can't have more than 1(one) worker.");
+        }
+        this.stageName = stageName;
+        this.capacity = capacity;
+
+        // Create the queue that will buffer the jobs waiting for this stage:
+        queue = new BoundedQueue<CaptureJob>(capacity, fullPolicy, null, dropListener);
+
+        // Jobs handed over to an ordered stage go through a reorder buffer first:
+        reorderBuffer = ordered ? new ReorderBuffer<CaptureJob>(reorderSink) : null;
+
+        // The worker threads:
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(workerRunnable, workerCount == 1 ? stageName : stageName + "-" + i);
+        }
+
+        // Statistics:
+        totalServiceNanos = new AtomicLong();
+        processedCount = new AtomicLong();
+
+        // A flag that we use to signal this thread to stop itself:
+        halt = false;
+    }
+
+    /**
+     * Start the worker threads of this stage.
+     */
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * In a background thread process the queued jobs and forward them to the next stage.
+     */
+    private void runHelper() {
+        Log.d(TAG, "run() :: Start " + Thread.currentThread().getName());
+        while (!halt) {
+            CaptureJob job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                // We have probably been halted, the loop condition will tell:
+                continue;
+            }
+            if (job == null) {
+                // The queue has been closed:
+                break;
+            }
+
+            // Process the job and measure how long it took:
+            long start = System.nanoTime();
+            boolean forward;
+            try {
+                forward = process(job);
+            } catch (RuntimeException e) {
+                // Don't let a single bad photo kill the whole pipeline:
+                Log.e(TAG, "run() :: " + stageName + " failed to process a job", e);
+                forward = false;
+            }
+            long serviceNanos = System.nanoTime() - start;
+            lastServiceNanos = serviceNanos;
+            totalServiceNanos.addAndGet(serviceNanos);
+            processedCount.incrementAndGet();
+
+            // Hand the job over to the next stage, waiting for room in its queue if needed. A job
+            // that goes no further releases its memory:
+            PipelineStage next = nextStage;
+            if (!forward || next == null) {
+                discardHelper(job);
+            } else if (!next.put(job)) {
+                Log.w(TAG, "run() :: " + stageName + " failed to hand a job over to " + next.getStageName());
+                discardHelper(job);
+            }
+        }
+        Log.d(TAG, "run() :: Stop " + Thread.currentThread().getName());
+    }
+
+    /**
+     * Helper method that releases a job that goes no further, and skips it in the reorder buffers
+     * of the ordered stages after this one, if it still had to pass any.
+     */
+    private void discardHelper(CaptureJob job) {
+        job.release();
+        for (PipelineStage stage = nextStage; stage != null; stage = stage.nextStage) {
+            if (stage.reorderBuffer != null) {
+                stage.reorderBuffer.skip(job.sequence);
+            }
+        }
+    }
+
+    /**
+     * Process a single job. Implementations run in this stage's worker threads, so if the stage
+     * has several workers this method is called concurrently.
+     *
+     * @param job The job to process.
+     * @return <b>true</b> if the job should be forwarded to the next stage, <b>false</b> if the
+     * pipeline should stop processing it.
+     */
+    protected abstract boolean process(CaptureJob job);
+
+    /**
+     * Sets the stage to which this stage hands over the jobs it has processed.
+     *
+     * @param nextStage The next stage, or <b>null</b> if this is the last stage of the pipeline.
+     */
+    void setNextStage(PipelineStage nextStage) {
+        this.nextStage = nextStage;
+    }
+
+    /**
+     * Adds a job to this stage's queue. If the queue is full, the full queue policy of this stage
+     * decides whether the calling thread waits for room in it or a job is dropped.
+     *
+     * @param job The job to add.
+     * @return <b>true</b> if the job was added, <b>false</b> if it was rejected, because this
+     * stage has been halted or the calling thread was interrupted while waiting.
+     */
+    boolean put(CaptureJob job) {
+        if (reorderBuffer != null) {
+            // The job is added once the ones before it have been:
+            reorderBuffer.offer(job.sequence, job);
+            return true;
+        }
+        return queue.offer(job);
+    }
+
+    /**
+     * Stop the worker threads of this stage.
+     */
+    public void halt() {
+        Log.d(TAG, "halt() :: " + stageName);
+
+        // Set the stop flag:
+        halt = true;
+
+        // Don't accept any more jobs and wake up the threads waiting on the queue:
+        queue.close();
+
+        // Wake the workers up(they might be waiting to hand a job over to the next stage):
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Stop the worker threads of this stage once they have processed the jobs already in its
+     * queue, and wait for them. No more jobs are accepted. The stages in front of this one should
+     * be drained first, so their last jobs reach this one, and the ones after it only after it,
+     * so they take its last jobs.
+     */
+    public void drain() {
+        Log.d(TAG, "drain() :: " + stageName);
+
+        // Don't accept any more jobs, the workers stop once they have taken the rest:
+        queue.close();
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    // Keep waiting, the jobs would be lost otherwise:
+                    interrupted = true;
+                }
+            }
+        }
+        halt = true;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Short name of this stage.
+     */
+    public String getStageName() {
+        return stageName;
+    }
+
+    /**
+     * @return Number of jobs currently waiting in this stage's queue.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Number of jobs this stage's queue has dropped because it was full.
+     */
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    /**
+     * @return Number of worker threads of this stage.
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return Maximal number of jobs that can wait in this stage's queue.
+     */
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of jobs this stage has processed so far.
+     */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * @return Time, in milliseconds, this stage spent processing the last job.
+     */
+    public float getLastServiceTimeMs() {
+        return lastServiceNanos / 1000000F;
+    }
+
+    /**
+     * @return Average time, in milliseconds, this stage spends processing a job.
+     */
+    public float getAverageServiceTimeMs() {
+        long count = processedCount.get();
+        if (count == 0) {
+            return 0F;
+        }
+        return totalServiceNanos.get() / 1000000F / count;
+    }
+
+    /**
+     * @return A short, human readable summary of this stage's statistics.
+     */
+    public String getStats() {
+        String reorderStats = reorderBuffer != null ? ", reorder max " + reorderBuffer.getMaxPendingCount() : "";
+        return stageName + "[workers " + workers.length + ", " + queue.getStats() + reorderStats + ", last "
+                + Math.round(getLastServiceTimeMs()) + " ms, avg " + Math.round(getAverageServiceTimeMs()) + " ms]";
+    }
+
+    /**
+     * The runnable instance run by each of the worker threads.
+     */
+    private Runnable workerRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            runHelper();
+        }
+    };
+
+    /**
+     * An instance of the Sink interface which callback method is invoked by the reorder buffer,
+     * of an ordered stage, with the jobs in order.
+     */
+    private ReorderBuffer.Sink<CaptureJob> reorderSink = new ReorderBuffer.Sink<CaptureJob>() {
+
+        /**
+         * Adds the job to the queue.
+         *
+         * @param job The next job in order.
+         */
+        @Override
+        public void accept(CaptureJob job) {
+            if (!queue.offer(job)) {
+                job.release();
+            }
+        }
+    };
+
+    /**
+     * An instance of the DropListener interface which callback method is invoked by the queue when
+     * it drops a job because it is full.
+     */
+    private BoundedQueue.DropListener<CaptureJob> dropListener = new BoundedQueue.DropListener<CaptureJob>() {
+
+        /**
+         * Releases the dropped job's preview frame and photo data.
+         *
+         * @param job The dropped job.
+         */
+        @Override
+        public void onDropped(CaptureJob job) {
+            discardHelper(job);
+            Log.w(TAG, "dropListener.onDropped() :: " + stageName + " queue is full, dropped a photo");
+        }
+    };
+}
@@ -0,0 +1,124 @@
+package com.droidmapper.util;
+
+import java.util.HashMap;
+
+/**
+ * A buffer that puts back into order the elements that were processed in parallel and so finish
+ * out of order. Every element carries a sequence number, given to it in the original order, the
+ * buffer holds the elements that come early and passes them on to its {@link Sink} strictly in
+ * the order of their sequence numbers, starting from 0(zero).<br>
+ * An element that will never come, because its processing failed, has to be skipped, otherwise
+ * the elements after it would be held forever.<br>
+ * <b>Note:</b> This class is thread safe. The sink is called while the buffer's lock is held, so
+ * the elements reach it one at a time and in order.
+ *
+ * @param <E> Type of the elements.
+ */
+public class ReorderBuffer<E> {
+
+    // Marks a sequence number that has been skipped:
+    private static final Object SKIPPED = new Object();
+
+    private final HashMap<Long, Object> pending;
+    private final Sink<E> sink;
+    private long nextSequence;
+
+    // Statistics:
+    private int maxPendingCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the sink supplied as
+     * parameter.
+     *
+     * @param sink The sink the elements are passed on to, in order.
+     */
+    public ReorderBuffer(Sink<E> sink) {
+        if (sink == null) {
+            throw new NullPointerException("Sink param can't be null.");
+        }
+        this.sink = sink;
+        pending = new HashMap<Long, Object>();
+    }
+
+    /**
+     * Adds an element. If it is the next one in order, it is passed on right away, together with
+     * the elements after it that are already waiting, otherwise it waits for the ones before it.
+     *
+     * @param sequence Sequence number of the element.
+     * @param item     The element.
+     */
+    public synchronized void offer(long sequence, E item) {
+        if (item == null) {
+            throw new NullPointerException("Item param can't be null.");
+        }
+        putHelper(sequence, item);
+    }
+
+    /**
+     * Tells the buffer that the element with the given sequence number will never come.
+     *
+     * @param sequence Sequence number of the element.
+     */
+    public synchronized void skip(long sequence) {
+        putHelper(sequence, SKIPPED);
+    }
+
+    /**
+     * @return Number of elements currently waiting for the ones before them.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The largest number of elements that were waiting at the same time.
+     */
+    public synchronized int getMaxPendingCount() {
+        return maxPendingCount;
+    }
+
+    /**
+     * @return Sequence number of the element the buffer is waiting for.
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putHelper(long sequence, Object item) {
+        if (sequence < nextSequence) {
+            throw new IllegalStateException("Sequence number " + sequence + " has already been passed on.");
+        }
+        if (sequence > nextSequence) {
+            pending.put(sequence, item);
+            if (pending.size() > maxPendingCount) {
+                maxPendingCount = pending.size();
+            }
+            return;
+        }
+
+        // Pass on this element and every element after it that is already waiting:
+        while (item != null) {
+            if (item != SKIPPED) {
+                sink.accept((E) item);
+            }
+            nextSequence++;
+            item = pending.remove(nextSequence);
+        }
+    }
+
+    /**
+     * Interface of the receiver of the ordered elements.
+     *
+     * @param <E> Type of the elements.
+     */
+    public interface Sink<E> {
+
+        /**
+         * Called with the elements, in the order of their sequence numbers.
+         *
+         * @param item The next element.
+         */
+        void accept(E item);
+    }
+}
@@ -0,0 +1,650 @@
+package com.droidmapper.util;
+
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.RESTUtility;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxIOException;
+import com.dropbox.client2.exception.DropboxServerException;
+import com.dropbox.client2.session.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A utility class that uploads large files to Dropbox in chunks, through the chunked upload API,
+ * so that a dropped connection costs only the chunk that was being sent. After every chunk the
+ * upload id and the offset reached are saved in a small state file, so an upload interrupted by
+ * an error, or by the app being stopped, resumes where it stopped the next time the same file is
+ * uploaded.<br>
+ * The chunk size follows the measured speed of the link: every chunk is made about as large as can
+ * be sent in a few seconds, within the configured bounds, so a slow link loses little when a chunk
+ * fails and a fast link isn't slowed down by a request per small chunk.<br>
+ * A stream whose length isn't known in advance, such as a photo being encoded, can be uploaded as
+ * well, a chunk at a time. Such an upload is resumed by producing the stream again from the same
+ * source and skipping what was already sent, which is checked against a checksum of the bytes
+ * sent, so a stream that comes out differently starts over instead of corrupting the upload.<br>
+ * A file upload can compute the file's content hash on the way, from the bytes read for the
+ * chunks, so the file doesn't have to be read once more to be checked. Only the part of a file
+ * sent before an upload was resumed is read just for the hash.<br>
+ * <b>Note:</b> This class is thread safe, several files can be uploaded at the same time, but not
+ * the same file twice at the same time.
+ */
+public class ResumableUploader {
+
+    private static final String TAG = ResumableUploader.class.getName();
+
+    // Extensions of the state files of the file uploads and of the stream uploads:
+    private static final String STATE_EXTENSION = ".upload";
+    private static final String STREAM_STATE_EXTENSION = ".stream.upload";
+    // Largest chunk of a stream upload, it is held in memory:
+    private static final int MAX_STREAM_CHUNK_SIZE = 1024 * 1024;
+    // Chunk sizes are rounded down to a multiple of this:
+    private static final int CHUNK_GRANULARITY = 64 * 1024;
+    // Weight of the newest chunk in the link speed average:
+    private static final double SPEED_ALPHA = 0.3;
+
+    private final ChunkedApi chunkedApi;
+    private final File stateDir;
+    private final int minChunkSize, maxChunkSize;
+    private final long targetChunkMillis;
+    private final TokenBucket bandwidthLimiter;
+
+    // Measured link speed, in bytes per second, 0(zero) until known:
+    private double bytesPerSecond;
+
+    // Statistics:
+    private long chunkCount, resumedCount, restartedCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param dropboxApi        The DropboxAPI instance the files are uploaded with.
+     * @param stateDir          The directory in which the state of the unfinished uploads is kept.
+     * @param minChunkSize      Smallest chunk size, in bytes, also the size of the first chunk.
+     * @param maxChunkSize      Largest chunk size, in bytes.
+     * @param targetChunkMillis How long, in milliseconds, sending a chunk should take.
+     */
+    public ResumableUploader(DropboxAPI<?> dropboxApi, File stateDir, int minChunkSize, int maxChunkSize,
+                             long targetChunkMillis) {
+        this(dropboxApi, stateDir, minChunkSize, maxChunkSize, targetChunkMillis, null);
+    }
+
+    /**
+     * A constructor that creates an instance of this class whose chunks are sent no faster than
+     * the token bucket supplied as parameter allows. The chunk sizes then follow the limited
+     * speed.
+     *
+     * @param dropboxApi        The DropboxAPI instance the files are uploaded with.
+     * @param stateDir          The directory in which the state of the unfinished uploads is kept.
+     * @param minChunkSize      Smallest chunk size, in bytes, also the size of the first chunk.
+     * @param maxChunkSize      Largest chunk size, in bytes.
+     * @param targetChunkMillis How long, in milliseconds, sending a chunk should take.
+     * @param bandwidthLimiter  The token bucket the chunks take their tokens from, or <b>null</b>
+     *                          for no limit.
+     */
+    public ResumableUploader(DropboxAPI<?> dropboxApi, File stateDir, int minChunkSize, int maxChunkSize,
+                             long targetChunkMillis, TokenBucket bandwidthLimiter) {
+        this(dropboxApiHelper(dropboxApi), stateDir, minChunkSize, maxChunkSize, targetChunkMillis, bandwidthLimiter);
+    }
+
+    /**
+     * A constructor that creates an instance of this class which sends the chunks through the
+     * chunked upload API supplied as parameter, used by the tests to upload to a local server.
+     *
+     * @param chunkedApi        The chunked upload API the chunks are sent through.
+     * @param stateDir          The directory in which the state of the unfinished uploads is kept.
+     * @param minChunkSize      Smallest chunk size, in bytes, also the size of the first chunk.
+     * @param maxChunkSize      Largest chunk size, in bytes.
+     * @param targetChunkMillis How long, in milliseconds, sending a chunk should take.
+     * @param bandwidthLimiter  The token bucket the chunks take their tokens from, or <b>null</b>
+     *                          for no limit.
+     */
+    ResumableUploader(ChunkedApi chunkedApi, File stateDir, int minChunkSize, int maxChunkSize,
+                      long targetChunkMillis, TokenBucket bandwidthLimiter) {
+        if (chunkedApi == null) {
+            throw new NullPointerException("Chunked API param can't be null.");
+        }
+        if (stateDir == null) {
+            throw new NullPointerException("State dir param can't be null.");
+        }
+        if (minChunkSize < CHUNK_GRANULARITY) {
+            throw new IllegalArgumentException("Param minChunkSize can't be less than " + CHUNK_GRANULARITY + ".");
+        }
+        if (maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Param maxChunkSize can't be less than minChunkSize.");
+        }
+        if (targetChunkMillis < 1L) {
+            throw new IllegalArgumentException("Param targetChunkMillis can't be less than 1(one).");
+        }
+        this.chunkedApi = chunkedApi;
+        this.stateDir = stateDir;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.targetChunkMillis = targetChunkMillis;
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Uploads a file, resuming its earlier upload if there is one.
+     *
+     * @param file   The file.
+     * @param path   Path of the file in Dropbox.
+     * @param hasher The hasher the whole file is fed to, in order, while it is uploaded, can be
+     *               <b>null</b>. It is complete only if the upload succeeds.
+     * @return Metadata of the uploaded file.
+     * @throws FileNotFoundException If {@code file} does not exist.
+     * @throws DropboxException      If a Dropbox related exception occurs, the upload can be
+     *                               resumed by calling this method again.
+     */
+    public DropboxAPI.Entry upload(File file, String path, ContentHasher hasher) throws FileNotFoundException,
+            DropboxException {
+        long length = file.length();
+        File stateFile = new File(stateDir, file.getName() + STATE_EXTENSION);
+        UploadState state = readStateHelper(stateFile, file);
+        if (state != null && state.offset <= length) {
+            Log.d(TAG, "upload() :: Resuming " + file.getName() + " at " + state.offset + "/" + length);
+            synchronized (this) {
+                resumedCount++;
+            }
+        } else {
+            state = new UploadState();
+            state.length = length;
+            state.lastModified = file.lastModified();
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        ChunkHashingStream hashing = hasher != null ? new ChunkHashingStream(in, hasher) : null;
+        try {
+            while (state.offset < length) {
+                int chunkSize = (int) Math.min(getChunkSize(), length - state.offset);
+                if (hashing != null) {
+                    hashing.catchUp(state.offset);
+                }
+                in.getChannel().position(state.offset);
+                long start = System.nanoTime();
+                DropboxAPI.ChunkedUploadResponse response;
+                try {
+                    InputStream chunk = in;
+                    if (hashing != null) {
+                        hashing.setPosition(state.offset);
+                        chunk = hashing;
+                    }
+                    response = chunkedApi.uploadChunk(limitHelper(chunk), chunkSize, state.offset, state.uploadId);
+                } catch (DropboxServerException e) {
+                    if (!recoverHelper(e, state, stateFile)) {
+                        throw e;
+                    }
+                    continue;
+                }
+                measureSpeedHelper(response.getOffset() - state.offset, System.nanoTime() - start);
+                state.uploadId = response.getUploadId();
+                state.offset = response.getOffset();
+                writeStateHelper(stateFile, state);
+            }
+            if (hashing != null) {
+                hashing.catchUp(length);
+            }
+        } catch (IOException e) {
+            throw new DropboxIOException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return commitHelper(path, state, stateFile);
+    }
+
+    /**
+     * Uploads a stream, a chunk at a time, resuming its earlier upload if there is one. The stream
+     * must come out the same every time it is produced from the same source.
+     *
+     * @param in     The stream, it is read to its end but not closed.
+     * @param source The file the stream is produced from, it identifies the upload.
+     * @param path   Path of the file in Dropbox.
+     * @return Metadata of the uploaded file.
+     * @throws DropboxException If a Dropbox related exception occurs, or the stream fails, the
+     *                          upload can be resumed by calling this method again with the stream
+     *                          produced again.
+     */
+    public DropboxAPI.Entry upload(InputStream in, File source, String path) throws DropboxException {
+        File stateFile = new File(stateDir, source.getName() + STREAM_STATE_EXTENSION);
+        UploadState state = readStateHelper(stateFile, source);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(MAX_STREAM_CHUNK_SIZE, maxChunkSize)];
+        try {
+            if (state != null) {
+                // Skip what has already been sent, making sure it is the same:
+                Log.d(TAG, "upload() :: Resuming stream of " + source.getName() + " at " + state.offset);
+                long skipped = 0L;
+                while (skipped < state.offset) {
+                    int read = in.read(chunk, 0, (int) Math.min(chunk.length, state.offset - skipped));
+                    if (read < 0) {
+                        break;
+                    }
+                    crc.update(chunk, 0, read);
+                    skipped += read;
+                }
+                if (skipped != state.offset || crc.getValue() != state.checksum) {
+                    stateFile.delete();
+                    synchronized (this) {
+                        restartedCount++;
+                    }
+                    throw new DropboxIOException("The stream of " + source.getName() + " changed, starting over");
+                }
+                synchronized (this) {
+                    resumedCount++;
+                }
+            } else {
+                state = new UploadState();
+                state.length = source.length();
+                state.lastModified = source.lastModified();
+            }
+
+            while (true) {
+                int wanted = Math.min(getChunkSize(), chunk.length);
+                int size = readFullyHelper(in, chunk, wanted);
+                if (size == 0) {
+                    break;
+                }
+                long start = System.nanoTime();
+                DropboxAPI.ChunkedUploadResponse response;
+                try {
+                    response = chunkedApi.uploadChunk(limitHelper(new ByteArrayInputStream(chunk, 0, size)), size,
+                            state.offset, state.uploadId);
+                } catch (DropboxServerException e) {
+                    if (e.error == DropboxServerException._404_NOT_FOUND) {
+                        // The upload id has expired, the next try starts over:
+                        stateFile.delete();
+                    }
+                    throw e;
+                }
+                if (response.getOffset() != state.offset + size) {
+                    // We can't go back in the stream, start over the next time:
+                    stateFile.delete();
+                    throw new DropboxIOException("Server is at " + response.getOffset() + ", expected "
+                            + (state.offset + size));
+                }
+                measureSpeedHelper(size, System.nanoTime() - start);
+                crc.update(chunk, 0, size);
+                state.uploadId = response.getUploadId();
+                state.offset = response.getOffset();
+                state.checksum = crc.getValue();
+                writeStateHelper(stateFile, state);
+                if (size < wanted) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new DropboxIOException(e);
+        }
+        if (state.uploadId == null) {
+            throw new DropboxIOException("The stream of " + source.getName() + " is empty");
+        }
+
+        return commitHelper(path, state, stateFile);
+    }
+
+    /**
+     * @return The size, in bytes, of the next chunk, picked from the measured link speed.
+     */
+    public synchronized int getChunkSize() {
+        if (bytesPerSecond == 0D) {
+            return minChunkSize;
+        }
+        long size = (long) (bytesPerSecond * targetChunkMillis / 1000D);
+        size = Math.max(minChunkSize, Math.min(maxChunkSize, size));
+        return (int) (size / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+    }
+
+    /**
+     * @return A short, human readable summary of the uploader's statistics.
+     */
+    public synchronized String getStats() {
+        return "chunked[chunk " + getChunkSize() / 1024 + " KiB, " + Math.round(bytesPerSecond / 1024D) + " KiB/s, chunks "
+                + chunkCount + ", resumed " + resumedCount + ", restarted " + restartedCount + "]";
+    }
+
+    /**
+     * Helper method that gives access to the chunked upload API of a DropboxAPI instance.
+     */
+    private static ChunkedApi dropboxApiHelper(DropboxAPI<?> dropboxApi) {
+        if (dropboxApi == null) {
+            throw new NullPointerException("DropboxAPI param can't be null.");
+        }
+        return new DropboxChunkedApi(dropboxApi.getSession());
+    }
+
+    /**
+     * Helper method that wraps the stream a chunk is read from so it keeps to the bandwidth limit,
+     * if there is one.
+     */
+    private InputStream limitHelper(InputStream in) {
+        return bandwidthLimiter == null ? in : new TokenBucket.ThrottledInputStream(in, bandwidthLimiter);
+    }
+
+    /**
+     * Helper method that handles a chunk refused by the server. If the server says the upload is at
+     * a different offset, the upload continues from there, if the upload id is no longer known,
+     * the upload starts over.
+     *
+     * @return <b>true</b> if the upload can go on, <b>false</b> if the error has to be reported.
+     */
+    private boolean recoverHelper(DropboxServerException e, UploadState state, File stateFile) {
+        if (e.error == DropboxServerException._400_BAD_REQUEST && e.parsedResponse != null
+                && e.parsedResponse.get("offset") instanceof Number && state.uploadId != null) {
+            // We lost the answer to a chunk the server did receive:
+            long offset = ((Number) e.parsedResponse.get("offset")).longValue();
+            if (offset >= 0L && offset <= state.length && offset != state.offset) {
+                Log.d(TAG, "recoverHelper() :: Server is at " + offset + ", we were at " + state.offset);
+                state.offset = offset;
+                writeStateHelper(stateFile, state);
+                return true;
+            }
+        }
+        if (e.error == DropboxServerException._404_NOT_FOUND && state.uploadId != null) {
+            // The upload id has expired:
+            Log.d(TAG, "recoverHelper() :: Upload id expired, starting over");
+            state.uploadId = null;
+            state.offset = 0L;
+            stateFile.delete();
+            synchronized (this) {
+                restartedCount++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Helper method that commits a finished chunked upload and deletes its state.
+     */
+    private DropboxAPI.Entry commitHelper(String path, UploadState state, File stateFile) throws DropboxException {
+        DropboxAPI.Entry entry;
+        try {
+            entry = chunkedApi.commit(path, state.uploadId);
+        } catch (DropboxServerException e) {
+            if (e.error == DropboxServerException._400_BAD_REQUEST || e.error == DropboxServerException._404_NOT_FOUND) {
+                // The upload id has expired, the next try starts over:
+                stateFile.delete();
+                synchronized (this) {
+                    restartedCount++;
+                }
+            }
+            throw e;
+        }
+        stateFile.delete();
+        return entry;
+    }
+
+    /**
+     * Helper method that reads from a stream until the given number of bytes, or its end.
+     *
+     * @return Number of bytes read, less than wanted only at the end of the stream.
+     */
+    private static int readFullyHelper(InputStream in, byte[] buffer, int wanted) throws IOException {
+        int size = 0;
+        while (size < wanted) {
+            int read = in.read(buffer, size, wanted - size);
+            if (read < 0) {
+                break;
+            }
+            size += read;
+        }
+        return size;
+    }
+
+    private synchronized void measureSpeedHelper(long bytes, long nanos) {
+        if (bytes <= 0L || nanos <= 0L) {
+            return;
+        }
+        double speed = bytes * 1000000000D / nanos;
+        bytesPerSecond = bytesPerSecond == 0D ? speed : bytesPerSecond + (speed - bytesPerSecond) * SPEED_ALPHA;
+        chunkCount++;
+    }
+
+    /**
+     * Helper method that reads the saved state of an upload of the given file.
+     *
+     * @return The state, or <b>null</b> if there is none, or it belongs to an older version of the
+     * file.
+     */
+    private static UploadState readStateHelper(File stateFile, File file) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(stateFile));
+            UploadState state = new UploadState();
+            state.uploadId = in.readUTF();
+            state.offset = in.readLong();
+            state.length = in.readLong();
+            state.lastModified = in.readLong();
+            state.checksum = in.readLong();
+            if (state.length == file.length() && state.lastModified == file.lastModified()) {
+                return state;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        stateFile.delete();
+        return null;
+    }
+
+    /**
+     * Helper method that saves the state of an upload. It is written to a temporary file first, so
+     * a crash can't leave a half written state behind.
+     */
+    private static void writeStateHelper(File stateFile, UploadState state) {
+        File tmpFile = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeUTF(state.uploadId);
+            out.writeLong(state.offset);
+            out.writeLong(state.length);
+            out.writeLong(state.lastModified);
+            out.writeLong(state.checksum);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(stateFile)) {
+                Log.w(TAG, "writeStateHelper() :: Failed to save " + stateFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * The requests of the chunked upload API the uploads are made of.
+     */
+    interface ChunkedApi {
+
+        /**
+         * Uploads a single chunk.
+         *
+         * @param in       Stream from which the chunk is read.
+         * @param length   Length of the chunk.
+         * @param offset   Offset of the chunk in the file.
+         * @param uploadId Id of the upload, <b>null</b> for the first chunk.
+         * @return The server's answer, with the upload id and the offset it has reached.
+         * @throws DropboxException If a Dropbox related exception occurs.
+         */
+        DropboxAPI.ChunkedUploadResponse uploadChunk(InputStream in, long length, long offset, String uploadId)
+                throws DropboxException;
+
+        /**
+         * Commits a finished chunked upload, the file is then stored under its path.
+         *
+         * @param path     Path of the file in Dropbox.
+         * @param uploadId Id of the upload.
+         * @return Metadata of the stored file.
+         * @throws DropboxException If a Dropbox related exception occurs.
+         */
+        DropboxAPI.Entry commit(String path, String uploadId) throws DropboxException;
+    }
+
+    /**
+     * A DropboxAPI that gives access to the SDK's single chunk requests, which it keeps for its
+     * subclasses.
+     */
+    private static class DropboxChunkedApi extends DropboxAPI<Session> implements ChunkedApi {
+
+        DropboxChunkedApi(Session session) {
+            super(session);
+        }
+
+        @Override
+        public ChunkedUploadResponse uploadChunk(InputStream in, long length, long offset, String uploadId)
+                throws DropboxException {
+            return chunkedUploadRequest(in, length, null, offset, uploadId).upload();
+        }
+
+        /**
+         * Commits the upload. The SDK only commits through its ChunkedUploader, which can't be
+         * resumed, so the request is made directly.
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry commit(String path, String uploadId) throws DropboxException {
+            Session session = getSession();
+            String target = "/commit_chunked_upload/" + session.getAccessType() + path;
+            String[] params = {
+                    "overwrite", String.valueOf(false),
+                    "locale", session.getLocale().toString(),
+                    "upload_id", uploadId
+            };
+            Map<String, Object> response = (Map<String, Object>) RESTUtility.request(RESTUtility.RequestMethod.POST,
+                    session.getContentServer(), target, DropboxAPI.VERSION, params, session);
+            return new Entry(response);
+        }
+    }
+
+    /**
+     * A stream that feeds the bytes of a file read for the chunks to a hasher, each byte once and
+     * in order, however the chunks are sent again or skipped. The bytes the chunks skip are read
+     * just for the hash with {@link #catchUp(long)}.
+     */
+    private static class ChunkHashingStream extends FilterInputStream {
+
+        private final FileInputStream file;
+        private final ContentHasher hasher;
+        // Position in the file of the next byte read, and of the first byte not yet hashed:
+        private long position, hashedTo;
+
+        ChunkHashingStream(FileInputStream file, ContentHasher hasher) {
+            super(file);
+            this.file = file;
+            this.hasher = hasher;
+        }
+
+        /**
+         * Tells the stream where in the file the next chunk is read from.
+         *
+         * @param position Position of the chunk in the file.
+         */
+        void setPosition(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Hashes the bytes of the file up to the given position, if the chunks haven't read them.
+         * The position of the file is changed.
+         *
+         * @param offset Position up to which the file has to be hashed.
+         */
+        void catchUp(long offset) throws IOException {
+            if (hashedTo >= offset) {
+                return;
+            }
+            file.getChannel().position(hashedTo);
+            byte[] buffer = new byte[CHUNK_GRANULARITY];
+            while (hashedTo < offset) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, offset - hashedTo));
+                if (read < 0) {
+                    throw new IOException("The file ended at " + hashedTo + " before " + offset);
+                }
+                hasher.update(buffer, 0, read);
+                hashedTo += read;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                long end = position + read;
+                if (end > hashedTo && position <= hashedTo) {
+                    int skip = (int) (hashedTo - position);
+                    hasher.update(b, off + skip, read - skip);
+                    hashedTo = end;
+                }
+                position = end;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * The state of an unfinished upload.
+     */
+    private static class UploadState {
+
+        String uploadId;
+        long offset;
+        // Length and modification time of the file, to recognise a changed file:
+        long length, lastModified;
+        // Checksum of the bytes sent so far, for stream uploads:
+        long checksum;
+    }
+}
@@ -0,0 +1,66 @@
+package com.droidmapper.util;
+
+import java.util.Random;
+
+/**
+ * Computes how long to wait before retrying an operation that keeps failing, for example an
+ * upload over a patchy mobile connection. The delay doubles with every failure in a row, up to a
+ * maximum, and is randomized between half of it and all of it, so that retries don't go out in
+ * lockstep with whatever made them fail. A success starts it over from the base delay.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class RetryBackoff {
+
+    private final long baseDelayMs, maxDelayMs;
+    private final Random random;
+    private int failureCount;
+
+    /**
+     * Default constructor. It creates an instance of this class using the delays supplied as
+     * parameters.
+     *
+     * @param baseDelayMs Delay, in milliseconds, after the first failure.
+     * @param maxDelayMs  The longest delay, in milliseconds.
+     */
+    public RetryBackoff(long baseDelayMs, long maxDelayMs) {
+        if (baseDelayMs < 1L) {
+            throw new IllegalArgumentException("Param baseDelayMs can't be less than 1(one).");
+        }
+        if (maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Param maxDelayMs can't be less than baseDelayMs.");
+        }
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        random = new Random();
+    }
+
+    /**
+     * Records a failure.
+     *
+     * @return How long, in milliseconds, to wait before the next try.
+     */
+    public synchronized long onFailure() {
+        long delay = baseDelayMs;
+        for (int i = 0; i < failureCount && delay < maxDelayMs; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMs);
+        failureCount++;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half + 1));
+    }
+
+    /**
+     * Records a success, the next failure waits only the base delay again.
+     */
+    public synchronized void onSuccess() {
+        failureCount = 0;
+    }
+
+    /**
+     * @return Number of failures in a row so far.
+     */
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+}
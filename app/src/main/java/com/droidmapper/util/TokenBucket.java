@@ -0,0 +1,250 @@
+package com.droidmapper.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the rate at which the uploads send data, so that uploading over a shared link, such as a
+ * vehicle's hotspot, leaves room for the other traffic, and doesn't send bursts that make the
+ * carrier throttle the link.<br>
+ * It is a token bucket: tokens, one per byte, flow into the bucket at the configured rate, up to
+ * the burst size, and every byte sent takes one out. While the bucket holds tokens the data goes
+ * out at full speed, once it is empty at the configured rate. All the uploads that share a bucket
+ * share its rate, whatever their number. The bytes can be taken ahead of the tokens, the next
+ * upload to ask then waits for the debt to be paid off, so the rate holds over any period longer
+ * than a burst.<br>
+ * The bucket also measures the rate at which the bytes actually pass through it, with or without
+ * a limit.<br>
+ * <b>Note:</b> This class is thread safe, the limit can be changed while uploads run.
+ */
+public class TokenBucket {
+
+    // Length, in nanoseconds, of the periods over which the passing rate is measured:
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+    // Weight of the newest period in the passing rate average:
+    private static final double RATE_ALPHA = 0.5;
+    // After this many empty periods the passing rate is simply 0(zero):
+    private static final int MAX_IDLE_WINDOWS = 16;
+
+    private long bytesPerSecond, burstBytes;
+    private double tokens;
+    private long refilledAt;
+
+    // Passing rate, in bytes per second, and the period being measured:
+    private double passingRate;
+    private long windowStart, windowBytes;
+
+    // Time, in nanoseconds, each thread has spent waiting for tokens:
+    private final ThreadLocal<long[]> threadWaitNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    // Statistics:
+    private long passedBytes, waitNanos, waitCount;
+
+    /**
+     * A constructor that creates an instance of this class without a limit, it only measures the
+     * rate until {@link #setLimit(long, long)} is called.
+     */
+    public TokenBucket() {
+        this(0L, 0L);
+    }
+
+    /**
+     * Default constructor. It creates an instance of this class using the limit supplied as
+     * parameters, the bucket starts full.
+     *
+     * @param bytesPerSecond Rate at which the data may be sent, or 0(zero) for no limit.
+     * @param burstBytes     Most bytes that may be sent at full speed after a pause, or 0(zero)
+     *                       for one second's worth.
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        long now = System.nanoTime();
+        refilledAt = now;
+        windowStart = now;
+        setLimit(bytesPerSecond, burstBytes);
+        tokens = this.burstBytes;
+    }
+
+    /**
+     * Changes the limit, the uploads in progress follow the new limit from their next read.
+     *
+     * @param bytesPerSecond Rate at which the data may be sent, or 0(zero) for no limit.
+     * @param burstBytes     Most bytes that may be sent at full speed after a pause, or 0(zero)
+     *                       for one second's worth.
+     */
+    public synchronized void setLimit(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond < 0L) {
+            throw new IllegalArgumentException("Param bytesPerSecond can't be less than 0(zero).");
+        }
+        if (burstBytes < 0L) {
+            throw new IllegalArgumentException("Param burstBytes can't be less than 0(zero).");
+        }
+        refillHelper(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes > 0L ? burstBytes : bytesPerSecond;
+        tokens = Math.min(tokens, this.burstBytes);
+    }
+
+    /**
+     * @return Rate at which the data may be sent, in bytes per second, or 0(zero) if there is no
+     * limit.
+     */
+    public synchronized long getLimit() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes tokens for bytes about to be sent, waiting until the bucket has paid off the bytes
+     * sent before them.
+     *
+     * @param bytes Number of bytes.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            rollWindowHelper(now);
+            windowBytes += bytes;
+            passedBytes += bytes;
+            if (bytesPerSecond == 0L) {
+                return;
+            }
+            refillHelper(now);
+            tokens -= bytes;
+            if (tokens >= 0D) {
+                return;
+            }
+            wait = (long) (-tokens * 1000000000D / bytesPerSecond);
+            waitNanos += wait;
+            waitCount++;
+        }
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        } finally {
+            threadWaitNanos.get()[0] += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return Total time, in nanoseconds, the calling thread has spent waiting for tokens. The
+     * difference between two calls is the part of an upload's duration that is due to the limit
+     * rather than to the network.
+     */
+    public long getThreadWaitNanos() {
+        return threadWaitNanos.get()[0];
+    }
+
+    /**
+     * @return Rate, in bytes per second, at which the bytes have passed through the bucket
+     * lately, averaged over the last few seconds.
+     */
+    public synchronized double getPassingRate() {
+        rollWindowHelper(System.nanoTime());
+        return passingRate;
+    }
+
+    /**
+     * @return A short, human readable summary of the bucket's statistics.
+     */
+    public synchronized String getStats() {
+        rollWindowHelper(System.nanoTime());
+        return "bandwidth[limit " + (bytesPerSecond == 0L ? "none" : bytesPerSecond / 1024L + " KiB/s, burst "
+                + burstBytes / 1024L + " KiB") + ", rate " + Math.round(passingRate / 1024D) + " KiB/s, passed "
+                + passedBytes / 1024L + " KiB, waited " + waitCount + " times for " + waitNanos / 1000000L + " ms]";
+    }
+
+    /**
+     * A helper method that adds the tokens that flowed in since the last refill.
+     */
+    private void refillHelper(long now) {
+        if (bytesPerSecond > 0L) {
+            tokens = Math.min(burstBytes, tokens + (now - refilledAt) * (double) bytesPerSecond / 1000000000D);
+        }
+        refilledAt = now;
+    }
+
+    /**
+     * A helper method that closes the periods of the passing rate measurement that have ended,
+     * the empty ones included.
+     */
+    private void rollWindowHelper(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW_NANOS) {
+            return;
+        }
+        long windows = elapsed / RATE_WINDOW_NANOS;
+        if (windows > MAX_IDLE_WINDOWS) {
+            passingRate = 0D;
+        } else {
+            double seconds = RATE_WINDOW_NANOS / 1000000000D;
+            passingRate += (windowBytes / seconds - passingRate) * RATE_ALPHA;
+            for (long i = 1L; i < windows; i++) {
+                passingRate -= passingRate * RATE_ALPHA;
+            }
+        }
+        windowBytes = 0L;
+        windowStart += windows * RATE_WINDOW_NANOS;
+    }
+
+    /**
+     * An input stream that takes the tokens for the bytes read from the stream it wraps, so the
+     * upload it feeds keeps to the bucket's limit. The reads are cut into small pieces so the
+     * data flows evenly instead of in bursts of whole buffers.
+     */
+    public static class ThrottledInputStream extends FilterInputStream {
+
+        // Most bytes returned by a single read:
+        private static final int MAX_READ_SIZE = 16 * 1024;
+
+        private final TokenBucket bucket;
+
+        public ThrottledInputStream(InputStream in, TokenBucket bucket) {
+            super(in);
+            if (bucket == null) {
+                throw new NullPointerException("TokenBucket param can't be null.");
+            }
+            this.bucket = bucket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                acquireHelper(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, Math.min(len, MAX_READ_SIZE));
+            if (read > 0) {
+                acquireHelper(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes aren't sent, they cost no tokens:
+            return in.skip(n);
+        }
+
+        private void acquireHelper(int bytes) throws IOException {
+            try {
+                bucket.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.droidmapper.util;
+
+/**
+ * Thrown by an {@link UploadSink} when an upload fails. It carries the HTTP status code the
+ * server answered with, if there was an answer, so the uploader can tell a server that asks it to
+ * slow down from a lost connection.
+ */
+public class UploadException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    // Status code used when the server didn't answer at all:
+    public static final int STATUS_NONE = 0;
+
+    private final int status;
+
+    /**
+     * A constructor that creates an instance of this class for a failure without an answer from
+     * the server, such as a network error.
+     *
+     * @param message The detail message.
+     * @param cause   The exception the upload failed with, can be <b>null</b>.
+     */
+    public UploadException(String message, Throwable cause) {
+        this(message, STATUS_NONE, cause);
+    }
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param message The detail message.
+     * @param status  HTTP status code the server answered with, {@link #STATUS_NONE} if it didn't.
+     * @param cause   The exception the upload failed with, can be <b>null</b>.
+     */
+    public UploadException(String message, int status, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
+
+    /**
+     * @return HTTP status code the server answered with, {@link #STATUS_NONE} if it didn't.
+     */
+    public int getStatus() {
+        return status;
+    }
+}
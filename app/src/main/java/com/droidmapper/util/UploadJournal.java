@@ -0,0 +1,662 @@
+package com.droidmapper.util;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of the photos waiting for upload. Every queued photo is appended to a journal
+ * file as an ENQUEUE record, and once it has been uploaded a COMPLETE record pointing to it is
+ * appended as well. The file is memory-mapped, so appending a record is a copy into memory, and it
+ * survives the app being stopped or killed: when the journal is opened again, the photos that have
+ * no COMPLETE record are queued again, in the order they were first queued.<br>
+ * Only the positions of the pending records are held in memory, 4(four) bytes per photo, the
+ * paths, and the content hashes the photos are checked and recognised by, stay in the file and
+ * are read only when a photo is taken from the queue, so the journal can hold hundreds of
+ * thousands of photos.<br>
+ * The COMPLETE records, and the ENQUEUE records they point to, are useless once written, so when
+ * there are more of them than there are pending photos the journal is compacted: the pending
+ * records are copied to a new file, which then replaces the old one.<br>
+ * A record's type byte is written after the rest of the record, and an ENQUEUE record carries a
+ * checksum of its path and hashes, so a record torn by a crash is recognised, and the journal
+ * ends before it.
+ * <br>
+ * The records written to the mapping survive the app being killed, only a crash of the whole
+ * device can lose the ones not yet forced to storage. So the journal is forced every few records,
+ * and when {@link #flush()} is called, rather than for every record.<br>
+ * If the journal file can't be mapped the journal still works, but in memory only.<br>
+ * <b>Note:</b> This class is thread safe.
+ */
+public class UploadJournal {
+
+    private static final String TAG = UploadJournal.class.getName();
+
+    // File header, the magic number "DMUJ" and the version:
+    private static final int MAGIC = 0x444D554A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // Record types, a 0(zero) byte marks the end of the journal:
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_COMPLETE = 2;
+    private static final byte RECORD_ENQUEUE_HASHED = 3;
+    // ENQUEUE: type, path length(short), path checksum(int), path bytes:
+    private static final int ENQUEUE_HEADER_SIZE = 1 + 2 + 4;
+    // ENQUEUE_HASHED: the same, with the flags of the hashes that are known(byte), the content
+    // hash and the image hash of the photo, 0(zero) when unknown, between the checksum, which
+    // covers them as well, and the path bytes:
+    private static final int HASH_SIZE = 32;
+    private static final int ENQUEUE_HASHED_HEADER_SIZE = ENQUEUE_HEADER_SIZE + 1 + 2 * HASH_SIZE;
+    private static final int FLAG_DIGEST = 1;
+    private static final int FLAG_IMAGE_KEY = 2;
+    // COMPLETE: type, position of the ENQUEUE record(int):
+    private static final int COMPLETE_SIZE = 1 + 4;
+
+    // The mapping starts this large and doubles every time it fills up:
+    private static final int INITIAL_MAP_SIZE = 64 * 1024;
+    // The journal isn't compacted before this many photos have been completed:
+    private static final int MIN_COMPACT_COUNT = 1024;
+    // The records are forced to storage every this many records:
+    private static final int FORCE_INTERVAL = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private ByteBuffer buffer;
+    private int writePos;
+
+    // The pending photos, as positions of their ENQUEUE records, in a growable ring, and the
+    // sizes of their files, when they were queued, in a ring alongside:
+    private int[] ring;
+    private long[] ringSizes;
+    private int ringHead, ringSize;
+    // Sum of the sizes of the photos in the queue and in flight, kept up to date as they come and
+    // go, so it is known without looking at their files:
+    private long backlogBytes;
+    // The photos taken from the queue and not yet completed or given back:
+    private final ArrayList<Entry> inFlight;
+
+    private int completedSinceCompaction, unforcedCount;
+    private boolean closed;
+
+    // Statistics:
+    private long enqueuedCount, completedCount, retriedCount, compactionCount, replayedCount;
+
+    /**
+     * Default constructor. It opens the journal file, or creates it if it doesn't exist, and queues
+     * again the photos that were not completed the last time it was used.
+     *
+     * @param file The journal file.
+     */
+    public UploadJournal(File file) {
+        if (file == null) {
+            throw new NullPointerException("File param can't be null.");
+        }
+        this.file = file;
+        ring = new int[64];
+        ringSizes = new long[64];
+        inFlight = new ArrayList<Entry>();
+
+        try {
+            replayHelper();
+        } catch (IOException e) {
+            // The queue still works, it just won't survive a restart:
+            Log.w(TAG, "UploadJournal() :: Failed to open the journal, keeping it in memory only", e);
+            buffer = ByteBuffer.allocate(INITIAL_MAP_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            writePos = HEADER_SIZE;
+            ringHead = 0;
+            ringSize = 0;
+            backlogBytes = 0L;
+        }
+        replayedCount = ringSize;
+        Log.d(TAG, "UploadJournal() :: " + getStats());
+    }
+
+    /**
+     * Adds a photo to the end of the queue.
+     *
+     * @param path Path to the photo on local storage.
+     * @param size Size of the photo's file, in bytes.
+     * @return <b>true</b> if the photo was queued, <b>false</b> if the journal is closed or the
+     * path is too long.
+     */
+    public boolean append(String path, long size) {
+        return append(path, size, null, null);
+    }
+
+    /**
+     * Adds a photo to the end of the queue, together with its hashes, which are handed back with
+     * the photo when it is taken from the queue.
+     *
+     * @param path     Path to the photo on local storage.
+     * @param size     Size of the photo's file, in bytes.
+     * @param digest   Content hash of the photo's file, 32(thirty two) bytes, can be <b>null</b>.
+     * @param imageKey Content hash of the photo's file without its EXIF segment, 32(thirty two)
+     *                 bytes, can be <b>null</b>.
+     * @return <b>true</b> if the photo was queued, <b>false</b> if the journal is closed or the
+     * path is too long.
+     */
+    public synchronized boolean append(String path, long size, byte[] digest, byte[] imageKey) {
+        if (closed) {
+            return false;
+        }
+        if (digest != null && digest.length != HASH_SIZE) {
+            throw new IllegalArgumentException("Param digest has to be " + HASH_SIZE + " bytes long.");
+        }
+        if (imageKey != null && imageKey.length != HASH_SIZE) {
+            throw new IllegalArgumentException("Param imageKey has to be " + HASH_SIZE + " bytes long.");
+        }
+        byte[] pathBytes = path.getBytes(UTF_8);
+        if (pathBytes.length > Short.MAX_VALUE) {
+            Log.w(TAG, "append() :: Path too long " + path);
+            return false;
+        }
+        boolean hashed = digest != null || imageKey != null;
+        int headerSize = hashed ? ENQUEUE_HASHED_HEADER_SIZE : ENQUEUE_HEADER_SIZE;
+
+        int pos = reserveHelper(headerSize + pathBytes.length);
+        buffer.putShort(pos + 1, (short) pathBytes.length);
+        ByteBuffer dup = buffer.duplicate();
+        if (hashed) {
+            dup.position(pos + ENQUEUE_HEADER_SIZE);
+            dup.put((byte) ((digest != null ? FLAG_DIGEST : 0) | (imageKey != null ? FLAG_IMAGE_KEY : 0)));
+            dup.put(digest != null ? digest : new byte[HASH_SIZE]);
+            dup.put(imageKey != null ? imageKey : new byte[HASH_SIZE]);
+        }
+        dup.position(pos + headerSize);
+        dup.put(pathBytes);
+        buffer.putInt(pos + 3, checksumHelper(buffer, pos, headerSize, pathBytes.length));
+        // The type last, it makes the record valid:
+        buffer.put(pos, hashed ? RECORD_ENQUEUE_HASHED : RECORD_ENQUEUE);
+        if (++unforcedCount >= FORCE_INTERVAL) {
+            forceHelper();
+        }
+
+        pushHelper(pos, size);
+        backlogBytes += size;
+        enqueuedCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Takes the photo at the head of the queue, sleeping until there is one. The photo stays in
+     * the journal until it is passed to {@link #complete(Entry)}, or is given back with
+     * {@link #retry(Entry)}.
+     *
+     * @return The photo, or <b>null</b> if the journal has been closed.
+     * @throws InterruptedException If the calling thread is interrupted while sleeping.
+     */
+    public synchronized Entry take() throws InterruptedException {
+        while (ringSize == 0 && !closed) {
+            wait();
+        }
+        return pollHelper();
+    }
+
+    /**
+     * Takes the photo at the head of the queue, sleeping until there is one, but no longer than
+     * the given time. Like with {@link #take()}, the photo stays in the journal until it is
+     * completed or given back.
+     *
+     * @param timeoutMs Longest time to sleep, in milliseconds.
+     * @return The photo, or <b>null</b> if there was none in time or the journal has been closed.
+     * @throws InterruptedException If the calling thread is interrupted while sleeping.
+     */
+    public synchronized Entry poll(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (ringSize == 0 && !closed && remaining > 0L) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (ringSize == 0) {
+            return null;
+        }
+        return pollHelper();
+    }
+
+    /**
+     * A helper method that removes the photo at the head of the queue and marks it as in flight.
+     *
+     * @return The photo, or <b>null</b> if the journal has been closed.
+     */
+    private Entry pollHelper() {
+        if (closed) {
+            return null;
+        }
+        int pos = ring[ringHead];
+        long size = ringSizes[ringHead];
+        ringHead = (ringHead + 1) % ring.length;
+        ringSize--;
+
+        Entry entry = new Entry(pos, readPathHelper(pos), size, readHashHelper(pos, FLAG_DIGEST),
+                readHashHelper(pos, FLAG_IMAGE_KEY));
+        inFlight.add(entry);
+        return entry;
+    }
+
+    /**
+     * Marks a photo as done, it will not be queued again.
+     *
+     * @param entry The photo, as returned by {@link #take()}.
+     */
+    public synchronized void complete(Entry entry) {
+        if (!inFlight.remove(entry)) {
+            return;
+        }
+        backlogBytes -= entry.size;
+        int pos = reserveHelper(COMPLETE_SIZE);
+        buffer.putInt(pos + 1, entry.position);
+        buffer.put(pos, RECORD_COMPLETE);
+        // An upload that finishes after the journal is closed is still recorded:
+        if (++unforcedCount >= FORCE_INTERVAL || closed) {
+            forceHelper();
+        }
+        completedCount++;
+        if (closed) {
+            return;
+        }
+
+        // Compact once most of the journal is dead records:
+        if (++completedSinceCompaction >= MIN_COMPACT_COUNT && completedSinceCompaction > ringSize + inFlight.size()) {
+            try {
+                compactHelper();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gives a photo that couldn't be uploaded back to the queue, at its end, so that a photo that
+     * keeps failing doesn't hold up the others. Once the journal is closed the photo only leaves
+     * the backlog, it is queued again the next time the journal is opened.
+     *
+     * @param entry The photo, as returned by {@link #take()}.
+     */
+    public synchronized void retry(Entry entry) {
+        if (!inFlight.remove(entry)) {
+            return;
+        }
+        if (closed) {
+            backlogBytes -= entry.size;
+            return;
+        }
+        pushHelper(entry.position, entry.size);
+        retriedCount++;
+        notifyAll();
+    }
+
+    /**
+     * Forces the records written since the last flush to storage, if there are any.
+     */
+    public synchronized void flush() {
+        if (unforcedCount > 0) {
+            forceHelper();
+        }
+    }
+
+    /**
+     * Flushes the journal to storage and closes it, waking up the threads waiting in
+     * {@link #take()}. The photos not completed by then are queued again the next time the journal
+     * is opened.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        forceHelper();
+        Log.d(TAG, "close() :: " + getStats());
+        notifyAll();
+    }
+
+    /**
+     * @return Number of photos waiting in the queue, not counting the ones taken from it.
+     */
+    public synchronized int getPendingCount() {
+        return ringSize;
+    }
+
+    /**
+     * @return Number of photos taken from the queue and not yet completed.
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return Number of bytes of the photos not yet completed, the ones waiting in the queue and
+     * the ones taken from it, as their files were when they were queued.
+     */
+    public synchronized long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    /**
+     * @return A short, human readable summary of the journal's statistics.
+     */
+    public synchronized String getStats() {
+        return "journal[pending " + ringSize + ", in flight " + inFlight.size() + ", replayed " + replayedCount
+                + ", queued " + enqueuedCount + ", done " + completedCount + ", retried " + retriedCount + ", size "
+                + writePos / 1024 + " KiB, backlog " + backlogBytes / 1024L + " KiB, compactions " + compactionCount
+                + (buffer instanceof MappedByteBuffer ? "" : ", in memory") + "]";
+    }
+
+    /**
+     * Helper method that reads the journal file, if any, and rewrites it with only the pending
+     * records, which are then queued.
+     */
+    private void replayHelper() throws IOException {
+        int[] pending = new int[0];
+        int pendingCount = 0;
+        ByteBuffer old = null;
+
+        if (file.exists() && file.length() > HEADER_SIZE) {
+            old = mapHelper(file, (int) Math.min(file.length(), Integer.MAX_VALUE));
+            if (old.getInt(0) == MAGIC && old.getInt(4) == VERSION) {
+                int[] enqueued = new int[64];
+                int[] completed = new int[64];
+                int enqueuedRecords = 0, completedRecords = 0;
+                int pos = HEADER_SIZE;
+                int end = old.capacity();
+                while (pos < end) {
+                    byte type = old.get(pos);
+                    int headerSize = type == RECORD_ENQUEUE_HASHED ? ENQUEUE_HASHED_HEADER_SIZE : ENQUEUE_HEADER_SIZE;
+                    if ((type == RECORD_ENQUEUE || type == RECORD_ENQUEUE_HASHED) && pos + headerSize <= end) {
+                        int length = old.getShort(pos + 1);
+                        if (length < 0 || pos + headerSize + length > end) {
+                            break;
+                        }
+                        if (checksumHelper(old, pos, headerSize, length) != old.getInt(pos + 3)) {
+                            // Torn by a crash, the journal ends here:
+                            break;
+                        }
+                        if (enqueuedRecords == enqueued.length) {
+                            enqueued = Arrays.copyOf(enqueued, enqueuedRecords * 2);
+                        }
+                        enqueued[enqueuedRecords++] = pos;
+                        pos += headerSize + length;
+                    } else if (type == RECORD_COMPLETE && pos + COMPLETE_SIZE <= end) {
+                        if (completedRecords == completed.length) {
+                            completed = Arrays.copyOf(completed, completedRecords * 2);
+                        }
+                        completed[completedRecords++] = old.getInt(pos + 1);
+                        pos += COMPLETE_SIZE;
+                    } else {
+                        break;
+                    }
+                }
+
+                // The pending records are the ENQUEUE records no COMPLETE record points to, the
+                // ENQUEUE records are already in order:
+                Arrays.sort(completed, 0, completedRecords);
+                pending = new int[enqueuedRecords];
+                for (int i = 0; i < enqueuedRecords; i++) {
+                    if (Arrays.binarySearch(completed, 0, completedRecords, enqueued[i]) < 0) {
+                        pending[pendingCount++] = enqueued[i];
+                    }
+                }
+            } else {
+                Log.w(TAG, "replayHelper() :: Unknown journal format, starting over");
+            }
+        }
+
+        int[] newPositions = rewriteHelper(old, pending, pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            long size = new File(readPathHelper(newPositions[i])).length();
+            pushHelper(newPositions[i], size);
+            backlogBytes += size;
+        }
+    }
+
+    /**
+     * Helper method that rewrites the journal with only the pending records, the ones in the queue
+     * and the ones in flight, and updates their positions.
+     */
+    private void compactHelper() throws IOException {
+        long start = System.nanoTime();
+        int liveCount = ringSize + inFlight.size();
+        int[] live = new int[liveCount];
+        for (int i = 0; i < ringSize; i++) {
+            live[i] = ring[(ringHead + i) % ring.length];
+        }
+        for (int i = 0; i < inFlight.size(); i++) {
+            live[ringSize + i] = inFlight.get(i).position;
+        }
+        // Keep the records in the order they were queued:
+        Arrays.sort(live);
+        int[] newPositions = rewriteHelper(buffer, live, liveCount);
+
+        for (int i = 0; i < ringSize; i++) {
+            int index = (ringHead + i) % ring.length;
+            ring[index] = newPositions[Arrays.binarySearch(live, ring[index])];
+        }
+        for (Entry entry : inFlight) {
+            entry.position = newPositions[Arrays.binarySearch(live, entry.position)];
+        }
+        completedSinceCompaction = 0;
+        compactionCount++;
+        Log.d(TAG, "compactHelper() :: Took " + (System.nanoTime() - start) / 1000000L + " ms, " + getStats());
+    }
+
+    /**
+     * Helper method that writes a new journal file with the given ENQUEUE records, copied from the
+     * old journal, replaces the old file with it and maps it.
+     *
+     * @param old       The old journal, can be <b>null</b> if there are no records to copy.
+     * @param positions Positions of the records in the old journal, in the order to write them.
+     * @param count     Number of the records.
+     * @return Positions of the records in the new journal.
+     */
+    private int[] rewriteHelper(ByteBuffer old, int[] positions, int count) throws IOException {
+        int[] newPositions = new int[count];
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < count; i++) {
+                int pos = positions[i];
+                int length = headerSizeHelper(old, pos) + old.getShort(pos + 1);
+                newPositions[i] = out.size();
+                for (int j = 0; j < length; j++) {
+                    out.write(old.get(pos + j));
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+
+        int newWritePos = (int) file.length();
+        buffer = mapHelper(file, Math.max(INITIAL_MAP_SIZE, Integer.highestOneBit(newWritePos) * 2));
+        writePos = newWritePos;
+        unforcedCount = 0;
+        return newPositions;
+    }
+
+    /**
+     * Helper method that reserves room for a record at the end of the journal, growing the mapping
+     * if needed.
+     *
+     * @return Position of the record.
+     */
+    private int reserveHelper(int length) {
+        if (writePos + length > buffer.capacity()) {
+            int capacity = buffer.capacity();
+            while (writePos + length > capacity) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = null;
+            if (buffer instanceof MappedByteBuffer) {
+                try {
+                    ((MappedByteBuffer) buffer).force();
+                    grown = mapHelper(file, capacity);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (grown == null) {
+                // Keep going in memory:
+                grown = ByteBuffer.allocate(capacity);
+                ByteBuffer dup = buffer.duplicate();
+                dup.position(0);
+                dup.limit(writePos);
+                grown.put(dup);
+            }
+            buffer = grown;
+        }
+        int pos = writePos;
+        writePos += length;
+        return pos;
+    }
+
+    private String readPathHelper(int pos) {
+        byte[] pathBytes = new byte[buffer.getShort(pos + 1)];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos + headerSizeHelper(buffer, pos));
+        dup.get(pathBytes);
+        return new String(pathBytes, UTF_8);
+    }
+
+    /**
+     * @param pos  Position of an ENQUEUE record.
+     * @param flag The hash to read, FLAG_DIGEST or FLAG_IMAGE_KEY.
+     * @return The hash, or <b>null</b> if the record doesn't have it.
+     */
+    private byte[] readHashHelper(int pos, int flag) {
+        if (buffer.get(pos) != RECORD_ENQUEUE_HASHED || (buffer.get(pos + ENQUEUE_HEADER_SIZE) & flag) == 0) {
+            return null;
+        }
+        byte[] hash = new byte[HASH_SIZE];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos + ENQUEUE_HEADER_SIZE + 1 + (flag == FLAG_DIGEST ? 0 : HASH_SIZE));
+        dup.get(hash);
+        return hash;
+    }
+
+    /**
+     * @return Size of the header of the ENQUEUE record at the given position, the part before
+     * its path.
+     */
+    private static int headerSizeHelper(ByteBuffer buf, int pos) {
+        return buf.get(pos) == RECORD_ENQUEUE_HASHED ? ENQUEUE_HASHED_HEADER_SIZE : ENQUEUE_HEADER_SIZE;
+    }
+
+    /**
+     * Helper method that computes the checksum of an ENQUEUE record, over everything after its
+     * header's checksum field, the hashes and the path.
+     */
+    private static int checksumHelper(ByteBuffer buf, int pos, int headerSize, int pathLength) {
+        int from = pos + ENQUEUE_HEADER_SIZE;
+        byte[] bytes = new byte[headerSize - ENQUEUE_HEADER_SIZE + pathLength];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(from);
+        dup.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private void pushHelper(int pos, long size) {
+        if (ringSize == ring.length) {
+            int[] grown = new int[ring.length * 2];
+            long[] grownSizes = new long[ring.length * 2];
+            for (int i = 0; i < ringSize; i++) {
+                grown[i] = ring[(ringHead + i) % ring.length];
+                grownSizes[i] = ringSizes[(ringHead + i) % ring.length];
+            }
+            ring = grown;
+            ringSizes = grownSizes;
+            ringHead = 0;
+        }
+        ring[(ringHead + ringSize) % ring.length] = pos;
+        ringSizes[(ringHead + ringSize) % ring.length] = size;
+        ringSize++;
+    }
+
+    private void forceHelper() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+        unforcedCount = 0;
+    }
+
+    /**
+     * Helper method that maps the given number of bytes of a file, growing the file if needed. The
+     * mapping stays valid after the file is closed.
+     */
+    private static MappedByteBuffer mapHelper(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A photo taken from the queue.
+     */
+    public static class Entry {
+
+        // Position of the photo's ENQUEUE record, changed when the journal is compacted:
+        private int position;
+        private final String path;
+        // Size of the photo's file when it was queued:
+        private final long size;
+        // The photo's hashes, null if unknown:
+        private final byte[] digest, imageKey;
+
+        private Entry(int position, String path, long size, byte[] digest, byte[] imageKey) {
+            this.position = position;
+            this.path = path;
+            this.size = size;
+            this.digest = digest;
+            this.imageKey = imageKey;
+        }
+
+        /**
+         * @return Path to the photo on local storage.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return Content hash of the photo's file when it was queued, or <b>null</b> if unknown.
+         */
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return Content hash of the photo's file without its EXIF segment, or <b>null</b> if
+         * unknown.
+         */
+        public byte[] getImageKey() {
+            return imageKey;
+        }
+    }
+}
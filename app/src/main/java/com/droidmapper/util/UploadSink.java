@@ -0,0 +1,61 @@
+package com.droidmapper.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+/**
+ * The destination the {@link DropboxUploaderThread} uploads the photos to. The uploader decides
+ * what is uploaded, when, and how many uploads run at the same time, a sink only knows how to
+ * store a single file. Besides Dropbox, with {@link DropboxUploadSink}, the photos can be
+ * uploaded to a directory on local storage, with {@link LocalDirectoryUploadSink}, or to any HTTP
+ * server that accepts PUT requests, with {@link HttpUploadSink}.<br>
+ * <b>Note:</b> Implementations have to be thread safe, the uploader runs several uploads at the
+ * same time.
+ */
+public interface UploadSink {
+
+    /**
+     * Uploads data of a known length from a stream.
+     *
+     * @param remotePath Path the data is stored under, starting with a slash.
+     * @param in         The stream the data is read from, it is not closed.
+     * @param length     Number of bytes to upload.
+     * @return Number of bytes the sink stored.
+     * @throws UploadException If the upload fails, it can be retried.
+     */
+    long upload(String remotePath, InputStream in, long length) throws UploadException;
+
+    /**
+     * Uploads a file. Large files may be uploaded in chunks, so that an interrupted upload can be
+     * resumed.
+     *
+     * @param remotePath Path the file is stored under, starting with a slash.
+     * @param file       The file.
+     * @param hasher     The hasher the file's bytes are fed to, in order, as they are read for the
+     *                   upload, so the file is checked without being read once more, can be
+     *                   <b>null</b>. It holds the whole file once the upload succeeds.
+     * @return Number of bytes the sink stored.
+     * @throws FileNotFoundException If the file does not exist.
+     * @throws UploadException       If the upload fails, it can be retried.
+     */
+    long upload(String remotePath, File file, ContentHasher hasher) throws FileNotFoundException, UploadException;
+
+    /**
+     * Uploads data of an unknown length from a stream, such as a photo that is encoded while it
+     * is uploaded.
+     *
+     * @param remotePath Path the data is stored under, starting with a slash.
+     * @param in         The stream the data is read from, it is not closed.
+     * @param source     The file the data is made from, it identifies the upload if the sink
+     *                   resumes interrupted uploads.
+     * @return Number of bytes the sink stored.
+     * @throws UploadException If the upload fails, it can be retried.
+     */
+    long uploadStream(String remotePath, InputStream in, File source) throws UploadException;
+
+    /**
+     * @return A short, human readable summary of the sink's statistics.
+     */
+    String getStats();
+}
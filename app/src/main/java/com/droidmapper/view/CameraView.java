@@ -10,6 +10,8 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.widget.Toast;
 
+import com.droidmapper.util.CameraSettings;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -18,14 +20,27 @@ import java.util.List;
 
 /**
  * A view that invokes the camera, renders its preview in the best possible resolution and provides
- * a way for clients to capture JPG encoded pictures.
+ * a way for clients to capture JPG encoded pictures or, in the preview frame capture mode, to grab
+ * NV21 encoded frames from the preview stream into a pool of reusable buffers.
  */
 public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
 
     private static final String TAG = CameraView.class.getName();
 
+    // Number of preview buffers handed to the camera in the preview frame capture mode. One is
+    // being filled by the camera while the others can wait in the capture pipeline:
+    private static final int PREVIEW_BUFFER_COUNT = 3;
+
+    private volatile PreviewFrameCallback pendingFrameCallback;
+    private volatile CameraSettings cameraSettings;
+    private Location pendingGpsLocation, appliedGpsLocation;
     private boolean failedToConnectToCameraService;
+    private Camera.Parameters parameters;
+    private float previewFrameCaptureScale;
+    private boolean previewFrameCapture;
     private SurfaceHolder previewHolder;
+    private int previewBufferSize;
+    private int previewWidth, previewHeight;
     private Camera camera;
 
     /**
@@ -166,10 +181,6 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
 //                    }
 //                }
 //            }
-            // Pick the smallest resolution:
-            Camera.Size previewSize = prevSizes.get(0);
-            Log.d(TAG, "surfaceChanged() :: Selected preview size is " + previewSize.width + "x" + previewSize.height);
-
             // Camera also supports a fixed set of sizes of pictures that can be taken with the
             // camera, figure out the maximal:
             Camera.Size pictureSize = null;
@@ -183,10 +194,36 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
                 }
             }
 
+            Camera.Size previewSize;
+            if (previewFrameCapture && pictureSize != null) {
+                // The preview frames are the photos, pick the smallest resolution that is at
+                // least as wide as the requested photo size, or the largest one if none is:
+                int targetWidth = Math.round(pictureSize.width * previewFrameCaptureScale);
+                previewSize = prevSizes.get(prevSizes.size() - 1);
+                for (Camera.Size size : prevSizes) {
+                    if (size.width >= targetWidth) {
+                        previewSize = size;
+                        break;
+                    }
+                }
+            } else {
+                // Pick the smallest resolution:
+                previewSize = prevSizes.get(0);
+            }
+            Log.d(TAG, "surfaceChanged() :: Selected preview size is " + previewSize.width + "x" + previewSize.height);
+
             if (previewSize != null && pictureSize != null) {
                 // Pick the best FPS range(mix and max number of preview frames sent to the screen
                 // each second:
                 int[] previewBestFpsRange = parameters.getSupportedPreviewFpsRange().get(0);
+                if (previewFrameCapture) {
+                    // The preview frames are the photos, so go for the fastest range:
+                    for (int[] range : parameters.getSupportedPreviewFpsRange()) {
+                        if (range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] > previewBestFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]) {
+                            previewBestFpsRange = range;
+                        }
+                    }
+                }
 
                 // Set the parameters:
                 parameters.setPreviewSize(previewSize.width, previewSize.height);
@@ -204,6 +241,17 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
                     parameters.setZoom(0);
                 }
                 camera.setParameters(parameters);
+
+                // Keep the parameters, so that they never have to be read from the camera
+                // service again, and take a snapshot of the ones used in the EXIF data:
+                this.parameters = parameters;
+                cameraSettings = new CameraSettings(parameters.getFlashMode(), parameters.getFocalLength(),
+                        parameters.getWhiteBalance(), parameters.get("aperture"));
+                appliedGpsLocation = null;
+
+                if (previewFrameCapture) {
+                    setUpPreviewBuffersHelper(previewSize.width, previewSize.height);
+                }
             }
 
             camera.startPreview();
@@ -221,10 +269,13 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
         camera.cancelAutoFocus();
         camera.stopPreview();
         camera.setPreviewCallback(null);
-        if (camera != null) {
-            camera.release();
+        synchronized (this) {
+            if (camera != null) {
+                camera.release();
+            }
+            camera = null;
         }
-        camera = null;
+        pendingFrameCallback = null;
     }
 
     /**
@@ -234,10 +285,78 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
      * @param pictureCallback The callback for JPEG image data.
      */
     public void takePicture(Camera.PictureCallback pictureCallback) {
+        takePicture(null, pictureCallback);
+    }
+
+    /**
+     * Use this method to take a picture from camera. The onShutter() callback of the
+     * ShutterCallback instance supplied as parameter is invoked at the moment the picture is
+     * captured, and a JPEG encoded picture will be delivered later in a onPictureTaken() callback
+     * of the PictureCallback instance.
+     *
+     * @param shutterCallback The callback for the moment of capture, can be <b>null</b>.
+     * @param pictureCallback The callback for JPEG image data.
+     */
+    public void takePicture(Camera.ShutterCallback shutterCallback, Camera.PictureCallback pictureCallback) {
         if (pictureCallback == null) {
             throw new NullPointerException("Picture callback parameter can't be null.");
         }
-        camera.takePicture(null, null, null, pictureCallback);
+        applyPendingGpsLocationHelper();
+        camera.takePicture(shutterCallback, null, null, pictureCallback);
+    }
+
+    /**
+     * Enables or disables the preview frame capture mode. In this mode photos are grabbed from the
+     * camera preview stream with {@link #grabPreviewFrame(PreviewFrameCallback)} instead of being
+     * taken with {@link #takePicture(Camera.PictureCallback)}, which doesn't stop the preview and
+     * so allows much shorter intervals. The preview resolution is then picked to match the
+     * requested photo size, instead of being the smallest one. This method has to be called
+     * before the view's surface is created.
+     *
+     * @param enabled Whether the preview frame capture mode should be used.
+     * @param scale   A float value between 0 and 1, that represents the size of the photos
+     *                relative to the largest picture size of the camera.
+     */
+    public void setPreviewFrameCapture(boolean enabled, float scale) {
+        if (scale <= 0F || scale > 1F) {
+            throw new IllegalArgumentException("Param scale must be greater than 0(zero) and not greater than 1(one).");
+        }
+        previewFrameCapture = enabled;
+        previewFrameCaptureScale = scale;
+    }
+
+    /**
+     * Use this method to grab a photo from the camera preview stream, in the preview frame capture
+     * mode. The next preview frame will be delivered, in NV21 format, in a onPreviewFrame() callback
+     * of the PreviewFrameCallback instance supplied as parameter. The frame's buffer belongs to
+     * the camera's buffer pool, it has to be given back with
+     * {@link #recyclePreviewBuffer(byte[])} as soon as it is no longer needed.
+     *
+     * @param previewFrameCallback The callback for the preview frame data.
+     */
+    public void grabPreviewFrame(PreviewFrameCallback previewFrameCallback) {
+        if (previewFrameCallback == null) {
+            throw new NullPointerException("Preview frame callback parameter can't be null.");
+        }
+        if (!previewFrameCapture) {
+            throw new IllegalStateException("Preview frame capture mode is not enabled.");
+        }
+        pendingFrameCallback = previewFrameCallback;
+    }
+
+    /**
+     * Gives a preview buffer, received in a PreviewFrameCallback, back to the camera so that it
+     * can be filled again. It is safe to call this method from any thread.
+     *
+     * @param buffer The buffer to give back.
+     */
+    public void recyclePreviewBuffer(byte[] buffer) {
+        synchronized (this) {
+            // Buffers of a previous preview size are simply dropped:
+            if (camera != null && buffer != null && buffer.length == previewBufferSize) {
+                camera.addCallbackBuffer(buffer);
+            }
+        }
     }
 
     /**
@@ -249,27 +368,111 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
         }
     }
 
-    public Camera.Parameters getCameraParams() {
-        return camera.getParameters();
+    /**
+     * @return A snapshot of the camera settings the photos are taken with, or <b>null</b> if the
+     * camera is not configured yet. It is taken once, when the camera is configured, so calling
+     * this method is cheap.
+     */
+    public CameraSettings getCameraSettings() {
+        return cameraSettings;
     }
 
     /**
-     * Sets the location the camera uses to geo tag images.
+     * Sets the location the camera uses to geo tag images. The location is not sent to the camera
+     * right away, only the latest one is, right before the next picture is taken, so the camera
+     * parameters are updated at most once per picture no matter how often the location changes.
      *
      * @param deviceLocation The new location for geo tagging.
      */
     public void setGeoTaggingLocation(Location deviceLocation) {
-        if (deviceLocation != null && camera != null && !failedToConnectToCameraService) {
-            Camera.Parameters parameters = camera.getParameters();
+        if (deviceLocation != null) {
+            pendingGpsLocation = deviceLocation;
+        }
+    }
+
+    /**
+     * Helper method that sends the latest location set with setGeoTaggingLocation() to the
+     * camera, if it changed since the last picture.
+     */
+    private void applyPendingGpsLocationHelper() {
+        Location deviceLocation = pendingGpsLocation;
+        if (deviceLocation != null && deviceLocation != appliedGpsLocation && parameters != null && !failedToConnectToCameraService) {
             parameters.setGpsAltitude(deviceLocation.getAltitude());
             parameters.setGpsLatitude(deviceLocation.getLatitude());
             parameters.setGpsLongitude(deviceLocation.getLongitude());
             parameters.setGpsProcessingMethod(deviceLocation.getProvider());
             parameters.setGpsTimestamp(deviceLocation.getTime());
             camera.setParameters(parameters);
+            appliedGpsLocation = deviceLocation;
+        }
+    }
+
+    /**
+     * Helper method that allocates the pool of preview buffers, hands it to the camera and starts
+     * listening for preview frames. The pool is allocated only once per preview size, surface
+     * changes that keep the size reuse it.
+     *
+     * @param width  Width of the preview frames.
+     * @param height Height of the preview frames.
+     */
+    private void setUpPreviewBuffersHelper(int width, int height) {
+        synchronized (this) {
+            int bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            if (bufferSize != previewBufferSize) {
+                previewWidth = width;
+                previewHeight = height;
+                previewBufferSize = bufferSize;
+                for (int i = 0; i < PREVIEW_BUFFER_COUNT; i++) {
+                    camera.addCallbackBuffer(new byte[previewBufferSize]);
+                }
+            }
+            camera.setPreviewCallbackWithBuffer(previewCallback);
         }
     }
 
+    /**
+     * An instance of the PreviewCallback interface whose callback method is invoked by the camera
+     * for every preview frame, in the preview frame capture mode.
+     */
+    private Camera.PreviewCallback previewCallback = new Camera.PreviewCallback() {
+
+        /**
+         * Called as preview frames are displayed. It hands the frame over to the pending
+         * PreviewFrameCallback, if there is one, otherwise it gives the buffer straight back to
+         * the camera.
+         *
+         * @param data The contents of the preview frame in NV21 format.
+         * @param camera The Camera service object.
+         */
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            PreviewFrameCallback callback = pendingFrameCallback;
+            if (callback != null && data != null) {
+                pendingFrameCallback = null;
+                callback.onPreviewFrame(data, previewWidth, previewHeight);
+            } else {
+                recyclePreviewBuffer(data);
+            }
+        }
+    };
+
+    /**
+     * Callback interface used to deliver the preview frames grabbed in the preview frame capture
+     * mode.
+     */
+    public interface PreviewFrameCallback {
+
+        /**
+         * Called when a preview frame is grabbed.
+         *
+         * @param data   The contents of the preview frame in NV21 format. Once it is no longer
+         *               needed it has to be given back with recyclePreviewBuffer().
+         * @param width  Width of the preview frame.
+         * @param height Height of the preview frame.
+         */
+        void onPreviewFrame(byte[] data, int width, int height);
+    }
+
     /**
      * Helper method used by class constructors to initialize the preview holder and open the camera.
      */
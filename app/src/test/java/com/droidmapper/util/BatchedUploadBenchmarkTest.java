@@ -0,0 +1,124 @@
+package com.droidmapper.util;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A benchmark of the uploads of a burst of preview frames, one request per frame against batches
+ * of frames, through an {@link HttpUploadSink} to an {@link UploadTestServer} that adds a fixed
+ * latency to every request. The time is taken from the first frame queued until the last one has
+ * been uploaded, including the partial batch at the end, which waits for the batch delay.<br>
+ * It takes some time and its numbers depend on the machine, so it is only run on demand, by
+ * removing the {@link Ignore} annotation. It prints the frames per second of each mode.
+ */
+@Ignore("A benchmark, run on demand")
+public class BatchedUploadBenchmarkTest {
+
+    // A burst of frames that doesn't divide into whole batches, so the last batch is partial:
+    private static final int FRAME_COUNT = 200;
+    private static final int FRAME_SIZE = 40 * 1024;
+    private static final int BATCH_MAX_PHOTOS = 16;
+    // Short enough not to dominate the time of a burst this small:
+    private static final long BATCH_MAX_DELAY_MS = 250L;
+    private static final long[] LATENCIES_MS = {20L, 80L};
+    private static final long TIMEOUT_MS = 120000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+
+    @Test
+    public void batchedUploadsMoveMoreFramesPerSecond() throws Exception {
+        for (long latencyMs : LATENCIES_MS) {
+            double single = runHelper(latencyMs, false);
+            double batched = runHelper(latencyMs, true);
+            System.out.println(String.format("%d ms/request: %.1f frames/s single, %.1f frames/s batched", latencyMs,
+                    single, batched));
+        }
+    }
+
+    /**
+     * Uploads a burst of frames to a new server.
+     *
+     * @return Frames uploaded per second.
+     */
+    private double runHelper(long latencyMs, boolean batching) throws Exception {
+        File photoDir = folder.newFolder();
+        File storeDir = folder.newFolder();
+        File[] frames = new File[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            frames[i] = frameHelper(photoDir, String.format("frame%04d.jpg", i));
+        }
+        UploadTestServer server = new UploadTestServer(storeDir, 1L);
+        server.setLatency(latencyMs);
+        server.start(0);
+        DropboxUploaderThread uploader = new DropboxUploaderThread(1F, 0L, new HttpUploadSink(server.getBaseUrl()),
+                null, folder.newFolder());
+        if (batching) {
+            uploader.setBatching(BATCH_MAX_PHOTOS, BATCH_MAX_DELAY_MS);
+        }
+        uploader.start();
+        double framesPerSecond;
+        try {
+            long start = System.nanoTime();
+            for (File frame : frames) {
+                uploader.queuePhoto(frame.getPath());
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (uploader.getBacklogBytes() > 0L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1L);
+            }
+            framesPerSecond = FRAME_COUNT / ((System.nanoTime() - start) / 1e9);
+            assertEquals(0L, uploader.getBacklogBytes());
+        } finally {
+            uploader.halt();
+            uploader.join(TIMEOUT_MS);
+            server.stop();
+        }
+
+        // Every frame arrived, on its own or in an archive:
+        assertEquals(FRAME_COUNT, countFramesHelper(storeDir));
+        return framesPerSecond;
+    }
+
+    private File frameHelper(File dir, String name) throws IOException {
+        byte[] data = new byte[FRAME_SIZE];
+        random.nextBytes(data);
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static int countFramesHelper(File storeDir) throws IOException {
+        int count = 0;
+        for (File file : storeDir.listFiles()) {
+            if (file.getName().endsWith(".zip")) {
+                ZipFile zip = new ZipFile(file);
+                try {
+                    count += zip.size();
+                } finally {
+                    zip.close();
+                }
+            } else if (file.getName().endsWith(".jpg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
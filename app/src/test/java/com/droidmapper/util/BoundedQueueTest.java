@@ -0,0 +1,201 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the bounded hand-off queue and of its full queue policies.
+ */
+public class BoundedQueueTest {
+
+    @Test
+    public void elementsComeOutInOrder() {
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(4, BoundedQueue.POLICY_BLOCK, null, null);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(round * 4 + i));
+            }
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(round * 4 + i), queue.poll());
+            }
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewElement() {
+        List<Integer> dropped = new ArrayList<Integer>();
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(2, BoundedQueue.POLICY_DROP_OLDEST, null,
+                listTo(dropped));
+        queue.offer(1);
+        queue.offer(2);
+        assertTrue(queue.offer(3));
+
+        assertEquals(1, dropped.size());
+        assertEquals(Integer.valueOf(1), dropped.get(0));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(1L, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestRejectsTheNewElement() {
+        List<Integer> dropped = new ArrayList<Integer>();
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(2, BoundedQueue.POLICY_DROP_NEWEST, null,
+                listTo(dropped));
+        queue.offer(1);
+        queue.offer(2);
+        assertFalse(queue.offer(3));
+
+        assertEquals(Integer.valueOf(3), dropped.get(0));
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.poll());
+    }
+
+    @Test
+    public void spilledElementsComeBackInOrder() {
+        final ArrayDeque<Integer> storage = new ArrayDeque<Integer>();
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(2, BoundedQueue.POLICY_SPILL,
+                new BoundedQueue.Spill<Integer>() {
+                    @Override
+                    public synchronized boolean spill(Integer item) {
+                        return storage.add(item);
+                    }
+
+                    @Override
+                    public synchronized Integer unspill() {
+                        return storage.poll();
+                    }
+                }, null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(3, queue.getSpilledSize());
+        // Room in the queue, but the spill isn't empty yet, so this one goes after the spilled ones:
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(5));
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0L, queue.getDroppedCount());
+    }
+
+    @Test
+    public void blockedProducerResumesWhenTheConsumerTakes() throws InterruptedException {
+        final BoundedQueue<Integer> queue = new BoundedQueue<Integer>(2, BoundedQueue.POLICY_BLOCK, null, null);
+        queue.offer(0);
+        queue.offer(1);
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(2);
+                offered.countDown();
+            }
+        });
+        producer.start();
+        assertFalse(offered.await(100L, TimeUnit.MILLISECONDS));
+
+        assertEquals(Integer.valueOf(0), queue.take());
+        assertTrue(offered.await(5L, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(1), queue.take());
+        assertEquals(Integer.valueOf(2), queue.take());
+        producer.join();
+    }
+
+    @Test
+    public void closeWakesUpTheWaitingConsumer() throws InterruptedException {
+        final BoundedQueue<Integer> queue = new BoundedQueue<Integer>(2, BoundedQueue.POLICY_BLOCK, null, null);
+        final Integer[] taken = {-1};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(50L);
+        queue.close();
+        consumer.join(5000L);
+
+        assertFalse(consumer.isAlive());
+        assertNull(taken[0]);
+        assertFalse(queue.offer(1));
+    }
+
+    @Test
+    public void concurrentProducersAndConsumersLoseNothing() throws InterruptedException {
+        final BoundedQueue<Integer> queue = new BoundedQueue<Integer>(8, BoundedQueue.POLICY_BLOCK, null, null);
+        final int producers = 4, perProducer = 20000;
+        final long[] sums = new long[2];
+        Thread[] threads = new Thread[producers + 2];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= perProducer; i++) {
+                        queue.offer(i);
+                    }
+                }
+            });
+        }
+        for (int c = 0; c < 2; c++) {
+            final int index = c;
+            threads[producers + c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Integer item;
+                        while ((item = queue.take()) != null) {
+                            sums[index] += item;
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int p = 0; p < producers; p++) {
+            threads[p].join();
+        }
+        queue.close();
+        threads[producers].join();
+        threads[producers + 1].join();
+
+        long expected = (long) producers * perProducer * (perProducer + 1) / 2;
+        assertEquals(expected, sums[0] + sums[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aSingleSlotIsRejected() {
+        new BoundedQueue<Integer>(1, BoundedQueue.POLICY_BLOCK, null, null);
+    }
+
+    private static BoundedQueue.DropListener<Integer> listTo(final List<Integer> dropped) {
+        return new BoundedQueue.DropListener<Integer>() {
+            @Override
+            public void onDropped(Integer item) {
+                dropped.add(item);
+            }
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package com.droidmapper.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of what happens to the rendition files of a job when it is released.
+ */
+public class CaptureJobTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aDroppedJobDeletesItsRenditions() throws IOException {
+        CaptureJob job = jobHelper();
+        File upload = new File(job.uploadPath), thumb = new File(job.thumbnailPath),
+                micro = new File(job.microThumbnailPath);
+        job.release();
+        assertFalse(upload.exists());
+        assertFalse(thumb.exists());
+        assertFalse(micro.exists());
+    }
+
+    @Test
+    public void renditionsHandedOverAreKept() throws IOException {
+        CaptureJob job = jobHelper();
+        File upload = new File(job.uploadPath), thumb = new File(job.thumbnailPath),
+                micro = new File(job.microThumbnailPath);
+        job.thumbnailsIndexed = true;
+        job.uploadQueued = true;
+        job.release();
+        assertTrue(upload.exists());
+        assertTrue(thumb.exists());
+        assertTrue(micro.exists());
+    }
+
+    @Test
+    public void onlyTheThumbnailsOfAJobDroppedAfterTheGalleryAreKept() throws IOException {
+        CaptureJob job = jobHelper();
+        File upload = new File(job.uploadPath), thumb = new File(job.thumbnailPath);
+        job.thumbnailsIndexed = true;
+        job.release();
+        assertFalse(upload.exists());
+        assertTrue(thumb.exists());
+    }
+
+    private CaptureJob jobHelper() throws IOException {
+        CaptureJob job = new CaptureJob(null, 0L, 90, null, null);
+        job.uploadPath = folder.newFile("upload.jpg").getPath();
+        job.thumbnailPath = folder.newFile("thumb.jpg").getPath();
+        job.microThumbnailPath = folder.newFile("thumb_micro.jpg").getPath();
+        return job;
+    }
+}
@@ -0,0 +1,157 @@
+package com.droidmapper.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the AIMD rule that decides how many uploads run at the same time.
+ */
+public class ConcurrencyControllerTest {
+
+    private static final long MIB = 1024L * 1024L;
+    private static final long MS = 1000000L;
+
+    private ConcurrencyController controller;
+
+    @Before
+    public void setUp() {
+        controller = new ConcurrencyController(1, 8);
+    }
+
+    @Test
+    public void startsAtTheMinimalLimit() {
+        assertEquals(1, controller.getLimit());
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    public void successesRaiseTheLimitByAboutOnePerRound() throws InterruptedException {
+        succeed(MIB, 10L * MS);
+        assertEquals(2, controller.getLimit());
+        // 2.5, 2.9, 3.24:
+        succeed(MIB, 10L * MS);
+        succeed(MIB, 10L * MS);
+        assertEquals(2, controller.getLimit());
+        succeed(MIB, 10L * MS);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void neverRaisesAboveTheMaximalLimit() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            succeed(MIB, 10L * MS);
+        }
+        assertEquals(8, controller.getLimit());
+    }
+
+    @Test
+    public void throttlingHalvesTheLimitOncePerBurst() throws InterruptedException {
+        raiseToFourHelper();
+        int[] permits = new int[4];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = controller.acquire();
+        }
+
+        // The first failure cuts, the ones of the uploads already running don't:
+        controller.release(permits[0], ConcurrencyController.OUTCOME_THROTTLED, 0L, MS);
+        assertEquals(2, controller.getLimit());
+        controller.release(permits[1], ConcurrencyController.OUTCOME_THROTTLED, 0L, MS);
+        controller.release(permits[2], ConcurrencyController.OUTCOME_FAILED, 0L, MS);
+        controller.release(permits[3], ConcurrencyController.OUTCOME_THROTTLED, 0L, MS);
+        assertEquals(2, controller.getLimit());
+
+        // A failure of an upload started after the cut cuts again, down to the minimum:
+        controller.release(controller.acquire(), ConcurrencyController.OUTCOME_FAILED, 0L, MS);
+        assertEquals(1, controller.getLimit());
+        controller.release(controller.acquire(), ConcurrencyController.OUTCOME_FAILED, 0L, MS);
+        assertEquals(1, controller.getLimit());
+    }
+
+    @Test
+    public void onlyUploadsStartedBeforeACutHoldTheNextOneBack() throws InterruptedException {
+        raiseToFourHelper();
+        int[] permits = new int[4];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = controller.acquire();
+        }
+        controller.release(permits[0], ConcurrencyController.OUTCOME_THROTTLED, 0L, MS);
+        assertEquals(2, controller.getLimit());
+
+        // The limit rises again with the successes, 2.5, 2.9 and 3.24, the ones of the uploads
+        // started after the cut included:
+        controller.release(permits[1], ConcurrencyController.OUTCOME_SUCCESS, MIB, 10L * MS);
+        controller.release(permits[2], ConcurrencyController.OUTCOME_SUCCESS, MIB, 10L * MS);
+        controller.release(controller.acquire(), ConcurrencyController.OUTCOME_SUCCESS, MIB, 10L * MS);
+        assertEquals(3, controller.getLimit());
+
+        // Those don't count as uploads running at the time of the cut, so the last of them still
+        // doesn't cut:
+        int permit = controller.acquire();
+        controller.release(permits[3], ConcurrencyController.OUTCOME_THROTTLED, 0L, MS);
+        assertEquals(3, controller.getLimit());
+
+        // But once it has finished, the one started after the cut does:
+        controller.release(permit, ConcurrencyController.OUTCOME_THROTTLED, 0L, MS);
+        assertEquals(1, controller.getLimit());
+    }
+
+    @Test
+    public void slowUploadCutsTheLimitToThreeQuarters() throws InterruptedException {
+        raiseToFourHelper();
+        // Three times slower per byte than the others of its size:
+        succeed(MIB, 30L * MS);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void smallUploadsAreNotComparedWithLargeOnes() throws InterruptedException {
+        raiseToFourHelper();
+        // The per request overhead makes them much slower per byte than the large ones, but not
+        // slower than the other small ones:
+        succeed(10L * 1024L, 5L * MS);
+        succeed(10L * 1024L, 5L * MS);
+        succeed(10L * 1024L, 6L * MS);
+        assertEquals(4, controller.getLimit());
+
+        // A small one much slower than the other small ones still cuts:
+        succeed(10L * 1024L, 20L * MS);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void cancelledUploadsDontChangeTheLimit() throws InterruptedException {
+        controller.cancel(controller.acquire());
+        assertEquals(1, controller.getLimit());
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    public void sizeClassesAreAFactorOfFourApart() {
+        assertEquals(0, ConcurrencyController.sizeClass(0L));
+        assertEquals(0, ConcurrencyController.sizeClass(64L * 1024L - 1L));
+        assertEquals(1, ConcurrencyController.sizeClass(64L * 1024L));
+        assertEquals(1, ConcurrencyController.sizeClass(256L * 1024L - 1L));
+        assertEquals(2, ConcurrencyController.sizeClass(256L * 1024L));
+        assertEquals(2, ConcurrencyController.sizeClass(MIB - 1L));
+        assertEquals(3, ConcurrencyController.sizeClass(MIB));
+        assertEquals(3, ConcurrencyController.sizeClass(4L * MIB - 1L));
+        assertEquals(4, ConcurrencyController.sizeClass(4L * MIB));
+        assertEquals(ConcurrencyController.SIZE_CLASS_COUNT - 1, ConcurrencyController.sizeClass(Long.MAX_VALUE));
+    }
+
+    /**
+     * Raises the limit from 1(one) to 4(four) with 7(seven) equally fast uploads.
+     */
+    private void raiseToFourHelper() throws InterruptedException {
+        for (int i = 0; i < 7; i++) {
+            succeed(MIB, 10L * MS);
+        }
+        assertEquals(4, controller.getLimit());
+    }
+
+    private void succeed(long bytes, long nanos) throws InterruptedException {
+        controller.release(controller.acquire(), ConcurrencyController.OUTCOME_SUCCESS, bytes, nanos);
+    }
+}
@@ -0,0 +1,122 @@
+package com.droidmapper.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of the content hashes that recognise duplicate photos and check the uploads.
+ */
+public class ContentHasherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamsHashWhatPassesThroughThem() throws IOException {
+        byte[] data = randomHelper(5 * 1024 * 1024 + 17);
+
+        ContentHasher.HashingOutputStream out = new ContentHasher.HashingOutputStream(new ByteArrayOutputStream());
+        out.write(data, 0, 1000);
+        out.write(data[1000]);
+        out.write(data, 1001, data.length - 1001);
+
+        ContentHasher.HashingInputStream in = new ContentHasher.HashingInputStream(new ByteArrayInputStream(data));
+        byte[] buffer = new byte[64 * 1024];
+        while (in.read(buffer) != -1) {
+            // Only hashing:
+        }
+
+        byte[] expected = hashHelper(data, 0);
+        assertArrayEquals(expected, out.digest());
+        assertArrayEquals(expected, in.digest());
+        assertEquals(data.length, in.getLength());
+    }
+
+    @Test
+    public void fileHashIsTheStreamHash() throws IOException {
+        byte[] data = randomHelper(300 * 1024);
+        File file = folder.newFile("photo.jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        assertArrayEquals(hashHelper(data, 0), ContentHasher.hashFile(file));
+    }
+
+    @Test
+    public void skippedBytesAreNotHashed() throws IOException {
+        byte[] data = randomHelper(10000);
+        ContentHasher hasher = new ContentHasher();
+        OutputStream out = new ContentHasher.HashingOutputStream(new ByteArrayOutputStream(), hasher, 1234L);
+        // The skipped part ends in the middle of a write:
+        out.write(data, 0, 1000);
+        out.write(data, 1000, data.length - 1000);
+
+        assertArrayEquals(hashHelper(data, 1234), hasher.digest());
+    }
+
+    @Test
+    public void imageKeyIgnoresTheExifSegment() throws IOException {
+        ExifWriter writer = new ExifWriter();
+        writer.setDateTime(1420070400000L);
+        byte[] first = writer.buildApp1Segment();
+        writer.setDateTime(1420070401000L);
+        writer.setGps(45.5, -122.25, 30.0, 1420070401000L, "gps");
+        byte[] second = writer.buildApp1Segment();
+
+        ContentHasher firstHasher = new ContentHasher(), firstImageHasher = new ContentHasher();
+        writeHelper(ExifWriterTest.JPEG, first, firstHasher, firstImageHasher);
+        ContentHasher secondHasher = new ContentHasher(), secondImageHasher = new ContentHasher();
+        writeHelper(ExifWriterTest.JPEG, second, secondHasher, secondImageHasher);
+
+        assertFalse(Arrays.equals(firstHasher.digest(), secondHasher.digest()));
+        assertArrayEquals(firstImageHasher.digest(), secondImageHasher.digest());
+
+        // A different image has a different key:
+        byte[] other = ExifWriterTest.JPEG.clone();
+        other[other.length - 3]++;
+        ContentHasher otherImageHasher = new ContentHasher();
+        writeHelper(other, first, new ContentHasher(), otherImageHasher);
+        assertFalse(Arrays.equals(firstImageHasher.digest(), otherImageHasher.digest()));
+    }
+
+    /**
+     * Writes a photo with its EXIF segment the way the capture pipeline does.
+     */
+    private static void writeHelper(byte[] jpeg, byte[] app1, ContentHasher hasher, ContentHasher imageHasher)
+            throws IOException {
+        OutputStream out = new ContentHasher.HashingOutputStream(new ByteArrayOutputStream(), hasher, 0L);
+        out = new ContentHasher.HashingOutputStream(out, imageHasher, 2 + app1.length);
+        JpegSegments.writeWithExif(jpeg, jpeg.length, app1, out);
+        out.close();
+    }
+
+    private static byte[] hashHelper(byte[] data, int offset) {
+        ContentHasher hasher = new ContentHasher();
+        hasher.update(data, offset, data.length - offset);
+        return hasher.digest();
+    }
+
+    private static byte[] randomHelper(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,64 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the set of the hashes of the recently uploaded photos.
+ */
+public class DigestIndexTest {
+
+    @Test
+    public void addedHashesAreFound() {
+        DigestIndex index = new DigestIndex(16);
+        assertFalse(index.contains(hashHelper(1L)));
+        assertTrue(index.add(hashHelper(1L)));
+        assertTrue(index.contains(hashHelper(1L)));
+        assertFalse(index.add(hashHelper(1L)));
+        assertFalse(index.contains(hashHelper(2L)));
+    }
+
+    @Test
+    public void zeroKeyIsNotTakenForAFreeSlot() {
+        DigestIndex index = new DigestIndex(16);
+        assertFalse(index.contains(hashHelper(0L)));
+        assertTrue(index.add(hashHelper(0L)));
+        assertTrue(index.contains(hashHelper(0L)));
+    }
+
+    @Test
+    public void oldestHashIsDroppedOnceFull() {
+        DigestIndex index = new DigestIndex(100);
+        for (long i = 0L; i < 150L; i++) {
+            assertTrue(index.add(hashHelper(i * 0x9E3779B97F4A7C15L)));
+        }
+        for (long i = 0L; i < 50L; i++) {
+            assertFalse(index.contains(hashHelper(i * 0x9E3779B97F4A7C15L)));
+        }
+        for (long i = 50L; i < 150L; i++) {
+            assertTrue(index.contains(hashHelper(i * 0x9E3779B97F4A7C15L)));
+        }
+    }
+
+    @Test
+    public void removedHashesAreNotFound() {
+        DigestIndex index = new DigestIndex(16);
+        for (long i = 0L; i < 8L; i++) {
+            index.add(hashHelper(i * 0x9E3779B97F4A7C15L));
+        }
+        index.remove(hashHelper(3L * 0x9E3779B97F4A7C15L));
+        assertFalse(index.contains(hashHelper(3L * 0x9E3779B97F4A7C15L)));
+        for (long i = 0L; i < 8L; i++) {
+            assertTrue(i == 3L || index.contains(hashHelper(i * 0x9E3779B97F4A7C15L)));
+        }
+        assertTrue(index.add(hashHelper(3L * 0x9E3779B97F4A7C15L)));
+    }
+
+    private static byte[] hashHelper(long key) {
+        return ByteBuffer.allocate(32).putLong(key).array();
+    }
+}
@@ -0,0 +1,180 @@
+package com.droidmapper.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the uploader, uploading through an {@link HttpUploadSink} to an
+ * {@link UploadTestServer}.
+ */
+public class DropboxUploaderThreadTest {
+
+    // Longest time, in milliseconds, a test waits for the uploads:
+    private static final long TIMEOUT_MS = 20000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+    private File photoDir, storeDir;
+    private UploadTestServer server;
+    private DropboxUploaderThread uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        photoDir = folder.newFolder("photos");
+        storeDir = folder.newFolder("server");
+        server = new UploadTestServer(storeDir, 1L);
+        server.setLatency(20L);
+        server.start(0);
+        uploader = new DropboxUploaderThread(1F, 0L, new HttpUploadSink(server.getBaseUrl()), null,
+                folder.newFolder("temp"));
+        uploader.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        uploader.halt();
+        uploader.join(TIMEOUT_MS);
+        server.stop();
+    }
+
+    @Test
+    public void queuedPhotosArriveIntact() throws Exception {
+        byte[][] photos = new byte[20][];
+        for (int i = 0; i < photos.length; i++) {
+            photos[i] = dataHelper(1000 + random.nextInt(100000));
+            queueHelper(i + ".jpg", photos[i], null);
+        }
+        waitForUploadsHelper();
+
+        for (int i = 0; i < photos.length; i++) {
+            assertArrayEquals(photos[i], readHelper(new File(storeDir, i + ".jpg")));
+        }
+        assertEquals(0L, uploader.getBacklogBytes());
+    }
+
+    @Test
+    public void aThrottledUploadIsRetried() throws Exception {
+        server.setFailures(1F, UploadTestServer.FAILURE_THROTTLE);
+        byte[] photo = dataHelper(50000);
+        queueHelper("a.jpg", photo, null);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getInjectedFailureCount() == 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(50000L, uploader.getBacklogBytes());
+
+        // Once the server lets it through, the retry stores it:
+        server.setFailures(0F, UploadTestServer.FAILURE_THROTTLE);
+        waitForUploadsHelper();
+        assertArrayEquals(photo, readHelper(new File(storeDir, "a.jpg")));
+    }
+
+    @Test
+    public void aPhotoWithTheSameImageIsSkipped() throws Exception {
+        byte[] image = dataHelper(20000);
+        byte[] imageKey = hashHelper(image);
+        queueHelper("a.jpg", image, imageKey);
+        queueHelper("b.jpg", image, imageKey);
+        waitForUploadsHelper();
+        assertTrue(new File(storeDir, "a.jpg").exists());
+        assertFalse(new File(storeDir, "b.jpg").exists());
+
+        // Also once the first one has been uploaded:
+        queueHelper("c.jpg", image, imageKey);
+        assertEquals(0L, uploader.getBacklogBytes());
+    }
+
+    @Test
+    public void theLastPartialBatchIsUploadedWhenHalted() throws Exception {
+        DropboxUploaderThread batching = new DropboxUploaderThread(1F, 0L, new HttpUploadSink(server.getBaseUrl()),
+                null, folder.newFolder("batching"));
+        // A batch that would wait much longer than the test:
+        batching.setBatching(16, 600000L);
+        batching.start();
+        for (int i = 0; i < 20; i++) {
+            queueHelper(batching, i + ".jpg", dataHelper(1000), null);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (batching.getBacklogBytes() > 4000L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(new File(storeDir, "0--15.zip").exists());
+        assertEquals(4000L, batching.getBacklogBytes());
+
+        batching.halt();
+        batching.join(TIMEOUT_MS);
+        assertFalse(batching.isAlive());
+        assertTrue(new File(storeDir, "16--19.zip").exists());
+        assertEquals(0L, batching.getBacklogBytes());
+    }
+
+    private void queueHelper(String name, byte[] data, byte[] imageKey) throws IOException {
+        queueHelper(uploader, name, data, imageKey);
+    }
+
+    private void queueHelper(DropboxUploaderThread target, String name, byte[] data, byte[] imageKey)
+            throws IOException {
+        File file = new File(photoDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        target.queuePhoto(file.getPath(), data.length, hashHelper(data), imageKey);
+    }
+
+    private void waitForUploadsHelper() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (uploader.getBacklogBytes() > 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0L, uploader.getBacklogBytes());
+    }
+
+    private byte[] dataHelper(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] hashHelper(byte[] data) {
+        ContentHasher hasher = new ContentHasher();
+        hasher.update(data, 0, data.length);
+        return hasher.digest();
+    }
+
+    private static byte[] readHelper(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            while (off < data.length) {
+                int read = in.read(data, off, data.length - off);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                off += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
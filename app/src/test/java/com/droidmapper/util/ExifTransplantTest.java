@@ -0,0 +1,245 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of reading the EXIF segment of a photo and patching its pixel dimensions in place.
+ */
+public class ExifTransplantTest {
+
+    private static final int IFD0_OFFSET = 8;
+    // A value that doesn't fit into a SHORT:
+    private static final int LARGE_WIDTH = 70000;
+
+    @Test
+    public void bigEndianShortTagsArePatched() throws IOException {
+        checkPatchHelper(ByteOrder.BIG_ENDIAN, ExifWriter.TYPE_SHORT);
+    }
+
+    @Test
+    public void littleEndianShortTagsArePatched() throws IOException {
+        checkPatchHelper(ByteOrder.LITTLE_ENDIAN, ExifWriter.TYPE_SHORT);
+    }
+
+    @Test
+    public void bigEndianLongTagsArePatched() throws IOException {
+        checkPatchHelper(ByteOrder.BIG_ENDIAN, ExifWriter.TYPE_LONG);
+    }
+
+    @Test
+    public void littleEndianLongTagsArePatched() throws IOException {
+        checkPatchHelper(ByteOrder.LITTLE_ENDIAN, ExifWriter.TYPE_LONG);
+    }
+
+    @Test
+    public void aShortTagBecomesALongWhenTheValueDoesntFit() throws IOException {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            byte[] segment = segmentHelper(order, new int[][]{
+                    {ExifWriter.TAG_IMAGE_WIDTH, ExifWriter.TYPE_SHORT, 4000},
+                    {ExifWriter.TAG_IMAGE_LENGTH, ExifWriter.TYPE_SHORT, 3000}
+            }, null);
+            ExifTransplant.patchPixelDimensions(segment, LARGE_WIDTH, 3000);
+            assertArrayEquals(new int[]{ExifWriter.TYPE_LONG, LARGE_WIDTH},
+                    entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_WIDTH));
+            assertArrayEquals(new int[]{ExifWriter.TYPE_SHORT, 3000},
+                    entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_LENGTH));
+        }
+    }
+
+    @Test
+    public void missingTagsAreNotAdded() throws IOException {
+        ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        // No ImageLength, and an EXIF IFD without the pixel dimensions:
+        byte[] segment = segmentHelper(order, new int[][]{
+                {ExifWriter.TAG_IMAGE_WIDTH, ExifWriter.TYPE_SHORT, 4000},
+                {ExifWriter.TAG_ORIENTATION, ExifWriter.TYPE_SHORT, 6}
+        }, new int[][]{
+                {ExifWriter.TAG_FLASH, ExifWriter.TYPE_SHORT, 0}
+        });
+        byte[] expected = segment.clone();
+        ExifTransplant.patchPixelDimensions(segment, 2000, 1500);
+
+        assertEquals(expected.length, segment.length);
+        assertArrayEquals(new int[]{ExifWriter.TYPE_SHORT, 2000},
+                entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_WIDTH));
+        assertNull(entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_LENGTH));
+        // Everything but the width is left as it was:
+        ByteBuffer.wrap(expected, widthValueOffsetHelper(segment, order), 2).order(order).putShort((short) 2000);
+        assertArrayEquals(expected, segment);
+    }
+
+    @Test
+    public void aCorruptedIfdOffsetIsReported() {
+        byte[] segment = segmentHelper(ByteOrder.BIG_ENDIAN, new int[][]{
+                {ExifWriter.TAG_IMAGE_WIDTH, ExifWriter.TYPE_SHORT, 4000}
+        }, null);
+        ByteBuffer.wrap(segment).putInt(JpegSegments.tiffOffset(0) + 4, 100000);
+        try {
+            ExifTransplant.patchPixelDimensions(segment, 2000, 1500);
+            fail("A corrupted IFD offset was followed");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void theExifSegmentIsReadFromAmongTheOthers() throws IOException {
+        byte[] exif = segmentHelper(ByteOrder.BIG_ENDIAN, new int[][]{
+                {ExifWriter.TAG_IMAGE_WIDTH, ExifWriter.TYPE_SHORT, 4000}
+        }, null);
+        byte[] xmp = appSegmentHelper(0xE1, "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>");
+        byte[] rest = {(byte) 0xFF, (byte) 0xDB, 0, 3, 0};
+        ByteArrayInputStream in = new ByteArrayInputStream(jpegHelper(
+                appSegmentHelper(0xE0, "JFIF\0\1\1\0\0\1\0\1\0\0"), xmp, exif, rest));
+
+        assertArrayEquals(exif, ExifTransplant.readExifSegment(in));
+        // The stream is read no further than the end of the segment:
+        assertEquals(rest.length, in.available());
+    }
+
+    @Test
+    public void aPhotoWithoutAnApp1SegmentHasNoExif() throws IOException {
+        byte[] sos = {(byte) 0xFF, (byte) 0xDA, 0, 2, 1, 2, 3};
+        byte[] jpeg = jpegHelper(appSegmentHelper(0xE0, "JFIF\0\1\1\0\0\1\0\1\0\0"), sos);
+        assertNull(ExifTransplant.readExifSegment(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void otherDataIsRejected() {
+        try {
+            ExifTransplant.readExifSegment(new ByteArrayInputStream(new byte[]{'G', 'I', 'F', '8'}));
+            fail("Data that isn't a JPEG was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Patches a segment whose dimension tags are all of the given type, in both IFDs.
+     */
+    private static void checkPatchHelper(ByteOrder order, int type) throws IOException {
+        byte[] segment = segmentHelper(order, new int[][]{
+                {ExifWriter.TAG_IMAGE_WIDTH, type, 4000},
+                {ExifWriter.TAG_IMAGE_LENGTH, type, 3000}
+        }, new int[][]{
+                {ExifWriter.TAG_PIXEL_X_DIMENSION, type, 4000},
+                {ExifWriter.TAG_PIXEL_Y_DIMENSION, type, 3000}
+        });
+        ExifTransplant.patchPixelDimensions(segment, 2000, 1500);
+
+        int exifIfdOffset = entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_EXIF_IFD)[1];
+        assertArrayEquals(new int[]{type, 2000}, entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_WIDTH));
+        assertArrayEquals(new int[]{type, 1500}, entryHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_LENGTH));
+        assertArrayEquals(new int[]{type, 2000},
+                entryHelper(segment, order, exifIfdOffset, ExifWriter.TAG_PIXEL_X_DIMENSION));
+        assertArrayEquals(new int[]{type, 1500},
+                entryHelper(segment, order, exifIfdOffset, ExifWriter.TAG_PIXEL_Y_DIMENSION));
+    }
+
+    /**
+     * Builds an EXIF APP1 segment with the given entries, each {tag, type, value}, in IFD0 and,
+     * if not <b>null</b>, in an EXIF IFD right after it.
+     */
+    private static byte[] segmentHelper(ByteOrder order, int[][] ifd0, int[][] exifIfd) {
+        int ifd0Count = ifd0.length + (exifIfd != null ? 1 : 0);
+        int exifIfdOffset = IFD0_OFFSET + 2 + 12 * ifd0Count + 4;
+        int tiffLength = exifIfdOffset + (exifIfd != null ? 2 + 12 * exifIfd.length + 4 : 0);
+        int tiff = JpegSegments.tiffOffset(0);
+        ByteBuffer buffer = ByteBuffer.allocate(tiff + tiffLength);
+        buffer.put((byte) 0xFF).put((byte) 0xE1).putShort((short) (buffer.capacity() - 2));
+        buffer.put(ExifWriter.EXIF_HEADER);
+        buffer.order(order);
+        buffer.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        buffer.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        buffer.putShort((short) 42).putInt(IFD0_OFFSET);
+
+        buffer.putShort((short) ifd0Count);
+        for (int[] entry : ifd0) {
+            putEntryHelper(buffer, entry[0], entry[1], entry[2]);
+        }
+        if (exifIfd != null) {
+            putEntryHelper(buffer, ExifWriter.TAG_EXIF_IFD, ExifWriter.TYPE_LONG, exifIfdOffset);
+        }
+        buffer.putInt(0);
+        if (exifIfd != null) {
+            buffer.putShort((short) exifIfd.length);
+            for (int[] entry : exifIfd) {
+                putEntryHelper(buffer, entry[0], entry[1], entry[2]);
+            }
+            buffer.putInt(0);
+        }
+        return buffer.array();
+    }
+
+    private static void putEntryHelper(ByteBuffer buffer, int tag, int type, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(1);
+        if (type == ExifWriter.TYPE_SHORT) {
+            buffer.putShort((short) value).putShort((short) 0);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+
+    /**
+     * @return The {type, value} of a single valued entry of an IFD, or <b>null</b> if the IFD
+     * doesn't have the tag.
+     */
+    private static int[] entryHelper(byte[] segment, ByteOrder order, int ifdOffset, int tag) {
+        int pos = entryOffsetHelper(segment, order, ifdOffset, tag);
+        if (pos < 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(segment).order(order);
+        int type = buffer.getShort(pos + 2) & 0xFFFF;
+        assertEquals(1, buffer.getInt(pos + 4));
+        int value = type == ExifWriter.TYPE_SHORT ? buffer.getShort(pos + 8) & 0xFFFF : buffer.getInt(pos + 8);
+        return new int[]{type, value};
+    }
+
+    private static int entryOffsetHelper(byte[] segment, ByteOrder order, int ifdOffset, int tag) {
+        ByteBuffer buffer = ByteBuffer.wrap(segment).order(order);
+        int pos = JpegSegments.tiffOffset(0) + ifdOffset;
+        int count = buffer.getShort(pos) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = pos + 2 + 12 * i;
+            if ((buffer.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private static int widthValueOffsetHelper(byte[] segment, ByteOrder order) {
+        return entryOffsetHelper(segment, order, IFD0_OFFSET, ExifWriter.TAG_IMAGE_WIDTH) + 8;
+    }
+
+    private static byte[] appSegmentHelper(int marker, String payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length());
+        buffer.put((byte) 0xFF).put((byte) marker).putShort((short) (payload.length() + 2));
+        for (int i = 0; i < payload.length(); i++) {
+            buffer.put((byte) payload.charAt(i));
+        }
+        return buffer.array();
+    }
+
+    private static byte[] jpegHelper(byte[]... segments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        for (byte[] segment : segments) {
+            out.write(segment, 0, segment.length);
+        }
+        return out.toByteArray();
+    }
+}
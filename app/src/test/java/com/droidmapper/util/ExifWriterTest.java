@@ -0,0 +1,113 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the in-memory EXIF encoder and of splicing its segment into a JPEG.
+ */
+public class ExifWriterTest {
+
+    // A minimal JPEG: start of image, a JFIF APP0 segment, a start of scan with a few bytes of
+    // entropy coded data and the end of image:
+    static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0, 7, 'J', 'F', 'I', 'F', 0,
+            (byte) 0xFF, (byte) 0xDA, 0, 2, 0x12, 0x34, 0x56,
+            (byte) 0xFF, (byte) 0xD9};
+
+    @Test
+    public void segmentHasValidHeaderAndLength() {
+        byte[] app1 = newWriter().buildApp1Segment();
+
+        assertEquals(0xFF, app1[0] & 0xFF);
+        assertEquals(0xE1, app1[1] & 0xFF);
+        assertEquals(app1.length - 2, ((app1[2] & 0xFF) << 8) | (app1[3] & 0xFF));
+        for (int i = 0; i < ExifWriter.EXIF_HEADER.length; i++) {
+            assertEquals(ExifWriter.EXIF_HEADER[i], app1[4 + i]);
+        }
+        int tiff = JpegSegments.tiffOffset(0);
+        assertEquals('M', app1[tiff]);
+        assertEquals('M', app1[tiff + 1]);
+        assertEquals(42, ((app1[tiff + 2] & 0xFF) << 8) | (app1[tiff + 3] & 0xFF));
+    }
+
+    @Test
+    public void importedTagsRebuildTheSameSegment() throws IOException {
+        byte[] app1 = newWriter().buildApp1Segment();
+        byte[] tagged = splice(JPEG, app1);
+
+        ExifWriter copy = new ExifWriter();
+        copy.importTags(tagged, tagged.length);
+
+        assertArrayEquals(app1, copy.buildApp1Segment());
+    }
+
+    @Test
+    public void spliceReplacesTheExistingSegmentAndKeepsTheRest() throws IOException {
+        byte[] first = splice(JPEG, newWriter().buildApp1Segment());
+        ExifWriter other = newWriter();
+        other.setOrientation(6);
+        byte[] app1 = other.buildApp1Segment();
+        byte[] second = splice(first, app1);
+
+        assertEquals(JPEG.length + app1.length, second.length);
+        assertEquals(2, JpegSegments.findExifSegment(second, second.length));
+        for (int i = 0; i < JPEG.length - 2; i++) {
+            assertEquals(JPEG[2 + i], second[2 + app1.length + i]);
+        }
+    }
+
+    @Test
+    public void insertingStreamWritesTheSameBytesAsSplice() throws IOException {
+        byte[] app1 = newWriter().buildApp1Segment();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegSegments.ExifInsertingStream stream = new JpegSegments.ExifInsertingStream(out, app1);
+        // In uneven pieces, the first one ends in the middle of the start of image marker:
+        stream.write(JPEG, 0, 1);
+        stream.write(JPEG, 1, 5);
+        stream.write(JPEG, 6, JPEG.length - 6);
+        stream.close();
+
+        assertArrayEquals(splice(JPEG, app1), out.toByteArray());
+    }
+
+    @Test
+    public void gpsIfdIsOnlyWrittenWithALocation() {
+        ExifWriter writer = newWriter();
+        int withoutGps = writer.buildApp1Segment().length;
+        writer.setGps(45.5, -122.25, 30.0, 1420070400000L, "gps");
+
+        assertTrue(writer.buildApp1Segment().length > withoutGps);
+    }
+
+    @Test(expected = IOException.class)
+    public void notAJpegIsRejected() throws IOException {
+        splice(new byte[]{1, 2, 3, 4, 5}, newWriter().buildApp1Segment());
+    }
+
+    private static ExifWriter newWriter() {
+        ExifWriter writer = new ExifWriter();
+        writer.setMakeAndModel("Make", "Model");
+        writer.setOrientation(1);
+        writer.setDateTime(1420070400000L);
+        writer.setPixelDimensions(640, 480);
+        writer.setFocalLength(4.2F);
+        writer.setFNumber(2.2F);
+        writer.setFlash(0);
+        writer.setWhiteBalance(ExifWriter.WHITE_BALANCE_AUTO);
+        return writer;
+    }
+
+    private static byte[] splice(byte[] jpeg, byte[] app1) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegSegments.writeWithExif(jpeg, jpeg.length, app1, out);
+        return out.toByteArray();
+    }
+}
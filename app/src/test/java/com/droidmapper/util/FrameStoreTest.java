@@ -0,0 +1,138 @@
+package com.droidmapper.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the store that keeps the photos in memory up to a budget and spills the rest to a
+ * spool file.
+ */
+public class FrameStoreTest {
+
+    private static final int PHOTO_SIZE = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+    private File spoolFile;
+    private FrameStore store;
+
+    @Before
+    public void setUp() {
+        spoolFile = new File(folder.getRoot(), "frames.spool");
+        // Room for two photos:
+        store = new FrameStore(2L * PHOTO_SIZE, 4 * PHOTO_SIZE, spoolFile);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void photosWithinTheBudgetStayInMemory() {
+        CaptureJob a = jobHelper(), b = jobHelper();
+        store.admit(a, true);
+        store.admit(b, true);
+        assertNotNull(a.data);
+        assertNotNull(b.data);
+        assertEquals(2L * PHOTO_SIZE, store.getResidentBytes());
+        assertEquals(0L, store.getSpooledBytes());
+    }
+
+    @Test
+    public void photosOverTheBudgetAreSpilledAndReadBack() {
+        CaptureJob[] jobs = new CaptureJob[6];
+        byte[][] photos = new byte[jobs.length][];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = jobHelper();
+            photos[i] = jobs[i].data.clone();
+            store.admit(jobs[i], true);
+        }
+        assertEquals(4L * PHOTO_SIZE, store.getSpooledBytes());
+
+        // Read back, whether or not the spill thread has written them yet, in the order the
+        // pipeline takes them:
+        for (int i = 0; i < jobs.length; i++) {
+            assertTrue(store.load(jobs[i]));
+            assertArrayEquals(photos[i], Arrays.copyOf(jobs[i].data, jobs[i].dataLength));
+            store.release(jobs[i]);
+        }
+        assertEquals(0L, store.getResidentBytes());
+        assertEquals(0L, store.getSpooledBytes());
+        // Once everything has been read back the spool starts over:
+        assertEquals(0L, spoolFile.length());
+    }
+
+    @Test
+    public void spilledPhotosLeaveTheMemory() throws InterruptedException {
+        CaptureJob[] jobs = new CaptureJob[3];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = jobHelper();
+            store.admit(jobs[i], true);
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (store.getTotalSpilledBytes() < PHOTO_SIZE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(PHOTO_SIZE, store.getTotalSpilledBytes());
+        assertEquals(PHOTO_SIZE, spoolFile.length());
+        assertEquals(2L * PHOTO_SIZE, store.getResidentBytes());
+        assertTrue(store.load(jobs[2]));
+        assertEquals(3L * PHOTO_SIZE, store.getResidentBytes());
+    }
+
+    @Test
+    public void aReleasedSpilledPhotoIsDroppedFromTheSpool() {
+        CaptureJob a = jobHelper(), b = jobHelper(), c = jobHelper();
+        store.admit(a, true);
+        store.admit(b, true);
+        store.admit(c, true);
+        store.release(c);
+        assertEquals(0L, store.getSpooledBytes());
+        assertEquals(-1L, c.spoolOffset);
+        assertFalse(c.spillPending);
+    }
+
+    @Test
+    public void photosAboutToBeProcessedAreNotSpilled() {
+        for (int i = 0; i < 4; i++) {
+            store.admit(jobHelper(), false);
+        }
+        assertEquals(4L * PHOTO_SIZE, store.getResidentBytes());
+        assertEquals(0L, store.getSpooledBytes());
+    }
+
+    @Test
+    public void aClosedStoreKeepsThePhotosInMemory() {
+        store.close();
+        CaptureJob a = jobHelper(), b = jobHelper(), c = jobHelper();
+        store.admit(a, true);
+        store.admit(b, true);
+        store.admit(c, true);
+        assertNotNull(c.data);
+        assertTrue(store.load(c));
+        assertEquals(0L, store.getSpooledBytes());
+        assertFalse(spoolFile.exists());
+    }
+
+    private CaptureJob jobHelper() {
+        byte[] data = new byte[PHOTO_SIZE];
+        random.nextBytes(data);
+        return new CaptureJob(data, 0L, 90, null, null);
+    }
+}
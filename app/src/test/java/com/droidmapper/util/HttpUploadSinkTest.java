@@ -0,0 +1,122 @@
+package com.droidmapper.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the sink that uploads to an HTTP server, against an {@link UploadTestServer}.
+ */
+public class HttpUploadSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+    private File storeDir;
+    private UploadTestServer server;
+    private HttpUploadSink sink;
+
+    @Before
+    public void setUp() throws IOException {
+        storeDir = folder.newFolder("server");
+        server = new UploadTestServer(storeDir, 1L);
+        server.start(0);
+        sink = new HttpUploadSink(server.getBaseUrl());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void dataOfAKnownLengthIsStored() throws Exception {
+        byte[] data = dataHelper(100000);
+        assertEquals(100000L, sink.upload("/a.jpg", new ByteArrayInputStream(data), data.length));
+        assertArrayEquals(data, readHelper(new File(storeDir, "a.jpg")));
+    }
+
+    @Test
+    public void aStreamOfAnUnknownLengthIsStored() throws Exception {
+        byte[] data = dataHelper(300000);
+        assertEquals(300000L, sink.uploadStream("/b.jpg", new ByteArrayInputStream(data), null));
+        assertArrayEquals(data, readHelper(new File(storeDir, "b.jpg")));
+    }
+
+    @Test
+    public void aThrottledUploadFailsWithItsStatus() throws Exception {
+        server.setFailures(1F, UploadTestServer.FAILURE_THROTTLE);
+        assertEquals(429, failedStatusHelper());
+        server.setFailures(1F, UploadTestServer.FAILURE_SERVER_ERROR);
+        assertEquals(503, failedStatusHelper());
+    }
+
+    @Test
+    public void aDroppedConnectionFailsWithoutAStatus() throws Exception {
+        server.setFailures(1F, UploadTestServer.FAILURE_DISCONNECT);
+        assertEquals(UploadException.STATUS_NONE, failedStatusHelper());
+        assertEquals(0, storeDir.list().length);
+    }
+
+    @Test
+    public void uploadsKeepToTheServersBandwidth() throws Exception {
+        server.setBandwidth(500L * 1024L);
+        byte[] data = dataHelper(250 * 1024);
+        long start = System.nanoTime();
+        sink.upload("/c.jpg", new ByteArrayInputStream(data), data.length);
+        long millis = (System.nanoTime() - start) / 1000000L;
+        assertTrue("took " + millis + " ms", millis >= 400L);
+    }
+
+    /**
+     * @return Status of the exception an upload fails with.
+     */
+    private int failedStatusHelper() {
+        byte[] data = dataHelper(100000);
+        try {
+            sink.upload("/failed.jpg", new ByteArrayInputStream(data), data.length);
+        } catch (UploadException e) {
+            return e.getStatus();
+        }
+        fail("The upload didn't fail");
+        return -1;
+    }
+
+    private byte[] dataHelper(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readHelper(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            while (off < data.length) {
+                int read = in.read(data, off, data.length - off);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                off += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the lossless rotation of JPEG photos. The photos are encoded with ImageIO in the
+ * usual chroma subsamplings, rotated, decoded again and compared with the decoded original,
+ * rotated pixel by pixel.
+ */
+public class JpegLosslessRotatorTest {
+
+    // The rotated photo has the same coefficients, so only the rounding of the inverse DCT, which
+    // isn't symmetric, makes the pixels differ:
+    private static final double MAX_MEAN_ERROR = 0.5;
+    private static final int MAX_ERROR = 4;
+    // Chroma subsampled in one direction only is turned the other way by 90 or 270 degrees, the
+    // decoder smooths the chroma it upsamples horizontally but not vertically, so the pixels at
+    // the sharp edges differ more:
+    private static final double MAX_MEAN_ERROR_422 = 1.5;
+    private static final int MAX_ERROR_422 = 48;
+
+    @Test
+    public void alignedPhotosAreRotatedIn444() throws IOException {
+        checkHelper(64, 48, 1, 1, 0);
+    }
+
+    @Test
+    public void alignedPhotosAreRotatedIn422() throws IOException {
+        checkHelper(64, 48, 2, 1, 0);
+    }
+
+    @Test
+    public void alignedPhotosAreRotatedIn420() throws IOException {
+        checkHelper(64, 48, 2, 2, 0);
+    }
+
+    @Test
+    public void unalignedPhotosAreTrimmedIn444() throws IOException {
+        checkHelper(61, 45, 1, 1, 0);
+    }
+
+    @Test
+    public void unalignedPhotosAreTrimmedIn422() throws IOException {
+        checkHelper(61, 45, 2, 1, 0);
+    }
+
+    @Test
+    public void unalignedPhotosAreTrimmedIn420() throws IOException {
+        checkHelper(61, 45, 2, 2, 0);
+    }
+
+    @Test
+    public void restartMarkersAreFollowed() throws IOException {
+        // An interval that doesn't divide a row of MCUs, and one MCU a row:
+        checkHelper(64, 48, 2, 2, 3);
+        checkHelper(61, 45, 1, 1, 1);
+    }
+
+    @Test
+    public void theRotatedPhotoHasNoRestartInterval() throws IOException {
+        byte[] jpeg = encodeHelper(imageHelper(64, 48), 2, 2, 3);
+        assertTrue(hasMarkerHelper(jpeg, 0xDD));
+        assertFalse(hasMarkerHelper(JpegLosslessRotator.rotate(jpeg, 90), 0xDD));
+    }
+
+    @Test
+    public void zeroDegreesReturnsThePhoto() throws IOException {
+        byte[] jpeg = encodeHelper(imageHelper(16, 16), 1, 1, 0);
+        assertTrue(jpeg == JpegLosslessRotator.rotate(jpeg, 0));
+    }
+
+    @Test
+    public void photosSmallerThanAnMcuCantBeTrimmed() throws IOException {
+        byte[] jpeg = encodeHelper(imageHelper(12, 12), 2, 2, 0);
+        try {
+            JpegLosslessRotator.rotate(jpeg, 180);
+            fail("A photo with no whole MCU was rotated");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void otherDataIsRejected() {
+        try {
+            JpegLosslessRotator.rotate(new byte[]{1, 2, 3, 4, 5}, 90);
+            fail("Data that isn't a JPEG was rotated");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Rotates the photo by each angle and compares it with the decoded original, trimmed the way
+     * "jpegtran -trim" trims it and rotated.
+     */
+    private static void checkHelper(int width, int height, int h, int v, int restartInterval) throws IOException {
+        byte[] jpeg = encodeHelper(imageHelper(width, height), h, v, restartInterval);
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(jpeg));
+        int mcuWidth = 8 * h, mcuHeight = 8 * v;
+        for (int degrees = 90; degrees < 360; degrees += 90) {
+            // Only the partial MCUs that would end up on the top or left edge are dropped:
+            int trimmedWidth = degrees != 90 ? width / mcuWidth * mcuWidth : width;
+            int trimmedHeight = degrees != 270 ? height / mcuHeight * mcuHeight : height;
+            BufferedImage expected = rotateHelper(original.getSubimage(0, 0, trimmedWidth, trimmedHeight), degrees);
+
+            BufferedImage rotated = ImageIO.read(new ByteArrayInputStream(JpegLosslessRotator.rotate(jpeg, degrees)));
+            String name = width + "x" + height + " " + h + "x" + v + " rotated by " + degrees;
+            assertEquals(name, expected.getWidth(), rotated.getWidth());
+            assertEquals(name, expected.getHeight(), rotated.getHeight());
+            if (h != v && degrees != 180) {
+                compareHelper(name, expected, rotated, MAX_MEAN_ERROR_422, MAX_ERROR_422);
+            } else {
+                compareHelper(name, expected, rotated, MAX_MEAN_ERROR, MAX_ERROR);
+            }
+        }
+    }
+
+    private static void compareHelper(String name, BufferedImage expected, BufferedImage actual, double maxMean,
+                                      int maxError) {
+        long total = 0L;
+        int max = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int a = expected.getRGB(x, y), b = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int error = Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+                    total += error;
+                    max = Math.max(max, error);
+                }
+            }
+        }
+        double mean = (double) total / (3 * expected.getWidth() * expected.getHeight());
+        assertTrue(name + ": mean error " + mean, mean <= maxMean);
+        assertTrue(name + ": max error " + max, max <= maxError);
+    }
+
+    private static BufferedImage rotateHelper(BufferedImage image, int degrees) {
+        int w = image.getWidth(), h = image.getHeight();
+        BufferedImage rotated = degrees == 180 ? new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB)
+                : new BufferedImage(h, w, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int rgb = image.getRGB(x, y);
+                if (degrees == 90) {
+                    rotated.setRGB(h - 1 - y, x, rgb);
+                } else if (degrees == 180) {
+                    rotated.setRGB(w - 1 - x, h - 1 - y, rgb);
+                } else {
+                    rotated.setRGB(y, w - 1 - x, rgb);
+                }
+            }
+        }
+        return rotated;
+    }
+
+    /**
+     * A photo that isn't symmetric in any way, smooth colour gradients with some noise and a few
+     * sharp edges.
+     */
+    private static BufferedImage imageHelper(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / width;
+                int g = 255 * y / height;
+                int b = (x < width / 3 && y < height / 2) ? 200 : 60;
+                int noise = random.nextInt(9) - 4;
+                r = Math.max(0, Math.min(255, r + noise));
+                g = Math.max(0, Math.min(255, g - noise));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encodes the photo as a baseline JPEG, with the given sampling factors of the luma component
+     * and restart interval.
+     */
+    private static byte[] encodeHelper(BufferedImage image, int h, int v, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9F);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        String format = "javax_imageio_jpeg_image_1.0";
+        Element root = (Element) metadata.getAsTree(format);
+        Element markers = (Element) root.getElementsByTagName("markerSequence").item(0);
+        NodeList specs = root.getElementsByTagName("componentSpec");
+        for (int i = 0; i < specs.getLength(); i++) {
+            Element spec = (Element) specs.item(i);
+            spec.setAttribute("HsamplingFactor", String.valueOf(i == 0 ? h : 1));
+            spec.setAttribute("VsamplingFactor", String.valueOf(i == 0 ? v : 1));
+        }
+        if (restartInterval > 0) {
+            Element dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            markers.insertBefore(dri, markers.getElementsByTagName("sos").item(0));
+        }
+        metadata.setFromTree(format, root);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return <b>true</b> if the JPEG has a segment with the given marker in front of its scan.
+     */
+    private static boolean hasMarkerHelper(byte[] jpeg, int marker) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int found = jpeg[pos + 1] & 0xFF;
+            if (found == marker) {
+                return true;
+            }
+            if (found == 0xDA) {
+                return false;
+            }
+            pos += 2 + (((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF));
+        }
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package com.droidmapper.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the sink that stores the uploads in a directory on local storage.
+ */
+public class LocalDirectoryUploadSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+    private File dir;
+    private LocalDirectoryUploadSink sink;
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "uploads");
+        sink = new LocalDirectoryUploadSink(dir);
+    }
+
+    @Test
+    public void uploadsAreStoredUnderTheirRemotePaths() throws Exception {
+        byte[] a = dataHelper(1000);
+        byte[] b = dataHelper(70000);
+        assertEquals(1000L, sink.upload("/a.jpg", new ByteArrayInputStream(a), a.length));
+        assertEquals(70000L, sink.uploadStream("/batches/b.zip", new ByteArrayInputStream(b), null));
+
+        assertArrayEquals(a, readHelper(new File(dir, "a.jpg")));
+        assertArrayEquals(b, readHelper(new File(dir, "batches/b.zip")));
+    }
+
+    @Test
+    public void filesAreStoredWhole() throws Exception {
+        byte[] data = dataHelper(200000);
+        File file = folder.newFile("photo.jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        ContentHasher hasher = new ContentHasher();
+        assertEquals(200000L, sink.upload("/photo.jpg", file, hasher));
+        assertArrayEquals(data, readHelper(new File(dir, "photo.jpg")));
+        // Hashed on the way:
+        assertArrayEquals(ContentHasher.hashFile(file), hasher.digest());
+    }
+
+    @Test
+    public void aShortStreamLeavesNothingBehind() throws Exception {
+        byte[] data = dataHelper(100);
+        try {
+            sink.upload("/short.jpg", new ByteArrayInputStream(data), 200L);
+            fail("A stream shorter than its length was stored");
+        } catch (UploadException e) {
+            // Expected
+        }
+        assertFalse(new File(dir, "short.jpg").exists());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void aFailedUploadKeepsTheFileStoredBefore() throws Exception {
+        byte[] first = dataHelper(100);
+        sink.upload("/photo.jpg", new ByteArrayInputStream(first), first.length);
+        try {
+            sink.upload("/photo.jpg", new ByteArrayInputStream(dataHelper(300)), 200L);
+            fail("A stream longer than its length was stored");
+        } catch (UploadException e) {
+            // Expected
+        }
+        assertArrayEquals(first, readHelper(new File(dir, "photo.jpg")));
+        assertEquals(Arrays.asList("photo.jpg"), Arrays.asList(dir.list()));
+    }
+
+    private byte[] dataHelper(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readHelper(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            while (off < data.length) {
+                int read = in.read(data, off, data.length - off);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                off += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the hash and the threshold that recognise the near duplicate photos, on synthetic
+ * scenes with sensor noise added.
+ */
+public class NearDuplicateFilterTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    // Standard deviation of the sensor noise, in levels:
+    private static final double NOISE = 4.0;
+    // The distance the app drops the photos at:
+    private static final int MAX_DISTANCE = 5;
+
+    private final Random random = new Random(42L);
+
+    @Test
+    public void noiseDoesntFlipTheBitsOfAFlatScene() {
+        int[] scene = flatSceneHelper(128);
+        long first = hashHelper(noisyHelper(scene));
+        for (int i = 0; i < 50; i++) {
+            int distance = NearDuplicateFilter.distance(first, hashHelper(noisyHelper(scene)));
+            assertTrue("distance " + distance, distance <= MAX_DISTANCE);
+        }
+    }
+
+    @Test
+    public void noiseDoesntFlipTheBitsOfATexturedScene() {
+        int[] scene = texturedSceneHelper(0);
+        long first = hashHelper(noisyHelper(scene));
+        for (int i = 0; i < 50; i++) {
+            int distance = NearDuplicateFilter.distance(first, hashHelper(noisyHelper(scene)));
+            assertTrue("distance " + distance, distance <= MAX_DISTANCE);
+        }
+    }
+
+    @Test
+    public void aSmallChangeOfExposureIsANearDuplicate() {
+        int[] scene = texturedSceneHelper(0);
+        int[] brighter = scene.clone();
+        for (int i = 0; i < brighter.length; i++) {
+            brighter[i] = Math.min(255, brighter[i] * 21 / 20);
+        }
+        int distance = NearDuplicateFilter.distance(hashHelper(noisyHelper(scene)), hashHelper(noisyHelper(brighter)));
+        assertTrue("distance " + distance, distance <= MAX_DISTANCE);
+    }
+
+    @Test
+    public void aMovedSceneIsNotANearDuplicate() {
+        // Moved by half a cell of the grid:
+        long still = hashHelper(noisyHelper(texturedSceneHelper(0)));
+        long moved = hashHelper(noisyHelper(texturedSceneHelper(WIDTH / 18)));
+        int distance = NearDuplicateFilter.distance(still, moved);
+        assertTrue("distance " + distance, distance > MAX_DISTANCE);
+    }
+
+    @Test
+    public void somethingEnteringAFlatSceneIsNotANearDuplicate() {
+        int[] scene = flatSceneHelper(128);
+        int[] entered = scene.clone();
+        // A dark truck pulling up on the right, filling a quarter of the photo:
+        for (int y = HEIGHT / 2; y < HEIGHT; y++) {
+            for (int x = WIDTH / 2; x < WIDTH; x++) {
+                entered[y * WIDTH + x] = 40;
+            }
+        }
+        int distance = NearDuplicateFilter.distance(hashHelper(noisyHelper(scene)), hashHelper(noisyHelper(entered)));
+        assertTrue("distance " + distance, distance > MAX_DISTANCE);
+    }
+
+    @Test
+    public void lumaAndArgbSamplesGiveTheSameHash() {
+        int[] scene = noisyHelper(texturedSceneHelper(0));
+        byte[] luma = new byte[scene.length];
+        int[] samples = new int[NearDuplicateFilter.SAMPLE_COLUMNS * NearDuplicateFilter.SAMPLE_ROWS];
+        for (int i = 0; i < scene.length; i++) {
+            luma[i] = (byte) scene[i];
+        }
+        for (int sy = 0; sy < NearDuplicateFilter.SAMPLE_ROWS; sy++) {
+            int y = NearDuplicateFilter.sampleCoordinate(sy, NearDuplicateFilter.SAMPLE_ROWS, HEIGHT);
+            for (int sx = 0; sx < NearDuplicateFilter.SAMPLE_COLUMNS; sx++) {
+                int x = NearDuplicateFilter.sampleCoordinate(sx, NearDuplicateFilter.SAMPLE_COLUMNS, WIDTH);
+                int v = scene[y * WIDTH + x];
+                samples[sy * NearDuplicateFilter.SAMPLE_COLUMNS + sx] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+        assertEquals(NearDuplicateFilter.hashLuma(luma, 0, WIDTH, HEIGHT, WIDTH),
+                NearDuplicateFilter.hashArgbSamples(samples));
+    }
+
+    @Test
+    public void nearDuplicatesAreDroppedUntilTheKeepInterval() {
+        NearDuplicateFilter filter = new NearDuplicateFilter(MAX_DISTANCE, 1000L);
+        assertTrue(filter.accept(0L, 0L));
+        assertFalse(filter.accept(0x1FL, 500L));
+        assertTrue(filter.accept(0x3FL, 600L));
+        assertFalse(filter.accept(0x3FL, 1599L));
+        assertTrue(filter.accept(0x3FL, 1600L));
+    }
+
+    @Test
+    public void aPhotoTakenBeforeTheLastKeptIsKept() {
+        NearDuplicateFilter filter = new NearDuplicateFilter(MAX_DISTANCE, 1000L);
+        assertTrue(filter.accept(0L, 5000L));
+        assertTrue(filter.accept(0L, 4000L));
+        // And the keep interval counts from it:
+        assertFalse(filter.accept(0L, 4500L));
+    }
+
+    @Test
+    public void hashingAFullHdFrameTakesMicroseconds() {
+        byte[] luma = new byte[1920 * 1080];
+        random.nextBytes(luma);
+        long sink = 0L;
+        for (int i = 0; i < 1000; i++) {
+            sink += NearDuplicateFilter.hashLuma(luma, 0, 1920, 1080, 1920);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            sink += NearDuplicateFilter.hashLuma(luma, 0, 1920, 1080, 1920);
+        }
+        long nanosPerHash = (System.nanoTime() - start) / 10000;
+        // Generous, so a loaded build machine doesn't fail it, the sink keeps the hashes from
+        // being optimised away:
+        assertTrue(nanosPerHash + " ns per hash (" + (sink & 1L) + ")", nanosPerHash < 1000000L);
+    }
+
+    private static int[] flatSceneHelper(int level) {
+        int[] scene = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < scene.length; i++) {
+            scene[i] = level;
+        }
+        return scene;
+    }
+
+    /**
+     * @return A scene of soft blobs of light and shade, made by smoothly interpolating a coarse
+     * random grid, moved to the left by the given number of pixels.
+     */
+    private static int[] texturedSceneHelper(int shift) {
+        Random blobs = new Random(7L);
+        int coarseColumns = 17, coarseRows = 9;
+        double[] coarse = new double[coarseColumns * coarseRows];
+        for (int i = 0; i < coarse.length; i++) {
+            coarse[i] = 40 + blobs.nextInt(176);
+        }
+        int[] scene = new int[WIDTH * HEIGHT];
+        double cellWidth = 2.0 * WIDTH / (coarseColumns - 1), cellHeight = (double) HEIGHT / (coarseRows - 1);
+        for (int y = 0; y < HEIGHT; y++) {
+            double gy = y / cellHeight;
+            int y0 = Math.min((int) gy, coarseRows - 2);
+            double fy = gy - y0;
+            for (int x = 0; x < WIDTH; x++) {
+                double gx = (x + shift) / cellWidth;
+                int x0 = Math.min((int) gx, coarseColumns - 2);
+                double fx = gx - x0;
+                double top = coarse[y0 * coarseColumns + x0] * (1 - fx) + coarse[y0 * coarseColumns + x0 + 1] * fx;
+                double bottom = coarse[(y0 + 1) * coarseColumns + x0] * (1 - fx) + coarse[(y0 + 1) * coarseColumns + x0 + 1] * fx;
+                scene[y * WIDTH + x] = (int) Math.round(top * (1 - fy) + bottom * fy);
+            }
+        }
+        return scene;
+    }
+
+    private int[] noisyHelper(int[] scene) {
+        int[] noisy = new int[scene.length];
+        for (int i = 0; i < scene.length; i++) {
+            noisy[i] = Math.max(0, Math.min(255, (int) Math.round(scene[i] + random.nextGaussian() * NOISE)));
+        }
+        return noisy;
+    }
+
+    private static long hashHelper(int[] scene) {
+        byte[] luma = new byte[scene.length];
+        for (int i = 0; i < scene.length; i++) {
+            luma[i] = (byte) scene[i];
+        }
+        return NearDuplicateFilter.hashLuma(luma, 0, WIDTH, HEIGHT, WIDTH);
+    }
+}
@@ -0,0 +1,206 @@
+package com.droidmapper.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the batcher that collects small photos into archives uploaded in one request.
+ */
+public class PhotoBatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+    private UploadJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = new UploadJournal(folder.newFile("upload.journal"));
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void onlySmallPhotosAreBatched() throws IOException {
+        PhotoBatcher batcher = new PhotoBatcher(10, 1000L);
+        assertTrue(batcher.accepts(photoHelper("small.jpg", 30 * 1024)));
+        assertTrue(batcher.accepts(photoHelper("limit.jpg", 256 * 1024)));
+        assertFalse(batcher.accepts(photoHelper("large.jpg", 256 * 1024 + 1)));
+        assertFalse(batcher.accepts(photoHelper("empty.jpg", 0)));
+        assertFalse(batcher.accepts(new File(folder.getRoot(), "missing.jpg")));
+    }
+
+    @Test
+    public void batchIsReadyOnceItHoldsTheMostPhotos() throws Exception {
+        PhotoBatcher batcher = new PhotoBatcher(3, 60000L);
+        UploadJournal.Entry a = entryHelper("a.jpg", 1000);
+        UploadJournal.Entry b = entryHelper("b.jpg", 1000);
+        UploadJournal.Entry c = entryHelper("c.jpg", 1000);
+
+        assertNull(batcher.add(a, new File(a.getPath())));
+        assertNull(batcher.add(b, new File(b.getPath())));
+        PhotoBatcher.Batch batch = batcher.add(c, new File(c.getPath()));
+        assertNotNull(batch);
+        assertEquals(Arrays.asList(a, b, c), batch.getEntries());
+        assertEquals("a--c.zip", batch.getName());
+
+        // The next photo starts a new batch:
+        assertEquals(-1L, batcher.getMillisUntilDue());
+        assertNull(batcher.add(a, new File(a.getPath())));
+        assertTrue(batcher.getMillisUntilDue() > 0L);
+    }
+
+    @Test
+    public void batchIsReadyOnceItHoldsTheMostBytes() throws Exception {
+        PhotoBatcher batcher = new PhotoBatcher(100, 60000L);
+        // 16 photos of 256 KiB make the 4 MiB limit:
+        for (int i = 0; i < 15; i++) {
+            UploadJournal.Entry entry = entryHelper(i + ".jpg", 256 * 1024);
+            assertNull(batcher.add(entry, new File(entry.getPath())));
+        }
+        UploadJournal.Entry last = entryHelper("15.jpg", 256 * 1024);
+        PhotoBatcher.Batch batch = batcher.add(last, new File(last.getPath()));
+        assertNotNull(batch);
+        assertEquals(16, batch.getEntries().size());
+    }
+
+    @Test
+    public void batchIsDueAfterTheDelay() throws Exception {
+        PhotoBatcher batcher = new PhotoBatcher(100, 200L);
+        assertNull(batcher.takeDue());
+
+        UploadJournal.Entry a = entryHelper("a.jpg", 1000);
+        batcher.add(a, new File(a.getPath()));
+        long untilDue = batcher.getMillisUntilDue();
+        assertTrue("until due " + untilDue, untilDue > 0L && untilDue <= 200L);
+        assertNull(batcher.takeDue());
+
+        Thread.sleep(untilDue + 20L);
+        assertEquals(0L, batcher.getMillisUntilDue());
+        PhotoBatcher.Batch batch = batcher.takeDue();
+        assertNotNull(batch);
+        assertSame(a, batch.getEntries().get(0));
+        assertNull(batcher.takeDue());
+    }
+
+    @Test
+    public void flushTakesTheBatchBeforeItIsDue() throws Exception {
+        PhotoBatcher batcher = new PhotoBatcher(3, 60000L);
+        UploadJournal.Entry a = entryHelper("a.jpg", 1000);
+        UploadJournal.Entry b = entryHelper("b.jpg", 1000);
+        batcher.add(a, new File(a.getPath()));
+        batcher.add(b, new File(b.getPath()));
+
+        assertNull(batcher.takeDue());
+        assertEquals(Arrays.asList(a, b), batcher.flush().getEntries());
+        assertEquals(-1L, batcher.getMillisUntilDue());
+        assertNull(batcher.flush());
+        // The next photo starts a new batch:
+        assertNull(batcher.add(a, new File(a.getPath())));
+        assertNull(batcher.add(b, new File(b.getPath())));
+        assertNotNull(batcher.add(entryHelper("c.jpg", 1000), new File(folder.getRoot(), "c.jpg")));
+    }
+
+    @Test
+    public void archiveIsAZipOfTheStoredPhotos() throws Exception {
+        PhotoBatcher batcher = new PhotoBatcher(3, 60000L);
+        UploadJournal.Entry a = entryHelper("a.jpg", 5000);
+        UploadJournal.Entry b = entryHelper("b.jpg", 7000);
+        UploadJournal.Entry c = entryHelper("c.jpg", 1);
+        batcher.add(a, new File(a.getPath()));
+        batcher.add(b, new File(b.getPath()));
+        PhotoBatcher.Batch batch = batcher.add(c, new File(c.getPath()));
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(batch.buildArchive()));
+        for (UploadJournal.Entry entry : batch.getEntries()) {
+            File file = new File(entry.getPath());
+            ZipEntry zipEntry = zip.getNextEntry();
+            assertEquals(file.getName(), zipEntry.getName());
+            assertEquals(ZipEntry.STORED, zipEntry.getMethod());
+            assertArrayEquals(readHelper(file), readEntryHelper(zip));
+        }
+        assertNull(zip.getNextEntry());
+    }
+
+    @Test
+    public void missingPhotosAreLeftOutOfTheArchive() throws Exception {
+        PhotoBatcher batcher = new PhotoBatcher(2, 60000L);
+        UploadJournal.Entry a = entryHelper("a.jpg", 5000);
+        UploadJournal.Entry b = entryHelper("b.jpg", 5000);
+        batcher.add(a, new File(a.getPath()));
+        PhotoBatcher.Batch batch = batcher.add(b, new File(b.getPath()));
+        assertTrue(new File(a.getPath()).delete());
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(batch.buildArchive()));
+        assertEquals("b.jpg", zip.getNextEntry().getName());
+        assertNull(zip.getNextEntry());
+
+        assertTrue(new File(b.getPath()).delete());
+        assertNull(batch.buildArchive());
+    }
+
+    private UploadJournal.Entry entryHelper(String name, int size) throws Exception {
+        File file = photoHelper(name, size);
+        journal.append(file.getPath(), file.length());
+        return journal.take();
+    }
+
+    private File photoHelper(String name, int size) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readHelper(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return readEntryHelper(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readEntryHelper(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,57 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of how the stages hand the jobs over and finish them when they are drained.
+ */
+public class PipelineStageTest {
+
+    @Test
+    public void drainingFinishesTheQueuedJobsInOrder() {
+        final List<Long> seen = new ArrayList<Long>();
+        PipelineStage first = new PipelineStage("first", 32, BoundedQueue.POLICY_BLOCK, 3, false) {
+            @Override
+            protected boolean process(CaptureJob job) {
+                try {
+                    // Slower for the early jobs, so the workers finish them out of order:
+                    Thread.sleep(job.sequence % 3 == 0 ? 5L : 1L);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        };
+        PipelineStage last = new PipelineStage("last", 2, BoundedQueue.POLICY_BLOCK, 1, true) {
+            @Override
+            protected boolean process(CaptureJob job) {
+                seen.add(job.sequence);
+                return true;
+            }
+        };
+        first.setNextStage(last);
+        first.start();
+        last.start();
+        for (int i = 0; i < 30; i++) {
+            CaptureJob job = new CaptureJob(null, 0L, 90, null, null);
+            job.sequence = i;
+            first.put(job);
+        }
+
+        first.drain();
+        last.drain();
+        assertEquals(30, seen.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(Long.valueOf(i), seen.get(i));
+        }
+
+        // And no more are taken:
+        assertFalse(first.put(new CaptureJob(null, 0L, 90, null, null)));
+    }
+}
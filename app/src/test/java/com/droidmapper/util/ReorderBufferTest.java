@@ -0,0 +1,87 @@
+package com.droidmapper.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the buffer that puts the photos processed in parallel back into shutter order.
+ */
+public class ReorderBufferTest {
+
+    private List<Integer> passedOn;
+    private ReorderBuffer<Integer> buffer;
+
+    @Before
+    public void setUp() {
+        passedOn = new ArrayList<Integer>();
+        buffer = new ReorderBuffer<Integer>(new ReorderBuffer.Sink<Integer>() {
+            @Override
+            public void accept(Integer item) {
+                passedOn.add(item);
+            }
+        });
+    }
+
+    @Test
+    public void earlyElementsWaitForTheOnesBeforeThem() {
+        buffer.offer(2, 2);
+        buffer.offer(1, 1);
+        assertEquals(Collections.<Integer>emptyList(), passedOn);
+        assertEquals(2, buffer.getPendingCount());
+
+        buffer.offer(0, 0);
+        assertEquals(Arrays.asList(0, 1, 2), passedOn);
+        assertEquals(0, buffer.getPendingCount());
+        assertEquals(3L, buffer.getNextSequence());
+        assertEquals(2, buffer.getMaxPendingCount());
+    }
+
+    @Test
+    public void skippedElementsDontHoldUpTheOthers() {
+        buffer.offer(1, 1);
+        buffer.offer(3, 3);
+        buffer.skip(0);
+        assertEquals(Arrays.asList(1), passedOn);
+
+        buffer.skip(2);
+        assertEquals(Arrays.asList(1, 3), passedOn);
+        assertEquals(4L, buffer.getNextSequence());
+    }
+
+    @Test
+    public void shuffledElementsComeOutInOrder() {
+        List<Integer> sequences = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            sequences.add(i);
+        }
+        Collections.shuffle(sequences, new Random(7));
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 != 3) {
+                expected.add(i);
+            }
+        }
+        for (int sequence : sequences) {
+            if (sequence % 10 == 3) {
+                buffer.skip(sequence);
+            } else {
+                buffer.offer(sequence, sequence);
+            }
+        }
+        assertEquals(expected, passedOn);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aSequencePassedOnCantComeAgain() {
+        buffer.offer(0, 0);
+        buffer.offer(0, 0);
+    }
+}
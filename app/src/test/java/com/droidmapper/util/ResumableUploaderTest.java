@@ -0,0 +1,280 @@
+package com.droidmapper.util;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxIOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the resumable chunked uploads. The chunks are sent to an {@link UploadTestServer},
+ * which stores each of them as a file of its own, and the commit puts them together.
+ */
+public class ResumableUploaderTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 10 * CHUNK_SIZE + 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42L);
+    private File storeDir, stateDir;
+    private UploadTestServer server;
+    private TestChunkedApi api;
+
+    @Before
+    public void setUp() throws IOException {
+        storeDir = folder.newFolder("server");
+        stateDir = folder.newFolder("state");
+        server = new UploadTestServer(storeDir, 1L);
+        server.start(0);
+        api = new TestChunkedApi(new HttpUploadSink(server.getBaseUrl()), storeDir);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void anInterruptedUploadResumesWhereItStopped() throws Exception {
+        byte[] data = dataHelper(FILE_SIZE);
+        File file = fileHelper("photo.jpg", data);
+
+        // The link goes down after 4(four) chunks:
+        api.failAfter = 4;
+        try {
+            uploaderHelper().upload(file, "/photo.jpg", new ContentHasher());
+            fail("The upload went through a lost link");
+        } catch (DropboxIOException e) {
+            // Expected
+        }
+        assertEquals(4 * CHUNK_SIZE, api.sentBytes);
+
+        // A new uploader, as after a restart of the app, goes on from the 5th chunk:
+        api.failAfter = -1;
+        api.offsets.clear();
+        ResumableUploader uploader = uploaderHelper();
+        ContentHasher hasher = new ContentHasher();
+        DropboxAPI.Entry entry = uploader.upload(file, "/photo.jpg", hasher);
+        assertEquals(Long.valueOf(4L * CHUNK_SIZE), api.offsets.get(0));
+        assertEquals(FILE_SIZE, api.sentBytes);
+        assertEquals(FILE_SIZE, entry.bytes);
+        assertArrayEquals(data, readHelper(new File(storeDir, "photo.jpg")));
+        assertTrue(uploader.getStats(), uploader.getStats().contains("resumed 1"));
+
+        // The part sent before the restart is hashed as well:
+        assertArrayEquals(ContentHasher.hashFile(file), hasher.digest());
+
+        // And the state of the finished upload is gone:
+        assertEquals(0, stateDir.list().length);
+    }
+
+    @Test
+    public void anUploadGetsThroughALossyLink() throws Exception {
+        byte[] data = dataHelper(FILE_SIZE);
+        File file = fileHelper("photo.jpg", data);
+        server.setFailures(0.3F, UploadTestServer.FAILURE_DISCONNECT);
+
+        ResumableUploader uploader = uploaderHelper();
+        ContentHasher hasher = null;
+        for (int attempt = 0; hasher == null; attempt++) {
+            assertTrue("Too many attempts", attempt < 100);
+            ContentHasher attemptHasher = new ContentHasher();
+            try {
+                uploader.upload(file, "/photo.jpg", attemptHasher);
+                hasher = attemptHasher;
+            } catch (DropboxIOException e) {
+                // Try again, from where it stopped:
+            }
+        }
+        assertTrue(server.getInjectedFailureCount() > 0L);
+        // Every chunk the server stored was sent once:
+        assertEquals(FILE_SIZE, api.sentBytes);
+        assertArrayEquals(data, readHelper(new File(storeDir, "photo.jpg")));
+        assertArrayEquals(ContentHasher.hashFile(file), hasher.digest());
+    }
+
+    @Test
+    public void anInterruptedStreamResumesWhereItStopped() throws Exception {
+        byte[] data = dataHelper(FILE_SIZE);
+        File source = fileHelper("photo.jpg", data);
+
+        api.failAfter = 3;
+        try {
+            uploaderHelper().upload(new ByteArrayInputStream(data), source, "/photo.jpg");
+            fail("The upload went through a lost link");
+        } catch (DropboxIOException e) {
+            // Expected
+        }
+
+        // The stream is produced again, the part already sent is skipped:
+        api.failAfter = -1;
+        api.offsets.clear();
+        uploaderHelper().upload(new ByteArrayInputStream(data), source, "/photo.jpg");
+        assertEquals(Long.valueOf(3L * CHUNK_SIZE), api.offsets.get(0));
+        assertArrayEquals(data, readHelper(new File(storeDir, "photo.jpg")));
+    }
+
+    @Test
+    public void aStreamThatComesOutDifferentlyStartsOver() throws Exception {
+        byte[] data = dataHelper(FILE_SIZE);
+        File source = fileHelper("photo.jpg", data);
+
+        api.failAfter = 3;
+        try {
+            uploaderHelper().upload(new ByteArrayInputStream(data), source, "/photo.jpg");
+            fail("The upload went through a lost link");
+        } catch (DropboxIOException e) {
+            // Expected
+        }
+
+        // The stream changed in the part already sent, the upload can't go on:
+        byte[] changed = data.clone();
+        changed[CHUNK_SIZE] ^= 1;
+        api.failAfter = -1;
+        try {
+            uploaderHelper().upload(new ByteArrayInputStream(changed), source, "/photo.jpg");
+            fail("A changed stream was resumed");
+        } catch (DropboxIOException e) {
+            // Expected
+        }
+
+        // The next try starts from the beginning:
+        api.offsets.clear();
+        uploaderHelper().upload(new ByteArrayInputStream(changed), source, "/photo.jpg");
+        assertEquals(Long.valueOf(0L), api.offsets.get(0));
+        assertArrayEquals(changed, readHelper(new File(storeDir, "photo.jpg")));
+    }
+
+    private ResumableUploader uploaderHelper() {
+        // Chunks of a fixed size, whatever the speed of the link:
+        return new ResumableUploader(api, stateDir, CHUNK_SIZE, CHUNK_SIZE, 1000L, null);
+    }
+
+    private byte[] dataHelper(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private File fileHelper(String name, byte[] data) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readHelper(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * A chunked upload API that sends every chunk to the test server as a file of its own, under
+     * its upload id and offset, and puts them together on commit.
+     */
+    private static class TestChunkedApi implements ResumableUploader.ChunkedApi {
+
+        private final HttpUploadSink sink;
+        private final File storeDir;
+        // Offsets of the chunks sent, in order:
+        private final List<Long> offsets = new ArrayList<Long>();
+        // Number of chunks after which the link goes down, -1 for never:
+        private int failAfter = -1;
+        private int uploadCount;
+        private long sentBytes;
+
+        TestChunkedApi(HttpUploadSink sink, File storeDir) {
+            this.sink = sink;
+            this.storeDir = storeDir;
+        }
+
+        @Override
+        public DropboxAPI.ChunkedUploadResponse uploadChunk(InputStream in, long length, long offset,
+                                                           String uploadId) throws DropboxException {
+            if (failAfter == 0) {
+                throw new DropboxIOException("The link is down");
+            }
+            if (failAfter > 0) {
+                failAfter--;
+            }
+            if (uploadId == null) {
+                uploadId = "upload" + ++uploadCount;
+            }
+            offsets.add(offset);
+            byte[] chunk = new byte[(int) length];
+            long stored;
+            try {
+                new DataInputStream(in).readFully(chunk);
+                stored = sink.upload("/" + uploadId + "/" + offset, new ByteArrayInputStream(chunk), length);
+            } catch (IOException e) {
+                throw new DropboxIOException(e);
+            } catch (UploadException e) {
+                throw new DropboxIOException(e.getMessage());
+            }
+            sentBytes += stored;
+            Map<String, Object> response = new HashMap<String, Object>();
+            response.put("upload_id", uploadId);
+            response.put("offset", offset + stored);
+            return new DropboxAPI.ChunkedUploadResponse(response);
+        }
+
+        @Override
+        public DropboxAPI.Entry commit(String path, String uploadId) throws DropboxException {
+            File target = new File(storeDir, path);
+            long offset = 0L;
+            try {
+                FileOutputStream out = new FileOutputStream(target);
+                try {
+                    File chunk;
+                    while ((chunk = new File(storeDir, uploadId + "/" + offset)).exists()) {
+                        out.write(readHelper(chunk));
+                        offset += chunk.length();
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                throw new DropboxIOException(e);
+            }
+            DropboxAPI.Entry entry = new DropboxAPI.Entry();
+            entry.path = path;
+            entry.bytes = offset;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.droidmapper.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the token bucket that limits the upload bandwidth.
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void withoutALimitNothingWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket();
+        bucket.acquire(10 * 1024 * 1024);
+        assertEquals(0L, bucket.getThreadWaitNanos());
+    }
+
+    @Test
+    public void waitsAreCountedForTheWaitingThreadOnly() throws InterruptedException {
+        final TokenBucket bucket = new TokenBucket(100 * 1024, 10 * 1024);
+        // The burst goes through, the next 10 KiB wait for their tokens, about 100 ms:
+        bucket.acquire(10 * 1024);
+        bucket.acquire(10 * 1024);
+        bucket.acquire(1);
+        long waited = bucket.getThreadWaitNanos();
+        assertTrue("waited " + waited, waited >= 50000000L && waited < 1000000000L);
+
+        final AtomicLong otherWaited = new AtomicLong(-1L);
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                otherWaited.set(bucket.getThreadWaitNanos());
+            }
+        };
+        other.start();
+        other.join();
+        assertEquals(0L, otherWaited.get());
+    }
+}
@@ -0,0 +1,182 @@
+package com.droidmapper.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the durable queue of the photos waiting for upload.
+ */
+public class UploadJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "upload.journal");
+    }
+
+    @Test
+    public void photosComeOutInTheOrderTheyWereQueued() throws InterruptedException {
+        UploadJournal journal = new UploadJournal(file);
+        journal.append("/a.jpg", 10L);
+        journal.append("/b.jpg", 20L);
+
+        assertEquals("/a.jpg", journal.take().getPath());
+        assertEquals("/b.jpg", journal.take().getPath());
+        assertNull(journal.poll(0L));
+        journal.close();
+    }
+
+    @Test
+    public void pendingPhotosAreQueuedAgainAfterARestart() throws InterruptedException {
+        UploadJournal journal = new UploadJournal(file);
+        for (int i = 0; i < 5; i++) {
+            journal.append("/" + i + ".jpg", 1L);
+        }
+        journal.complete(journal.take());
+        UploadJournal.Entry inFlight = journal.take();
+        journal.retry(journal.take());
+        journal.close();
+
+        // Only the completed photo is gone, the one in flight comes back too:
+        journal = new UploadJournal(file);
+        assertEquals(4, journal.getPendingCount());
+        assertEquals(inFlight.getPath(), journal.take().getPath());
+        assertEquals("/2.jpg", journal.take().getPath());
+        assertEquals("/3.jpg", journal.take().getPath());
+        assertEquals("/4.jpg", journal.take().getPath());
+        journal.close();
+    }
+
+    @Test
+    public void recordsSurviveARestartWithoutAFlush() {
+        // Fewer records than are forced at once, the mapping still holds them:
+        UploadJournal journal = new UploadJournal(file);
+        journal.append("/a.jpg", 1L);
+        journal.append("/b.jpg", 1L);
+
+        assertEquals(2, new UploadJournal(file).getPendingCount());
+    }
+
+    @Test
+    public void backlogFollowsTheQueuedSizes() throws InterruptedException {
+        UploadJournal journal = new UploadJournal(file);
+        journal.append("/a.jpg", 100L);
+        journal.append("/b.jpg", 50L);
+        assertEquals(150L, journal.getBacklogBytes());
+
+        // A photo taken from the queue still counts until it is completed:
+        UploadJournal.Entry a = journal.take();
+        assertEquals(150L, journal.getBacklogBytes());
+        journal.retry(a);
+        assertEquals(150L, journal.getBacklogBytes());
+
+        journal.complete(journal.take());
+        assertEquals(100L, journal.getBacklogBytes());
+        journal.complete(journal.take());
+        assertEquals(0L, journal.getBacklogBytes());
+        journal.close();
+    }
+
+    @Test
+    public void photosGivenBackAfterCloseLeaveTheBacklog() throws InterruptedException {
+        UploadJournal journal = new UploadJournal(file);
+        journal.append("/a.jpg", 100L);
+        journal.append("/b.jpg", 50L);
+        journal.append("/c.jpg", 10L);
+        UploadJournal.Entry a = journal.take();
+        UploadJournal.Entry b = journal.take();
+        journal.close();
+
+        // The upload in flight finishes, or fails, after the journal is closed:
+        journal.retry(a);
+        assertEquals(60L, journal.getBacklogBytes());
+        journal.complete(b);
+        assertEquals(10L, journal.getBacklogBytes());
+        // Only once:
+        journal.retry(a);
+        assertEquals(10L, journal.getBacklogBytes());
+
+        // The one given back is queued again:
+        journal = new UploadJournal(file);
+        assertEquals(2, journal.getPendingCount());
+        assertEquals("/a.jpg", journal.take().getPath());
+        journal.close();
+    }
+
+    @Test
+    public void compactionKeepsThePendingPhotos() throws InterruptedException {
+        UploadJournal journal = new UploadJournal(file);
+        for (int i = 0; i < 3000; i++) {
+            journal.append("/" + i + ".jpg", 1L);
+        }
+        for (int i = 0; i < 2000; i++) {
+            journal.complete(journal.take());
+        }
+        journal.close();
+
+        journal = new UploadJournal(file);
+        assertEquals(1000, journal.getPendingCount());
+        assertEquals("/2000.jpg", journal.take().getPath());
+        journal.close();
+    }
+
+    @Test
+    public void hashesAreKeptWithThePhotos() throws InterruptedException {
+        byte[] digest = hashHelper(1), imageKey = hashHelper(2);
+        UploadJournal journal = new UploadJournal(file);
+        journal.append("/a.jpg", 10L, digest, null);
+        journal.append("/b.jpg", 20L, null, imageKey);
+        journal.append("/c.jpg", 30L);
+        journal.close();
+
+        journal = new UploadJournal(file);
+        UploadJournal.Entry a = journal.take(), b = journal.take(), c = journal.take();
+        assertArrayEquals(digest, a.getDigest());
+        assertNull(a.getImageKey());
+        assertNull(b.getDigest());
+        assertArrayEquals(imageKey, b.getImageKey());
+        assertEquals("/c.jpg", c.getPath());
+        assertNull(c.getDigest());
+        assertNull(c.getImageKey());
+        journal.close();
+    }
+
+    @Test
+    public void compactionKeepsTheHashes() throws InterruptedException {
+        UploadJournal journal = new UploadJournal(file);
+        for (int i = 0; i < 3000; i++) {
+            journal.append("/" + i + ".jpg", 1L, hashHelper(i), hashHelper(-i));
+        }
+        for (int i = 0; i < 2000; i++) {
+            journal.complete(journal.take());
+        }
+        journal.close();
+
+        journal = new UploadJournal(file);
+        UploadJournal.Entry entry = journal.take();
+        assertEquals("/2000.jpg", entry.getPath());
+        assertArrayEquals(hashHelper(2000), entry.getDigest());
+        assertArrayEquals(hashHelper(-2000), entry.getImageKey());
+        journal.close();
+    }
+
+    private static byte[] hashHelper(int seed) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (seed * 31 + i);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,452 @@
+package com.droidmapper.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, embeddable HTTP server that accepts the PUT requests of an {@link HttpUploadSink} and
+ * emulates the link to a real upload service: every request waits for the configured latency,
+ * the request bodies are read no faster than the configured bandwidth, shared by all the
+ * connections like the bandwidth of a real link, and a configurable share of the requests fails.
+ * It lets the uploader be measured, tuned and tested without a network or a Dropbox account.<br>
+ * It is built on a plain ServerSocket and understands only what an HttpUploadSink sends: PUT requests with a Content-Length or chunked
+ * body. Each request gets its own connection. The bodies are stored in a directory, or counted
+ * and discarded.<br>
+ * <b>Note:</b> This class is thread safe, the settings can be changed while the server runs.
+ */
+public class UploadTestServer {
+
+    private static final String TAG = UploadTestServer.class.getName();
+
+    /**
+     * A failed request is answered with 429 Too Many Requests, as a service that throttles does.
+     */
+    public static final int FAILURE_THROTTLE = 1;
+    /**
+     * A failed request is answered with 503 Service Unavailable.
+     */
+    public static final int FAILURE_SERVER_ERROR = 2;
+    /**
+     * A failed request's connection is closed half way through its body, as a lost link does.
+     */
+    public static final int FAILURE_DISCONNECT = 3;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final File storeDir;
+    private final Random random;
+
+    private volatile long latencyMs;
+    private volatile long bandwidth;
+    private volatile float failureRate;
+    private volatile int failureMode = FAILURE_SERVER_ERROR;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    // Time, in nanoseconds, at which the emulated link becomes free:
+    private long linkFreeAt;
+
+    // Statistics:
+    private final AtomicLong requestCount = new AtomicLong(), storedBytes = new AtomicLong(),
+            injectedFailureCount = new AtomicLong();
+
+    /**
+     * Default constructor. It creates an instance of this class using the parameters supplied.
+     *
+     * @param storeDir The directory the uploads are stored in, under their paths, or <b>null</b>
+     *                 to discard them.
+     * @param seed     Seed of the random numbers that pick the requests which fail, the same seed
+     *                 fails the same requests of the same run.
+     */
+    public UploadTestServer(File storeDir, long seed) {
+        this.storeDir = storeDir;
+        random = new Random(seed);
+    }
+
+    /**
+     * Sets the time every request waits before it is answered.
+     *
+     * @param latencyMs The latency in milliseconds.
+     */
+    public void setLatency(long latencyMs) {
+        if (latencyMs < 0L) {
+            throw new IllegalArgumentException("Param latencyMs can't be less than 0(zero).");
+        }
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * Sets the bandwidth of the emulated link.
+     *
+     * @param bytesPerSecond Number of bytes of request bodies read per second, over all the
+     *                       connections, or 0(zero) for no limit.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0L) {
+            throw new IllegalArgumentException("Param bytesPerSecond can't be less than 0(zero).");
+        }
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Sets which share of the requests fails, and how.
+     *
+     * @param failureRate Share of the requests that fail, between 0(zero) and 1(one).
+     * @param failureMode How they fail, one of {@link #FAILURE_THROTTLE},
+     *                    {@link #FAILURE_SERVER_ERROR} or {@link #FAILURE_DISCONNECT}.
+     */
+    public void setFailures(float failureRate, int failureMode) {
+        if (failureRate < 0F || failureRate > 1F) {
+            throw new IllegalArgumentException("Param failureRate has to be between 0(zero) and 1(one).");
+        }
+        if (failureMode < FAILURE_THROTTLE || failureMode > FAILURE_DISCONNECT) {
+            throw new IllegalArgumentException("Param failureMode has an unknown value: " + failureMode);
+        }
+        this.failureMode = failureMode;
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Starts the server on the loopback interface.
+     *
+     * @param port The port to listen on, or 0(zero) to pick a free one, see {@link #getPort()}.
+     * @throws IOException If the server socket can't be opened.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("The server is already running.");
+        }
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool();
+        final ServerSocket acceptSocket = serverSocket;
+        final ExecutorService acceptExecutor = executor;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!acceptSocket.isClosed()) {
+                    try {
+                        final Socket socket = acceptSocket.accept();
+                        acceptExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleHelper(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!acceptSocket.isClosed()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }, "UploadTestServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.d(TAG, "start() :: Listening on port " + serverSocket.getLocalPort());
+    }
+
+    /**
+     * Stops the server, the requests in progress are cut off.
+     */
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executor.shutdownNow();
+        serverSocket = null;
+        executor = null;
+    }
+
+    /**
+     * @return The port the server listens on, or -1 if it isn't running.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The URL an {@link HttpUploadSink} should upload to.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * @return Number of requests failed on purpose so far.
+     */
+    public long getInjectedFailureCount() {
+        return injectedFailureCount.get();
+    }
+
+    /**
+     * @return A short, human readable summary of the server's statistics.
+     */
+    public String getStats() {
+        return "test server[" + requestCount.get() + " requests, " + storedBytes.get() / 1024L + " KiB, "
+                + injectedFailureCount.get() + " failed on purpose]";
+    }
+
+    /**
+     * A helper method that reads a single request from the socket and answers it.
+     */
+    private void handleHelper(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            OutputStream out = socket.getOutputStream();
+            String requestLine = readLineHelper(in);
+            if (requestLine == null) {
+                return;
+            }
+            long contentLength = -1L;
+            boolean chunked = false;
+            String line;
+            while ((line = readLineHelper(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                }
+            }
+            requestCount.incrementAndGet();
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || !parts[0].equals("PUT")) {
+                respondHelper(out, 405, "Method Not Allowed", "");
+                return;
+            }
+            String path = parts[1];
+            if (!path.startsWith("/") || path.contains("..")) {
+                respondHelper(out, 400, "Bad Request", "");
+                return;
+            }
+
+            int failure = pickFailureHelper();
+            if (latencyMs > 0L) {
+                Thread.sleep(latencyMs);
+            }
+            OutputStream body = null;
+            File temp = null;
+            if (storeDir != null && failure == 0) {
+                File target = new File(storeDir, path);
+                target.getParentFile().mkdirs();
+                temp = new File(target.getParentFile(), "." + target.getName() + "." + Thread.currentThread().getId()
+                        + ".tmp");
+                body = new FileOutputStream(temp);
+            }
+            long received;
+            try {
+                // A disconnect drops the connection half way through the body, or after the first
+                // buffer of a chunked one:
+                long limit = Long.MAX_VALUE;
+                if (failure == FAILURE_DISCONNECT) {
+                    limit = contentLength < 0L ? BUFFER_SIZE : contentLength / 2L;
+                }
+                received = chunked ? readChunkedHelper(in, body, limit) : readBodyHelper(in, body,
+                        Math.max(0L, contentLength), limit);
+                if (body != null) {
+                    body.close();
+                    body = null;
+                    File target = new File(storeDir, path);
+                    if (!temp.renameTo(target)) {
+                        target.delete();
+                        temp.renameTo(target);
+                    }
+                }
+            } finally {
+                if (body != null) {
+                    body.close();
+                    temp.delete();
+                }
+            }
+
+            switch (failure) {
+                case FAILURE_THROTTLE:
+                    respondHelper(out, 429, "Too Many Requests", "");
+                    break;
+                case FAILURE_SERVER_ERROR:
+                    respondHelper(out, 503, "Service Unavailable", "");
+                    break;
+                case FAILURE_DISCONNECT:
+                    // Nothing, the connection is simply closed:
+                    break;
+                default:
+                    storedBytes.addAndGet(received);
+                    respondHelper(out, 200, "OK", received + "\n");
+                    break;
+            }
+        } catch (InterruptedException e) {
+            // The server is stopping:
+        } catch (SocketException e) {
+            // The client went away:
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return The way the current request fails, or 0(zero) if it doesn't.
+     */
+    private int pickFailureHelper() {
+        float rate = failureRate;
+        if (rate <= 0F) {
+            return 0;
+        }
+        boolean fail;
+        synchronized (random) {
+            fail = random.nextFloat() < rate;
+        }
+        if (!fail) {
+            return 0;
+        }
+        injectedFailureCount.incrementAndGet();
+        return failureMode;
+    }
+
+    /**
+     * A helper method that reads a body of a known length.
+     *
+     * @param limit Number of bytes after which the reading stops.
+     * @return Number of bytes read.
+     */
+    private long readBodyHelper(InputStream in, OutputStream body, long length, long limit)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = Math.min(length, limit);
+        long received = 0L;
+        while (remaining > 0L) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Body ended after " + received + " of " + length + " bytes");
+            }
+            throttleHelper(read);
+            if (body != null) {
+                body.write(buffer, 0, read);
+            }
+            received += read;
+            remaining -= read;
+        }
+        return received;
+    }
+
+    /**
+     * A helper method that reads a body in chunked transfer encoding.
+     *
+     * @param limit Number of bytes after which the reading stops.
+     * @return Number of bytes read.
+     */
+    private long readChunkedHelper(InputStream in, OutputStream body, long limit)
+            throws IOException, InterruptedException {
+        long received = 0L;
+        while (received < limit) {
+            String sizeLine = readLineHelper(in);
+            if (sizeLine == null) {
+                throw new IOException("Chunked body ended after " + received + " bytes");
+            }
+            int extension = sizeLine.indexOf(';');
+            long size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            if (size == 0L) {
+                // Skip the trailers:
+                String line;
+                while ((line = readLineHelper(in)) != null && line.length() > 0) {
+                    // Do nothing
+                }
+                break;
+            }
+            received += readBodyHelper(in, body, size, limit - received);
+            if (received < limit) {
+                readLineHelper(in);
+            }
+        }
+        return received;
+    }
+
+    /**
+     * A helper method that holds back the reading of a body so that all the connections together
+     * read no faster than the bandwidth allows.
+     *
+     * @param bytes Number of bytes just read.
+     */
+    private void throttleHelper(int bytes) throws InterruptedException {
+        long bytesPerSecond = bandwidth;
+        if (bytesPerSecond <= 0L) {
+            return;
+        }
+        long duration = bytes * 1000000000L / bytesPerSecond;
+        long readyAt;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFreeAt = Math.max(linkFreeAt, now) + duration;
+            readyAt = linkFreeAt;
+        }
+        long waitNanos = readyAt - System.nanoTime();
+        if (waitNanos > 0L) {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        }
+    }
+
+    /**
+     * @return The next line of the request head, without the line break, or <b>null</b> at the
+     * end of the stream.
+     */
+    private static String readLineHelper(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void respondHelper(OutputStream out, int status, String reason, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                + bytes.length + "\r\nConnection: close\r\n\r\n";
+        out.write(head.getBytes("US-ASCII"));
+        out.write(bytes);
+        out.flush();
+    }
+}